@@ -21,6 +21,7 @@ package org.doube.bonej;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.doube.util.ImageCheck;
+import org.doube.util.LabelVolume;
 import org.doube.util.Multithreader;
 import org.doube.util.ResultInserter;
 import org.doube.util.UsageReporter;
@@ -108,9 +109,11 @@ public class Connectivity implements PlugIn {
 			return;
 		}
 
-		double sumEuler = getSumEuler(imp);
+		PartialEuler euler = getSumEuler(imp, 0, imp.getStackSize() + 1);
 
-		double deltaChi = getDeltaChi(imp, sumEuler);
+		double sumEuler = euler.getSumEuler();
+
+		double deltaChi = euler.getDeltaChi();
 
 		double connectivity = getConnectivity(deltaChi);
 
@@ -182,6 +185,19 @@ public class Connectivity implements PlugIn {
 		return deltaChi;
 	}
 
+	/**
+	 * Get the contribution of the stack's foreground particles to the Euler
+	 * characteristic of the universe the stack was cut from, finding the
+	 * Euler characteristic and the edge correction in the same pass.
+	 * 
+	 * @param imp
+	 *            Binary ImagePlus
+	 * @return delta Chi
+	 */
+	public double getDeltaChi(ImagePlus imp) {
+		return getSumEuler(imp, 0, imp.getStackSize() + 1).getDeltaChi();
+	}
+
 	/**
 	 * Calculate the Euler characteristic of the foreground in a binary stack
 	 * 
@@ -190,44 +206,220 @@ public class Connectivity implements PlugIn {
 	 * @return Euler characteristic of the foreground particles
 	 */
 	public double getSumEuler(ImagePlus imp) {
+		return getSumEuler(imp, 0, imp.getStackSize() + 1).getSumEuler();
+	}
+
+	/**
+	 * <p>
+	 * Calculate the Euler characteristic and edge correction of the vertices
+	 * in a range of planes. Vertex plane z lies between slices z - 1 and z
+	 * (counting slices from 0), so a stack of depth d has d + 1 planes and
+	 * only slices zStart - 1 to zEnd - 1 are read. The Euler characteristic
+	 * is additive over vertices, so results for disjoint ranges can be
+	 * combined with {@link PartialEuler#add(PartialEuler)}, e.g. from slabs
+	 * of a virtual stack handled by different processes.
+	 * </p>
+	 * <p>
+	 * A 2 &times; 2 &times; 2 window slides along each row of vertices,
+	 * holding the window's 8 voxels as the bits of an index into EULER_LUT
+	 * and EDGE_LUT. The column of 4 voxels at x is shifted into the high
+	 * nibble and the column at x - 1 moves down to the low nibble, so each
+	 * vertex costs 4 pixel reads and no allocation.
+	 * </p>
+	 * 
+	 * @param imp
+	 *            Binary ImagePlus
+	 * @param zStart
+	 *            first vertex plane, 0 to d
+	 * @param zEnd
+	 *            1 + last vertex plane, up to d + 1
+	 * @return Euler characteristic of the foreground and the edge correction
+	 *         that getDeltaChi() subtracts from it, over the vertex planes
+	 */
+	public PartialEuler getSumEuler(ImagePlus imp, int zStart, final int zEnd) {
 		setDimensions(imp);
 		final ImageStack stack = imp.getImageStack();
+		final int w = width;
+		final int h = height;
+		final int d = depth;
+		if (zStart < 0 || zEnd > d + 1 || zStart > zEnd)
+			throw new IllegalArgumentException("Vertex planes " + zStart
+					+ " to " + zEnd + " are not within 0 to " + (d + 1));
+
+		// sums for each plane of vertices, in eighths
+		final long[] sumEulerInt = new long[d + 1];
+		final long[] sumCorrectionInt = new long[d + 1];
+
+		final AtomicInteger ai = new AtomicInteger(zStart);
+		Thread[] threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(new Runnable() {
+				public void run() {
+					// stands in for slices and rows outside the stack
+					final byte[] empty = new byte[w * h];
+					for (int z = ai.getAndIncrement(); z < zEnd; z = ai
+							.getAndIncrement()) {
+						// slices above and below the plane of vertices
+						final byte[] above = z > 0 ? (byte[]) stack
+								.getPixels(z) : empty;
+						final byte[] below = z < d ? (byte[]) stack
+								.getPixels(z + 1) : empty;
+						final int zType = (z == 0 || z == d) ? 4 : 0;
+						long euler = 0;
+						long correction = 0;
+						for (int y = 0; y <= h; y++) {
+							// rows behind and in front of the row of vertices
+							final byte[] a0 = y > 0 ? above : empty;
+							final byte[] b0 = y > 0 ? below : empty;
+							final int off0 = y > 0 ? (y - 1) * w : 0;
+							final byte[] a1 = y < h ? above : empty;
+							final byte[] b1 = y < h ? below : empty;
+							final int off1 = y < h ? y * w : 0;
+							final int type = zType
+									| ((y == 0 || y == h) ? 2 : 0);
+							final int[] edgeLUT = EDGE_LUT[type];
+							final int[] endLUT = EDGE_LUT[type | 1];
+							int index = getColumn(a0, a1, b0, b1, off0, off1, 0);
+							euler += EULER_LUT[index];
+							correction += endLUT[index];
+							if (type == 0) {
+								// only the ends of the row are on the stack's
+								// surface
+								for (int x = 1; x < w; x++) {
+									index = (index >> 4)
+											| getColumn(a0, a1, b0, b1, off0,
+													off1, x);
+									euler += EULER_LUT[index];
+								}
+							} else {
+								for (int x = 1; x < w; x++) {
+									index = (index >> 4)
+											| getColumn(a0, a1, b0, b1, off0,
+													off1, x);
+									euler += EULER_LUT[index];
+									correction += edgeLUT[index];
+								}
+							}
+							index >>= 4;
+							euler += EULER_LUT[index];
+							correction += endLUT[index];
+						}
+						sumEulerInt[z] = euler;
+						// a single slice is corrected on its top face only
+						if (z < d || d > 1)
+							sumCorrectionInt[z] = correction;
+					}
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+		long sumEuler = 0;
+		long sumCorrection = 0;
+		for (int z = zStart; z < zEnd; z++) {
+			sumEuler += sumEulerInt[z];
+			sumCorrection += sumCorrectionInt[z];
+		}
+		return new PartialEuler(sumEuler, sumCorrection);
+	}
 
-		final int eulerLUT[] = new int[256];
-		fillEulerLUT(eulerLUT);
-
-		final int[] sumEulerInt = new int[depth+1];
+	/**
+	 * Calculate the Euler characteristic of each particle in a label array in
+	 * a single sweep. Each octant adds its Euler delta to every label present
+	 * in it, with voxels of other labels treated as background, so the
+	 * result for each particle is the same as getSumEuler() on a stack
+	 * containing only that particle.
+	 * 
+	 * @param particleLabels
+	 *            particle labels, 0 for background
+	 * @param nParticles
+	 *            1 + the largest label
+	 * @return Euler characteristic of each particle
+	 */
+	public double[] getSumEuler(final LabelVolume particleLabels,
+			final int nParticles) {
+		final int w = particleLabels.getWidth();
+		final int h = particleLabels.getHeight();
+		final int d = particleLabels.getDepth();
 
 		final AtomicInteger ai = new AtomicInteger(0);
 		Thread[] threads = Multithreader.newThreads();
+		final long[][] partialSums = new long[threads.length][];
 		for (int thread = 0; thread < threads.length; thread++) {
+			final int t = thread;
 			threads[thread] = new Thread(new Runnable() {
 				public void run() {
-					long deltaEuler = 0;
-					for (int z = ai.getAndIncrement(); z <= depth; z = ai.getAndIncrement()) {
-						for (int y = 0; y <= height; y++) {
-							for (int x = 0; x <= width; x++) {
-								final byte[] octant = getOctant(stack, x, y, z);
-								if (octant[0] > 0) { // this octant is not empty
-									deltaEuler = getDeltaEuler(octant, eulerLUT);
-									sumEulerInt[z] += deltaEuler;
+					final long[] sums = new long[nParticles];
+					final int[] labels = new int[8];
+					int[] bufferA = new int[w * h];
+					int[] bufferB = new int[w * h];
+					for (int z = ai.getAndIncrement(); z <= d; z = ai
+							.getAndIncrement()) {
+						// slices above and below the plane of vertices
+						final int[] above = z > 0 ? particleLabels.getSlice(
+								z - 1, bufferA) : null;
+						final int[] below = z < d ? particleLabels.getSlice(z,
+								bufferB) : null;
+						for (int y = 0; y <= h; y++) {
+							for (int x = 0; x <= w; x++) {
+								// in octant index bit order
+								labels[0] = getLabel(above, x - 1, y - 1, w, h);
+								labels[1] = getLabel(above, x - 1, y, w, h);
+								labels[2] = getLabel(below, x - 1, y - 1, w, h);
+								labels[3] = getLabel(below, x - 1, y, w, h);
+								labels[4] = getLabel(above, x, y - 1, w, h);
+								labels[5] = getLabel(above, x, y, w, h);
+								labels[6] = getLabel(below, x, y - 1, w, h);
+								labels[7] = getLabel(below, x, y, w, h);
+								for (int n = 0; n < 8; n++) {
+									final int label = labels[n];
+									if (label == 0)
+										continue;
+									boolean done = false;
+									for (int m = 0; m < n; m++) {
+										if (labels[m] == label) {
+											done = true;
+											break;
+										}
+									}
+									if (done)
+										continue;
+									int index = 0;
+									for (int m = n; m < 8; m++)
+										if (labels[m] == label)
+											index |= 1 << m;
+									sums[label] += EULER_LUT[index];
 								}
 							}
 						}
 					}
+					partialSums[t] = sums;
 				}
 			});
 		}
 		Multithreader.startAndJoin(threads);
-		double sumEuler = 0;
-		for (int i = 0; i < sumEulerInt.length; i++) {
-			sumEuler += sumEulerInt[i];
+		double[] sumEuler = new double[nParticles];
+		for (int p = 1; p < nParticles; p++) {
+			long sum = 0;
+			for (long[] sums : partialSums)
+				sum += sums[p];
+			sumEuler[p] = sum / 8.0;
 		}
-
-		sumEuler /= 8;
 		return sumEuler;
 	}
 
+	/**
+	 * Get a label from a slice of labels (0 border conditions)
+	 * 
+	 * @param slice
+	 *            labels, or null outside the stack
+	 */
+	private static int getLabel(final int[] slice, final int x, final int y,
+			final int w, final int h) {
+		if (slice != null && x >= 0 && x < w && y >= 0 && y < h)
+			return slice[y * w + x];
+		return 0;
+	}
+
 	private void setDimensions(ImagePlus imp) {
 		this.width = imp.getWidth();
 		this.height = imp.getHeight();
@@ -235,62 +427,31 @@ public class Connectivity implements PlugIn {
 		return;
 	}
 
-	/* ----------------------------------------------------------------------- */
-	/**
-	 * Get octant of a vertex at (0,0,0) of a voxel (upper top left) in a 3D
-	 * image (0 border conditions)
-	 * 
-	 * @param stack
-	 *            3D image (ImageStack)
-	 * @param x
-	 *            x- coordinate
-	 * @param y
-	 *            y- coordinate
-	 * @param z
-	 *            z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding 8-pixel octant (0 if out of image)
-	 */
-	private byte[] getOctant(final ImageStack stack, final int x, final int y,
-			final int z) {
-		byte[] octant = new byte[9]; // index 0 is counter to determine octant
-		// emptiness, index 8 is at (x,y,z)
-
-		octant[1] = getPixel(stack, x - 1, y - 1, z - 1);
-		octant[2] = getPixel(stack, x - 1, y, z - 1);
-		octant[3] = getPixel(stack, x, y - 1, z - 1);
-		octant[4] = getPixel(stack, x, y, z - 1);
-		octant[5] = getPixel(stack, x - 1, y - 1, z);
-		octant[6] = getPixel(stack, x - 1, y, z);
-		octant[7] = getPixel(stack, x, y - 1, z);
-		octant[8] = getPixel(stack, x, y, z);
-
-		for (int n = 1; n < 9; n++)
-			octant[0] -= octant[n]; // foreground is -1, so octant[0] contains
-		// nVoxels in octant
-		return octant;
-	} /* end getNeighborhood */
-
-	/* ----------------------------------------------------------------------- */
 	/**
-	 * Get pixel in 3D image stack (0 border conditions)
+	 * Get the 4 voxels at x of a 2 &times; 2 &times; 2 window as the high
+	 * nibble of an octant index
 	 * 
-	 * @param stack
-	 *            3D image
+	 * @param a0
+	 *            slice above the vertex, behind
+	 * @param a1
+	 *            slice above the vertex, in front
+	 * @param b0
+	 *            slice below the vertex, behind
+	 * @param b1
+	 *            slice below the vertex, in front
+	 * @param off0
+	 *            offset of the row behind the vertex
+	 * @param off1
+	 *            offset of the row in front of the vertex
 	 * @param x
-	 *            x- coordinate
-	 * @param y
-	 *            y- coordinate
-	 * @param z
-	 *            z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding pixel (0 if out of image)
+	 * @return bits 4-7 of the octant index
 	 */
-	private byte getPixel(final ImageStack stack, int x, int y, int z) {
-		if (x >= 0 && x < this.width && y >= 0 && y < this.height && z >= 0
-				&& z < this.depth)
-			return ((byte[]) stack.getPixels(z + 1))[y * this.width + x];
-		else
-			return 0;
-	} /* end getPixel */
+	private static int getColumn(final byte[] a0, final byte[] a1,
+			final byte[] b0, final byte[] b1, final int off0, final int off1,
+			final int x) {
+		return (a0[off0 + x] == -1 ? 16 : 0) | (a1[off1 + x] == -1 ? 32 : 0)
+				| (b0[off0 + x] == -1 ? 64 : 0) | (b1[off1 + x] == -1 ? 128 : 0);
+	}
 
 	/**
 	 * Get delta euler value for an octant (~= vertex) from look up table
@@ -307,7 +468,7 @@ public class Connectivity implements PlugIn {
 	 *            Euler LUT
 	 * @return or false if the point is Euler invariant or not
 	 */
-	private int getDeltaEuler(final byte[] octant, final int[] LUT) {
+	private static int getDeltaEuler(final byte[] octant, final int[] LUT) {
 		int deltaEuler = 0;
 		if (octant[0] == 0) { // check to make sure there is a foreground voxel
 			// in this octant
@@ -395,360 +556,116 @@ public class Connectivity implements PlugIn {
 		return deltaEuler;
 	}/* end getDeltaEuler */
 
-	/*------------------------------------------------------------------------*/
-	/**
-	 * Check all vertices of stack and count if foreground (-1) this is
-	 * &#967;<sub>0</sub> from Odgaard and Gundersen (1993) and <i>f</i> in my
-	 * working
-	 * 
-	 * @param stack
-	 * @return number of voxel vertices intersecting with stack vertices
-	 */
-	private long getStackVertices(final ImageStack stack) {
-		long nStackVertices = 0;
-		for (int z = 0; z < stack.getSize(); z += stack.getSize() - 1) {
-			for (int y = 0; y < stack.getHeight(); y += stack.getHeight() - 1) {
-				for (int x = 0; x < stack.getWidth(); x += stack.getWidth() - 1) {
-					if (getPixel(stack, x, y, z) == -1)
-						nStackVertices++;
-				}
-			}
-			if (stack.getSize() == 1)
-				break;
-		}
-		return nStackVertices;
-	}/* end getStackVertices */
-
-	/**
-	 * Count the number of foreground voxels on edges of stack, this is part of
-	 * &#967;<sub>1</sub> (<i>e</i> in my working)
-	 * 
-	 * @param stack
-	 * @return number of voxel edges intersecting with stack edges
-	 */
-	private long getStackEdges(final ImageStack stack) {
-		long nStackEdges = 0;
-
-		// vertex voxels contribute 3 edges
-		// this could be taken out into a variable to avoid recalculating it
-		// nStackEdges += getStackVertices(stack) * 3; = f * 3;
-
-		// left to right stack edges
-		for (int z = 0; z < depth; z += depth - 1) {
-			for (int y = 0; y < height; y += height - 1) {
-				for (int x = 1; x < width - 1; x++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nStackEdges++;
-				}
-			}
-			if (depth == 1)
-				break;
-		}
-
-		// back to front stack edges
-		for (int z = 0; z < depth; z += depth - 1) {
-			for (int x = 0; x < width; x += width - 1) {
-				for (int y = 1; y < height - 1; y++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nStackEdges++;
-				}
-			}
-			if (depth == 1)
-				break;
-		}
-
-		// top to bottom stack edges
-		for (int y = 0; y < height; y += height - 1) {
-			for (int x = 0; x < width; x += width - 1) {
-				for (int z = 1; z < depth - 1; z++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nStackEdges++;
-					if (depth == 1)
-						break;
-				}
-			}
-		}
-		return nStackEdges;
-	}/* end getStackEdges */
-
-	/*---------------------------------------------------------------------*/
 	/**
-	 * Count the number of foreground voxel faces intersecting with stack faces
-	 * This is part of &#967;<sub>2</sub> and is <i>c</i> in my working
-	 * 
-	 * @param stack
-	 * @return number of voxel faces intersecting with stack faces
+	 * Bit of the octant index holding each element of an octant as returned
+	 * by the former getOctant(): elements 1-8 are the voxels at (x-1, y-1,
+	 * z-1), (x-1, y, z-1), (x, y-1, z-1), (x, y, z-1), (x-1, y-1, z), (x-1, y,
+	 * z), (x, y-1, z) and (x, y, z) around the vertex at (x, y, z)
 	 */
-	private long getStackFaces(final ImageStack stack) {
-		long nStackFaces = 0;
-
-		// vertex voxels contribute 3 faces
-		// this could be taken out into a variable to avoid recalculating it
-		// nStackFaces += getStackVertices(stack) * 3;
-
-		// edge voxels contribute 2 faces
-		// this could be taken out into a variable to avoid recalculating it
-		// nStackFaces += getStackEdges(stack) * 2;
-
-		// top and bottom faces
-		for (int z = 0; z < depth; z += depth - 1) {
-			for (int y = 1; y < height - 1; y++) {
-				for (int x = 1; x < width - 1; x++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nStackFaces++;
-				}
-			}
-			if (depth == 1)
-				break;
-		}
-
-		// back and front faces
-		for (int y = 0; y < height; y += height - 1) {
-			for (int z = 1; z < depth - 1; z++) {
-				for (int x = 1; x < width - 1; x++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nStackFaces++;
-				}
-				if (depth == 1)
-					break;
-			}
-		}
+	private static final int[] OCTANT_BITS = { -1, 0, 1, 4, 5, 2, 3, 6, 7 };
 
-		// left and right faces
-		for (int x = 0; x < width; x += width - 1) {
-			for (int y = 1; y < height - 1; y++) {
-				for (int z = 1; z < depth - 1; z++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nStackFaces++;
-					if (depth == 1)
-						break;
-				}
-			}
-		}
-		return nStackFaces;
-	}/* end getStackFaces */
+	/** Euler delta (in eighths) of each octant index */
+	private static final int[] EULER_LUT = makeEulerLUT();
 
 	/**
-	 * Count the number of voxel vertices intersecting stack faces. This
-	 * contributes to &#967;<sub>2</sub> (<i>a</i> in my working)
-	 * 
-	 * @param stack
-	 * @return Number of voxel vertices intersecting stack faces
+	 * Edge correction (in eighths) of each octant index, for vertices on the
+	 * x (1), y (2) and z (4) faces of the stack, indexed by the sum of their
+	 * face flags and then by octant index
 	 */
-	private long getFaceVertices(final ImageStack stack) {
-		long nFaceVertices = 0;
-
-		// top and bottom faces (all 4 edges)
-		for (int z = 0; z < depth; z += depth - 1) {
-			for (int y = 0; y <= height; y++) {
-				for (int x = 0; x <= width; x++) {
-					// if the voxel or any of its neighbours are foreground, the
-					// vertex is counted
-					if (getPixel(stack, x, y, z) == -1)
-						nFaceVertices++;
-					else if (getPixel(stack, x, y - 1, z) == -1)
-						nFaceVertices++;
-					else if (getPixel(stack, x - 1, y - 1, z) == -1)
-						nFaceVertices++;
-					else if (getPixel(stack, x - 1, y, z) == -1)
-						nFaceVertices++;
-				}
-			}
-			if (depth == 1)
-				break;
-		}
-
-		// left and right faces (2 vertical edges)
-		for (int x = 0; x < width; x += width - 1) {
-			for (int y = 0; y <= height; y++) {
-				for (int z = 1; z < depth; z++) {
-					// if the voxel or any of its neighbours are foreground, the
-					// vertex is counted
-					if (getPixel(stack, x, y, z) == -1)
-						nFaceVertices++;
-					else if (getPixel(stack, x, y - 1, z) == -1)
-						nFaceVertices++;
-					else if (getPixel(stack, x, y - 1, z - 1) == -1)
-						nFaceVertices++;
-					else if (getPixel(stack, x, y, z - 1) == -1)
-						nFaceVertices++;
-					if (depth == 1)
-						break;
-				}
-			}
-		}
-
-		// back and front faces (0 vertical edges)
-		for (int y = 0; y < height; y += height - 1) {
-			for (int x = 1; x < width; x++) {
-				for (int z = 1; z < depth; z++) {
-					// if the voxel or any of its neighbours are foreground, the
-					// vertex is counted
-					if (getPixel(stack, x, y, z) == -1)
-						nFaceVertices++;
-					else if (getPixel(stack, x, y, z - 1) == -1)
-						nFaceVertices++;
-					else if (getPixel(stack, x - 1, y, z - 1) == -1)
-						nFaceVertices++;
-					else if (getPixel(stack, x - 1, y, z) == -1)
-						nFaceVertices++;
-					if (depth == 1)
-						break;
-				}
-			}
-		}
-		return nFaceVertices;
-	}/* end getFaceVertices */
+	private static final int[][] EDGE_LUT = makeEdgeLUT();
 
 	/**
-	 * Count the number of intersections between voxel edges and stack faces.
-	 * This is part of &#967;<sub>2</sub>, in my working it's called <i>b</i>
+	 * Look up each of the 256 possible octants in the Euler LUT once, so
+	 * that the octant does not have to be rotated at every vertex
 	 * 
-	 * @param stack
-	 * @return number of intersections between voxel edges and stack faces
+	 * @return Euler delta of each octant index
 	 */
-	private long getFaceEdges(final ImageStack stack) {
-		long nFaceEdges = 0;
-
-		// top and bottom faces (all 4 edges)
-		// check 2 edges per voxel
-		for (int z = 0; z < depth; z += depth - 1) {
-			for (int y = 0; y <= height; y++) {
-				for (int x = 0; x <= width; x++) {
-					// if the voxel or any of its neighbours are foreground, the
-					// vertex is counted
-					if (getPixel(stack, x, y, z) == -1) {
-						nFaceEdges += 2;
-					} else {
-						if (getPixel(stack, x, y - 1, z) == -1) {
-							nFaceEdges++;
-						}
-						if (getPixel(stack, x - 1, y, z) == -1) {
-							nFaceEdges++;
-						}
-					}
-				}
-			}
-			if (depth == 1)
-				break;
-		}
-
-		// back and front faces, horizontal edges
-		for (int y = 0; y < height; y += height - 1) {
-			for (int z = 1; z < depth; z++) {
-				for (int x = 0; x < width; x++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nFaceEdges++;
-					else if (getPixel(stack, x, y, z - 1) == -1)
-						nFaceEdges++;
-				}
-				if (depth == 1)
-					break;
-			}
-		}
-
-		// back and front faces, vertical edges
-		for (int y = 0; y < height; y += height - 1) {
-			for (int z = 0; z < depth; z++) {
-				for (int x = 0; x <= width; x++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nFaceEdges++;
-					else if (getPixel(stack, x - 1, y, z) == -1)
-						nFaceEdges++;
-				}
-				if (depth == 1)
-					break;
-			}
-		}
-
-		// left and right stack faces, horizontal edges
-		for (int x = 0; x < width; x += width - 1) {
-			for (int z = 1; z < depth; z++) {
-				for (int y = 0; y < height; y++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nFaceEdges++;
-					else if (getPixel(stack, x, y, z - 1) == -1)
-						nFaceEdges++;
-				}
-				if (depth == 1)
-					break;
-			}
-		}
-
-		// left and right stack faces, vertical voxel edges
-		for (int x = 0; x < width; x += width - 1) {
-			for (int z = 0; z < depth; z++) {
-				for (int y = 1; y < height; y++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nFaceEdges++;
-					else if (getPixel(stack, x, y - 1, z) == -1)
-						nFaceEdges++;
-				}
-				if (depth == 1)
-					break;
+	private static int[] makeEulerLUT() {
+		final int[] eulerLUT = new int[256];
+		fillEulerLUT(eulerLUT);
+		final int[] lut = new int[256];
+		final byte[] octant = new byte[9];
+		for (int index = 0; index < 256; index++) {
+			octant[0] = 0;
+			for (int n = 1; n < 9; n++) {
+				octant[n] = (index & (1 << OCTANT_BITS[n])) != 0 ? (byte) -1
+						: 0;
+				octant[0] -= octant[n];
 			}
+			lut[index] = getDeltaEuler(octant, eulerLUT);
 		}
-		return nFaceEdges;
-	}/* end getFaceEdges */
+		return lut;
+	}
 
-	/*-------------------------------------------------------------------------*/
 	/**
-	 * Count number of voxel vertices intersecting stack edges. It contributes
-	 * to &#967;<sub>1</sub>, and I call it <i>d</i> in my working
+	 * <p>
+	 * Tabulate each vertex's share of the edge correction. The correction is
+	 * &#967;<sub>2</sub> / 2 + &#967;<sub>1</sub> / 4 + &#967;<sub>0</sub> /
+	 * 8, where &#967;<sub>2</sub> is the Euler characteristic of the
+	 * foreground's intersection with the faces of the stack,
+	 * &#967;<sub>1</sub> with the edges of the stack and &#967;<sub>0</sub>
+	 * with the vertices of the stack.
+	 * </p>
+	 * <p>
+	 * Each vertex on the stack's surface counts itself (<i>a</i>, <i>d</i>
+	 * and <i>f</i> in correctForEdges()'s working) and the voxel edges (
+	 * <i>b</i>, <i>e</i>) and faces (<i>c</i>) on the surface that run from
+	 * it in the +x, +y and +z directions, so that every one is counted once.
+	 * </p>
 	 * 
-	 * @param stack
-	 * @return number of voxel vertices intersecting stack edges
+	 * @return edge correction of each octant index for each kind of vertex
 	 */
-	private long getEdgeVertices(final ImageStack stack) {
-		long nEdgeVertices = 0;
-
-		// vertex voxels contribute 1 edge vertex each
-		// this could be taken out into a variable to avoid recalculating it
-		// nEdgeVertices += getStackVertices(stack);
-
-		// left->right edges
-		for (int z = 0; z < depth; z += depth - 1) {
-			for (int y = 0; y < height; y += height - 1) {
-				for (int x = 1; x < width; x++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nEdgeVertices++;
-					else if (getPixel(stack, x - 1, y, z) == -1)
-						nEdgeVertices++;
-				}
-			}
-			if (depth == 1)
-				break;
-		}
-
-		// back->front edges
-		for (int z = 0; z < depth; z += depth - 1) {
-			for (int x = 0; x < width; x += width - 1) {
-				for (int y = 1; y < height; y++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nEdgeVertices++;
-					else if (getPixel(stack, x, y - 1, z) == -1)
-						nEdgeVertices++;
-				}
-			}
-			if (depth == 1)
-				break;
-		}
-
-		// top->bottom edges
-		for (int x = 0; x < width; x += width - 1) {
-			for (int y = 0; y < height; y += height - 1) {
-				for (int z = 1; z < depth; z++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nEdgeVertices++;
-					else if (getPixel(stack, x, y, z - 1) == -1)
-						nEdgeVertices++;
-					if (depth == 1)
-						break;
-				}
+	private static int[][] makeEdgeLUT() {
+		// voxels containing the edge to +x, +y and +z
+		final int edgeX = 0xF0;
+		final int edgeY = 0xAA;
+		final int edgeZ = 0xCC;
+		// voxels containing the face normal to x, y and z in the +ve quadrant
+		final int faceX = 0x88;
+		final int faceY = 0xC0;
+		final int faceZ = 0xA0;
+		final int[][] lut = new int[8][256];
+		for (int type = 1; type < 8; type++) {
+			final boolean bx = (type & 1) != 0;
+			final boolean by = (type & 2) != 0;
+			final boolean bz = (type & 4) != 0;
+			final int nFaces = (bx ? 1 : 0) + (by ? 1 : 0) + (bz ? 1 : 0);
+			for (int index = 1; index < 256; index++) {
+				final boolean ex = (index & edgeX) != 0;
+				final boolean ey = (index & edgeY) != 0;
+				final boolean ez = (index & edgeZ) != 0;
+				// vertices on stack faces, edges and vertices
+				int a = 1;
+				int d = nFaces >= 2 ? 1 : 0;
+				int f = nFaces == 3 ? 1 : 0;
+				// voxel edges on stack faces and edges
+				int b = 0;
+				int e = 0;
+				if (ex && (by || bz))
+					b++;
+				if (ey && (bx || bz))
+					b++;
+				if (ez && (bx || by))
+					b++;
+				if (ex && by && bz)
+					e++;
+				if (ey && bx && bz)
+					e++;
+				if (ez && bx && by)
+					e++;
+				// voxel faces on stack faces
+				int c = 0;
+				if (bx && (index & faceX) != 0)
+					c++;
+				if (by && (index & faceY) != 0)
+					c++;
+				if (bz && (index & faceZ) != 0)
+					c++;
+				lut[type][index] = 4 * (a - b + c) + 2 * (d - e) + f;
 			}
 		}
-		return nEdgeVertices;
-	}/* end getEdgeVertices */
+		return lut;
+	}
 
 	/*----------------------------------------------------------------------*/
 	/**
@@ -765,6 +682,11 @@ public class Connectivity implements PlugIn {
 	 * </ol>
 	 * </p>
 	 * <p>
+	 * Only the vertices on the stack's surface are visited, and each looks up
+	 * its share of the correction in EDGE_LUT, as in the combined pass of
+	 * getSumEuler(ImagePlus, int, int).
+	 * </p>
+	 * <p>
 	 * Subtract the returned value from the Euler number prior to calculation of
 	 * connectivity
 	 * </p>
@@ -773,23 +695,44 @@ public class Connectivity implements PlugIn {
 	 * @return edgeCorrection for subtraction from the stack's Euler number
 	 */
 	private double correctForEdges(final ImageStack stack) {
-
-		long f = getStackVertices(stack);
-		long e = getStackEdges(stack) + 3 * f;
-		long c = getStackFaces(stack) + 2 * e - 3 * f; // there are already 6 *
-		// f in 2 * e, so remove
-		// 3 * f
-		long d = getEdgeVertices(stack) + f;
-		long a = getFaceVertices(stack);
-		long b = getFaceEdges(stack);
-
-		double chiZero = (double) f;
-		double chiOne = (double) d - (double) e;
-		double chiTwo = (double) a - (double) b + (double) c;
-
-		double edgeCorrection = chiTwo / 2 + chiOne / 4 + chiZero / 8;
-
-		return edgeCorrection;
+		final int w = width;
+		final int h = height;
+		final int d = depth;
+		final byte[] empty = new byte[w * h];
+		long correction = 0;
+		// a single slice is corrected on its top face only
+		final int lastPlane = d > 1 ? d : 0;
+		for (int z = 0; z <= lastPlane; z++) {
+			final byte[] above = z > 0 ? (byte[]) stack.getPixels(z) : empty;
+			final byte[] below = z < d ? (byte[]) stack.getPixels(z + 1)
+					: empty;
+			final int zType = (z == 0 || z == d) ? 4 : 0;
+			for (int y = 0; y <= h; y++) {
+				final byte[] a0 = y > 0 ? above : empty;
+				final byte[] b0 = y > 0 ? below : empty;
+				final int off0 = y > 0 ? (y - 1) * w : 0;
+				final byte[] a1 = y < h ? above : empty;
+				final byte[] b1 = y < h ? below : empty;
+				final int off1 = y < h ? y * w : 0;
+				final int type = zType | ((y == 0 || y == h) ? 2 : 0);
+				final int[] endLUT = EDGE_LUT[type | 1];
+				int index = getColumn(a0, a1, b0, b1, off0, off1, 0);
+				correction += endLUT[index];
+				if (type != 0) {
+					final int[] edgeLUT = EDGE_LUT[type];
+					for (int x = 1; x < w; x++) {
+						index = (index >> 4)
+								| getColumn(a0, a1, b0, b1, off0, off1, x);
+						correction += edgeLUT[index];
+					}
+				} else {
+					index = getColumn(a0, a1, b0, b1, off0, off1, w - 1);
+				}
+				index >>= 4;
+				correction += endLUT[index];
+			}
+		}
+		return correction / 8.0;
 	}/* end correctForEdges */
 
 	/* ----------------------------------------------------------------------- */
@@ -803,7 +746,7 @@ public class Connectivity implements PlugIn {
 	 * @param LUT
 	 *            Euler LUT
 	 */
-	private final void fillEulerLUT(int[] LUT) {
+	private static void fillEulerLUT(int[] LUT) {
 		LUT[1] = 1;
 		LUT[3] = 0;
 		LUT[5] = 0;
@@ -937,4 +880,200 @@ public class Connectivity implements PlugIn {
 		LUT[253] = 1;
 		LUT[255] = 0;
 	}/* end fillEulerLUT */
+
+	/**
+	 * Euler characteristic and edge correction of part of a stack, held in
+	 * eighths so that parts add up exactly. The text form made by toString()
+	 * can be read back with parse(), to pass results between processes.
+	 */
+	public static class PartialEuler {
+		/** sum of Euler deltas, in eighths */
+		private final long eulerEighths;
+
+		/** sum of edge corrections, in eighths */
+		private final long correctionEighths;
+
+		public PartialEuler(long eulerEighths, long correctionEighths) {
+			this.eulerEighths = eulerEighths;
+			this.correctionEighths = correctionEighths;
+		}
+
+		/**
+		 * Combine with the result for another, disjoint, range of vertex
+		 * planes
+		 * 
+		 * @param other
+		 * @return sum of this and other
+		 */
+		public PartialEuler add(PartialEuler other) {
+			return new PartialEuler(eulerEighths + other.eulerEighths,
+					correctionEighths + other.correctionEighths);
+		}
+
+		/**
+		 * @return Euler characteristic, as getSumEuler() returns once all
+		 *         vertex planes are added
+		 */
+		public double getSumEuler() {
+			return eulerEighths / 8.0;
+		}
+
+		/**
+		 * @return delta Chi, as getDeltaChi() returns once all vertex planes
+		 *         are added
+		 */
+		public double getDeltaChi() {
+			return getSumEuler() - correctionEighths / 8.0;
+		}
+
+		public String toString() {
+			return eulerEighths + " " + correctionEighths;
+		}
+
+		/**
+		 * Read a PartialEuler written by toString()
+		 * 
+		 * @param s
+		 * @return PartialEuler
+		 * @throws NumberFormatException
+		 *             if s was not written by toString()
+		 */
+		public static PartialEuler parse(String s) {
+			String[] fields = s.trim().split(" ");
+			if (fields.length != 2)
+				throw new NumberFormatException("Not a PartialEuler: " + s);
+			return new PartialEuler(Long.parseLong(fields[0]),
+					Long.parseLong(fields[1]));
+		}
+	}
+
+	/**
+	 * <p>
+	 * Euler characteristic and edge correction of a binary stack that grows
+	 * one foreground voxel at a time, e.g. as a threshold is lowered. Adding
+	 * a voxel changes only the octants of the 8 vertices at its corners, so
+	 * each addition reads the voxel's 26 neighbours and updates the sums by
+	 * the differences of 8 EULER_LUT and EDGE_LUT entries.
+	 * </p>
+	 * <p>
+	 * getResult() always equals getSumEuler(ImagePlus, int, int) over all
+	 * vertex planes of a stack holding the voxels added so far.
+	 * </p>
+	 */
+	public static class GrowingEuler {
+		/**
+		 * Bits of the 27-voxel neighbourhood, (x + 1) + 3 * (y + 1) + 9 * (z
+		 * + 1) for offsets -1 to 1, that hold each octant index bit of each
+		 * corner vertex of the central voxel
+		 */
+		private static final int[][] CORNER_BITS = new int[8][8];
+
+		/** octant index bit of the central voxel at each corner vertex */
+		private static final int[] CENTRE_BIT = new int[8];
+
+		static {
+			for (int corner = 0; corner < 8; corner++) {
+				final int dx = corner & 1;
+				final int dy = (corner >> 1) & 1;
+				final int dz = (corner >> 2) & 1;
+				for (int bit = 0; bit < 8; bit++) {
+					// octant index bit = 4 * i + 2 * k + j for the voxel at
+					// (x - 1 + i, y - 1 + j, z - 1 + k) from the vertex
+					final int i = bit >> 2;
+					final int k = (bit >> 1) & 1;
+					final int j = bit & 1;
+					CORNER_BITS[corner][bit] = (dx + i) + 3 * (dy + j) + 9
+							* (dz + k);
+				}
+				CENTRE_BIT[corner] = 4 * (1 - dx) + 2 * (1 - dz) + (1 - dy);
+			}
+		}
+
+		private final int w, h, d;
+
+		/** foreground is -1, as in a binary stack */
+		private final byte[][] voxels;
+
+		private long eulerEighths = 0;
+
+		private long correctionEighths = 0;
+
+		/**
+		 * Start with an empty (all background) stack
+		 * 
+		 * @param w
+		 *            stack width
+		 * @param h
+		 *            stack height
+		 * @param d
+		 *            stack depth
+		 */
+		public GrowingEuler(int w, int h, int d) {
+			this.w = w;
+			this.h = h;
+			this.d = d;
+			voxels = new byte[d][w * h];
+		}
+
+		/**
+		 * Make a voxel foreground, if it is not already
+		 * 
+		 * @param x
+		 * @param y
+		 * @param z
+		 *            slice, counting from 0
+		 */
+		public void add(int x, int y, int z) {
+			if (voxels[z][y * w + x] == -1)
+				return;
+			int neighbourhood = 0;
+			for (int k = -1; k <= 1; k++) {
+				final int zk = z + k;
+				if (zk < 0 || zk >= d)
+					continue;
+				final byte[] slice = voxels[zk];
+				for (int j = -1; j <= 1; j++) {
+					final int yj = y + j;
+					if (yj < 0 || yj >= h)
+						continue;
+					for (int i = -1; i <= 1; i++) {
+						final int xi = x + i;
+						if (xi >= 0 && xi < w && slice[yj * w + xi] == -1)
+							neighbourhood |= 1 << ((i + 1) + 3 * (j + 1) + 9
+									* (k + 1));
+					}
+				}
+			}
+			for (int corner = 0; corner < 8; corner++) {
+				final int[] bits = CORNER_BITS[corner];
+				int before = 0;
+				for (int bit = 0; bit < 8; bit++)
+					if ((neighbourhood & (1 << bits[bit])) != 0)
+						before |= 1 << bit;
+				final int after = before | (1 << CENTRE_BIT[corner]);
+				eulerEighths += EULER_LUT[after] - EULER_LUT[before];
+				final int vx = x + (corner & 1);
+				final int vy = y + ((corner >> 1) & 1);
+				final int vz = z + ((corner >> 2) & 1);
+				// a single slice is corrected on its top face only
+				if (d == 1 && vz == 1)
+					continue;
+				final int type = ((vx == 0 || vx == w) ? 1 : 0)
+						| ((vy == 0 || vy == h) ? 2 : 0)
+						| ((vz == 0 || vz == d) ? 4 : 0);
+				if (type != 0)
+					correctionEighths += EDGE_LUT[type][after]
+							- EDGE_LUT[type][before];
+			}
+			voxels[z][y * w + x] = -1;
+		}
+
+		/**
+		 * @return Euler characteristic and edge correction of the voxels
+		 *         added so far
+		 */
+		public PartialEuler getResult() {
+			return new PartialEuler(eulerEighths, correctionEighths);
+		}
+	}
 }
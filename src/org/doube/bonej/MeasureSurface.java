@@ -23,6 +23,7 @@ import java.util.List;
 import javax.vecmath.Color3f;
 import javax.vecmath.Point3f;
 
+import org.doube.geometry.Mesh;
 import org.doube.geometry.Vectors;
 import org.doube.util.ImageCheck;
 import org.doube.util.ResultInserter;
@@ -157,4 +158,16 @@ public class MeasureSurface implements PlugIn {
 		}
 		return sumArea;
 	}
+
+	/**
+	 * Calculate surface area of an indexed mesh
+	 * 
+	 * @param mesh
+	 *            triangle mesh
+	 * @return surface area
+	 */
+	public static double getSurfaceArea(Mesh mesh) {
+		IJ.showStatus("Calculating surface area...");
+		return mesh.getSurfaceArea();
+	}
 }
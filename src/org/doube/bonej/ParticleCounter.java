@@ -23,27 +23,29 @@ import java.awt.Choice;
 import java.awt.TextField;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
+import java.util.Comparator;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Vector;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.vecmath.Color3f;
 import javax.vecmath.Point3f;
 
+import org.doube.geometry.ConvexHull3D;
 import org.doube.geometry.FitEllipsoid;
+import org.doube.geometry.MarchingCubes;
+import org.doube.geometry.Mesh;
 import org.doube.jama.EigenvalueDecomposition;
 import org.doube.jama.Matrix;
 import org.doube.util.DialogModifier;
 import org.doube.util.ImageCheck;
+import org.doube.util.LabelVolume;
 import org.doube.util.Multithreader;
+import org.doube.util.ParticleStatistics;
 import org.doube.util.UsageReporter;
+import org.doube.util.VoxelLists;
 
 import customnode.CustomPointMesh;
-import customnode.CustomTriangleMesh;
-
-import marchingcubes.MCTriangulator;
 
 import ij.IJ;
 import ij.ImagePlus;
@@ -111,7 +113,7 @@ public class ParticleCounter implements PlugIn, DialogListener {
 	public final static int BACK = 0;
 
 	/** Particle joining method */
-	public final static int MULTI = 0, LINEAR = 1;
+	public final static int MULTI = 0, LINEAR = 1, MAPPED = 2, STREAMED = 3;
 
 	/** Surface colour style */
 	private final static int GRADIENT = 0, SPLIT = 1;
@@ -186,7 +188,7 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		gd.addChoice("Surface colours", items, items[0]);
 		gd.addNumericField("Split value", 0, 3, 7, units + "³");
 		gd.addNumericField("Volume_resampling", 2, 0);
-		String[] items2 = { "Multithreaded", "Linear" };
+		String[] items2 = { "Multithreaded", "Linear", "Mapped", "Streamed" };
 		gd.addChoice("Labelling algorithm", items2, items2[0]);
 		gd.addNumericField("Slices per chunk", 2, 0);
 		gd.addHelp("http://bonej.org/particles");
@@ -221,57 +223,87 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		final boolean do3DOriginal = gd.getNextBoolean();
 		final int origResampling = (int) Math.floor(gd.getNextNumber());
 		final String choice = gd.getNextChoice();
-		if (choice.equals(items[0])) {
+		if (choice.equals(items2[0])) {
 			labelMethod = MULTI;
-		} else {
+		} else if (choice.equals(items2[1])) {
 			labelMethod = LINEAR;
+		} else if (choice.equals(items2[2])) {
+			labelMethod = MAPPED;
+		} else {
+			labelMethod = STREAMED;
 		}
 		final int slicesPerChunk = (int) Math.floor(gd.getNextNumber());
 
+		if (labelMethod == STREAMED) {
+			showStreamedResults(imp, slicesPerChunk, minVol, maxVol,
+					doExclude, doMoments, doCentroidImage, do3DOriginal,
+					origResampling);
+			IJ.showProgress(1.0);
+			IJ.showStatus("Particle Analysis Complete");
+			UsageReporter.reportEvent(this).send();
+			return;
+		}
+
 		// get the particles and do the analysis
 		Object[] result = getParticles(imp, slicesPerChunk, minVol, maxVol,
 				FORE, doExclude);
-		int[][] particleLabels = (int[][]) result[1];
-		long[] particleSizes = getParticleSizes(particleLabels);
-		final int nParticles = particleSizes.length;
+		final int nParticles = ((long[]) result[2]).length;
+		LabelVolume particleLabels = (LabelVolume) result[1];
+		result = null;
+		ImagePlus thickImp = null;
+		float[][] thickPixels = null;
+		if (doThickness) {
+			Thickness th = new Thickness();
+			thickImp = th.getLocalThickness(imp, false);
+			ImageStack thickStack = thickImp.getImageStack();
+			thickPixels = new float[thickStack.getSize()][];
+			for (int z = 0; z < thickPixels.length; z++)
+				thickPixels[z] = (float[]) thickStack.getPixels(z + 1);
+		}
+
+		// one sweep of the labels for all the voxel-based measurements
+		IJ.showStatus("Measuring particles...");
+		ParticleStatistics stats = new ParticleStatistics(particleLabels,
+				nParticles, thickPixels, 0);
+		long[] particleSizes = stats.getCounts();
 		double[] volumes = getVolumes(imp, particleSizes);
-		double[][] centroids = getCentroids(imp, particleLabels, particleSizes);
-		int[][] limits = getParticleLimits(imp, particleLabels, nParticles);
+		double[][] centroids = stats.getCentroids(cal.pixelWidth,
+				cal.pixelHeight, cal.pixelDepth);
+		int[][] limits = stats.getLimits();
 
 		// set up resources for analysis
-		ArrayList<List<Point3f>> surfacePoints = new ArrayList<List<Point3f>>();
-		if (doSurfaceArea || doSurfaceVolume || doSurfaceImage || doEllipsoids
-				|| doFeret) {
-			surfacePoints = getSurfacePoints(imp, particleLabels, limits,
-					resampling, nParticles);
+		final boolean doSurfaces = doSurfaceArea || doSurfaceVolume
+				|| doSurfaceImage || doEllipsoids || doFeret;
+		Mesh[] surfaces = new Mesh[nParticles];
+		if (doSurfaces) {
+			surfaces = getSurfaces(imp, particleLabels, particleSizes, limits,
+					resampling);
 		}
 		EigenvalueDecomposition[] eigens = new EigenvalueDecomposition[nParticles];
 		if (doMoments || doAxesImage) {
-			eigens = getEigens(imp, particleLabels, centroids);
+			eigens = getEigens(imp, stats);
 		}
 		// calculate dimensions
 		double[] surfaceAreas = new double[nParticles];
 		if (doSurfaceArea) {
-			surfaceAreas = getSurfaceArea(surfacePoints);
+			surfaceAreas = getSurfaceArea(surfaces);
 		}
-		double[] ferets = new double[nParticles];
+		double[][] ferets = new double[nParticles][8];
 		if (doFeret) {
-			ferets = getFerets(surfacePoints);
+			ferets = getFerets(surfaces);
 		}
 		double[] surfaceVolumes = new double[nParticles];
 		if (doSurfaceVolume) {
-			surfaceVolumes = getSurfaceVolume(surfacePoints);
+			surfaceVolumes = getSurfaceVolume(surfaces);
 		}
 		double[][] eulerCharacters = new double[nParticles][3];
 		if (doEulerCharacters) {
-			eulerCharacters = getEulerCharacter(imp, particleLabels, limits,
-					nParticles);
+			eulerCharacters = getEulerCharacter(imp, particleLabels,
+					nParticles, slicesPerChunk);
 		}
 		double[][] thick = new double[nParticles][2];
 		if (doThickness) {
-			Thickness th = new Thickness();
-			ImagePlus thickImp = th.getLocalThickness(imp, false);
-			thick = getMeanStdDev(thickImp, particleLabels, particleSizes, 0);
+			thick = stats.getMeanStdDev();
 			if (doThickImage) {
 				double max = 0;
 				for (int i = 1; i < nParticles; i++) {
@@ -286,7 +318,7 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		}
 		Object[][] ellipsoids = new Object[nParticles][10];
 		if (doEllipsoids || doEllipsoidImage) {
-			ellipsoids = getEllipsoids(surfacePoints);
+			ellipsoids = getEllipsoids(surfaces);
 		}
 
 		// Show numerical results
@@ -304,7 +336,14 @@ public class ParticleCounter implements PlugIn, DialogListener {
 					rt.addValue("SA (" + units + "²)", surfaceAreas[i]);
 				}
 				if (doFeret) {
-					rt.addValue("Feret (" + units + ")", ferets[i]);
+					rt.addValue("Feret (" + units + ")", ferets[i][0]);
+					rt.addValue("Min caliper (" + units + ")", ferets[i][1]);
+					rt.addValue("FeretAX (" + units + ")", ferets[i][2]);
+					rt.addValue("FeretAY (" + units + ")", ferets[i][3]);
+					rt.addValue("FeretAZ (" + units + ")", ferets[i][4]);
+					rt.addValue("FeretBX (" + units + ")", ferets[i][5]);
+					rt.addValue("FeretBY (" + units + ")", ferets[i][6]);
+					rt.addValue("FeretBZ (" + units + ")", ferets[i][7]);
 				}
 				if (doSurfaceVolume) {
 					rt.addValue("Encl. Vol. (" + units + "³)",
@@ -365,8 +404,8 @@ public class ParticleCounter implements PlugIn, DialogListener {
 				|| doEllipsoidImage) {
 			Image3DUniverse univ = new Image3DUniverse();
 			if (doSurfaceImage) {
-				displayParticleSurfaces(univ, surfacePoints, colourMode,
-						volumes, splitValue);
+				displayParticleSurfaces(univ, surfaces, colourMode, volumes,
+						splitValue);
 			}
 			if (doCentroidImage) {
 				displayCentroids(centroids, univ);
@@ -385,11 +424,86 @@ public class ParticleCounter implements PlugIn, DialogListener {
 			univ.show();
 		}
 		IJ.showProgress(1.0);
+		particleLabels.dispose();
 		IJ.showStatus("Particle Analysis Complete");
 		UsageReporter.reportEvent(this).send();
 		return;
 	}
 
+	/**
+	 * Measure particles one slab of slices at a time and show the results
+	 * that do not need a label image: volume, centroid and moments of inertia
+	 * 
+	 * @param imp
+	 *            binary ImagePlus, which may be a virtual stack
+	 * @param slicesPerSlab
+	 *            number of slices to label at once
+	 * @param minVol
+	 *            minimum (inclusive) particle volume
+	 * @param maxVol
+	 *            maximum (inclusive) particle volume
+	 * @param doExclude
+	 *            remove particles touching the sides of the stack
+	 * @param doMoments
+	 *            add moments of inertia to the results
+	 * @param doCentroidImage
+	 *            show the centroids in 3D
+	 * @param do3DOriginal
+	 *            show the original stack in 3D
+	 * @param origResampling
+	 *            resampling of the 3D original
+	 */
+	private void showStreamedResults(ImagePlus imp, int slicesPerSlab,
+			double minVol, double maxVol, boolean doExclude,
+			boolean doMoments, boolean doCentroidImage, boolean do3DOriginal,
+			int origResampling) {
+		Calibration cal = imp.getCalibration();
+		String units = cal.getUnits();
+		ParticleStatistics stats = getStreamedStatistics(imp, slicesPerSlab,
+				minVol, maxVol, FORE, doExclude);
+		final int nParticles = stats.getNParticles();
+		double[] volumes = getVolumes(imp, stats.getCounts());
+		double[][] centroids = stats.getCentroids(cal.pixelWidth,
+				cal.pixelHeight, cal.pixelDepth);
+		EigenvalueDecomposition[] eigens = new EigenvalueDecomposition[nParticles];
+		if (doMoments) {
+			eigens = getEigens(imp, stats);
+		}
+
+		ResultsTable rt = new ResultsTable();
+		for (int i = 1; i < nParticles; i++) {
+			rt.incrementCounter();
+			rt.addLabel(imp.getTitle());
+			rt.addValue("ID", i);
+			rt.addValue("Vol. (" + units + "³)", volumes[i]);
+			rt.addValue("x Cent (" + units + ")", centroids[i][0]);
+			rt.addValue("y Cent (" + units + ")", centroids[i][1]);
+			rt.addValue("z Cent (" + units + ")", centroids[i][2]);
+			if (doMoments) {
+				EigenvalueDecomposition E = eigens[i];
+				rt.addValue("I1", E.getD().get(2, 2));
+				rt.addValue("I2", E.getD().get(1, 1));
+				rt.addValue("I3", E.getD().get(0, 0));
+				rt.addValue("vX", E.getV().get(0, 0));
+				rt.addValue("vY", E.getV().get(1, 0));
+				rt.addValue("vZ", E.getV().get(2, 0));
+			}
+			rt.updateResults();
+		}
+		rt.show("Results");
+
+		if (doCentroidImage || do3DOriginal) {
+			Image3DUniverse univ = new Image3DUniverse();
+			if (doCentroidImage) {
+				displayCentroids(centroids, univ);
+			}
+			if (do3DOriginal) {
+				display3DOriginal(imp, origResampling, univ);
+			}
+			univ.show();
+		}
+	}
+
 	private void displayEllipsoids(Object[][] ellipsoids, Image3DUniverse univ) {
 		final int nEllipsoids = ellipsoids.length;
 		ellipsoidLoop: for (int el = 1; el < nEllipsoids; el++) {
@@ -452,226 +566,197 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		}
 	}
 
-	private Object[][] getEllipsoids(ArrayList<List<Point3f>> surfacePoints) {
-		Object[][] ellipsoids = new Object[surfacePoints.size()][];
-		int p = 0;
-		Iterator<List<Point3f>> partIter = surfacePoints.iterator();
-		while (partIter.hasNext()) {
-			List<Point3f> points = partIter.next();
-			if (points == null) {
-				p++;
-				continue;
-			}
-			Iterator<Point3f> pointIter = points.iterator();
-			double[][] coOrdinates = new double[points.size()][3];
-			int i = 0;
-			while (pointIter.hasNext()) {
-				Point3f point = pointIter.next();
-				coOrdinates[i][0] = point.x;
-				coOrdinates[i][1] = point.y;
-				coOrdinates[i][2] = point.z;
-				i++;
-			}
-			try {
-				ellipsoids[p] = FitEllipsoid.yuryPetrov(coOrdinates);
-			} catch (RuntimeException re) {
-				IJ.log("Could not fit ellipsoid to surface " + p);
-				ellipsoids[p] = null;
-			}
-			p++;
-		}
-		return ellipsoids;
-	}
-
-	/**
-	 * Get the mean and standard deviation of pixel values above a minimum value
-	 * for each particle in a particle label work array
-	 * 
-	 * @param imp
-	 *            Input image containing pixel values
-	 * @param particleLabels
-	 *            workArray containing particle labels
-	 * @param particleSizes
-	 *            array of particle sizes as pixel counts
-	 * @param threshold
-	 *            restrict calculation to values > i
-	 * @return array containing mean, std dev and max pixel values for each
-	 *         particle
-	 */
-	private double[][] getMeanStdDev(ImagePlus imp, int[][] particleLabels,
-			long[] particleSizes, final int threshold) {
-		final int nParticles = particleSizes.length;
-		final int d = imp.getImageStackSize();
-		final int wh = imp.getWidth() * imp.getHeight();
-		ImageStack stack = imp.getImageStack();
-		double[] sums = new double[nParticles];
-		for (int z = 0; z < d; z++) {
-			float[] pixels = (float[]) stack.getPixels(z + 1);
-			int[] labelPixels = particleLabels[z];
-			for (int i = 0; i < wh; i++) {
-				final double value = pixels[i];
-				if (value > threshold) {
-					sums[labelPixels[i]] += value;
-				}
-			}
-		}
-		double[][] meanStdDev = new double[nParticles][3];
-		for (int p = 1; p < nParticles; p++) {
-			meanStdDev[p][0] = sums[p] / particleSizes[p];
-		}
-
-		double[] sumSquares = new double[nParticles];
-		for (int z = 0; z < d; z++) {
-			float[] pixels = (float[]) stack.getPixels(z + 1);
-			int[] labelPixels = particleLabels[z];
-			for (int i = 0; i < wh; i++) {
-				final double value = pixels[i];
-				if (value > threshold) {
-					final int p = labelPixels[i];
-					final double residual = value - meanStdDev[p][0];
-					sumSquares[p] += residual * residual;
-					meanStdDev[p][2] = Math.max(meanStdDev[p][2], value);
+	private Object[][] getEllipsoids(final Mesh[] surfaces) {
+		final Object[][] ellipsoids = new Object[surfaces.length][];
+		final int[] order = getParticleOrder(getSurfaceSizes(surfaces));
+		final AtomicInteger ai = new AtomicInteger(0);
+		Thread[] threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(new Runnable() {
+				public void run() {
+					for (int i = ai.getAndIncrement(); i < order.length; i = ai
+							.getAndIncrement()) {
+						final int p = order[i];
+						if (surfaces[p] == null)
+							continue;
+						double[][] coOrdinates = surfaces[p]
+								.getVertexCoordinates();
+						try {
+							ellipsoids[p] = FitEllipsoid.yuryPetrov(coOrdinates);
+						} catch (RuntimeException re) {
+							IJ.log("Could not fit ellipsoid to surface " + p);
+							ellipsoids[p] = null;
+						}
+					}
 				}
-			}
-		}
-		for (int p = 1; p < nParticles; p++) {
-			meanStdDev[p][1] = Math.sqrt(sumSquares[p] / particleSizes[p]);
+			});
 		}
-		return meanStdDev;
+		Multithreader.startAndJoin(threads);
+		return ellipsoids;
 	}
 
 	/**
-	 * Get the Euler characteristic of each particle
+	 * Get the Euler characteristic, number of holes and number of cavities of
+	 * each particle
 	 * 
 	 * @param imp
+	 *            ImagePlus (used for stack dimensions)
 	 * @param particleLabels
-	 * @param limits
+	 *            particle labels
 	 * @param nParticles
-	 * @return
+	 *            number of particle labels, including background
+	 * @param slicesPerChunk
+	 *            chunk size for labelling the background
+	 * @return double[nParticles][3] containing Euler characteristic, holes and
+	 *         cavities
 	 */
-	private double[][] getEulerCharacter(ImagePlus imp, int[][] particleLabels,
-			int[][] limits, int nParticles) {
+	private double[][] getEulerCharacter(ImagePlus imp,
+			LabelVolume particleLabels,
+			int nParticles, int slicesPerChunk) {
+		IJ.showStatus("Calculating Euler characteristics...");
 		Connectivity con = new Connectivity();
+		double[] eulers = con.getSumEuler(particleLabels, nParticles);
+		int[] cavities = getNCavities(imp, particleLabels, nParticles,
+				slicesPerChunk);
 		double[][] eulerCharacters = new double[nParticles][3];
 		for (int p = 1; p < nParticles; p++) {
-			ImagePlus particleImp = getBinaryParticle(p, imp, particleLabels,
-					limits, 1);
-			double euler = con.getSumEuler(particleImp);
-			double cavities = getNCavities(particleImp);
 			// Calculate number of holes and cavities using
 			// Euler = particles - holes + cavities
 			// where particles = 1
-			double holes = cavities - euler + 1;
-			double[] bettis = { euler, holes, cavities };
+			double euler = eulers[p];
+			double holes = cavities[p] - euler + 1;
+			double[] bettis = { euler, holes, cavities[p] };
 			eulerCharacters[p] = bettis;
 		}
 		return eulerCharacters;
 	}
 
-	private int getNCavities(ImagePlus imp) {
-		Object[] result = getParticles(imp, 4, BACK);
-		long[] particleSizes = (long[]) result[2];
-		final int nParticles = particleSizes.length;
-		final int nCavities = nParticles - 2; // 1 particle is the background
-		return nCavities;
-	}
-
 	/**
-	 * Get the minimum and maximum x, y and z coordinates of each particle
+	 * Count the cavities in each particle with one labelling of the
+	 * background. A background component that does not touch the sides of
+	 * the stack is a cavity of the particle that encloses it. The voxel above
+	 * the component's first voxel (in raster order) is always foreground and
+	 * belongs to the enclosing particle, rather than to any particle nested
+	 * within the cavity, because nested particles cannot reach the
+	 * component's top slice.
 	 * 
 	 * @param imp
-	 *            ImagePlus (used for stack size)
+	 *            ImagePlus (used for stack dimensions)
 	 * @param particleLabels
-	 *            work array containing labelled particles
+	 *            particle labels
 	 * @param nParticles
-	 *            number of particles in the stack
-	 * @return int[][] containing x, y and z minima and maxima.
+	 *            number of particle labels, including background
+	 * @param slicesPerChunk
+	 *            chunk size for labelling the background
+	 * @return number of cavities in each particle
 	 */
-	private int[][] getParticleLimits(ImagePlus imp, int[][] particleLabels,
-			int nParticles) {
+	private int[] getNCavities(ImagePlus imp, LabelVolume particleLabels,
+			int nParticles, int slicesPerChunk) {
 		final int w = imp.getWidth();
 		final int h = imp.getHeight();
-		final int d = imp.getImageStackSize();
-		int[][] limits = new int[nParticles][6];
-		for (int i = 0; i < nParticles; i++) {
-			limits[i][0] = Integer.MAX_VALUE; // x min
-			limits[i][1] = 0; // x max
-			limits[i][2] = Integer.MAX_VALUE; // y min
-			limits[i][3] = 0; // y max
-			limits[i][4] = Integer.MAX_VALUE; // z min
-			limits[i][5] = 0; // z max
+		final int d = particleLabels.getDepth();
+		final int wh = w * h;
+		// particles removed by filtering are background here, as they are in
+		// each particle's own stack
+		byte[][] workArray = new byte[d][wh];
+		int[] slice = new int[wh];
+		for (int z = 0; z < d; z++) {
+			slice = particleLabels.getSlice(z, slice);
+			for (int i = 0; i < wh; i++) {
+				if (slice[i] > 0)
+					workArray[z][i] = (byte) FORE;
+			}
 		}
+		// getParticles() keeps status strings in fields, so use another
+		// ParticleCounter
+		ParticleCounter pc = new ParticleCounter();
+		pc.setLabelMethod(labelMethod);
+		Object[] result = pc.getParticles(imp, workArray, slicesPerChunk, 0,
+				Double.POSITIVE_INFINITY, BACK);
+		LabelVolume backLabels = (LabelVolume) result[1];
+		final int nBack = ((long[]) result[2]).length;
+
+		boolean[] seen = new boolean[nBack];
+		boolean[] touchesSide = new boolean[nBack];
+		int[] enclosing = new int[nBack];
+		int[] backSlice = new int[wh];
 		for (int z = 0; z < d; z++) {
+			backSlice = backLabels.getSlice(z, backSlice);
 			for (int y = 0; y < h; y++) {
 				final int index = y * w;
 				for (int x = 0; x < w; x++) {
-					final int i = particleLabels[z][index + x];
-					limits[i][0] = Math.min(limits[i][0], x);
-					limits[i][1] = Math.max(limits[i][1], x);
-					limits[i][2] = Math.min(limits[i][2], y);
-					limits[i][3] = Math.max(limits[i][3], y);
-					limits[i][4] = Math.min(limits[i][4], z);
-					limits[i][5] = Math.max(limits[i][5], z);
+					final int b = backSlice[index + x];
+					if (b == 0)
+						continue;
+					if (x == 0 || x == w - 1 || y == 0 || y == h - 1 || z == 0
+							|| z == d - 1)
+						touchesSide[b] = true;
+					if (!seen[b]) {
+						seen[b] = true;
+						if (z > 0)
+							enclosing[b] = particleLabels.get(z - 1, index + x);
+					}
 				}
 			}
 		}
-		return limits;
+		backLabels.dispose();
+		int[] cavities = new int[nParticles];
+		for (int b = 1; b < nBack; b++) {
+			if (seen[b] && !touchesSide[b] && enclosing[b] > 0)
+				cavities[enclosing[b]]++;
+		}
+		return cavities;
 	}
 
+	/**
+	 * Get the principal moments of inertia and axes of each particle from its
+	 * second moments about the centroid. Each voxel contributes its own
+	 * moment of inertia as a solid cuboid, as well as its distance from the
+	 * centroid.
+	 * 
+	 * @param imp
+	 *            ImagePlus (used for calibration)
+	 * @param stats
+	 *            particle statistics
+	 * @return eigenvalue decomposition of each particle's inertia tensor
+	 */
 	private EigenvalueDecomposition[] getEigens(ImagePlus imp,
-			int[][] particleLabels, double[][] centroids) {
+			ParticleStatistics stats) {
 		Calibration cal = imp.getCalibration();
-		final double vW = cal.pixelWidth;
-		final double vH = cal.pixelHeight;
-		final double vD = cal.pixelDepth;
-		final double voxVhVd = (vH * vH + vD * vD) / 12;
-		final double voxVwVd = (vW * vW + vD * vD) / 12;
-		final double voxVhVw = (vH * vH + vW * vW) / 12;
-		final int w = imp.getWidth();
-		final int h = imp.getHeight();
-		final int d = imp.getImageStackSize();
-		final int nParticles = centroids.length;
+		final double vW2 = cal.pixelWidth * cal.pixelWidth;
+		final double vH2 = cal.pixelHeight * cal.pixelHeight;
+		final double vD2 = cal.pixelDepth * cal.pixelDepth;
+		final double vWvH = cal.pixelWidth * cal.pixelHeight;
+		final double vWvD = cal.pixelWidth * cal.pixelDepth;
+		final double vHvD = cal.pixelHeight * cal.pixelDepth;
+		final double voxVhVd = (vH2 + vD2) / 12;
+		final double voxVwVd = (vW2 + vD2) / 12;
+		final double voxVhVw = (vH2 + vW2) / 12;
+		final long[] particleSizes = stats.getCounts();
+		final int nParticles = particleSizes.length;
 		EigenvalueDecomposition[] eigens = new EigenvalueDecomposition[nParticles];
-		double[][] momentTensors = new double[nParticles][6];
-		for (int z = 0; z < d; z++) {
+		for (int p = 1; p < nParticles; p++) {
 			IJ.showStatus("Calculating particle moments...");
-			IJ.showProgress(z, d);
-			final double zVd = z * vD;
-			for (int y = 0; y < h; y++) {
-				final double yVh = y * vH;
-				final int index = y * w;
-				for (int x = 0; x < w; x++) {
-					final int p = particleLabels[z][index + x];
-					if (p > 0) {
-						final double xVw = x * vW;
-						final double dx = xVw - centroids[p][0];
-						final double dy = yVh - centroids[p][1];
-						final double dz = zVd - centroids[p][2];
-						momentTensors[p][0] += dy * dy + dz * dz + voxVhVd; // Ixx
-						momentTensors[p][1] += dx * dx + dz * dz + voxVwVd; // Iyy
-						momentTensors[p][2] += dy * dy + dx * dx + voxVhVw; // Izz
-						momentTensors[p][3] += dx * dy; // Ixy
-						momentTensors[p][4] += dx * dz; // Ixz
-						momentTensors[p][5] += dy * dz; // Iyz
-					}
-				}
-			}
-			for (int p = 1; p < nParticles; p++) {
-				double[][] inertiaTensor = new double[3][3];
-				inertiaTensor[0][0] = momentTensors[p][0];
-				inertiaTensor[1][1] = momentTensors[p][1];
-				inertiaTensor[2][2] = momentTensors[p][2];
-				inertiaTensor[0][1] = -momentTensors[p][3];
-				inertiaTensor[0][2] = -momentTensors[p][4];
-				inertiaTensor[1][0] = -momentTensors[p][3];
-				inertiaTensor[1][2] = -momentTensors[p][5];
-				inertiaTensor[2][0] = -momentTensors[p][4];
-				inertiaTensor[2][1] = -momentTensors[p][5];
-				Matrix inertiaTensorMatrix = new Matrix(inertiaTensor);
-				EigenvalueDecomposition E = new EigenvalueDecomposition(
-						inertiaTensorMatrix);
-				eigens[p] = E;
-			}
+			IJ.showProgress(p, nParticles);
+			final double[] m = stats.getCentralMoments(p);
+			final double n = particleSizes[p];
+			final double xx = vW2 * m[0];
+			final double yy = vH2 * m[1];
+			final double zz = vD2 * m[2];
+			double[][] inertiaTensor = new double[3][3];
+			inertiaTensor[0][0] = yy + zz + n * voxVhVd; // Ixx
+			inertiaTensor[1][1] = xx + zz + n * voxVwVd; // Iyy
+			inertiaTensor[2][2] = yy + xx + n * voxVhVw; // Izz
+			inertiaTensor[0][1] = -vWvH * m[3]; // Ixy
+			inertiaTensor[0][2] = -vWvD * m[4]; // Ixz
+			inertiaTensor[1][2] = -vHvD * m[5]; // Iyz
+			inertiaTensor[1][0] = inertiaTensor[0][1];
+			inertiaTensor[2][0] = inertiaTensor[0][2];
+			inertiaTensor[2][1] = inertiaTensor[1][2];
+			Matrix inertiaTensorMatrix = new Matrix(inertiaTensor);
+			EigenvalueDecomposition E = new EigenvalueDecomposition(
+					inertiaTensorMatrix);
+			eigens[p] = E;
 		}
 		return eigens;
 	}
@@ -688,8 +773,9 @@ public class ParticleCounter implements PlugIn, DialogListener {
 	 *         transformed distances respectively
 	 * 
 	 */
-	private Object[] getMaxDistances(ImagePlus imp, int[][] particleLabels,
-			double[][] centroids, EigenvalueDecomposition[] E) {
+	private Object[] getMaxDistances(ImagePlus imp,
+			final LabelVolume particleLabels, final double[][] centroids,
+			EigenvalueDecomposition[] E) {
 		Calibration cal = imp.getCalibration();
 		final double vW = cal.pixelWidth;
 		final double vH = cal.pixelHeight;
@@ -698,31 +784,84 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		final int h = imp.getHeight();
 		final int d = imp.getImageStackSize();
 		final int nParticles = centroids.length;
+
+		// eigenvector rows and centroids in flat tables, so that the voxel
+		// loop does not copy a Matrix for every voxel
+		final double[] eVs = new double[nParticles * 9];
+		final double[] cents = new double[nParticles * 3];
+		for (int p = 1; p < nParticles; p++) {
+			final double[][] eV = E[p].getV().getArray();
+			for (int i = 0; i < 3; i++) {
+				System.arraycopy(eV[i], 0, eVs, 9 * p + 3 * i, 3);
+				cents[3 * p + i] = centroids[p][i];
+			}
+		}
+
+		// each thread finds maxima in its own slab of slices
+		final int nThreads = Math.min(Runtime.getRuntime()
+				.availableProcessors(), Math.max(d, 1));
+		final double[][] threadMaxD = new double[nThreads][];
+		final double[][] threadMaxDt = new double[nThreads][];
+		final AtomicInteger ai = new AtomicInteger(0);
+		Thread[] threads = Multithreader.newThreads(nThreads);
+		for (int thread = 0; thread < nThreads; thread++) {
+			threads[thread] = new Thread(new Runnable() {
+				public void run() {
+					final int t = ai.getAndIncrement();
+					final double[] maxD = new double[nParticles * 3];
+					final double[] maxDt = new double[nParticles * 3];
+					int[] buffer = new int[w * h];
+					final int startZ = (int) ((long) d * t / nThreads);
+					final int endZ = (int) ((long) d * (t + 1) / nThreads);
+					for (int z = startZ; z < endZ; z++) {
+						final int[] labelSlice = particleLabels.getSlice(z,
+								buffer);
+						for (int y = 0; y < h; y++) {
+							final int index = y * w;
+							for (int x = 0; x < w; x++) {
+								final int p = labelSlice[index + x];
+								if (p > 0) {
+									final int c = 3 * p;
+									final int e = 9 * p;
+									final double dX = x * vW - cents[c];
+									final double dY = y * vH - cents[c + 1];
+									final double dZ = z * vD - cents[c + 2];
+									maxD[c] = Math.max(maxD[c], Math.abs(dX));
+									maxD[c + 1] = Math.max(maxD[c + 1],
+											Math.abs(dY));
+									maxD[c + 2] = Math.max(maxD[c + 2],
+											Math.abs(dZ));
+									final double dXt = dX * eVs[e] + dY
+											* eVs[e + 1] + dZ * eVs[e + 2];
+									final double dYt = dX * eVs[e + 3] + dY
+											* eVs[e + 4] + dZ * eVs[e + 5];
+									final double dZt = dX * eVs[e + 6] + dY
+											* eVs[e + 7] + dZ * eVs[e + 8];
+									maxDt[c] = Math.max(maxDt[c],
+											Math.abs(dXt));
+									maxDt[c + 1] = Math.max(maxDt[c + 1],
+											Math.abs(dYt));
+									maxDt[c + 2] = Math.max(maxDt[c + 2],
+											Math.abs(dZt));
+								}
+							}
+						}
+					}
+					threadMaxD[t] = maxD;
+					threadMaxDt[t] = maxDt;
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+
 		double[][] maxD = new double[nParticles][3];
 		double[][] maxDt = new double[nParticles][3];
-		for (int z = 0; z < d; z++) {
-			for (int y = 0; y < h; y++) {
-				final int index = y * w;
-				for (int x = 0; x < w; x++) {
-					final int p = particleLabels[z][index + x];
-					if (p > 0) {
-						final double dX = x * vW - centroids[p][0];
-						final double dY = y * vH - centroids[p][1];
-						final double dZ = z * vD - centroids[p][2];
-						maxD[p][0] = Math.max(maxD[p][0], Math.abs(dX));
-						maxD[p][1] = Math.max(maxD[p][1], Math.abs(dY));
-						maxD[p][2] = Math.max(maxD[p][2], Math.abs(dZ));
-						final double[][] eV = E[p].getV().getArray();
-						final double dXt = dX * eV[0][0] + dY * eV[0][1] + dZ
-								* eV[0][2];
-						final double dYt = dX * eV[1][0] + dY * eV[1][1] + dZ
-								* eV[1][2];
-						final double dZt = dX * eV[2][0] + dY * eV[2][1] + dZ
-								* eV[2][2];
-						maxDt[p][0] = Math.max(maxDt[p][0], Math.abs(dXt));
-						maxDt[p][1] = Math.max(maxDt[p][1], Math.abs(dYt));
-						maxDt[p][2] = Math.max(maxDt[p][2], Math.abs(dZt));
-					}
+		for (int t = 0; t < nThreads; t++) {
+			for (int p = 0; p < nParticles; p++) {
+				for (int i = 0; i < 3; i++) {
+					maxD[p][i] = Math.max(maxD[p][i], threadMaxD[t][3 * p + i]);
+					maxDt[p][i] = Math.max(maxDt[p][i],
+							threadMaxDt[t][3 * p + i]);
 				}
 			}
 		}
@@ -881,208 +1020,309 @@ public class ParticleCounter implements PlugIn, DialogListener {
 	 * Draw the particle surfaces in a 3D viewer
 	 * 
 	 * @param univ
-	 * @param surfacePoints
+	 * @param surfaces
 	 * 
 	 */
 	private void displayParticleSurfaces(Image3DUniverse univ,
-			ArrayList<List<Point3f>> surfacePoints, int colourMode,
-			double[] volumes, double splitValue) {
-		int p = 0;
-		final int nParticles = surfacePoints.size();
-		Iterator<List<Point3f>> iter = surfacePoints.iterator();
-		while (iter.hasNext()) {
+			Mesh[] surfaces, int colourMode, double[] volumes,
+			double splitValue) {
+		final int nParticles = surfaces.length;
+		for (int p = 1; p < nParticles; p++) {
 			IJ.showStatus("Rendering surfaces...");
 			IJ.showProgress(p, nParticles);
-			List<Point3f> points = iter.next();
-			if (p > 0 && points.size() > 0) {
-				Color3f pColour = new Color3f(0, 0, 0);
-				if (colourMode == GRADIENT) {
-					float red = 1.0f - (float) p / (float) nParticles;
-					float green = 1.0f - red;
-					float blue = (float) p / (2.0f * (float) nParticles);
-					pColour = new Color3f(red, green, blue);
-				} else if (colourMode == SPLIT) {
-					if (volumes[p] > splitValue) {
-						// red if over
-						pColour = new Color3f(1.0f, 0.0f, 0.0f);
-					} else {
-						// yellow if under
-						pColour = new Color3f(1.0f, 1.0f, 0.0f);
-					}
-				}
-				// Add the mesh
-				try {
-					univ.addTriangleMesh(points, pColour, "Surface " + p)
-							.setLocked(true);
-				} catch (NullPointerException npe) {
-					IJ.log("3D Viewer was closed before rendering completed.");
-					return;
+			if (surfaces[p] == null || surfaces[p].getNTriangles() == 0)
+				continue;
+			Color3f pColour = new Color3f(0, 0, 0);
+			if (colourMode == GRADIENT) {
+				float red = 1.0f - (float) p / (float) nParticles;
+				float green = 1.0f - red;
+				float blue = (float) p / (2.0f * (float) nParticles);
+				pColour = new Color3f(red, green, blue);
+			} else if (colourMode == SPLIT) {
+				if (volumes[p] > splitValue) {
+					// red if over
+					pColour = new Color3f(1.0f, 0.0f, 0.0f);
+				} else {
+					// yellow if under
+					pColour = new Color3f(1.0f, 1.0f, 0.0f);
 				}
 			}
-			p++;
+			// the 3D viewer takes a list of triangle corners
+			final float[] vertices = surfaces[p].getVertices();
+			final int[] faces = surfaces[p].getFaces();
+			List<Point3f> points = new ArrayList<Point3f>(faces.length);
+			for (int v : faces)
+				points.add(new Point3f(vertices[3 * v], vertices[3 * v + 1],
+						vertices[3 * v + 2]));
+			// Add the mesh
+			try {
+				univ.addTriangleMesh(points, pColour, "Surface " + p)
+						.setLocked(true);
+			} catch (NullPointerException npe) {
+				IJ.log("3D Viewer was closed before rendering completed.");
+				return;
+			}
 		}
 	}
 
-	private double[] getSurfaceArea(ArrayList<List<Point3f>> surfacePoints) {
-		Iterator<List<Point3f>> iter = surfacePoints.iterator();
-		double[] surfaceAreas = new double[surfacePoints.size()];
-		int p = 0;
-		while (iter.hasNext()) {
-			List<Point3f> points = iter.next();
-			if (null != points) {
-				double surfaceArea = MeasureSurface.getSurfaceArea(points);
-				surfaceAreas[p] = surfaceArea;
-			}
-			p++;
+	private double[] getSurfaceArea(final Mesh[] surfaces) {
+		final double[] surfaceAreas = new double[surfaces.length];
+		final int[] order = getParticleOrder(getSurfaceSizes(surfaces));
+		final AtomicInteger ai = new AtomicInteger(0);
+		Thread[] threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(new Runnable() {
+				public void run() {
+					for (int i = ai.getAndIncrement(); i < order.length; i = ai
+							.getAndIncrement()) {
+						final int p = order[i];
+						if (null != surfaces[p]) {
+							surfaceAreas[p] = MeasureSurface
+									.getSurfaceArea(surfaces[p]);
+						}
+					}
+				}
+			});
 		}
+		Multithreader.startAndJoin(threads);
 		return surfaceAreas;
 	}
 
-	private double[] getSurfaceVolume(ArrayList<List<Point3f>> surfacePoints) {
-		Iterator<List<Point3f>> iter = surfacePoints.iterator();
-		double[] surfaceVolumes = new double[surfacePoints.size()];
-		final Color3f colour = new Color3f(0.0f, 0.0f, 0.0f);
-		int p = 0;
-		while (iter.hasNext()) {
-			IJ.showStatus("Calculating enclosed volume...");
-			List<Point3f> points = iter.next();
-			if (null != points) {
-				CustomTriangleMesh surface = new CustomTriangleMesh(points,
-						colour, 0.0f);
-				surfaceVolumes[p] = Math.abs(surface.getVolume());
-			}
-			p++;
+	private double[] getSurfaceVolume(final Mesh[] surfaces) {
+		final double[] surfaceVolumes = new double[surfaces.length];
+		final int[] order = getParticleOrder(getSurfaceSizes(surfaces));
+		final AtomicInteger ai = new AtomicInteger(0);
+		Thread[] threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(new Runnable() {
+				public void run() {
+					for (int i = ai.getAndIncrement(); i < order.length; i = ai
+							.getAndIncrement()) {
+						IJ.showStatus("Calculating enclosed volume...");
+						final int p = order[i];
+						if (null != surfaces[p]) {
+							surfaceVolumes[p] = Math.abs(surfaces[p]
+									.getVolume());
+						}
+					}
+				}
+			});
 		}
+		Multithreader.startAndJoin(threads);
 		return surfaceVolumes;
 	}
 
-	@SuppressWarnings("unchecked")
-	private ArrayList<List<Point3f>> getSurfacePoints(ImagePlus imp,
-			int[][] particleLabels, int[][] limits, int resampling,
-			int nParticles) {
-		Calibration cal = imp.getCalibration();
-		ArrayList<List<Point3f>> surfacePoints = new ArrayList<List<Point3f>>();
-		final boolean[] channels = { true, false, false };
-		for (int p = 0; p < nParticles; p++) {
-			IJ.showStatus("Getting surface meshes...");
-			IJ.showProgress(p, nParticles);
-			if (p > 0) {
-				ImagePlus binaryImp = getBinaryParticle(p, imp, particleLabels,
-						limits, resampling);
-				MCTriangulator mct = new MCTriangulator();
-				List<Point3f> points = mct.getTriangles(binaryImp, 128,
-						channels, resampling);
-				final double xOffset = (limits[p][0] - 1) * cal.pixelWidth;
-				final double yOffset = (limits[p][2] - 1) * cal.pixelHeight;
-				final double zOffset = (limits[p][4] - 1) * cal.pixelDepth;
-				Iterator<Point3f> iter = points.iterator();
-				while (iter.hasNext()) {
-					Point3f point = iter.next();
-					point.x += xOffset;
-					point.y += yOffset;
-					point.z += zOffset;
+	/**
+	 * Mesh the surface of every particle, largest first, in parallel
+	 * 
+	 * @param imp
+	 *            original image, used for calibration
+	 * @param particleLabels
+	 *            particle labels
+	 * @param particleSizes
+	 *            number of voxels in each particle
+	 * @param limits
+	 *            x, y and z limits of each particle
+	 * @param resampling
+	 *            edge length of the blocks of voxels averaged before meshing
+	 * @return one mesh per particle, null for the background
+	 */
+	private Mesh[] getSurfaces(final ImagePlus imp,
+			final LabelVolume particleLabels, final long[] particleSizes,
+			final int[][] limits, final int resampling) {
+		final Calibration cal = imp.getCalibration();
+		final Mesh[] surfaces = new Mesh[particleSizes.length];
+		final int[] order = getParticleOrder(particleSizes);
+		final AtomicInteger ai = new AtomicInteger(0);
+		Thread[] threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(new Runnable() {
+				public void run() {
+					for (int i = ai.getAndIncrement(); i < order.length; i = ai
+							.getAndIncrement()) {
+						IJ.showStatus("Getting surface meshes...");
+						IJ.showProgress(i, order.length);
+						final int p = order[i];
+						surfaces[p] = getSurface(p, particleLabels, limits[p],
+								resampling, cal);
+						if (surfaces[p].getNTriangles() == 0) {
+							IJ.log("Particle " + p
+									+ " resulted in 0 surface points");
+						}
+					}
 				}
-				surfacePoints.add(points);
-				if (points.size() == 0) {
-					IJ.log("Particle " + p + " resulted in 0 surface points");
+			});
+		}
+		Multithreader.startAndJoin(threads);
+		return surfaces;
+	}
+
+	/**
+	 * Mesh the surface of one particle by marching cubes over its bounding
+	 * box, which is read straight from the labels and padded with a layer of
+	 * empty voxels so that the mesh is closed
+	 * 
+	 * @param p
+	 *            particle label
+	 * @param particleLabels
+	 *            particle labels
+	 * @param limits
+	 *            x, y and z limits of the particle
+	 * @param resampling
+	 *            the particle is averaged over blocks of resampling³ voxels
+	 *            before meshing
+	 * @param cal
+	 *            calibration, for the mesh's coordinates
+	 * @return the particle's surface in calibrated units
+	 */
+	private static Mesh getSurface(final int p,
+			final LabelVolume particleLabels, final int[] limits,
+			final int resampling, final Calibration cal) {
+		final int r = Math.max(1, resampling);
+		final int w = particleLabels.getWidth();
+		final int xMin = limits[0];
+		final int xMax = limits[1];
+		final int yMin = limits[2];
+		final int yMax = limits[3];
+		final int zMin = limits[4];
+		final int zMax = limits[5];
+		final int gridWidth = (xMax - xMin) / r + 3;
+		final int gridHeight = (yMax - yMin) / r + 3;
+		final int gridDepth = (zMax - zMin) / r + 3;
+		final int r3 = r * r * r;
+		byte[][] grid = new byte[gridDepth][gridWidth * gridHeight];
+		int[] counts = new int[gridWidth * gridHeight];
+		for (int gz = 1; gz < gridDepth - 1; gz++) {
+			Arrays.fill(counts, 0);
+			final int zStart = zMin + (gz - 1) * r;
+			final int zEnd = Math.min(zMax + 1, zStart + r);
+			for (int z = zStart; z < zEnd; z++) {
+				for (int y = yMin; y <= yMax; y++) {
+					final int rowIndex = y * w;
+					final int gridRow = ((y - yMin) / r + 1) * gridWidth + 1;
+					for (int x = xMin; x <= xMax; x++) {
+						if (particleLabels.get(z, rowIndex + x) == p)
+							counts[gridRow + (x - xMin) / r]++;
+					}
 				}
-			} else {
-				surfacePoints.add(null);
 			}
-		}
-		return surfacePoints;
+			final byte[] gridSlice = grid[gz];
+			for (int i = 0; i < counts.length; i++)
+				gridSlice[i] = (byte) ((255 * counts[i] + r3 / 2) / r3);
+		}
+		// grid point (i, j, k) is the centre of block (i - 1, j - 1, k - 1)
+		final double offset = (r - 1) / 2.0 - r;
+		final double[] origin = { (xMin + offset) * cal.pixelWidth,
+				(yMin + offset) * cal.pixelHeight,
+				(zMin + offset) * cal.pixelDepth };
+		final double[] spacing = { r * cal.pixelWidth, r * cal.pixelHeight,
+				r * cal.pixelDepth };
+		return MarchingCubes.getMesh(grid, gridWidth, gridHeight, 128, origin,
+				spacing);
 	}
 
 	/**
-	 * Get the Feret diameter of a surface. Uses an inefficient brute-force
-	 * algorithm.
+	 * Get the Feret diameter, its end points and the minimum caliper width of
+	 * each particle's surface. Each surface is reduced to its convex hull, and
+	 * only the hull's antipodal pairs are searched for the most distant pair
+	 * of points and the narrowest pair of parallel planes, which gives the
+	 * same result as searching every pair of surface points because the
+	 * most distant pair are always antipodal hull vertices.
 	 * 
 	 * @param particleSurfaces
-	 * @return
+	 * @return double[nParticles][8] containing Feret diameter, minimum caliper
+	 *         width and the (x, y, z) coordinates of the Feret diameter's two
+	 *         end points
 	 */
-	private double[] getFerets(ArrayList<List<Point3f>> particleSurfaces) {
-		int nParticles = particleSurfaces.size();
-		double[] ferets = new double[nParticles];
-		ListIterator<List<Point3f>> it = particleSurfaces.listIterator();
-		int i = 0;
-		Point3f a;
-		Point3f b;
-		List<Point3f> surface;
-		ListIterator<Point3f> ita;
-		ListIterator<Point3f> itb;
-		while (it.hasNext()) {
-			IJ.showStatus("Finding Feret diameter...");
-			IJ.showProgress(it.nextIndex(), nParticles);
-			surface = it.next();
-			if (surface == null) {
-				ferets[i] = Double.NaN;
-				i++;
-				continue;
-			}
-			ita = surface.listIterator();
-			while (ita.hasNext()) {
-				a = ita.next();
-				itb = surface.listIterator(ita.nextIndex());
-				while (itb.hasNext()) {
-					b = itb.next();
-					ferets[i] = Math.max(ferets[i], a.distance(b));
+	private double[][] getFerets(final Mesh[] surfaces) {
+		final int nParticles = surfaces.length;
+		final double[][] ferets = new double[nParticles][8];
+		final int[] order = getParticleOrder(getSurfaceSizes(surfaces));
+		final AtomicInteger ai = new AtomicInteger(0);
+		Thread[] threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(new Runnable() {
+				public void run() {
+					for (int i = ai.getAndIncrement(); i < order.length; i = ai
+							.getAndIncrement()) {
+						IJ.showStatus("Finding Feret diameter...");
+						IJ.showProgress(i, order.length);
+						final int p = order[i];
+						ferets[p] = getFeret(surfaces[p]);
+					}
 				}
-			}
-			i++;
+			});
 		}
+		Multithreader.startAndJoin(threads);
+		Arrays.fill(ferets[0], Double.NaN);
 		return ferets;
 	}
 
 	/**
-	 * create a binary ImagePlus containing a single particle and which 'just
-	 * fits' the particle
+	 * Get the Feret diameter, its end points and the minimum caliper width of
+	 * a single surface
 	 * 
-	 * @param p
-	 *            The particle ID to get
-	 * @param imp
-	 *            original image, used for calibration
-	 * @param particleLabels
-	 *            work array of particle labels
-	 * @param limits
-	 *            x,y and z limits of each particle
-	 * @param padding
-	 *            amount of empty space to pad around each particle
-	 * @return
+	 * @param surface
+	 * @return double[8], see {@link #getFerets(Mesh[])}; all NaN if the
+	 *         surface is null or empty
 	 */
-	private static ImagePlus getBinaryParticle(int p, ImagePlus imp,
-			int[][] particleLabels, int[][] limits, int padding) {
+	private static double[] getFeret(Mesh surface) {
+		double[] feret = new double[8];
+		if (surface == null || surface.getNVertices() == 0) {
+			Arrays.fill(feret, Double.NaN);
+			return feret;
+		}
+		double[][] coOrdinates = surface.getVertexCoordinates();
+		ConvexHull3D hull = new ConvexHull3D(coOrdinates);
+		final double[] diameter = hull.getDiameter();
+		feret[0] = diameter[0];
+		feret[1] = hull.getMinWidth()[0];
+		System.arraycopy(diameter, 1, feret, 2, 6);
+		return feret;
+	}
 
-		final int w = imp.getWidth();
-		final int h = imp.getHeight();
-		final int d = imp.getImageStackSize();
-		final int xMin = Math.max(0, limits[p][0] - padding);
-		final int xMax = Math.min(w - 1, limits[p][1] + padding);
-		final int yMin = Math.max(0, limits[p][2] - padding);
-		final int yMax = Math.min(h - 1, limits[p][3] + padding);
-		final int zMin = Math.max(0, limits[p][4] - padding);
-		final int zMax = Math.min(d - 1, limits[p][5] + padding);
-		final int stackWidth = xMax - xMin + 1;
-		final int stackHeight = yMax - yMin + 1;
-		final int stackSize = stackWidth * stackHeight;
-		ImageStack stack = new ImageStack(stackWidth, stackHeight);
-		for (int z = zMin; z <= zMax; z++) {
-			byte[] slice = new byte[stackSize];
-			int i = 0;
-			for (int y = yMin; y <= yMax; y++) {
-				final int sourceIndex = y * w;
-				for (int x = xMin; x <= xMax; x++) {
-					if (particleLabels[z][sourceIndex + x] == p) {
-						slice[i] = (byte) (255 & 0xFF);
-					}
-					i++;
-				}
+	/**
+	 * Get particle labels sorted by descending size. Multithreaded
+	 * measurements take particles from the front of this order, so the
+	 * slowest particles start first and the threads finish together on the
+	 * smallest ones.
+	 * 
+	 * @param sizes
+	 *            size of each particle; index 0 (background) is ignored
+	 * @return particle labels 1 to sizes.length - 1, largest first
+	 */
+	private static int[] getParticleOrder(final long[] sizes) {
+		final int nParticles = sizes.length;
+		Integer[] labels = new Integer[Math.max(nParticles - 1, 0)];
+		for (int p = 1; p < nParticles; p++)
+			labels[p - 1] = p;
+		Arrays.sort(labels, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				final long sizeA = sizes[a];
+				final long sizeB = sizes[b];
+				if (sizeA != sizeB)
+					return sizeA > sizeB ? -1 : 1;
+				return a.compareTo(b);
 			}
-			stack.addSlice(imp.getStack().getSliceLabel(z + 1), slice);
+		});
+		int[] order = new int[labels.length];
+		for (int i = 0; i < labels.length; i++)
+			order[i] = labels[i];
+		return order;
+	}
+
+	/**
+	 * @param surfaces
+	 * @return number of vertices in each surface, 0 for null surfaces
+	 */
+	private static long[] getSurfaceSizes(final Mesh[] surfaces) {
+		final int nParticles = surfaces.length;
+		long[] sizes = new long[nParticles];
+		for (int p = 0; p < nParticles; p++) {
+			if (surfaces[p] != null)
+				sizes[p] = surfaces[p].getNVertices();
 		}
-		ImagePlus binaryImp = new ImagePlus("Particle_" + p, stack);
-		Calibration cal = imp.getCalibration();
-		binaryImp.setCalibration(cal);
-		return binaryImp;
+		return sizes;
 	}
 
 	/**
@@ -1098,7 +1338,7 @@ public class ParticleCounter implements PlugIn, DialogListener {
 	 * @return ImagePlus with particle labels substituted with some value
 	 */
 	private ImagePlus displayParticleValues(ImagePlus imp,
-			int[][] particleLabels, double[] values, String title) {
+			LabelVolume particleLabels, double[] values, String title) {
 		final int w = imp.getWidth();
 		final int h = imp.getHeight();
 		final int d = imp.getImageStackSize();
@@ -1106,9 +1346,11 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		float[][] pL = new float[d][wh];
 		values[0] = 0; // don't colour the background
 		ImageStack stack = new ImageStack(w, h);
+		int[] slice = new int[wh];
 		for (int z = 0; z < d; z++) {
+			slice = particleLabels.getSlice(z, slice);
 			for (int i = 0; i < wh; i++) {
-				final int p = particleLabels[z][i];
+				final int p = slice[i];
 				pL[z][i] = (float) values[p];
 			}
 			stack.addSlice(imp.getImageStack().getSliceLabel(z + 1), pL[z]);
@@ -1125,56 +1367,20 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		return impOut;
 	}
 
+	private double[] getVolumes(ImagePlus imp, long[] particleSizes) {
+		Calibration cal = imp.getCalibration();
+		final double voxelVolume = cal.pixelWidth * cal.pixelHeight
+				* cal.pixelDepth;
+		final int nLabels = particleSizes.length;
+		double[] particleVolumes = new double[nLabels];
+		for (int i = 0; i < nLabels; i++) {
+			particleVolumes[i] = voxelVolume * particleSizes[i];
+		}
+		return particleVolumes;
+	}
+
 	/**
-	 * Get the centroids of all the particles in real units
-	 * 
-	 * @param imp
-	 * @param particleLabels
-	 * @param particleSizes
-	 * @return double[][] containing all the particles' centroids
-	 */
-	private double[][] getCentroids(ImagePlus imp, int[][] particleLabels,
-			long[] particleSizes) {
-		final int nParticles = particleSizes.length;
-		final int w = imp.getWidth();
-		final int h = imp.getHeight();
-		final int d = imp.getImageStackSize();
-		double[][] sums = new double[nParticles][3];
-		for (int z = 0; z < d; z++) {
-			for (int y = 0; y < h; y++) {
-				final int index = y * w;
-				for (int x = 0; x < w; x++) {
-					final int particle = particleLabels[z][index + x];
-					sums[particle][0] += x;
-					sums[particle][1] += y;
-					sums[particle][2] += z;
-				}
-			}
-		}
-		Calibration cal = imp.getCalibration();
-		double[][] centroids = new double[nParticles][3];
-		for (int p = 0; p < nParticles; p++) {
-			centroids[p][0] = cal.pixelWidth * sums[p][0] / particleSizes[p];
-			centroids[p][1] = cal.pixelHeight * sums[p][1] / particleSizes[p];
-			centroids[p][2] = cal.pixelDepth * sums[p][2] / particleSizes[p];
-		}
-		return centroids;
-	}
-
-	private double[] getVolumes(ImagePlus imp, long[] particleSizes) {
-		Calibration cal = imp.getCalibration();
-		final double voxelVolume = cal.pixelWidth * cal.pixelHeight
-				* cal.pixelDepth;
-		final int nLabels = particleSizes.length;
-		double[] particleVolumes = new double[nLabels];
-		for (int i = 0; i < nLabels; i++) {
-			particleVolumes[i] = voxelVolume * particleSizes[i];
-		}
-		return particleVolumes;
-	}
-
-	/**
-	 * Get particles, particle labels and particle sizes from a 3D ImagePlus
+	 * Get particles, particle labels and particle sizes from a 3D ImagePlus
 	 * 
 	 * @param imp
 	 *            Binary input image
@@ -1188,8 +1394,8 @@ public class ParticleCounter implements PlugIn, DialogListener {
 	 *            foreground or background (FORE or BACK)
 	 * @param doExclude
 	 *            if true, remove particles touching sides of the stack
-	 * @return Object[] {byte[][], int[][]} containing a binary workArray and
-	 *         particle labels.
+	 * @return Object[] {byte[][], LabelVolume, long[]} containing a binary
+	 *         workArray, particle labels and particle sizes.
 	 */
 	public Object[] getParticles(ImagePlus imp, int slicesPerChunk,
 			double minVol, double maxVol, int phase, boolean doExclude) {
@@ -1243,8 +1449,8 @@ public class ParticleCounter implements PlugIn, DialogListener {
 	 *            maximum volume particle to include
 	 * @param phase
 	 *            FORE or BACK for foreground or background respectively
-	 * @return Object[] array containing a binary workArray, particle labels and
-	 *         particle sizes
+	 * @return Object[] array containing a binary workArray (byte[][]), particle
+	 *         labels (LabelVolume) and particle sizes (long[])
 	 */
 	public Object[] getParticles(ImagePlus imp, byte[][] workArray,
 			int slicesPerChunk, double minVol, double maxVol, int phase,
@@ -1265,25 +1471,25 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		final int[][] stitchRanges = getStitchRanges(imp, nChunks,
 				slicesPerChunk);
 
-		int[][] particleLabels = firstIDAttribution(imp, workArray, phase);
+		LabelVolume particleLabels;
+		if (labelMethod == MAPPED) {
+			particleLabels = mappedLabelling(imp, workArray, phase,
+					slicesPerChunk);
+		} else {
+			particleLabels = firstIDAttribution(imp, workArray, phase);
+		}
 
+		VoxelLists particleLists = null;
 		if (labelMethod == MULTI) {
 			// connect particles within chunks
-			final int nThreads = Runtime.getRuntime().availableProcessors();
+			final int nThreads = Multithreader.getNThreads();
 			ConnectStructuresThread[] cptf = new ConnectStructuresThread[nThreads];
 			for (int thread = 0; thread < nThreads; thread++) {
 				cptf[thread] = new ConnectStructuresThread(thread, nThreads,
 						imp, workArray, particleLabels, phase, nChunks,
 						chunkRanges);
-				cptf[thread].start();
-			}
-			try {
-				for (int thread = 0; thread < nThreads; thread++) {
-					cptf[thread].join();
-				}
-			} catch (InterruptedException ie) {
-				IJ.error("A thread was interrupted.");
 			}
+			Multithreader.startAndJoin(cptf);
 
 			// connect particles between chunks
 			if (nChunks > 1) {
@@ -1292,174 +1498,379 @@ public class ParticleCounter implements PlugIn, DialogListener {
 						stitchRanges);
 			}
 		} else if (labelMethod == LINEAR) {
-			joinStructures(imp, particleLabels, phase);
+			particleLists = joinStructures(imp, particleLabels, phase);
 		}
-		filterParticles(imp, workArray, particleLabels, minVol, maxVol, phase);
-		if (doExclude)
-			excludeOnEdges(imp, particleLabels, workArray);
-		minimiseLabels(particleLabels);
-		long[] particleSizes = getParticleSizes(particleLabels);
+		long[] particleSizes = relabelParticles(imp, workArray,
+				particleLabels, particleLists, minVol, maxVol, phase,
+				doExclude);
 		Object[] result = { workArray, particleLabels, particleSizes };
 		return result;
 	}
 
 	/**
-	 * Remove particles outside user-specified volume thresholds
+	 * <p>
+	 * Label and measure particles one slab of slices at a time, for stacks
+	 * whose label array would not fit in memory. Slices are read from the
+	 * ImageStack as they are needed, so virtual stacks are never loaded in
+	 * full.
+	 * </p>
+	 * <p>
+	 * Each slab is labelled on its own and only the roots of its provisional
+	 * labels, numbered densely, join a union-find of the particles seen so
+	 * far. Only the last slice of labels of the previous slab is kept, to
+	 * connect particles across the slab boundary. A root's statistics are
+	 * merged into the other root when two particles are joined, and roots are
+	 * always the lowest label in their set, so the roots' order is the order
+	 * of the particles' first voxels and particles are numbered exactly as by
+	 * getParticles().
+	 * </p>
+	 * <p>
+	 * Whenever the union-find has doubled in size it is compacted: joined
+	 * labels are dropped, as are finished particles (those that do not reach
+	 * the last slice read, so cannot touch later slabs) that fail the volume
+	 * or edge filters, and the remaining roots are renumbered in order.
+	 * </p>
 	 * 
 	 * @param imp
-	 *            ImagePlus, used for calibration
-	 * @param workArray
-	 *            binary foreground and background information
-	 * @param particleLabels
-	 *            Packed 3D array of particle labels
+	 *            binary ImagePlus
+	 * @param slicesPerSlab
+	 *            number of slices to label at once
 	 * @param minVol
 	 *            minimum (inclusive) particle volume
 	 * @param maxVol
 	 *            maximum (inclusive) particle volume
 	 * @param phase
-	 *            phase we are interested in
+	 *            FORE or BACK for foreground or background respectively
+	 * @param doExclude
+	 *            remove particles touching the sides of the stack
+	 * @return statistics of the remaining particles; label 0 holds everything
+	 *         else
 	 */
-	private void filterParticles(ImagePlus imp, byte[][] workArray,
-			int[][] particleLabels, double minVol, double maxVol, int phase) {
-		if (minVol == 0 && maxVol == Double.POSITIVE_INFINITY)
-			return;
-		final int d = imp.getImageStackSize();
-		final int wh = workArray[0].length;
-		long[] particleSizes = getParticleSizes(particleLabels);
-		double[] particleVolumes = getVolumes(imp, particleSizes);
-		byte flip = 0;
+	public ParticleStatistics getStreamedStatistics(ImagePlus imp,
+			int slicesPerSlab, double minVol, double maxVol, int phase,
+			boolean doExclude) {
 		if (phase == FORE) {
-			flip = (byte) 0;
+			this.sPhase = "foreground";
+		} else if (phase == BACK) {
+			this.sPhase = "background";
 		} else {
-			flip = (byte) 255;
+			throw new IllegalArgumentException();
 		}
-		for (int z = 0; z < d; z++) {
-			for (int i = 0; i < wh; i++) {
-				final int p = particleLabels[z][i];
-				final double v = particleVolumes[p];
-				if (v < minVol || v > maxVol) {
-					workArray[z][i] = flip;
-					particleLabels[z][i] = 0;
+		if (slicesPerSlab < 1) {
+			throw new IllegalArgumentException();
+		}
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int d = imp.getImageStackSize();
+		final int wh = w * h;
+		Calibration cal = imp.getCalibration();
+		final double voxelVolume = cal.pixelWidth * cal.pixelHeight
+				* cal.pixelDepth;
+		ImageStack stack = imp.getImageStack();
+		final int slabDepth = Math.min(slicesPerSlab, d);
+		final byte[][] slab = new byte[slabDepth][];
+		final int[][] slabLabels = new int[slabDepth][wh];
+		final int[] lastPlane = new int[wh];
+		int[] parent = new int[1024];
+		ParticleStatistics stats = new ParticleStatistics(1);
+		int nLabels = 0;
+		int compactAt = parent.length;
+
+		IJ.showStatus("Finding " + sPhase + " structures");
+		for (int startZ = 0; startZ < d; startZ += slabDepth) {
+			final int n = Math.min(slabDepth, d - startZ);
+			for (int z = 0; z < n; z++)
+				slab[z] = (byte[]) stack.getPixels(startZ + z + 1);
+			final int[] chunkParent = labelChunk(slab, slabLabels, phase, w,
+					h, 0, n);
+			final int nRoots = numberRoots(chunkParent);
+			final int offset = nLabels;
+			nLabels += nRoots;
+			if (nLabels >= parent.length)
+				parent = Arrays.copyOf(parent,
+						Math.max(nLabels + 1, parent.length * 2));
+			for (int l = offset + 1; l <= nLabels; l++)
+				parent[l] = l;
+			stats.ensureCapacity(nLabels + 1);
+
+			// give each voxel its slab root's global label and measure it
+			for (int z = 0; z < n; z++) {
+				final int[] labels = slabLabels[z];
+				for (int i = 0; i < wh; i++) {
+					final int label = labels[i];
+					if (label != 0)
+						labels[i] = chunkParent[label] + offset;
 				}
+				stats.add(labels, null, 0, w, startZ + z);
+				slab[z] = null;
 			}
-		}
-	}
 
-	/**
-	 * Gets rid of redundant particle labels
-	 * 
-	 * @param particleLabels
-	 * @return
-	 */
-	private void minimiseLabels(int[][] particleLabels) {
-		IJ.showStatus("Minimising labels...");
-		final int d = particleLabels.length;
-		long[] particleSizes = getParticleSizes(particleLabels);
-		final int nLabels = particleSizes.length;
-		int[] newLabel = new int[nLabels];
-		int minLabel = 0;
-		// find the minimised labels
-		for (int i = 0; i < nLabels; i++) {
-			if (particleSizes[i] > 0) {
-				if (i == minLabel) {
-					newLabel[i] = i;
-					minLabel++;
-					continue;
-				} else {
-					newLabel[i] = minLabel;
-					particleSizes[minLabel] = particleSizes[i];
-					particleSizes[i] = 0;
-					minLabel++;
+			// join particles to the previous slab
+			if (startZ > 0) {
+				final int[] labels = slabLabels[0];
+				for (int y = 0; y < h; y++) {
+					final int rowIndex = y * w;
+					for (int x = 0; x < w; x++) {
+						final int label = labels[rowIndex + x];
+						if (label == 0)
+							continue;
+						if (phase == FORE) {
+							for (int vY = Math.max(0, y - 1); vY <= Math.min(
+									h - 1, y + 1); vY++) {
+								for (int vX = Math.max(0, x - 1); vX <= Math
+										.min(w - 1, x + 1); vX++) {
+									final int tag = lastPlane[getOffset(vX,
+											vY, w)];
+									if (tag != 0)
+										union(parent, stats, label, tag);
+								}
+							}
+						} else {
+							final int tag = lastPlane[rowIndex + x];
+							if (tag != 0)
+								union(parent, stats, label, tag);
+						}
+					}
 				}
 			}
-		}
-		// now replace labels
-		final int wh = particleLabels[0].length;
-		for (int z = 0; z < d; z++) {
-			IJ.showProgress(z, d);
-			for (int i = 0; i < wh; i++) {
-				final int p = particleLabels[z][i];
-				if (p > 0) {
-					particleLabels[z][i] = newLabel[p];
+			System.arraycopy(slabLabels[n - 1], 0, lastPlane, 0, wh);
+
+			// retire joined labels and rejected finished particles
+			if (nLabels >= compactAt && startZ + n < d) {
+				boolean[] active = new boolean[nLabels + 1];
+				for (int i = 0; i < wh; i++) {
+					if (lastPlane[i] != 0)
+						active[find(parent, lastPlane[i])] = true;
+				}
+				long[] counts = stats.getCounts();
+				int[][] limits = stats.getLimits();
+				int[] newLabel = new int[nLabels + 1];
+				int nKept = 0;
+				for (int l = 1; l <= nLabels; l++) {
+					if (parent[l] != l)
+						continue;
+					if (active[l]
+							|| isKept(counts[l] * voxelVolume, limits[l],
+									minVol, maxVol, doExclude, w, h, d)) {
+						nKept++;
+						newLabel[l] = nKept;
+					}
 				}
+				for (int i = 0; i < wh; i++) {
+					if (lastPlane[i] != 0)
+						lastPlane[i] = newLabel[find(parent, lastPlane[i])];
+				}
+				stats = stats.relabel(newLabel, nKept + 1);
+				for (int l = 1; l <= nKept; l++)
+					parent[l] = l;
+				nLabels = nKept;
+				compactAt = Math.max(1024, 2 * nKept);
 			}
+			IJ.showProgress(startZ + n, d);
 		}
-		return;
+
+		// number the remaining roots in ascending order
+		IJ.showStatus("Filtering " + sPhase + " structures");
+		long[] counts = stats.getCounts();
+		int[][] limits = stats.getLimits();
+		int[] newLabel = new int[nLabels + 1];
+		int nParticles = 1;
+		for (int l = 1; l <= nLabels; l++) {
+			if (parent[l] != l)
+				continue;
+			if (!isKept(counts[l] * voxelVolume, limits[l], minVol, maxVol,
+					doExclude, w, h, d))
+				continue;
+			newLabel[l] = nParticles;
+			nParticles++;
+		}
+		return stats.relabel(newLabel, nParticles);
 	}
 
 	/**
-	 * Scans edge voxels and set all touching particles to background
+	 * Check whether a finished particle passes the volume and edge filters
 	 * 
-	 * @param particleLabels
-	 * @param nLabels
+	 * @param volume
+	 *            particle volume
+	 * @param lim
+	 *            particle limits {xMin, xMax, yMin, yMax, zMin, zMax}
+	 * @param minVol
+	 *            minimum (inclusive) particle volume
+	 * @param maxVol
+	 *            maximum (inclusive) particle volume
+	 * @param doExclude
+	 *            reject particles touching the sides of the stack
 	 * @param w
+	 *            stack width
 	 * @param h
+	 *            stack height
 	 * @param d
+	 *            stack depth
+	 * @return true if the particle is kept
 	 */
-	private void excludeOnEdges(ImagePlus imp, int[][] particleLabels,
-			byte[][] workArray) {
-		final int w = imp.getWidth();
-		final int h = imp.getHeight();
-		final int d = imp.getImageStackSize();
-		long[] particleSizes = getParticleSizes(particleLabels);
+	private static boolean isKept(double volume, int[] lim, double minVol,
+			double maxVol, boolean doExclude, int w, int h, int d) {
+		if (volume < minVol || volume > maxVol)
+			return false;
+		return !(doExclude && (lim[0] == 0 || lim[1] == w - 1 || lim[2] == 0
+				|| lim[3] == h - 1 || lim[4] == 0 || lim[5] == d - 1));
+	}
+
+	/**
+	 * Join the sets containing labels a and b and move the statistics of the
+	 * higher root into the lower one
+	 * 
+	 * @param parent
+	 *            union-find parent array
+	 * @param stats
+	 *            statistics indexed by label
+	 * @param a
+	 * @param b
+	 */
+	private static void union(final int[] parent,
+			final ParticleStatistics stats, final int a, final int b) {
+		final int rootA = find(parent, a);
+		final int rootB = find(parent, b);
+		if (rootA == rootB)
+			return;
+		final int root = Math.min(rootA, rootB);
+		final int other = Math.max(rootA, rootB);
+		parent[other] = root;
+		stats.merge(root, other);
+	}
+
+	/**
+	 * <p>
+	 * Remove particles outside user-specified volume thresholds and,
+	 * optionally, particles touching the sides of the stack, and renumber the
+	 * remaining particles consecutively in their current order.
+	 * </p>
+	 * <p>
+	 * The decisions are made on a table indexed by label: volumes come from
+	 * the particle sizes and edge contact from a scan of the six faces of the
+	 * stack only. Labels and work array are then rewritten in a single
+	 * multithreaded pass over the slices, in which each slice of provisional
+	 * labels narrows to 16 bits if its final labels fit.
+	 * </p>
+	 * 
+	 * @param imp
+	 *            ImagePlus, used for calibration
+	 * @param workArray
+	 *            binary foreground and background information
+	 * @param particleLabels
+	 *            particle labels
+	 * @param particleLists
+	 *            voxel lists of the particles, or null if they are not
+	 *            available, in which case the particle sizes are counted from
+	 *            the label array
+	 * @param minVol
+	 *            minimum (inclusive) particle volume
+	 * @param maxVol
+	 *            maximum (inclusive) particle volume
+	 * @param phase
+	 *            phase we are interested in
+	 * @param doExclude
+	 *            remove particles touching the sides of the stack
+	 * @return sizes of the renumbered particles, index 0 being the size of
+	 *         everything else
+	 */
+	private long[] relabelParticles(ImagePlus imp, final byte[][] workArray,
+			final LabelVolume particleLabels, VoxelLists particleLists,
+			double minVol, double maxVol, int phase, boolean doExclude) {
+		IJ.showStatus("Filtering " + sPhase + " structures");
+		final int w = particleLabels.getWidth();
+		final int h = particleLabels.getHeight();
+		final int d = particleLabels.getDepth();
+		final int wh = w * h;
+		long[] particleSizes;
+		if (particleLists == null)
+			particleSizes = getParticleSizes(particleLabels);
+		else
+			particleSizes = particleLists.getSizes();
 		final int nLabels = particleSizes.length;
-		int[] newLabel = new int[nLabels];
-		for (int i = 0; i < nLabels; i++)
-			newLabel[i] = i;
-
-		// scan faces
-		// top and bottom faces
-		for (int y = 0; y < h; y++) {
-			final int index = y * w;
-			for (int x = 0; x < w; x++) {
-				final int pt = particleLabels[0][index + x];
-				if (pt > 0)
-					newLabel[pt] = 0;
-				final int pb = particleLabels[d - 1][index + x];
-				if (pb > 0)
-					newLabel[pb] = 0;
-			}
-		}
+		double[] particleVolumes = getVolumes(imp, particleSizes);
 
-		// west and east faces
-		for (int z = 0; z < d; z++) {
-			for (int y = 0; y < h; y++) {
-				final int pw = particleLabels[z][y * w];
-				final int pe = particleLabels[z][y * w + w - 1];
-				if (pw > 0)
-					newLabel[pw] = 0;
-				if (pe > 0)
-					newLabel[pe] = 0;
+		// particles touching the top, bottom, west, east, north and south
+		boolean[] onEdge = new boolean[nLabels];
+		if (doExclude) {
+			for (int i = 0; i < wh; i++) {
+				onEdge[particleLabels.get(0, i)] = true;
+				onEdge[particleLabels.get(d - 1, i)] = true;
+			}
+			final int lastRow = w * (h - 1);
+			for (int z = 0; z < d; z++) {
+				for (int y = 0; y < h; y++) {
+					onEdge[particleLabels.get(z, y * w)] = true;
+					onEdge[particleLabels.get(z, y * w + w - 1)] = true;
+				}
+				for (int x = 0; x < w; x++) {
+					onEdge[particleLabels.get(z, x)] = true;
+					onEdge[particleLabels.get(z, lastRow + x)] = true;
+				}
 			}
 		}
 
-		// north and south faces
-		final int lastRow = w * (h - 1);
-		for (int z = 0; z < d; z++) {
-			for (int x = 0; x < w; x++) {
-				final int pn = particleLabels[z][x];
-				final int ps = particleLabels[z][lastRow + x];
-				if (pn > 0)
-					newLabel[pn] = 0;
-				if (ps > 0)
-					newLabel[ps] = 0;
+		// rejected particles get label 0 and have their voxels set to
+		// workValue[p]: volume-filtered particles flip to the other phase and
+		// edge particles are set to background
+		final byte flip = (phase == FORE) ? (byte) 0 : (byte) 255;
+		final int[] newLabel = new int[nLabels];
+		final boolean[] reject = new boolean[nLabels];
+		final byte[] workValue = new byte[nLabels];
+		int nParticles = 1;
+		for (int p = 1; p < nLabels; p++) {
+			if (particleSizes[p] == 0)
+				continue;
+			final double v = particleVolumes[p];
+			if (v < minVol || v > maxVol) {
+				reject[p] = true;
+				workValue[p] = flip;
+			} else if (onEdge[p]) {
+				reject[p] = true;
+				workValue[p] = (byte) 0;
+			} else {
+				newLabel[p] = nParticles;
+				nParticles++;
 			}
 		}
 
-		// replace labels
-		final int wh = w * h;
-		for (int z = 0; z < d; z++) {
-			for (int i = 0; i < wh; i++) {
-				final int p = particleLabels[z][i];
-				final int nL = newLabel[p];
-				if (nL == 0) {
-					particleLabels[z][i] = 0;
-					workArray[z][i] = (byte) 0;
+		IJ.showStatus("Minimising labels...");
+		final AtomicInteger ai = new AtomicInteger(0);
+		Thread[] threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(new Runnable() {
+				public void run() {
+					int[] slice = new int[wh];
+					for (int z = ai.getAndIncrement(); z < d; z = ai
+							.getAndIncrement()) {
+						slice = particleLabels.getSlice(z, slice);
+						final byte[] work = workArray[z];
+						for (int i = 0; i < wh; i++) {
+							final int p = slice[i];
+							if (p == 0)
+								continue;
+							if (reject[p])
+								work[i] = workValue[p];
+							slice[i] = newLabel[p];
+						}
+						particleLabels.setSlice(z, slice);
+						IJ.showProgress(z, d);
+					}
 				}
-			}
+			});
 		}
+		Multithreader.startAndJoin(threads);
 
-		return;
+		long[] newSizes = new long[nParticles];
+		long nParticleVoxels = 0;
+		for (int p = 1; p < nLabels; p++) {
+			if (newLabel[p] > 0) {
+				newSizes[newLabel[p]] = particleSizes[p];
+				nParticleVoxels += particleSizes[p];
+			}
+		}
+		newSizes[0] = (long) wh * d - nParticleVoxels;
+		return newSizes;
 	}
 
 	/**
@@ -1491,17 +1902,18 @@ public class ParticleCounter implements PlugIn, DialogListener {
 	 *            byte[] array containing pixel values
 	 * @param phase
 	 *            FORE or BACK for foreground of background respectively
-	 * @return particleLabels int[] array containing label associating every
-	 *         pixel with a particle
+	 * @return particleLabels containing a label associating every pixel with
+	 *         a particle
 	 */
-	private int[][] firstIDAttribution(ImagePlus imp, final byte[][] workArray,
+	private LabelVolume firstIDAttribution(ImagePlus imp, final byte[][] workArray,
 			final int phase) {
 		final int w = imp.getWidth();
 		final int h = imp.getHeight();
 		final int d = imp.getImageStackSize();
 		final int wh = w * h;
 		IJ.showStatus("Finding " + sPhase + " structures");
-		int[][] particleLabels = new int[d][wh];
+		LabelVolume particleLabels = LabelVolume.createNarrowing(w, h, d,
+				Integer.MAX_VALUE);
 		int ID = 1;
 
 		if (phase == FORE) {
@@ -1511,7 +1923,7 @@ public class ParticleCounter implements PlugIn, DialogListener {
 					for (int x = 0; x < w; x++) {
 						final int arrayIndex = rowIndex + x;
 						if (workArray[z][arrayIndex] == phase) {
-							particleLabels[z][arrayIndex] = ID;
+							particleLabels.set(z, arrayIndex, ID);
 							int minTag = ID;
 							// Find the minimum particleLabel in the
 							// neighbouring pixels
@@ -1522,7 +1934,7 @@ public class ParticleCounter implements PlugIn, DialogListener {
 											final int offset = getOffset(vX,
 													vY, w);
 											if (workArray[vZ][offset] == phase) {
-												final int tagv = particleLabels[vZ][offset];
+												final int tagv = particleLabels.get(vZ, offset);
 												if (tagv != 0 && tagv < minTag) {
 													minTag = tagv;
 												}
@@ -1533,7 +1945,7 @@ public class ParticleCounter implements PlugIn, DialogListener {
 							}
 							// assign the smallest particle label from the
 							// neighbours to the pixel
-							particleLabels[z][arrayIndex] = minTag;
+							particleLabels.set(z, arrayIndex, minTag);
 							// increment the particle label
 							if (minTag == ID) {
 								ID++;
@@ -1551,7 +1963,7 @@ public class ParticleCounter implements PlugIn, DialogListener {
 					for (int x = 0; x < w; x++) {
 						final int arrayIndex = rowIndex + x;
 						if (workArray[z][arrayIndex] == phase) {
-							particleLabels[z][arrayIndex] = ID;
+							particleLabels.set(z, arrayIndex, ID);
 							int minTag = ID;
 							// Find the minimum particleLabel in the
 							// neighbouring pixels
@@ -1584,7 +1996,7 @@ public class ParticleCounter implements PlugIn, DialogListener {
 								if (withinBounds(nX, nY, nZ, w, h, 0, d)) {
 									final int offset = getOffset(nX, nY, w);
 									if (workArray[nZ][offset] == phase) {
-										final int tagv = particleLabels[nZ][offset];
+										final int tagv = particleLabels.get(nZ, offset);
 										if (tagv != 0 && tagv < minTag) {
 											minTag = tagv;
 										}
@@ -1593,7 +2005,7 @@ public class ParticleCounter implements PlugIn, DialogListener {
 							}
 							// assign the smallest particle label from the
 							// neighbours to the pixel
-							particleLabels[z][arrayIndex] = minTag;
+							particleLabels.set(z, arrayIndex, minTag);
 							// increment the particle label
 							if (minTag == ID) {
 								ID++;
@@ -1620,7 +2032,8 @@ public class ParticleCounter implements PlugIn, DialogListener {
 	 * @return particleLabels with all particles connected
 	 */
 	private void connectStructures(ImagePlus imp, final byte[][] workArray,
-			int[][] particleLabels, final int phase, final int[][] scanRanges) {
+			LabelVolume particleLabels, final int phase,
+			final int[][] scanRanges) {
 		IJ.showStatus("Connecting " + sPhase + " structures" + chunkString);
 		final int w = imp.getWidth();
 		final int h = imp.getHeight();
@@ -1637,8 +2050,8 @@ public class ParticleCounter implements PlugIn, DialogListener {
 						for (int x = 0; x < w; x++) {
 							final int arrayIndex = rowIndex + x;
 							if (workArray[z][arrayIndex] == phase
-									&& particleLabels[z][arrayIndex] > 1) {
-								int minTag = particleLabels[z][arrayIndex];
+									&& particleLabels.get(z, arrayIndex) > 1) {
+								int minTag = particleLabels.get(z, arrayIndex);
 								// Find the minimum particleLabel in the
 								// neighbours' pixels
 								for (int vZ = z - 1; vZ <= z + 1; vZ++) {
@@ -1649,7 +2062,7 @@ public class ParticleCounter implements PlugIn, DialogListener {
 												final int offset = getOffset(
 														vX, vY, w);
 												if (workArray[vZ][offset] == phase) {
-													final int tagv = particleLabels[vZ][offset];
+													final int tagv = particleLabels.get(vZ, offset);
 													if (tagv != 0
 															&& tagv < minTag) {
 														minTag = tagv;
@@ -1669,7 +2082,7 @@ public class ParticleCounter implements PlugIn, DialogListener {
 												final int offset = getOffset(
 														vX, vY, w);
 												if (workArray[vZ][offset] == phase) {
-													final int tagv = particleLabels[vZ][offset];
+													final int tagv = particleLabels.get(vZ, offset);
 													if (tagv != 0
 															&& tagv != minTag) {
 														replaceLabel(
@@ -1696,7 +2109,7 @@ public class ParticleCounter implements PlugIn, DialogListener {
 						for (int x = 0; x < w; x++) {
 							final int arrayIndex = rowIndex + x;
 							if (workArray[z][arrayIndex] == phase) {
-								int minTag = particleLabels[z][arrayIndex];
+								int minTag = particleLabels.get(z, arrayIndex);
 								// Find the minimum particleLabel in the
 								// neighbours' pixels
 								int nX = x, nY = y, nZ = z;
@@ -1728,7 +2141,7 @@ public class ParticleCounter implements PlugIn, DialogListener {
 									if (withinBounds(nX, nY, nZ, w, h, sR2, sR3)) {
 										final int offset = getOffset(nX, nY, w);
 										if (workArray[nZ][offset] == phase) {
-											final int tagv = particleLabels[nZ][offset];
+											final int tagv = particleLabels.get(nZ, offset);
 											if (tagv != 0 && tagv < minTag) {
 												minTag = tagv;
 											}
@@ -1767,7 +2180,7 @@ public class ParticleCounter implements PlugIn, DialogListener {
 									if (withinBounds(nX, nY, nZ, w, h, sR2, sR3)) {
 										final int offset = getOffset(nX, nY, w);
 										if (workArray[nZ][offset] == phase) {
-											final int tagv = particleLabels[nZ][offset];
+											final int tagv = particleLabels.get(nZ, offset);
 											if (tagv != 0 && tagv != minTag) {
 												replaceLabel(particleLabels,
 														tagv, minTag, sR2, sR3);
@@ -1794,12 +2207,13 @@ public class ParticleCounter implements PlugIn, DialogListener {
 
 		final byte[][] workArray;
 
-		final int[][] particleLabels;
+		final LabelVolume particleLabels;
 
 		final int[][] chunkRanges;
 
 		public ConnectStructuresThread(int thread, int nThreads, ImagePlus imp,
-				byte[][] workArray, int[][] particleLabels, final int phase,
+				byte[][] workArray, LabelVolume particleLabels,
+				final int phase,
 				int nChunks, int[][] chunkRanges) {
 			this.imp = imp;
 			this.thread = thread;
@@ -1830,128 +2244,124 @@ public class ParticleCounter implements PlugIn, DialogListener {
 	 * 
 	 * @param imp
 	 * @param particleLabels
+	 * @return voxel lists of the joined particles, indexed by label
 	 */
-	private void joinStructures(ImagePlus imp, int[][] particleLabels, int phase) {
+	private VoxelLists joinStructures(ImagePlus imp,
+			LabelVolume particleLabels, int phase) {
 		final int w = imp.getWidth();
 		final int h = imp.getHeight();
 		final int d = imp.getImageStackSize();
 		long[] particleSizes = getParticleSizes(particleLabels);
 		final int nBlobs = particleSizes.length;
-		ArrayList<ArrayList<short[]>> particleLists = getParticleLists(
-				particleLabels, nBlobs, w, h, d);
+		VoxelLists particleLists = getParticleLists(particleLabels, nBlobs, w,
+				h, d);
 		switch (phase) {
 		case FORE: {
 			for (int b = 1; b < nBlobs; b++) {
 				IJ.showStatus("Joining substructures...");
 				IJ.showProgress(b, nBlobs);
-				if (particleLists.get(b).isEmpty()) {
-					continue;
-				}
-
-				for (int l = 0; l < particleLists.get(b).size(); l++) {
-					final short[] voxel = particleLists.get(b).get(l);
-					final int x = voxel[0];
-					final int y = voxel[1];
-					final int z = voxel[2];
-					// find any neighbours with bigger labels
-					for (int zN = z - 1; zN <= z + 1; zN++) {
-						for (int yN = y - 1; yN <= y + 1; yN++) {
-							final int index = yN * w;
-							for (int xN = x - 1; xN <= x + 1; xN++) {
-								if (!withinBounds(xN, yN, zN, w, h, d))
-									continue;
-								final int iN = index + xN;
-								int p = particleLabels[zN][iN];
-								if (p > b) {
-									joinBlobs(b, p, particleLabels,
-											particleLists, w);
+				for (int s = particleLists.getFirstSegment(b); s != -1; s = particleLists
+						.getNextSegment(s)) {
+					final int end = particleLists.getSegmentEnd(s);
+					for (int k = particleLists.getSegmentStart(s); k < end; k++) {
+						final long voxel = particleLists.get(k);
+						final int x = particleLists.getX(voxel);
+						final int y = particleLists.getY(voxel);
+						final int z = particleLists.getZ(voxel);
+						// find any neighbours with bigger labels
+						for (int zN = z - 1; zN <= z + 1; zN++) {
+							for (int yN = y - 1; yN <= y + 1; yN++) {
+								final int index = yN * w;
+								for (int xN = x - 1; xN <= x + 1; xN++) {
+									if (!withinBounds(xN, yN, zN, w, h, d))
+										continue;
+									final int iN = index + xN;
+									int p = particleLabels.get(zN, iN);
+									if (p > b) {
+										joinBlobs(b, p, particleLabels,
+												particleLists);
+									}
 								}
 							}
 						}
 					}
 				}
 			}
+			break;
 		}
 		case BACK: {
 			for (int b = 1; b < nBlobs; b++) {
 				IJ.showStatus("Joining substructures...");
 				IJ.showProgress(b, nBlobs);
-				if (particleLists.get(b).isEmpty()) {
-					continue;
-				}
-				for (int l = 0; l < particleLists.get(b).size(); l++) {
-					final short[] voxel = particleLists.get(b).get(l);
-					final int x = voxel[0];
-					final int y = voxel[1];
-					final int z = voxel[2];
-					// find any neighbours with bigger labels
-					int xN = x, yN = y, zN = z;
-					for (int n = 1; n < 7; n++) {
-						switch (n) {
-						case 1:
-							xN = x - 1;
-							break;
-						case 2:
-							xN = x + 1;
-							break;
-						case 3:
-							yN = y - 1;
-							xN = x;
-							break;
-						case 4:
-							yN = y + 1;
-							break;
-						case 5:
-							zN = z - 1;
-							yN = y;
-							break;
-						case 6:
-							zN = z + 1;
-							break;
-						}
-						if (!withinBounds(xN, yN, zN, w, h, d))
-							continue;
-						final int iN = yN * w + xN;
-						int p = particleLabels[zN][iN];
-						if (p > b) {
-							joinBlobs(b, p, particleLabels, particleLists, w);
+				for (int s = particleLists.getFirstSegment(b); s != -1; s = particleLists
+						.getNextSegment(s)) {
+					final int end = particleLists.getSegmentEnd(s);
+					for (int k = particleLists.getSegmentStart(s); k < end; k++) {
+						final long voxel = particleLists.get(k);
+						final int x = particleLists.getX(voxel);
+						final int y = particleLists.getY(voxel);
+						final int z = particleLists.getZ(voxel);
+						// find any neighbours with bigger labels
+						int xN = x, yN = y, zN = z;
+						for (int n = 1; n < 7; n++) {
+							switch (n) {
+							case 1:
+								xN = x - 1;
+								break;
+							case 2:
+								xN = x + 1;
+								break;
+							case 3:
+								yN = y - 1;
+								xN = x;
+								break;
+							case 4:
+								yN = y + 1;
+								break;
+							case 5:
+								zN = z - 1;
+								yN = y;
+								break;
+							case 6:
+								zN = z + 1;
+								break;
+							}
+							if (!withinBounds(xN, yN, zN, w, h, d))
+								continue;
+							final int iN = yN * w + xN;
+							int p = particleLabels.get(zN, iN);
+							if (p > b) {
+								joinBlobs(b, p, particleLabels, particleLists);
+							}
 						}
 					}
 				}
 			}
+			break;
 		}
 		}
-		return;
+		return particleLists;
 	}
 
-	public ArrayList<ArrayList<short[]>> getParticleLists(
-			int[][] particleLabels, int nBlobs, int w, int h, int d) {
-		ArrayList<ArrayList<short[]>> pL = new ArrayList<ArrayList<short[]>>(
-				nBlobs);
-		long[] particleSizes = getParticleSizes(particleLabels);
-		ArrayList<short[]> background = new ArrayList<short[]>(0);
-		pL.add(0, background);
-		for (int b = 1; b < nBlobs; b++) {
-			ArrayList<short[]> a = new ArrayList<short[]>(
-					(int) particleSizes[b]);
-			pL.add(b, a);
-		}
-		// add all the particle coordinates to the appropriate list
-		for (short z = 0; z < d; z++) {
-			IJ.showStatus("Listing substructures...");
-			IJ.showProgress(z, d);
-			for (short y = 0; y < h; y++) {
-				final int i = y * w;
-				for (short x = 0; x < w; x++) {
-					final int p = particleLabels[z][i + x];
-					if (p > 0) { // ignore background
-						final short[] voxel = { x, y, z };
-						pL.get(p).add(voxel);
-					}
-				}
-			}
-		}
-		return pL;
+	/**
+	 * Get packed lists of the voxels in each particle
+	 * 
+	 * @param particleLabels
+	 *            particle labels
+	 * @param nBlobs
+	 *            1 + the largest particle label
+	 * @param w
+	 *            stack width
+	 * @param h
+	 *            stack height
+	 * @param d
+	 *            stack depth
+	 * @return voxel lists indexed by particle label
+	 */
+	public VoxelLists getParticleLists(LabelVolume particleLabels, int nBlobs,
+			int w, int h, int d) {
+		IJ.showStatus("Listing substructures...");
+		return new VoxelLists(particleLabels, nBlobs);
 	}
 
 	/**
@@ -1963,19 +2373,321 @@ public class ParticleCounter implements PlugIn, DialogListener {
 	 *            array of particle labels
 	 * @param particleLists
 	 *            list of particle voxel coordinates
+	 */
+	public void joinBlobs(int b, int p, LabelVolume particleLabels,
+			VoxelLists particleLists) {
+		for (int s = particleLists.getFirstSegment(p); s != -1; s = particleLists
+				.getNextSegment(s)) {
+			final int end = particleLists.getSegmentEnd(s);
+			for (int k = particleLists.getSegmentStart(s); k < end; k++) {
+				final long voxel = particleLists.get(k);
+				particleLabels.set(particleLists.getZ(voxel),
+						particleLists.getIndex(voxel), b);
+			}
+		}
+		particleLists.join(b, p);
+	}
+
+	/**
+	 * Label particles by resolving provisional label equivalences in a
+	 * union-find rather than by rewriting the label array. Chunks of slices
+	 * are labelled independently in parallel, in 32-bit scratch slices that
+	 * each thread reuses. As soon as a chunk is labelled its provisional
+	 * labels are replaced by its roots, numbered from 1, and stored, so that
+	 * slices narrow to 16 bits as chunks finish and only the chunks being
+	 * labelled are held in 32 bits. Equivalences between chunks are found by
+	 * scanning only the first slice of each chunk against the last slice of
+	 * the previous chunk, in a union-find of the chunks' roots, then a single
+	 * pass replaces each chunk root with its final label.
+	 * 
+	 * Roots of the union-find are always the lowest provisional label in a
+	 * set, so final labels are numbered in order of each particle's first
+	 * voxel, which is the same labelling that MULTI and LINEAR produce after
+	 * relabelParticles().
+	 * 
+	 * @param imp
+	 *            input image, used for stack dimensions
+	 * @param workArray
+	 *            binary work array
+	 * @param phase
+	 *            FORE or BACK for foreground or background respectively
+	 * @param slicesPerChunk
+	 *            most slices each thread labels at once in 32 bits; chunks
+	 *            are made smaller than this so that each thread gets several
+	 * @return particleLabels containing minimised particle labels
+	 */
+	private LabelVolume mappedLabelling(ImagePlus imp,
+			final byte[][] workArray, final int phase, int slicesPerChunk) {
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int d = imp.getImageStackSize();
+		final int wh = w * h;
+		final int nThreads = Multithreader.getNThreads();
+		// several chunks per thread keeps the 32-bit scratch slices few
+		final int chunkSize = Math.min(slicesPerChunk,
+				(int) Math.ceil((double) d / (double) (8 * nThreads)));
+		final int nChunks = getNChunks(imp, chunkSize);
+		final int[][] chunkRanges = getChunkRanges(imp, nChunks, chunkSize);
+		final LabelVolume particleLabels = LabelVolume.createNarrowing(w, h,
+				d, LabelVolume.MAX_SHORT_LABEL + 1);
+		final int[] nChunkRoots = new int[nChunks];
+
+		// label each chunk independently and store it by chunk root
+		IJ.showStatus("Finding " + sPhase + " structures");
+		final AtomicInteger ai = new AtomicInteger(0);
+		Thread[] threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(new Runnable() {
+				public void run() {
+					final int[][] chunkLabels = new int[chunkSize][wh];
+					for (int c = ai.getAndIncrement(); c < nChunks; c = ai
+							.getAndIncrement()) {
+						final int startZ = chunkRanges[0][c];
+						final int endZ = chunkRanges[1][c];
+						final int[] parent = labelChunk(workArray,
+								chunkLabels, phase, w, h, startZ, endZ);
+						nChunkRoots[c] = numberRoots(parent);
+						for (int z = startZ; z < endZ; z++) {
+							final int[] labels = chunkLabels[z - startZ];
+							for (int i = 0; i < wh; i++) {
+								final int label = labels[i];
+								if (label != 0)
+									labels[i] = parent[label];
+							}
+							particleLabels.setSlice(z, labels);
+						}
+						IJ.showProgress(c, nChunks);
+					}
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+
+		// a single union-find of the chunks' roots
+		final int[] offsets = new int[nChunks];
+		int nLabels = 0;
+		for (int c = 0; c < nChunks; c++) {
+			offsets[c] = nLabels;
+			nLabels += nChunkRoots[c];
+		}
+		final int[] parent = new int[nLabels + 1];
+		for (int l = 1; l <= nLabels; l++)
+			parent[l] = l;
+
+		// merge particles across chunk boundaries
+		IJ.showStatus("Connecting " + sPhase + " structures: stitching...");
+		int[] labels = new int[wh];
+		int[] labelsAbove = new int[wh];
+		for (int c = 1; c < nChunks; c++) {
+			final int z = chunkRanges[0][c];
+			labels = particleLabels.getSlice(z, labels);
+			labelsAbove = particleLabels.getSlice(z - 1, labelsAbove);
+			final int offset = offsets[c];
+			final int offsetAbove = offsets[c - 1];
+			for (int y = 0; y < h; y++) {
+				final int rowIndex = y * w;
+				for (int x = 0; x < w; x++) {
+					final int label = labels[rowIndex + x];
+					if (label == 0)
+						continue;
+					if (phase == FORE) {
+						for (int vY = Math.max(0, y - 1); vY <= Math.min(
+								h - 1, y + 1); vY++) {
+							for (int vX = Math.max(0, x - 1); vX <= Math.min(
+									w - 1, x + 1); vX++) {
+								final int tag = labelsAbove[getOffset(vX, vY,
+										w)];
+								if (tag != 0)
+									union(parent, label + offset, tag
+											+ offsetAbove);
+							}
+						}
+					} else {
+						final int tag = labelsAbove[rowIndex + x];
+						if (tag != 0)
+							union(parent, label + offset, tag + offsetAbove);
+					}
+				}
+			}
+			IJ.showProgress(c, nChunks);
+		}
+
+		// replace chunk roots with final labels
+		numberRoots(parent);
+		IJ.showStatus("Relabelling " + sPhase + " structures");
+		final AtomicInteger az = new AtomicInteger(0);
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(new Runnable() {
+				public void run() {
+					int[] slice = new int[wh];
+					for (int z = az.getAndIncrement(); z < d; z = az
+							.getAndIncrement()) {
+						final int offset = offsets[z / chunkSize];
+						slice = particleLabels.getSlice(z, slice);
+						for (int i = 0; i < wh; i++) {
+							final int label = slice[i];
+							if (label != 0)
+								slice[i] = parent[label + offset];
+						}
+						particleLabels.setSlice(z, slice);
+						IJ.showProgress(z, d);
+					}
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+		return particleLabels;
+	}
+
+	/**
+	 * Replace each label in a union-find with the number of its root, roots
+	 * being numbered from 1 in ascending order. parent[l] &lt;= l, so every
+	 * non-root label's parent has already been replaced when it is reached.
+	 * 
+	 * @param parent
+	 *            union-find parent array, overwritten with root numbers
+	 * @return number of roots
+	 */
+	private static int numberRoots(final int[] parent) {
+		final int nLabels = parent.length;
+		int nRoots = 0;
+		for (int l = 1; l < nLabels; l++) {
+			final int p = parent[l];
+			if (p == l) {
+				nRoots++;
+				parent[l] = nRoots;
+			} else {
+				parent[l] = parent[p];
+			}
+		}
+		return nRoots;
+	}
+
+	/**
+	 * Assign provisional labels to a chunk of slices, recording equivalent
+	 * labels in a union-find. Only neighbours that precede the current voxel
+	 * in the chunk's raster order are checked.
+	 * 
+	 * @param workArray
+	 *            binary work array
+	 * @param chunkLabels
+	 *            scratch label slices, chunkLabels[z - startZ] receiving
+	 *            slice z's chunk-local provisional labels
+	 * @param phase
+	 *            FORE (26-connected) or BACK (6-connected)
 	 * @param w
 	 *            stack width
+	 * @param h
+	 *            stack height
+	 * @param startZ
+	 *            first slice of the chunk
+	 * @param endZ
+	 *            last+1 slice of the chunk
+	 * @return union-find parent array indexed by provisional label, of length
+	 *         number of labels + 1
 	 */
-	public void joinBlobs(int b, int p, int[][] particleLabels,
-			ArrayList<ArrayList<short[]>> particleLists, int w) {
-		ListIterator<short[]> iterB = particleLists.get(p).listIterator();
-		while (iterB.hasNext()) {
-			short[] voxelB = iterB.next();
-			particleLists.get(b).add(voxelB);
-			final int iB = voxelB[1] * w + voxelB[0];
-			particleLabels[voxelB[2]][iB] = b;
-		}
-		particleLists.get(p).clear();
+	private static int[] labelChunk(final byte[][] workArray,
+			final int[][] chunkLabels, final int phase, final int w,
+			final int h, final int startZ, final int endZ) {
+		int[] parent = new int[1024];
+		int nLabels = 0;
+		for (int z = startZ; z < endZ; z++) {
+			final byte[] work = workArray[z];
+			final int[] labels = chunkLabels[z - startZ];
+			for (int y = 0; y < h; y++) {
+				final int rowIndex = y * w;
+				for (int x = 0; x < w; x++) {
+					final int arrayIndex = rowIndex + x;
+					if (work[arrayIndex] != phase) {
+						labels[arrayIndex] = 0;
+						continue;
+					}
+					int label = 0;
+					if (phase == FORE) {
+						// the 13 neighbours already visited
+						for (int vZ = Math.max(startZ, z - 1); vZ <= z; vZ++) {
+							final int[] vLabels = chunkLabels[vZ - startZ];
+							final int yMax = (vZ == z) ? y : Math.min(h - 1,
+									y + 1);
+							for (int vY = Math.max(0, y - 1); vY <= yMax; vY++) {
+								final int xMax = (vZ == z && vY == y) ? x - 1
+										: Math.min(w - 1, x + 1);
+								for (int vX = Math.max(0, x - 1); vX <= xMax; vX++) {
+									final int tag = vLabels[vY * w + vX];
+									if (tag == 0 || tag == label)
+										continue;
+									label = (label == 0) ? tag : union(parent,
+											label, tag);
+								}
+							}
+						}
+					} else {
+						// the 3 face neighbours already visited
+						if (x > 0) {
+							label = labels[arrayIndex - 1];
+						}
+						if (y > 0) {
+							final int tag = labels[arrayIndex - w];
+							if (tag != 0 && tag != label)
+								label = (label == 0) ? tag : union(parent,
+										label, tag);
+						}
+						if (z > startZ) {
+							final int tag = chunkLabels[z - 1 - startZ][arrayIndex];
+							if (tag != 0 && tag != label)
+								label = (label == 0) ? tag : union(parent,
+										label, tag);
+						}
+					}
+					if (label == 0) {
+						nLabels++;
+						if (nLabels == parent.length)
+							parent = Arrays.copyOf(parent, parent.length * 2);
+						parent[nLabels] = nLabels;
+						label = nLabels;
+					}
+					labels[arrayIndex] = label;
+				}
+			}
+		}
+		return Arrays.copyOf(parent, nLabels + 1);
+	}
+
+	/**
+	 * Find the root of a label in a union-find, halving the path on the way
+	 * 
+	 * @param parent
+	 *            union-find parent array
+	 * @param label
+	 * @return root label
+	 */
+	private static int find(final int[] parent, int label) {
+		while (parent[label] != label) {
+			parent[label] = parent[parent[label]];
+			label = parent[label];
+		}
+		return label;
+	}
+
+	/**
+	 * Join the sets containing labels a and b, keeping the lower root as the
+	 * root of the joined set
+	 * 
+	 * @param parent
+	 *            union-find parent array
+	 * @param a
+	 * @param b
+	 * @return root of the joined set
+	 */
+	private static int union(final int[] parent, final int a, final int b) {
+		final int rootA = find(parent, a);
+		final int rootB = find(parent, b);
+		if (rootA < rootB) {
+			parent[rootB] = rootA;
+			return rootA;
+		}
+		parent[rootA] = rootB;
+		return rootB;
 	}
 
 	/**
@@ -2143,15 +2855,10 @@ public class ParticleCounter implements PlugIn, DialogListener {
 	 * @param endZ
 	 *            last+1 z coordinate to check
 	 */
-	public void replaceLabel(int[][] particleLabels, final int m, int n,
+	public void replaceLabel(LabelVolume particleLabels, final int m, int n,
 			int startZ, final int endZ) {
-		final int s = particleLabels[0].length;
-		for (int z = startZ; z < endZ; z++) {
-			for (int i = 0; i < s; i++)
-				if (particleLabels[z][i] == m) {
-					particleLabels[z][i] = n;
-				}
-		}
+		for (int z = startZ; z < endZ; z++)
+			particleLabels.replace(z, m, n);
 	}
 
 	/**
@@ -2168,25 +2875,20 @@ public class ParticleCounter implements PlugIn, DialogListener {
 	 * @param multithreaded
 	 *            true if label replacement should happen in multiple threads
 	 */
-	public void replaceLabel(final int[][] particleLabels, final int m,
+	public void replaceLabel(final LabelVolume particleLabels, final int m,
 			final int n, int startZ, final int endZ, final boolean multithreaded) {
 		if (!multithreaded) {
 			replaceLabel(particleLabels, m, n, startZ, endZ);
 			return;
 		}
-		final int s = particleLabels[0].length;
 		final AtomicInteger ai = new AtomicInteger(startZ);
 		Thread[] threads = Multithreader.newThreads();
 		for (int thread = 0; thread < threads.length; thread++) {
 			threads[thread] = new Thread(new Runnable() {
 				public void run() {
 					for (int z = ai.getAndIncrement(); z < endZ; z = ai
-							.getAndIncrement()) {
-						for (int i = 0; i < s; i++)
-							if (particleLabels[z][i] == m) {
-								particleLabels[z][i] = n;
-							}
-					}
+							.getAndIncrement())
+						particleLabels.replace(z, m, n);
 				}
 			});
 		}
@@ -2200,27 +2902,42 @@ public class ParticleCounter implements PlugIn, DialogListener {
 	 * @return particleSizes
 	 */
 	public long[] getParticleSizes(final int[][] particleLabels) {
+		return getParticleSizes(LabelVolume.wrap(particleLabels,
+				particleLabels[0].length));
+	}
+
+	/**
+	 * Get the sizes of all the particles as a voxel count
+	 * 
+	 * @param particleLabels
+	 * @return particleSizes
+	 */
+	public long[] getParticleSizes(final LabelVolume particleLabels) {
 		IJ.showStatus("Getting " + sPhase + " particle sizes");
-		final int d = particleLabels.length;
-		final int wh = particleLabels[0].length;
+		final int d = particleLabels.getDepth();
+		final int wh = particleLabels.getWidth() * particleLabels.getHeight();
+		int[] slice = new int[wh];
 		// find the highest value particleLabel
 		int maxParticle = 0;
 		for (int z = 0; z < d; z++) {
+			slice = particleLabels.getSlice(z, slice);
 			for (int i = 0; i < wh; i++) {
-				maxParticle = Math.max(maxParticle, particleLabels[z][i]);
+				maxParticle = Math.max(maxParticle, slice[i]);
 			}
 		}
 
 		long[] particleSizes = new long[maxParticle + 1];
 		for (int z = 0; z < d; z++) {
+			slice = particleLabels.getSlice(z, slice);
 			for (int i = 0; i < wh; i++) {
-				particleSizes[particleLabels[z][i]]++;
+				particleSizes[slice[i]]++;
 			}
 			IJ.showProgress(z, d);
 		}
 		return particleSizes;
 	}
 
+
 	/**
 	 * Display the particle labels as an ImagePlus
 	 * 
@@ -2229,7 +2946,7 @@ public class ParticleCounter implements PlugIn, DialogListener {
 	 *            original image, used for image dimensions, calibration and
 	 *            titles
 	 */
-	private ImagePlus displayParticleLabels(int[][] particleLabels,
+	private ImagePlus displayParticleLabels(LabelVolume particleLabels,
 			ImagePlus imp) {
 		final int w = imp.getWidth();
 		final int h = imp.getHeight();
@@ -2237,10 +2954,12 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		final int wh = w * h;
 		ImageStack stack = new ImageStack(w, h);
 		double max = 0;
+		int[] slice = new int[wh];
 		for (int z = 0; z < d; z++) {
 			float[] slicePixels = new float[wh];
+			slice = particleLabels.getSlice(z, slice);
 			for (int i = 0; i < wh; i++) {
-				slicePixels[i] = (float) particleLabels[z][i];
+				slicePixels[i] = (float) slice[i];
 				max = Math.max(max, slicePixels[i]);
 			}
 			stack.addSlice(imp.getImageStack().getSliceLabel(z + 1),
@@ -2266,10 +2985,10 @@ public class ParticleCounter implements PlugIn, DialogListener {
 	 * Set the value of this instance's labelMethod field
 	 * 
 	 * @param label
-	 *            one of ParticleCounter.MULTI or .LINEAR
+	 *            one of ParticleCounter.MULTI, .LINEAR or .MAPPED
 	 */
 	public void setLabelMethod(int label) {
-		if (label != MULTI && label != LINEAR) {
+		if (label != MULTI && label != LINEAR && label != MAPPED) {
 			throw new IllegalArgumentException();
 		}
 		labelMethod = label;
@@ -2285,11 +3004,18 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		// link algorithm choice to chunk size field
 		Choice choice = (Choice) choices.get(1);
 		TextField num = (TextField) numbers.get(5);
-		if (choice.getSelectedItem().contentEquals("Multithreaded")) {
+		final boolean streamed = choice.getSelectedItem().contentEquals(
+				"Streamed");
+		if (choice.getSelectedItem().contentEquals("Multithreaded")
+				|| streamed) {
 			num.setEnabled(true);
 		} else {
 			num.setEnabled(false);
 		}
+		// streamed labelling only measures what can be summed slice by slice
+		final int[] needLabels = { 1, 2, 3, 5, 6, 7, 8, 9, 10, 11, 13, 14 };
+		for (int i : needLabels)
+			((Checkbox) checkboxes.get(i)).setEnabled(!streamed);
 		// link show stack 3d to volume resampling
 		Checkbox box = (Checkbox) checkboxes.get(15);
 		TextField numb = (TextField) numbers.get(4);
@@ -2302,7 +3028,7 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		Checkbox surfbox = (Checkbox) checkboxes.get(11);
 		Choice col = (Choice) choices.get(0);
 		TextField split = (TextField) numbers.get(3);
-		if (!surfbox.getState()) {
+		if (!surfbox.getState() || streamed) {
 			col.setEnabled(false);
 			split.setEnabled(false);
 		} else {
@@ -27,6 +27,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import org.doube.util.DialogModifier;
 import org.doube.util.ImageCheck;
+import org.doube.util.LabelVolume;
 import org.doube.util.Multithreader;
 import org.doube.util.UsageReporter;
 
@@ -76,7 +77,7 @@ public class Purify implements PlugIn, DialogListener {
 			return;
 		}
 		GenericDialog gd = new GenericDialog("Setup");
-		String[] items = { "Multithreaded", "Linear" };
+		String[] items = { "Multithreaded", "Linear", "Mapped" };
 		gd.addChoice("Labelling algorithm", items, items[0]);
 		gd.addNumericField("Chunk Size", 4, 0, 4, "slices");
 		gd.addCheckbox("Performance Log", false);
@@ -90,8 +91,10 @@ public class Purify implements PlugIn, DialogListener {
 		int labelMethod;
 		if (choice.equals(items[0])) {
 			labelMethod = ParticleCounter.MULTI;
-		} else {
+		} else if (choice.equals(items[1])) {
 			labelMethod = ParticleCounter.LINEAR;
+		} else {
+			labelMethod = ParticleCounter.MAPPED;
 		}
 		int slicesPerChunk = (int) Math.floor(gd.getNextNumber());
 		boolean showPerformance = gd.getNextBoolean();
@@ -137,19 +140,24 @@ public class Purify implements PlugIn, DialogListener {
 		Object[] foregroundParticles = pc.getParticles(imp, slicesPerChunk, 0,
 				Double.POSITIVE_INFINITY, fg);
 		byte[][] workArray = (byte[][]) foregroundParticles[0];
-		int[][] particleLabels = (int[][]) foregroundParticles[1];
+		LabelVolume particleLabels = (LabelVolume) foregroundParticles[1];
 		// index 0 is background particle's size...
 		long[] particleSizes = pc.getParticleSizes(particleLabels);
 		removeSmallParticles(workArray, particleLabels, particleSizes, fg);
+		// release the foreground labels before labelling the background
+		particleLabels.dispose();
+		particleLabels = null;
+		foregroundParticles = null;
 
 		final int bg = ParticleCounter.BACK;
 		Object[] backgroundParticles = pc.getParticles(imp, workArray,
 				slicesPerChunk, 0, Double.POSITIVE_INFINITY, bg);
-		particleLabels = (int[][]) backgroundParticles[1];
+		particleLabels = (LabelVolume) backgroundParticles[1];
 		particleSizes = pc.getParticleSizes(particleLabels);
 		touchEdges(imp, workArray, particleLabels, particleSizes, bg);
 		particleSizes = pc.getParticleSizes(particleLabels);
 		removeSmallParticles(workArray, particleLabels, particleSizes, bg);
+		particleLabels.dispose();
 
 		IJ.showStatus("Image Purified");
 
@@ -179,7 +187,8 @@ public class Purify implements PlugIn, DialogListener {
 	 * @return particleLabels
 	 */
 	private void touchEdges(ImagePlus imp, final byte[][] workArray,
-			int[][] particleLabels, final long[] particleSizes, final int phase) {
+			LabelVolume particleLabels, final long[] particleSizes,
+			final int phase) {
 		String status = "Background particles touching ";
 		final int w = imp.getWidth();
 		final int h = imp.getHeight();
@@ -211,9 +220,10 @@ public class Purify implements PlugIn, DialogListener {
 			for (x = 0; x < w; x++) {
 				final int offset = rowOffset + x;
 				if (workArray[z][offset] == phase
-						&& particleLabels[z][offset] != biggestParticle) {
-					pc.replaceLabel(particleLabels, particleLabels[z][offset],
-							biggestParticle, 0, d, true);
+						&& particleLabels.get(z, offset) != biggestParticle) {
+					pc.replaceLabel(particleLabels,
+							particleLabels.get(z, offset), biggestParticle, 0,
+							d, true);
 				}
 			}
 		}
@@ -227,9 +237,10 @@ public class Purify implements PlugIn, DialogListener {
 			for (x = 0; x < w; x++) {
 				final int offset = rowOffset + x;
 				if (workArray[z][offset] == phase
-						&& particleLabels[z][offset] != biggestParticle) {
-					pc.replaceLabel(particleLabels, particleLabels[z][offset],
-							biggestParticle, 0, d, true);
+						&& particleLabels.get(z, offset) != biggestParticle) {
+					pc.replaceLabel(particleLabels,
+							particleLabels.get(z, offset), biggestParticle, 0,
+							d, true);
 				}
 			}
 		}
@@ -242,9 +253,10 @@ public class Purify implements PlugIn, DialogListener {
 			for (y = 0; y < h; y++) {
 				final int offset = y * w;
 				if (workArray[z][offset] == phase
-						&& particleLabels[z][offset] != biggestParticle) {
-					pc.replaceLabel(particleLabels, particleLabels[z][offset],
-							biggestParticle, 0, d, true);
+						&& particleLabels.get(z, offset) != biggestParticle) {
+					pc.replaceLabel(particleLabels,
+							particleLabels.get(z, offset), biggestParticle, 0,
+							d, true);
 				}
 			}
 		}
@@ -257,9 +269,10 @@ public class Purify implements PlugIn, DialogListener {
 			for (y = 0; y < h; y++) {
 				final int offset = y * w + x;
 				if (workArray[z][offset] == phase
-						&& particleLabels[z][offset] != biggestParticle) {
-					pc.replaceLabel(particleLabels, particleLabels[z][offset],
-							biggestParticle, 0, d, true);
+						&& particleLabels.get(z, offset) != biggestParticle) {
+					pc.replaceLabel(particleLabels,
+							particleLabels.get(z, offset), biggestParticle, 0,
+							d, true);
 				}
 			}
 		}
@@ -273,9 +286,10 @@ public class Purify implements PlugIn, DialogListener {
 			for (x = 0; x < w; x++) {
 				final int offset = rowOffset + x;
 				if (workArray[z][offset] == phase
-						&& particleLabels[z][offset] != biggestParticle) {
-					pc.replaceLabel(particleLabels, particleLabels[z][offset],
-							biggestParticle, 0, d, true);
+						&& particleLabels.get(z, offset) != biggestParticle) {
+					pc.replaceLabel(particleLabels,
+							particleLabels.get(z, offset), biggestParticle, 0,
+							d, true);
 				}
 			}
 		}
@@ -288,9 +302,10 @@ public class Purify implements PlugIn, DialogListener {
 			for (x = 0; x < w; x++) {
 				final int offset = x;
 				if (workArray[z][offset] == phase
-						&& particleLabels[z][offset] != biggestParticle) {
-					pc.replaceLabel(particleLabels, particleLabels[z][offset],
-							biggestParticle, 0, d, true);
+						&& particleLabels.get(z, offset) != biggestParticle) {
+					pc.replaceLabel(particleLabels,
+							particleLabels.get(z, offset), biggestParticle, 0,
+							d, true);
 				}
 			}
 		}
@@ -307,7 +322,7 @@ public class Purify implements PlugIn, DialogListener {
 	 * @return workArray
 	 */
 	private void removeSmallParticles(final byte[][] workArray,
-			final int[][] particleLabels, final long[] particleSizes,
+			final LabelVolume particleLabels, final long[] particleSizes,
 			final int phase) {
 		final int d = workArray.length;
 		final int wh = workArray[0].length;
@@ -326,14 +341,16 @@ public class Purify implements PlugIn, DialogListener {
 		for (int thread = 0; thread < threads.length; thread++) {
 			threads[thread] = new Thread(new Runnable() {
 				public void run() {
+					int[] slice = new int[wh];
 					if (phase == fg) {
 						// go through work array and turn all
 						// smaller foreground particles into background (0)
 						for (int z = ai.getAndIncrement(); z < d; z = ai
 								.getAndIncrement()) {
+							slice = particleLabels.getSlice(z, slice);
 							for (int i = 0; i < wh; i++) {
 								if (workArray[z][i] == fg) {
-									if (particleSizes[particleLabels[z][i]] < maxVoxCount) {
+									if (particleSizes[slice[i]] < maxVoxCount) {
 										workArray[z][i] = bg;
 									}
 								}
@@ -346,9 +363,10 @@ public class Purify implements PlugIn, DialogListener {
 						// smaller background particles into foreground
 						for (int z = ai.getAndIncrement(); z < d; z = ai
 								.getAndIncrement()) {
+							slice = particleLabels.getSlice(z, slice);
 							for (int i = 0; i < wh; i++) {
 								if (workArray[z][i] == bg) {
-									if (particleSizes[particleLabels[z][i]] < maxVoxCount) {
+									if (particleSizes[slice[i]] < maxVoxCount) {
 										workArray[z][i] = fg;
 									}
 								}
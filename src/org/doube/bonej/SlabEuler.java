@@ -0,0 +1,265 @@
+package org.doube.bonej;
+
+/**
+ * SlabEuler Copyright 2026 agent
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.doube.bonej.Connectivity.PartialEuler;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+/**
+ * <p>
+ * Find the Euler characteristic and &#916;&#967; of a stack in slabs of
+ * vertex planes, handing the slabs out to workers and adding up their
+ * {@link PartialEuler}s. A {@link ProcessWorker} runs each slab in its own
+ * JVM on a virtual stack, so that stacks too large for one heap can be
+ * measured; an {@link InProcessWorker} does the same work in this JVM.
+ * </p>
+ * <p>
+ * The sum over all slabs is exactly the value that
+ * {@link Connectivity#getSumEuler(ImagePlus)} and
+ * {@link Connectivity#getDeltaChi(ImagePlus)} return for the whole stack.
+ * </p>
+ *
+ * @author agent
+ */
+public class SlabEuler {
+
+	/**
+	 * Measures a range of vertex planes of a stack
+	 */
+	public interface Worker {
+		/**
+		 * @param zStart
+		 *            first vertex plane
+		 * @param zEnd
+		 *            1 + last vertex plane
+		 * @return result for the vertex planes
+		 */
+		public PartialEuler getSumEuler(int zStart, int zEnd);
+	}
+
+	/**
+	 * Measures slabs of an image that is already open in this JVM
+	 */
+	public static class InProcessWorker implements Worker {
+		private final ImagePlus imp;
+
+		public InProcessWorker(ImagePlus imp) {
+			this.imp = imp;
+		}
+
+		public PartialEuler getSumEuler(int zStart, int zEnd) {
+			return new Connectivity().getSumEuler(imp, zStart, zEnd);
+		}
+	}
+
+	/**
+	 * Measures each slab in a new JVM, which opens the image file as a virtual
+	 * stack and runs {@link SlabEuler#main(String[])}
+	 */
+	public static class ProcessWorker implements Worker {
+		private final String path;
+		private final String maxHeap;
+
+		/**
+		 * @param path
+		 *            binary image file that IJ.openVirtual() can read
+		 * @param maxHeap
+		 *            heap size for the worker JVM, e.g. "2g", or null for the
+		 *            JVM's default
+		 */
+		public ProcessWorker(String path, String maxHeap) {
+			this.path = path;
+			this.maxHeap = maxHeap;
+		}
+
+		public PartialEuler getSumEuler(int zStart, int zEnd) {
+			List<String> command = new ArrayList<String>();
+			command.add(System.getProperty("java.home") + File.separator
+					+ "bin" + File.separator + "java");
+			if (maxHeap != null)
+				command.add("-Xmx" + maxHeap);
+			command.add("-Djava.awt.headless=true");
+			command.add("-cp");
+			command.add(getClassPath());
+			command.add(SlabEuler.class.getName());
+			command.add(path);
+			command.add(Integer.toString(zStart));
+			command.add(Integer.toString(zEnd));
+			ProcessBuilder pb = new ProcessBuilder(command);
+			pb.redirectErrorStream(true);
+			String output = "";
+			String lastLine = null;
+			int exitValue;
+			try {
+				Process process = pb.start();
+				BufferedReader reader = new BufferedReader(
+						new InputStreamReader(process.getInputStream()));
+				String line;
+				while ((line = reader.readLine()) != null) {
+					output += line + "\n";
+					lastLine = line;
+				}
+				reader.close();
+				exitValue = process.waitFor();
+			} catch (IOException e) {
+				throw new RuntimeException("Could not run Euler worker", e);
+			} catch (InterruptedException e) {
+				throw new RuntimeException("Euler worker was interrupted", e);
+			}
+			if (exitValue != 0 || lastLine == null)
+				throw new RuntimeException("Euler worker failed on planes "
+						+ zStart + "-" + zEnd + ":\n" + output);
+			return PartialEuler.parse(lastLine);
+		}
+
+		/**
+		 * @return class path holding this class and ImageJ
+		 */
+		private static String getClassPath() {
+			String classPath = getLocation(SlabEuler.class);
+			String ijPath = getLocation(IJ.class);
+			if (!ijPath.equals(classPath))
+				classPath += File.pathSeparator + ijPath;
+			return classPath;
+		}
+
+		private static String getLocation(Class<?> c) {
+			try {
+				return new File(c.getProtectionDomain().getCodeSource()
+						.getLocation().toURI()).getPath();
+			} catch (Exception e) {
+				return System.getProperty("java.class.path");
+			}
+		}
+	}
+
+	/**
+	 * Measure a whole stack in slabs, running the workers at the same time
+	 * and giving each the next unmeasured slab when it is done
+	 *
+	 * @param workers
+	 *            one per concurrent slab
+	 * @param depth
+	 *            number of slices in the stack
+	 * @param planesPerSlab
+	 *            number of vertex planes in each slab
+	 * @return sum of the slabs' results
+	 */
+	public static PartialEuler getSumEuler(final Worker[] workers,
+			int depth, final int planesPerSlab) {
+		final int nPlanes = depth + 1;
+		final int nSlabs = (nPlanes + planesPerSlab - 1) / planesPerSlab;
+		final PartialEuler[] results = new PartialEuler[nSlabs];
+		final RuntimeException[] failure = new RuntimeException[1];
+		final AtomicInteger ai = new AtomicInteger(0);
+		Thread[] threads = new Thread[workers.length];
+		for (int thread = 0; thread < threads.length; thread++) {
+			final Worker worker = workers[thread];
+			threads[thread] = new Thread(new Runnable() {
+				public void run() {
+					for (int slab = ai.getAndIncrement(); slab < nSlabs;
+							slab = ai.getAndIncrement()) {
+						final int zStart = slab * planesPerSlab;
+						final int zEnd = Math.min(nPlanes, zStart
+								+ planesPerSlab);
+						try {
+							results[slab] = worker.getSumEuler(zStart, zEnd);
+						} catch (RuntimeException e) {
+							synchronized (failure) {
+								failure[0] = e;
+							}
+							return;
+						}
+					}
+				}
+			});
+			threads[thread].start();
+		}
+		try {
+			for (int thread = 0; thread < threads.length; thread++)
+				threads[thread].join();
+		} catch (InterruptedException ie) {
+			throw new RuntimeException(ie);
+		}
+		if (failure[0] != null)
+			throw failure[0];
+		PartialEuler sum = new PartialEuler(0, 0);
+		for (PartialEuler result : results)
+			sum = sum.add(result);
+		return sum;
+	}
+
+	/**
+	 * Measure an image file in slabs, each in a worker JVM
+	 *
+	 * @param path
+	 *            binary image file that IJ.openVirtual() can read
+	 * @param nWorkers
+	 *            number of worker JVMs to run at once
+	 * @param planesPerSlab
+	 *            number of vertex planes in each slab
+	 * @param maxHeap
+	 *            heap size for each worker, e.g. "2g", or null
+	 * @return Euler characteristic and edge correction of the whole stack
+	 */
+	public static PartialEuler getSumEuler(String path, int nWorkers,
+			int planesPerSlab, String maxHeap) {
+		ImagePlus imp = IJ.openVirtual(path);
+		if (imp == null)
+			throw new IllegalArgumentException("Could not open " + path);
+		final int depth = imp.getStackSize();
+		imp.close();
+		Worker[] workers = new Worker[nWorkers];
+		for (int i = 0; i < nWorkers; i++)
+			workers[i] = new ProcessWorker(path, maxHeap);
+		return getSumEuler(workers, depth, planesPerSlab);
+	}
+
+	/**
+	 * Worker entry point: print the PartialEuler of a range of vertex planes
+	 * of an image file
+	 *
+	 * @param args
+	 *            image path, first vertex plane and 1 + last vertex plane
+	 */
+	public static void main(String[] args) {
+		if (args.length != 3) {
+			System.err.println("Usage: SlabEuler <path> <zStart> <zEnd>");
+			System.exit(2);
+		}
+		ImagePlus imp = IJ.openVirtual(args[0]);
+		if (imp == null) {
+			System.err.println("Could not open " + args[0]);
+			System.exit(1);
+		}
+		PartialEuler result = new Connectivity().getSumEuler(imp,
+				Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+		System.out.println(result);
+		System.exit(0);
+	}
+}
@@ -2,14 +2,18 @@ package org.doube.bonej;
 
 import ij.*;
 import ij.gui.GenericDialog;
-import ij.macro.Interpreter;
+import ij.measure.ResultsTable;
 import ij.plugin.PlugIn;
 import ij.plugin.frame.RoiManager;
 import ij.process.*;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.doube.util.ImageCheck;
+import org.doube.util.MappedFloatStack;
 import org.doube.util.ResultInserter;
 import org.doube.util.RoiMan;
+import org.doube.util.RunningStats;
 import org.doube.util.StackStats;
 import org.doube.util.UsageReporter;
 
@@ -71,6 +75,10 @@ import org.doube.util.UsageReporter;
 public class Thickness implements PlugIn {
 	// public static final int THRESHOLD = 128;
 	private float[][] sNew;
+	/** number of bins in statistics-only histograms */
+	private static final int HISTOGRAM_BINS = 256;
+	/** calculate maps a block of slices at a time */
+	private boolean lowMemory = false;
 
 	public void run(String arg) {
 		ImageCheck ic = new ImageCheck();
@@ -98,6 +106,8 @@ public class Thickness implements PlugIn {
 		gd.addCheckbox("Spacing", false);
 		gd.addCheckbox("Graphic Result", true);
 		gd.addCheckbox("Use_ROI_Manager", false);
+		gd.addCheckbox("Low_memory (slower)", false);
+		gd.addCheckbox("Histogram (without graphic result)", false);
 		gd.addHelp("http://bonej.org/thickness");
 		gd.showDialog();
 		if (gd.wasCanceled()) {
@@ -107,28 +117,42 @@ public class Thickness implements PlugIn {
 		boolean doSpacing = gd.getNextBoolean();
 		boolean doGraphic = gd.getNextBoolean();
 		boolean doRoi = gd.getNextBoolean();
+		lowMemory = gd.getNextBoolean();
+		boolean doHistogram = gd.getNextBoolean();
 
 		long startTime = System.currentTimeMillis();
 		String title = stripExtension(imp.getTitle());
 
 		RoiManager roiMan = RoiManager.getInstance();
+		// calculate both maps together when they share one source image
+		ImagePlus[] maps = new ImagePlus[2];
+		if (doThickness && doSpacing && doGraphic && !lowMemory
+				&& !(doRoi && roiMan != null))
+			maps = getLocalThicknessMaps(imp);
 		// calculate trabecular thickness (Tb.Th)
 		if (doThickness) {
 			boolean inverse = false;
-			ImagePlus impLTC = new ImagePlus();
+			ImagePlus source = imp;
 			if (doRoi && roiMan != null) {
 				ImageStack stack = RoiMan.cropStack(roiMan, imp.getStack(),
 						true, 0, 1);
-				ImagePlus crop = new ImagePlus(imp.getTitle(), stack);
-				crop.setCalibration(imp.getCalibration());
-				impLTC = getLocalThickness(crop, inverse);
-			} else
-				impLTC = getLocalThickness(imp, inverse);
-			impLTC.setTitle(title + "_Tb.Th");
-			impLTC.setCalibration(imp.getCalibration());
-			double[] stats = StackStats.meanStdDev(impLTC);
-			insertResults(imp, stats, inverse);
-			if (doGraphic && !Interpreter.isBatchMode()) {
+				source = new ImagePlus(imp.getTitle(), stack);
+				source.setCalibration(imp.getCalibration());
+			}
+			if (!doGraphic) {
+				// no map to show, so keep only its statistics
+				RunningStats stats = getLocalThicknessStats(source, inverse,
+						0, HISTOGRAM_BINS);
+				insertResults(imp, stats.getStats(), inverse);
+				if (doHistogram)
+					showHistogram(imp, title + "_Tb.Th", stats);
+			} else {
+				ImagePlus impLTC = (maps[0] != null) ? maps[0] : getMap(
+						source, inverse);
+				impLTC.setTitle(title + "_Tb.Th");
+				impLTC.setCalibration(imp.getCalibration());
+				double[] stats = StackStats.meanStdDev(impLTC);
+				insertResults(imp, stats, inverse);
 				impLTC.show();
 				impLTC.setSlice(1);
 				impLTC.getProcessor().setMinAndMax(0, stats[2]);
@@ -137,21 +161,27 @@ public class Thickness implements PlugIn {
 		}
 		if (doSpacing) {
 			boolean inverse = true;
-			ImagePlus impLTCi = new ImagePlus();
+			ImagePlus source = imp;
 			if (doRoi && roiMan != null) {
 				ImageStack stack = RoiMan.cropStack(roiMan, imp.getStack(),
 						true, 255, 1);
-				ImagePlus crop = new ImagePlus(imp.getTitle(), stack);
-				crop.setCalibration(imp.getCalibration());
-				impLTCi = getLocalThickness(crop, inverse);
-			} else
-				impLTCi = getLocalThickness(imp, inverse);
-			// check marrow cavity size (i.e. trabcular separation, Tb.Sp)
-			impLTCi.setTitle(title + "_Tb.Sp");
-			impLTCi.setCalibration(imp.getCalibration());
-			double[] stats = StackStats.meanStdDev(impLTCi);
-			insertResults(imp, stats, inverse);
-			if (doGraphic && !Interpreter.isBatchMode()) {
+				source = new ImagePlus(imp.getTitle(), stack);
+				source.setCalibration(imp.getCalibration());
+			}
+			if (!doGraphic) {
+				RunningStats stats = getLocalThicknessStats(source, inverse,
+						0, HISTOGRAM_BINS);
+				insertResults(imp, stats.getStats(), inverse);
+				if (doHistogram)
+					showHistogram(imp, title + "_Tb.Sp", stats);
+			} else {
+				ImagePlus impLTCi = (maps[1] != null) ? maps[1] : getMap(
+						source, inverse);
+				// check marrow cavity size (i.e. trabcular separation, Tb.Sp)
+				impLTCi.setTitle(title + "_Tb.Sp");
+				impLTCi.setCalibration(imp.getCalibration());
+				double[] stats = StackStats.meanStdDev(impLTCi);
+				insertResults(imp, stats, inverse);
 				impLTCi.show();
 				impLTCi.setSlice(1);
 				impLTCi.getProcessor().setMinAndMax(0, stats[2]);
@@ -167,6 +197,34 @@ public class Thickness implements PlugIn {
 		return;
 	}
 
+	/**
+	 * Show a histogram of local thickness in a results table
+	 * 
+	 * @param imp
+	 *            image whose calibration gives the units
+	 * @param title
+	 *            table title
+	 * @param stats
+	 */
+	private void showHistogram(ImagePlus imp, String title, RunningStats stats) {
+		final String units = imp.getCalibration().getUnits();
+		final double binWidth = stats.getBinWidth();
+		long[] histogram = stats.getHistogram();
+		ResultsTable rt = new ResultsTable();
+		for (int i = 0; i < histogram.length; i++) {
+			rt.incrementCounter();
+			rt.addValue("Bin start (" + units + ")", i * binWidth);
+			rt.addValue("Count", histogram[i]);
+		}
+		rt.show(title + "_histogram");
+	}
+
+	private ImagePlus getMap(ImagePlus imp, boolean inverse) {
+		if (lowMemory)
+			return getLocalThicknessInBlocks(imp, inverse, 0);
+		return getLocalThickness(imp, inverse);
+	}
+
 	// Modified from ImageJ code by Wayne Rasband
 	String stripExtension(String name) {
 		if (name != null) {
@@ -208,6 +266,7 @@ public class Thickness implements PlugIn {
 		final int w = imp.getWidth();
 		final int h = imp.getHeight();
 		final int d = imp.getStackSize();
+		final int noResult = getNoResult(w, h, d);
 		int nThreads = Runtime.getRuntime().availableProcessors();
 
 		// Create references to input data
@@ -216,20 +275,17 @@ public class Thickness implements PlugIn {
 		for (int k = 0; k < d; k++)
 			data[k] = (byte[]) stack.getPixels(k + 1);
 
-		// Create 32 bit floating point stack for output, s. Will also use it
+		// Create an integer stack of squared distances, sq. Will also use it
 		// for g in Transformation 1.
-		float[][] s = new float[d][];
-		for (int k = 0; k < d; k++) {
-			ImageProcessor ipk = new FloatProcessor(w, h);
-			s[k] = (float[]) ipk.getPixels();
-		}
-		float[] sk;
-		// Transformation 1. Use s to store g.
+		final int wh = w * h;
+		int[][] sq = new int[d][wh];
+		// Transformation 1. Use sq to store g.
 		IJ.showStatus("EDT transformation 1/3");
+		AtomicInteger next = new AtomicInteger(0);
 		Step1Thread[] s1t = new Step1Thread[nThreads];
 		for (int thread = 0; thread < nThreads; thread++) {
-			s1t[thread] = new Step1Thread(thread, nThreads, w, h, d, inv, s,
-					data);
+			s1t[thread] = new Step1Thread(next, getChunk(d, nThreads), w, h,
+					d, inv, sq, data, noResult);
 			s1t[thread].start();
 		}
 		try {
@@ -239,11 +295,13 @@ public class Thickness implements PlugIn {
 		} catch (InterruptedException ie) {
 			IJ.error("A thread was interrupted in step 1 .");
 		}
-		// Transformation 2. g (in s) -> h (in s)
+		// Transformation 2. g (in sq) -> h (in sq)
 		IJ.showStatus("EDT transformation 2/3");
+		next.set(0);
 		Step2Thread[] s2t = new Step2Thread[nThreads];
 		for (int thread = 0; thread < nThreads; thread++) {
-			s2t[thread] = new Step2Thread(thread, nThreads, w, h, d, s);
+			s2t[thread] = new Step2Thread(next, getChunk(d, nThreads), w, h,
+					d, sq, noResult);
 			s2t[thread].start();
 		}
 		try {
@@ -253,12 +311,13 @@ public class Thickness implements PlugIn {
 		} catch (InterruptedException ie) {
 			IJ.error("A thread was interrupted in step 2 .");
 		}
-		// Transformation 3. h (in s) -> s
+		// Transformation 3. h (in sq) -> sq
 		IJ.showStatus("EDT transformation 3/3");
+		next.set(0);
 		Step3Thread[] s3t = new Step3Thread[nThreads];
 		for (int thread = 0; thread < nThreads; thread++) {
-			s3t[thread] = new Step3Thread(thread, nThreads, w, h, d, inv, s,
-					data);
+			s3t[thread] = new Step3Thread(next, getChunk(h, nThreads), w, h,
+					d, inv, sq, data, noResult);
 			s3t[thread].start();
 		}
 		try {
@@ -268,38 +327,171 @@ public class Thickness implements PlugIn {
 		} catch (InterruptedException ie) {
 			IJ.error("A thread was interrupted in step 3 .");
 		}
+		// Take square roots into the 32-bit output stack, s, releasing each
+		// slice of squared distances as it is done.
 		// Find the largest distance for scaling
 		// Also fill in the background values.
+		float[][] s = new float[d][];
 		float distMax = 0;
-		final int wh = w * h;
 		float dist;
 		for (int k = 0; k < d; k++) {
-			sk = s[k];
+			final int[] sqk = sq[k];
+			final float[] sk = new float[wh];
 			for (int ind = 0; ind < wh; ind++) {
 				if (((data[k][ind] & 255) < 128) ^ inv) {
 					sk[ind] = 0;
 				} else {
-					dist = (float) Math.sqrt(sk[ind]);
+					dist = (float) Math.sqrt(sqk[ind]);
 					sk[ind] = dist;
 					distMax = (dist > distMax) ? dist : distMax;
 				}
 			}
+			s[k] = sk;
+			sq[k] = null;
 		}
 		IJ.showProgress(1.0);
 		IJ.showStatus("Done");
 		return s;
 	}
 
+	/**
+	 * Distance maps of both phases, as geometryToDistanceMap(imp, false) and
+	 * geometryToDistanceMap(imp, true) would give. Transformation 1 scans each
+	 * row of the input once for both phases and transformation 2 runs over
+	 * the slices of both maps in one pass.
+	 * 
+	 * @param imp
+	 *            8-bit (binary) ImagePlus
+	 * @return distance maps of the foreground (index 0) and background (index
+	 *         1)
+	 */
+	private float[][][] geometryToDistanceMaps(ImagePlus imp) {
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int d = imp.getStackSize();
+		final int noResult = getNoResult(w, h, d);
+		int nThreads = Runtime.getRuntime().availableProcessors();
+
+		ImageStack stack = imp.getStack();
+		byte[][] data = new byte[d][];
+		for (int k = 0; k < d; k++)
+			data[k] = (byte[]) stack.getPixels(k + 1);
+
+		// squared distances of the foreground followed by the background
+		final int wh = w * h;
+		int[][] both = new int[2 * d][wh];
+		int[][][] sq = new int[2][d][];
+		for (int k = 0; k < d; k++) {
+			sq[0][k] = both[k];
+			sq[1][k] = both[d + k];
+		}
+		IJ.showStatus("EDT transformation 1/3");
+		AtomicInteger next = new AtomicInteger(0);
+		Step1Thread[] s1t = new Step1Thread[nThreads];
+		for (int thread = 0; thread < nThreads; thread++) {
+			s1t[thread] = new Step1Thread(next, getChunk(d, nThreads), w, h,
+					d, false, sq[0], sq[1], data, noResult);
+			s1t[thread].start();
+		}
+		try {
+			for (int thread = 0; thread < nThreads; thread++) {
+				s1t[thread].join();
+			}
+		} catch (InterruptedException ie) {
+			IJ.error("A thread was interrupted in step 1 .");
+		}
+		IJ.showStatus("EDT transformation 2/3");
+		next.set(0);
+		Step2Thread[] s2t = new Step2Thread[nThreads];
+		for (int thread = 0; thread < nThreads; thread++) {
+			s2t[thread] = new Step2Thread(next, getChunk(2 * d, nThreads), w,
+					h, 2 * d, both, noResult);
+			s2t[thread].start();
+		}
+		try {
+			for (int thread = 0; thread < nThreads; thread++) {
+				s2t[thread].join();
+			}
+		} catch (InterruptedException ie) {
+			IJ.error("A thread was interrupted in step 2 .");
+		}
+		both = null;
+		IJ.showStatus("EDT transformation 3/3");
+		AtomicInteger nextFore = new AtomicInteger(0);
+		AtomicInteger nextBack = new AtomicInteger(0);
+		Step3Thread[] s3t = new Step3Thread[2 * nThreads];
+		for (int thread = 0; thread < nThreads; thread++) {
+			s3t[thread] = new Step3Thread(nextFore, getChunk(h, nThreads), w,
+					h, d, false, sq[0], data, noResult);
+			s3t[nThreads + thread] = new Step3Thread(nextBack, getChunk(h,
+					nThreads), w, h, d, true, sq[1], data, noResult);
+		}
+		for (int thread = 0; thread < 2 * nThreads; thread++)
+			s3t[thread].start();
+		try {
+			for (int thread = 0; thread < 2 * nThreads; thread++) {
+				s3t[thread].join();
+			}
+		} catch (InterruptedException ie) {
+			IJ.error("A thread was interrupted in step 3 .");
+		}
+		// Take square roots and fill in the background values of both maps
+		float[][][] s = new float[2][d][];
+		for (int k = 0; k < d; k++) {
+			final byte[] dk = data[k];
+			final int[] sqForeK = sq[0][k];
+			final int[] sqBackK = sq[1][k];
+			final float[] foreK = new float[wh];
+			final float[] backK = new float[wh];
+			for (int ind = 0; ind < wh; ind++) {
+				if ((dk[ind] & 255) < 128)
+					backK[ind] = (float) Math.sqrt(sqBackK[ind]);
+				else
+					foreK[ind] = (float) Math.sqrt(sqForeK[ind]);
+			}
+			s[0][k] = foreK;
+			s[1][k] = backK;
+			sq[0][k] = null;
+			sq[1][k] = null;
+		}
+		IJ.showProgress(1.0);
+		IJ.showStatus("Done");
+		return s;
+	}
+
+	/**
+	 * @return number of slices or rows for a thread to take at a time: small
+	 *         enough that threads finishing early can take more work, large
+	 *         enough that they seldom contend for the counter
+	 */
+	private static int getChunk(int n, int nThreads) {
+		return Math.max(1, n / (8 * nThreads));
+	}
+
 	class Step1Thread extends Thread {
-		int thread, nThreads, w, h, d, thresh;
-		float[][] s;
+		int w, h, d, chunk, noResult;
+		AtomicInteger next;
+		int[][] s, sInv;
 		byte[][] data;
 		boolean inv;
 
-		public Step1Thread(int thread, int nThreads, int w, int h, int d,
-				boolean inv, float[][] s, byte[][] data) {
-			this.thread = thread;
-			this.nThreads = nThreads;
+		public Step1Thread(AtomicInteger next, int chunk, int w, int h, int d,
+				boolean inv, int[][] s, byte[][] data, int noResult) {
+			this(next, chunk, w, h, d, inv, s, null, data, noResult);
+		}
+
+		/**
+		 * @param sInv
+		 *            output for the opposite phase, filled from the same scan
+		 *            of each row, or null
+		 */
+		public Step1Thread(AtomicInteger next, int chunk, int w, int h, int d,
+				boolean inv, int[][] s, int[][] sInv, byte[][] data,
+				int noResult) {
+			this.next = next;
+			this.chunk = chunk;
+			this.sInv = sInv;
+			this.noResult = noResult;
 			this.w = w;
 			this.h = h;
 			this.d = d;
@@ -313,58 +505,74 @@ public class Thickness implements PlugIn {
 			final int height = this.h;
 			final int depth = this.d;
 			final boolean inverse = inv;
-			float[] sk;
-			int n = width;
-			if (height > n)
-				n = height;
-			if (depth > n)
-				n = depth;
-			int noResult = 3 * (n + 1) * (n + 1);
-			boolean[] background = new boolean[n];
-			int test, min;
-			for (int k = thread; k < depth; k += nThreads) {
-				IJ.showProgress(k / (1. * depth));
-				sk = s[k];
-				final byte[] dk = data[k];
-				for (int j = 0; j < height; j++) {
-					final int wj = width * j;
-					for (int i = 0; i < width; i++) {
-						background[i] = ((dk[i + wj] & 255) < 128) ^ inverse;
-					}
-					for (int i = 0; i < width; i++) {
-						min = noResult;
-						for (int x = i; x < width; x++) {
-							if (background[x]) {
-								test = i - x;
-								test *= test;
-								min = test;
-								break;
-							}
-						}
-						for (int x = i - 1; x >= 0; x--) {
-							if (background[x]) {
-								test = i - x;
-								test *= test;
-								if (test < min)
-									min = test;
-								break;
-							}
+			int[] sk;
+			boolean[] background = new boolean[width];
+			for (int k0 = next.getAndAdd(chunk); k0 < depth; k0 = next
+					.getAndAdd(chunk)) {
+				IJ.showProgress(k0 / (1. * depth));
+				final int k1 = Math.min(depth, k0 + chunk);
+				for (int k = k0; k < k1; k++) {
+					sk = s[k];
+					final int[] sInvK = (sInv == null) ? null : sInv[k];
+					final byte[] dk = data[k];
+					for (int j = 0; j < height; j++) {
+						final int wj = width * j;
+						for (int i = 0; i < width; i++) {
+							background[i] = ((dk[i + wj] & 255) < 128)
+									^ inverse;
 						}
-						sk[i + wj] = min;
+						for (int i = 0; i < width; i++)
+							sk[i + wj] = rowDistance(background, true, i,
+									width);
+						// the other phase's background is this phase's
+						// foreground
+						if (sInvK != null)
+							for (int i = 0; i < width; i++)
+								sInvK[i + wj] = rowDistance(background, false,
+										i, width);
 					}
 				}
 			}
 		}// run
+
+		/**
+		 * @return squared distance from i to the nearest x in the row where
+		 *         background[x] == target, or noResult if there is none
+		 */
+		private int rowDistance(boolean[] background, boolean target, int i,
+				int width) {
+			int test, min = noResult;
+			for (int x = i; x < width; x++) {
+				if (background[x] == target) {
+					test = i - x;
+					test *= test;
+					min = test;
+					break;
+				}
+			}
+			for (int x = i - 1; x >= 0; x--) {
+				if (background[x] == target) {
+					test = i - x;
+					test *= test;
+					if (test < min)
+						min = test;
+					break;
+				}
+			}
+			return min;
+		}
 	}// Step1Thread
 
 	class Step2Thread extends Thread {
-		int thread, nThreads, w, h, d;
-		float[][] s;
+		int w, h, d, chunk, noResult;
+		AtomicInteger next;
+		int[][] s;
 
-		public Step2Thread(int thread, int nThreads, int w, int h, int d,
-				float[][] s) {
-			this.thread = thread;
-			this.nThreads = nThreads;
+		public Step2Thread(AtomicInteger next, int chunk, int w, int h, int d,
+				int[][] s, int noResult) {
+			this.next = next;
+			this.chunk = chunk;
+			this.noResult = noResult;
 			this.w = w;
 			this.h = h;
 			this.d = d;
@@ -375,40 +583,38 @@ public class Thickness implements PlugIn {
 			final int width = this.w;
 			final int height = this.h;
 			final int depth = this.d;
-			float[] sk;
-			int n = width;
-			if (height > n)
-				n = height;
-			if (depth > n)
-				n = depth;
-			int noResult = 3 * (n + 1) * (n + 1);
-			int[] tempInt = new int[n];
-			int[] tempS = new int[n];
+			int[] sk;
+			int[] tempInt = new int[height];
+			int[] tempS = new int[height];
 			boolean nonempty;
 			int test, min, delta;
-			for (int k = thread; k < depth; k += nThreads) {
-				IJ.showProgress(k / (1. * depth));
-				sk = s[k];
-				for (int i = 0; i < width; i++) {
-					nonempty = false;
-					for (int j = 0; j < height; j++) {
-						tempS[j] = (int) sk[i + width * j];
-						if (tempS[j] > 0)
-							nonempty = true;
-					}
-					if (nonempty) {
+			for (int k0 = next.getAndAdd(chunk); k0 < depth; k0 = next
+					.getAndAdd(chunk)) {
+				IJ.showProgress(k0 / (1. * depth));
+				final int k1 = Math.min(depth, k0 + chunk);
+				for (int k = k0; k < k1; k++) {
+					sk = s[k];
+					for (int i = 0; i < width; i++) {
+						nonempty = false;
 						for (int j = 0; j < height; j++) {
-							min = noResult;
-							delta = j;
-							for (int y = 0; y < height; y++) {
-								test = tempS[y] + delta * delta--;
-								if (test < min)
-									min = test;
-							}
-							tempInt[j] = min;
+							tempS[j] = sk[i + width * j];
+							if (tempS[j] > 0)
+								nonempty = true;
 						}
-						for (int j = 0; j < height; j++) {
-							sk[i + width * j] = tempInt[j];
+						if (nonempty) {
+							for (int j = 0; j < height; j++) {
+								min = noResult;
+								delta = j;
+								for (int y = 0; y < height; y++) {
+									test = tempS[y] + delta * delta--;
+									if (test < min)
+										min = test;
+								}
+								tempInt[j] = min;
+							}
+							for (int j = 0; j < height; j++) {
+								sk[i + width * j] = tempInt[j];
+							}
 						}
 					}
 				}
@@ -417,15 +623,17 @@ public class Thickness implements PlugIn {
 	}// Step2Thread
 
 	class Step3Thread extends Thread {
-		int thread, nThreads, w, h, d;
-		float[][] s;
+		int w, h, d, chunk, noResult;
+		AtomicInteger next;
+		int[][] s;
 		byte[][] data;
 		boolean inv;
 
-		public Step3Thread(int thread, int nThreads, int w, int h, int d,
-				boolean inv, float[][] s, byte[][] data) {
-			this.thread = thread;
-			this.nThreads = nThreads;
+		public Step3Thread(AtomicInteger next, int chunk, int w, int h, int d,
+				boolean inv, int[][] s, byte[][] data, int noResult) {
+			this.next = next;
+			this.chunk = chunk;
+			this.noResult = noResult;
 			this.w = w;
 			this.h = h;
 			this.d = d;
@@ -441,61 +649,59 @@ public class Thickness implements PlugIn {
 			final byte[][] daTa = this.data;
 			final boolean inverse = inv;
 			int zStart, zStop, zBegin, zEnd;
-			// float[] sk;
-			int n = width;
-			if (height > n)
-				n = height;
-			if (depth > n)
-				n = depth;
-			int noResult = 3 * (n + 1) * (n + 1);
-			int[] tempInt = new int[n];
-			int[] tempS = new int[n];
+			int[] tempInt = new int[depth];
+			int[] tempS = new int[depth];
 			boolean nonempty;
 			int test, min, delta;
-			for (int j = thread; j < height; j += nThreads) {
-				final int wj = width * j;
-				IJ.showProgress(j / (1. * height));
-				for (int i = 0; i < width; i++) {
-					nonempty = false;
-					for (int k = 0; k < depth; k++) {
-						tempS[k] = (int) s[k][i + wj];
-						if (tempS[k] > 0)
-							nonempty = true;
-					}
-					if (nonempty) {
-						zStart = 0;
-						while ((zStart < (depth - 1)) && (tempS[zStart] == 0))
-							zStart++;
-						if (zStart > 0)
-							zStart--;
-						zStop = depth - 1;
-						while ((zStop > 0) && (tempS[zStop] == 0))
-							zStop--;
-						if (zStop < (depth - 1))
-							zStop++;
-
+			for (int j0 = next.getAndAdd(chunk); j0 < height; j0 = next
+					.getAndAdd(chunk)) {
+				IJ.showProgress(j0 / (1. * height));
+				final int j1 = Math.min(height, j0 + chunk);
+				for (int j = j0; j < j1; j++) {
+					final int wj = width * j;
+					for (int i = 0; i < width; i++) {
+						nonempty = false;
 						for (int k = 0; k < depth; k++) {
-							// Limit to the non-background to save time,
-							if (((daTa[k][i + wj] & 255) >= 128) ^ inverse) {
-								min = noResult;
-								zBegin = zStart;
-								zEnd = zStop;
-								if (zBegin > k)
-									zBegin = k;
-								if (zEnd < k)
-									zEnd = k;
-								delta = k - zBegin;
-								for (int z = zBegin; z <= zEnd; z++) {
-									test = tempS[z] + delta * delta--;
-									if (test < min)
-										min = test;
-									// min = (test < min) ? test : min;
+							tempS[k] = s[k][i + wj];
+							if (tempS[k] > 0)
+								nonempty = true;
+						}
+						if (nonempty) {
+							zStart = 0;
+							while ((zStart < (depth - 1))
+									&& (tempS[zStart] == 0))
+								zStart++;
+							if (zStart > 0)
+								zStart--;
+							zStop = depth - 1;
+							while ((zStop > 0) && (tempS[zStop] == 0))
+								zStop--;
+							if (zStop < (depth - 1))
+								zStop++;
+
+							for (int k = 0; k < depth; k++) {
+								// Limit to the non-background to save time,
+								if (((daTa[k][i + wj] & 255) >= 128)
+										^ inverse) {
+									min = noResult;
+									zBegin = zStart;
+									zEnd = zStop;
+									if (zBegin > k)
+										zBegin = k;
+									if (zEnd < k)
+										zEnd = k;
+									delta = k - zBegin;
+									for (int z = zBegin; z <= zEnd; z++) {
+										test = tempS[z] + delta * delta--;
+										if (test < min)
+											min = test;
+									}
+									tempInt[k] = min;
 								}
-								tempInt[k] = min;
 							}
-						}
-						for (int k = 0; k < depth; k++) {
-							s[k][i + wj] = tempInt[k];
+							for (int k = 0; k < depth; k++) {
+								s[k][i + wj] = tempInt[k];
+							}
 						}
 					}
 				}
@@ -531,13 +737,17 @@ public class Thickness implements PlugIn {
 	 * <li>Version 3.1 Oct. 1, 2006. Faster scanning of search points.</li>
 	 * </ul>
 	 * 
-	 * @param imp
-	 *            3D Distance map (32-bit stack)
+	 * @param w
+	 *            stack width
+	 * @param h
+	 *            stack height
+	 * @param s
+	 *            3D Distance map, one float[w * h] per slice
+	 * @return distance ridge
 	 */
-	private void distanceMaptoDistanceRidge(ImagePlus imp, float[][] s) {
-		final int w = imp.getWidth();
-		final int h = imp.getHeight();
-		final int d = imp.getStackSize();
+	private float[][] distanceMaptoDistanceRidge(int w, int h, float[][] s) {
+		final long startTime = System.currentTimeMillis();
+		final int d = s.length;
 		sNew = new float[d][];
 		for (int k = 0; k < d; k++) {
 			ImageProcessor ipk = new FloatProcessor(w, h);
@@ -607,7 +817,7 @@ public class Thickness implements PlugIn {
 		for (int k = 0; k < d; k++) {
 			IJ.showStatus("Distance Ridge: processing slice " + (k + 1) + "/"
 					+ d);
-			// IJ.showProgress(k/(1.*d));
+			IJ.showProgress(k, d);
 			sk = s[k];
 			skNew = sNew[k];
 			for (int j = 0; j < h; j++) {
@@ -672,9 +882,10 @@ public class Thickness implements PlugIn {
 				}// i
 			}// j
 		}// k
-		IJ.showStatus("Distance Ridge complete");
-		// replace work array s with result of the method, sNew
-		s = sNew;
+		IJ.showStatus("Distance Ridge complete in "
+				+ IJ.d2s((System.currentTimeMillis() - startTime) / 1000.0, 3)
+				+ " s");
+		return sNew;
 	}
 
 	// For each offset from the origin, (dx,dy,dz), and each radius-squared,
@@ -752,14 +963,19 @@ public class Thickness implements PlugIn {
 	 * <li>Version 3 July 31, 2007. Parallel processing version.</li>
 	 * <li>Version 3.1 Multiplies the output by 2 to conform with the definition
 	 * of local thickness</li>
+	 * <li>Version 4 Spheres drawn into thread-owned slabs of slices.</li>
 	 * </ul>
 	 * 
-	 * @param imp
+	 * @param w
+	 *            stack width
+	 * @param h
+	 *            stack height
+	 * @param s
+	 *            distance ridge, one float[w * h] per slice
 	 */
-	private void distanceRidgetoLocalThickness(ImagePlus imp, float[][] s) {
-		final int w = imp.getWidth();
-		final int h = imp.getHeight();
-		final int d = imp.getStackSize();
+	private void distanceRidgetoLocalThickness(int w, int h, float[][] s) {
+		final long startTime = System.currentTimeMillis();
+		final int d = s.length;
 		float[] sk;
 		// Count the distance ridge points on each slice
 		int[] nRidge = new int[d];
@@ -781,10 +997,13 @@ public class Thickness implements PlugIn {
 		int[][] iRidge = new int[d][];
 		int[][] jRidge = new int[d][];
 		float[][] rRidge = new float[d][];
-		// Pull out the distance ridge points
+		// Pull out the distance ridge points, keeping them grouped by slice
+		// and noting the ceiling of the largest radius on each slice, so that
+		// slabs can skip slices whose spheres cannot reach them
 		int[] iRidgeK, jRidgeK;
 		float[] rRidgeK;
-		float sMax = 0;
+		int[] rMaxK = new int[d];
+		int rMax = 0;
 		for (int k = 0; k < d; k++) {
 			nr = nRidge[k];
 			iRidge[k] = new int[nr];
@@ -794,32 +1013,38 @@ public class Thickness implements PlugIn {
 			iRidgeK = iRidge[k];
 			jRidgeK = jRidge[k];
 			rRidgeK = rRidge[k];
+			float rMaxSlice = 0;
 			iR = 0;
 			for (int j = 0; j < h; j++) {
 				final int wj = w * j;
 				for (int i = 0; i < w; i++) {
 					ind = i + wj;
 					if (sk[ind] > 0) {
-						;
 						iRidgeK[iR] = i;
 						jRidgeK[iR] = j;
 						rRidgeK[iR++] = sk[ind];
-						if (sk[ind] > sMax)
-							sMax = sk[ind];
+						if (sk[ind] > rMaxSlice)
+							rMaxSlice = sk[ind];
 						sk[ind] = 0;
 					}
 				}
 			}
+			int rInt = (int) rMaxSlice;
+			if (rInt < rMaxSlice)
+				rInt++;
+			rMaxK[k] = rInt;
+			if (rInt > rMax)
+				rMax = rInt;
 		}
 		int nThreads = Runtime.getRuntime().availableProcessors();
-		final Object[] resources = new Object[d];// For synchronization
-		for (int k = 0; k < d; k++) {
-			resources[k] = new Object();
-		}
+		// several slabs per thread so that threads finishing sparse slabs
+		// can pick up more work
+		final int slabDepth = Math.max(1, d / (4 * nThreads));
+		final AtomicInteger nextSlab = new AtomicInteger(0);
 		LTThread[] ltt = new LTThread[nThreads];
 		for (int thread = 0; thread < nThreads; thread++) {
-			ltt[thread] = new LTThread(thread, nThreads, w, h, d, nRidge, s,
-					iRidge, jRidge, rRidge, resources);
+			ltt[thread] = new LTThread(w, h, d, slabDepth, nextSlab, rMax,
+					nRidge, rMaxK, s, iRidge, jRidge, rRidge);
 			ltt[thread].start();
 		}
 		try {
@@ -842,32 +1067,43 @@ public class Thickness implements PlugIn {
 				}
 			}
 		}
-		IJ.showStatus("Local Thickness complete");
+		IJ.showStatus("Local Thickness complete in "
+				+ IJ.d2s((System.currentTimeMillis() - startTime) / 1000.0, 3)
+				+ " s");
 		return;
 	}
 
+	/**
+	 * Fills ridge spheres into slabs of whole slices. Each slab is owned by
+	 * the one thread that takes it, and every ridge point whose sphere
+	 * reaches into the slab is drawn clipped to the slab, so no two threads
+	 * ever write the same slice and no locking is needed. Each voxel ends up
+	 * with the largest rSquared of the spheres that contain it, which does
+	 * not depend on the order in which spheres are drawn.
+	 */
 	class LTThread extends Thread {
-		int thread, nThreads, w, h, d, nR;
+		int w, h, d, slabDepth, rMax;
+		AtomicInteger nextSlab;
 		float[][] s;
-		int[] nRidge;
+		int[] nRidge, rMaxK;
 		int[][] iRidge, jRidge;
 		float[][] rRidge;
-		Object[] resources;
 
-		public LTThread(int thread, int nThreads, int w, int h, int d,
-				int[] nRidge, float[][] s, int[][] iRidge, int[][] jRidge,
-				float[][] rRidge, Object[] resources) {
-			this.thread = thread;
-			this.nThreads = nThreads;
+		public LTThread(int w, int h, int d, int slabDepth,
+				AtomicInteger nextSlab, int rMax, int[] nRidge, int[] rMaxK,
+				float[][] s, int[][] iRidge, int[][] jRidge, float[][] rRidge) {
 			this.w = w;
 			this.h = h;
 			this.d = d;
+			this.slabDepth = slabDepth;
+			this.nextSlab = nextSlab;
+			this.rMax = rMax;
 			this.s = s;
 			this.nRidge = nRidge;
+			this.rMaxK = rMaxK;
 			this.iRidge = iRidge;
 			this.jRidge = jRidge;
 			this.rRidge = rRidge;
-			this.resources = resources;
 		}
 
 		public void run() {
@@ -875,83 +1111,83 @@ public class Thickness implements PlugIn {
 			final int height = this.h;
 			final int depth = this.d;
 			final float[][] stack = this.s;
-			float[] sk1;// sk,sk1;
-			// Loop through ridge points. For each one, update the local
-			// thickness for
-			// the points within its sphere.
+			final int nSlabs = (depth + slabDepth - 1) / slabDepth;
+			float[] sk1;
 			int rInt;
 			int iStart, iStop, jStart, jStop, kStart, kStop;
 			float r1SquaredK, r1SquaredJK, r1Squared, s1;
 			int rSquared;
-			for (int k = thread; k < depth; k += nThreads) {
-				IJ.showStatus("Local Thickness: processing slice " + (k + 1)
-						+ "/" + depth);
-				final int nR = nRidge[k];
-				final int[] iRidgeK = iRidge[k];
-				final int[] jRidgeK = jRidge[k];
-				final float[] rRidgeK = rRidge[k];
-				for (int iR = 0; iR < nR; iR++) {
-					final int i = iRidgeK[iR];
-					final int j = jRidgeK[iR];
-					final float r = rRidgeK[iR];
-					rSquared = (int) (r * r + 0.5f);
-					rInt = (int) r;
-					if (rInt < r)
-						rInt++;
-					iStart = i - rInt;
-					if (iStart < 0)
-						iStart = 0;
-					iStop = i + rInt;
-					if (iStop >= width)
-						iStop = width - 1;
-					jStart = j - rInt;
-					if (jStart < 0)
-						jStart = 0;
-					jStop = j + rInt;
-					if (jStop >= height)
-						jStop = height - 1;
-					kStart = k - rInt;
-					if (kStart < 0)
-						kStart = 0;
-					kStop = k + rInt;
-					if (kStop >= depth)
-						kStop = depth - 1;
-					for (int k1 = kStart; k1 <= kStop; k1++) {
-						r1SquaredK = (k1 - k) * (k1 - k);
-						sk1 = stack[k1];
-						for (int j1 = jStart; j1 <= jStop; j1++) {
-							final int widthJ1 = width * j1;
-							r1SquaredJK = r1SquaredK + (j1 - j) * (j1 - j);
-							if (r1SquaredJK <= rSquared) {
-								for (int i1 = iStart; i1 <= iStop; i1++) {
-									r1Squared = r1SquaredJK + (i1 - i)
-											* (i1 - i);
-									if (r1Squared <= rSquared) {
-										final int ind1 = i1 + widthJ1;
-										s1 = sk1[ind1];
-										if (rSquared > s1) {
-											// Get a lock on sk1 and check again
-											// to make sure
-											// that another thread has not
-											// increased
-											// sk1[ind1] to something larger
-											// than rSquared.
-											// A test shows that this may not be
-											// required...
-											synchronized (resources[k1]) {
-												s1 = sk1[ind1];
-												if (rSquared > s1) {
-													sk1[ind1] = rSquared;
-												}
-											}
-										}
-									}// if within sphere of DR point
-								}// i1
-							}// if k and j components within sphere of DR point
-						}// j1
-					}// k1
-				}// iR
-			}// k
+			for (int slab = nextSlab.getAndIncrement(); slab < nSlabs; slab = nextSlab
+					.getAndIncrement()) {
+				final int slabStart = slab * slabDepth;
+				final int slabStop = Math.min(slabStart + slabDepth, depth) - 1;
+				IJ.showStatus("Local Thickness: processing slices "
+						+ (slabStart + 1) + "-" + (slabStop + 1) + "/" + depth);
+				IJ.showProgress(slab, nSlabs);
+				// Loop through ridge points on any slice near enough to reach
+				// the slab. For each one, update the local thickness for the
+				// points of the slab within its sphere.
+				final int kFirst = Math.max(0, slabStart - rMax);
+				final int kLast = Math.min(depth - 1, slabStop + rMax);
+				for (int k = kFirst; k <= kLast; k++) {
+					if (k + rMaxK[k] < slabStart || k - rMaxK[k] > slabStop)
+						continue;
+					final int nR = nRidge[k];
+					final int[] iRidgeK = iRidge[k];
+					final int[] jRidgeK = jRidge[k];
+					final float[] rRidgeK = rRidge[k];
+					for (int iR = 0; iR < nR; iR++) {
+						final float r = rRidgeK[iR];
+						rInt = (int) r;
+						if (rInt < r)
+							rInt++;
+						kStart = k - rInt;
+						if (kStart < slabStart)
+							kStart = slabStart;
+						kStop = k + rInt;
+						if (kStop > slabStop)
+							kStop = slabStop;
+						if (kStart > kStop)
+							continue;
+						final int i = iRidgeK[iR];
+						final int j = jRidgeK[iR];
+						rSquared = (int) (r * r + 0.5f);
+						iStart = i - rInt;
+						if (iStart < 0)
+							iStart = 0;
+						iStop = i + rInt;
+						if (iStop >= width)
+							iStop = width - 1;
+						jStart = j - rInt;
+						if (jStart < 0)
+							jStart = 0;
+						jStop = j + rInt;
+						if (jStop >= height)
+							jStop = height - 1;
+						for (int k1 = kStart; k1 <= kStop; k1++) {
+							r1SquaredK = (k1 - k) * (k1 - k);
+							sk1 = stack[k1];
+							for (int j1 = jStart; j1 <= jStop; j1++) {
+								final int widthJ1 = width * j1;
+								r1SquaredJK = r1SquaredK + (j1 - j) * (j1 - j);
+								if (r1SquaredJK <= rSquared) {
+									for (int i1 = iStart; i1 <= iStop; i1++) {
+										r1Squared = r1SquaredJK + (i1 - i)
+												* (i1 - i);
+										if (r1Squared <= rSquared) {
+											final int ind1 = i1 + widthJ1;
+											s1 = sk1[ind1];
+											if (rSquared > s1)
+												sk1[ind1] = rSquared;
+										}// if within sphere of DR point
+									}// i1
+								}// if k and j components within sphere of DR
+									// point
+							}// j1
+						}// k1
+					}// iR
+				}// k
+			}// slab
 		}// run
 	}// LTThread
 
@@ -982,15 +1218,37 @@ public class Thickness implements PlugIn {
 		final int w = imp.getWidth();
 		final int h = imp.getHeight();
 		final int d = imp.getStackSize();
-		IJ.showStatus("Cleaning up local thickness...");
-		// Create 32 bit floating point stack for output, sNew.
+		cleanUpLocalThickness(w, h, s);
 		ImageStack newStack = new ImageStack(w, h);
-		sNew = new float[d][];
-		for (int k = 0; k < d; k++) {
-			ImageProcessor ipk = new FloatProcessor(w, h);
-			newStack.addSlice(null, ipk);
-			sNew[k] = (float[]) ipk.getPixels();
+		for (int k = 0; k < d; k++)
+			newStack.addSlice(null, new FloatProcessor(w, h, sNew[k], null));
+		String title = stripExtension(imp.getTitle());
+		ImagePlus impOut = new ImagePlus(title + "_CL", newStack);
+		final double vW = imp.getCalibration().pixelWidth;
+		// calibrate the pixel values to pixel width
+		// so that thicknesses represent real units (not pixels)
+		for (int z = 0; z < d; z++) {
+			impOut.setSlice(z + 1);
+			impOut.getProcessor().multiply(vW);
 		}
+		return impOut;
+	}
+
+	/**
+	 * Correct border voxels for "jaggies", leaving the result in sNew
+	 * 
+	 * @param w
+	 *            stack width
+	 * @param h
+	 *            stack height
+	 * @param s
+	 *            local thickness map, one float[w * h] per slice
+	 */
+	private void cleanUpLocalThickness(int w, int h, float[][] s) {
+		final int d = s.length;
+		IJ.showStatus("Cleaning up local thickness...");
+		// Create 32 bit floating point stack for output, sNew.
+		sNew = new float[d][w * h];
 		// First set the output array to flags:
 		// 0 for a background point
 		// -1 for a non-background point that borders a background point
@@ -1040,16 +1298,6 @@ public class Thickness implements PlugIn {
 			}// j
 		}// k
 		IJ.showStatus("Clean Up Local Thickness complete");
-		String title = stripExtension(imp.getTitle());
-		ImagePlus impOut = new ImagePlus(title + "_CL", newStack);
-		final double vW = imp.getCalibration().pixelWidth;
-		// calibrate the pixel values to pixel width
-		// so that thicknesses represent real units (not pixels)
-		for (int z = 0; z < d; z++) {
-			impOut.setSlice(z + 1);
-			impOut.getProcessor().multiply(vW);
-		}
-		return impOut;
 	}
 
 	float setFlag(float[][] s, int i, int j, int k, int w, int h, int d) {
@@ -1317,9 +1565,371 @@ public class Thickness implements PlugIn {
 			IJ.log("Warning: voxels are anisotropic. Local thickness results will be inaccurate");
 		}
 		float[][] s = geometryToDistanceMap(imp, inv);
-		distanceMaptoDistanceRidge(imp, s);
-		distanceRidgetoLocalThickness(imp, s);
-		ImagePlus impLTC = localThicknesstoCleanedUpLocalThickness(imp, s);
-		return impLTC;
+		return distanceMaptoLocalThickness(imp, s);
+	}
+
+	/**
+	 * Get local thickness maps of both the foreground and the background of an
+	 * ImagePlus, equal to getLocalThickness(imp, false) and
+	 * getLocalThickness(imp, true). Both distance maps are built from a single
+	 * pass of the EDT, and the rest of the two calculations run concurrently
+	 * if there is more than one processor.
+	 * 
+	 * @param imp
+	 *            Binary ImagePlus
+	 * @return 32-bit ImagePlus local thickness maps of the foreground (index
+	 *         0) and background (index 1)
+	 */
+	public ImagePlus[] getLocalThicknessMaps(final ImagePlus imp) {
+		if (!(new ImageCheck()).isVoxelIsotropic(imp, 1E-3)) {
+			IJ.log("Warning: voxels are anisotropic. Local thickness results will be inaccurate");
+		}
+		float[][][] s = geometryToDistanceMaps(imp);
+		final float[][] sFore = s[0];
+		final float[][] sBack = s[1];
+		s = null;
+		final ImagePlus[] maps = new ImagePlus[2];
+		// the background runs in its own Thickness so that the two
+		// calculations have separate sNew work arrays
+		Thread background = new Thread(new Runnable() {
+			public void run() {
+				maps[1] = new Thickness().distanceMaptoLocalThickness(imp,
+						sBack);
+			}
+		});
+		if (Runtime.getRuntime().availableProcessors() > 1) {
+			background.start();
+			maps[0] = distanceMaptoLocalThickness(imp, sFore);
+			try {
+				background.join();
+			} catch (InterruptedException ie) {
+				IJ.error("A thread was interrupted .");
+			}
+		} else {
+			maps[0] = distanceMaptoLocalThickness(imp, sFore);
+			background.run();
+		}
+		return maps;
+	}
+
+	/**
+	 * Distance ridge, local thickness and clean up
+	 * 
+	 * @param imp
+	 *            source ImagePlus, for dimensions, title and calibration
+	 * @param s
+	 *            distance map, overwritten by this method
+	 * @return cleaned up local thickness map
+	 */
+	private ImagePlus distanceMaptoLocalThickness(ImagePlus imp, float[][] s) {
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		s = distanceMaptoDistanceRidge(w, h, s);
+		distanceRidgetoLocalThickness(w, h, s);
+		return localThicknesstoCleanedUpLocalThickness(imp, s);
+	}
+
+	/**
+	 * Get a local thickness map from an ImagePlus, holding only one block of
+	 * slices of intermediate data on the heap at a time.
+	 * 
+	 * The distance map is calculated a slab of slices (transformations 1 and
+	 * 2) or a band of rows (transformation 3) at a time and spilled to a
+	 * memory-mapped temporary file. Each block of output slices is then
+	 * calculated from the distance map of the block plus a halo of slices
+	 * either side: the largest distance, to reach the centres of all the
+	 * spheres that cover the block, plus one for the distance ridge and two for
+	 * clean up. The result is identical to that of getLocalThickness().
+	 * 
+	 * @param imp
+	 *            Binary ImagePlus
+	 * @param inv
+	 *            false if you want the thickness of the foreground and true if
+	 *            you want the thickness of the background
+	 * @param slicesPerBlock
+	 *            number of output slices to calculate at a time, or 0 to fit
+	 *            blocks to free memory
+	 * @return 32-bit ImagePlus containing a local thickness map
+	 */
+	public ImagePlus getLocalThicknessInBlocks(ImagePlus imp, boolean inv,
+			int slicesPerBlock) {
+		ImageStack newStack = new ImageStack(imp.getWidth(), imp.getHeight());
+		localThicknessInBlocks(imp, inv, slicesPerBlock, newStack, 0);
+		return new ImagePlus(stripExtension(imp.getTitle()) + "_CL", newStack);
+	}
+
+	/**
+	 * Get the mean, standard deviation, maximum and histogram of a local
+	 * thickness map without keeping the map as an image. If the calculation
+	 * fits in free memory the map is calculated in one piece, as by
+	 * getLocalThickness(), and its slices are added to the statistics one at
+	 * a time and discarded. Otherwise, or if slicesPerBlock &gt; 0 or the low
+	 * memory option is set, the map is calculated a block of slices at a
+	 * time, as by getLocalThicknessInBlocks(), and each slice is added to the
+	 * statistics and discarded as soon as it is finished.
+	 * 
+	 * @param imp
+	 *            Binary ImagePlus
+	 * @param inv
+	 *            false if you want the thickness of the foreground and true if
+	 *            you want the thickness of the background
+	 * @param slicesPerBlock
+	 *            number of slices to calculate at a time, or 0 to calculate
+	 *            the whole map at once if it fits in free memory and fit
+	 *            blocks to free memory if it does not
+	 * @param nBins
+	 *            number of histogram bins, evenly spanning 0 to the largest
+	 *            thickness possible for the stack's distance map
+	 * @return statistics of the local thickness map's non-zero pixels
+	 */
+	public RunningStats getLocalThicknessStats(ImagePlus imp, boolean inv,
+			int slicesPerBlock, int nBins) {
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int d = imp.getStackSize();
+		// distance map, ridge and cleaned up map are all on the heap at once
+		if (lowMemory || slicesPerBlock > 0
+				|| (long) w * h * d > getFreeMemory() / 2 / 12)
+			return localThicknessInBlocks(imp, inv, slicesPerBlock, null,
+					nBins);
+		if (!(new ImageCheck()).isVoxelIsotropic(imp, 1E-3)) {
+			IJ.log("Warning: voxels are anisotropic. Local thickness results will be inaccurate");
+		}
+		float[][] s = geometryToDistanceMap(imp, inv);
+		float distMax = 0;
+		for (int k = 0; k < d; k++) {
+			final float[] sk = s[k];
+			for (int i = 0; i < sk.length; i++)
+				if (sk[i] > distMax)
+					distMax = sk[i];
+		}
+		s = distanceMaptoDistanceRidge(w, h, s);
+		distanceRidgetoLocalThickness(w, h, s);
+		cleanUpLocalThickness(w, h, s);
+		s = null;
+		final double vW = imp.getCalibration().pixelWidth;
+		// a thickness is at most 2 * sqrt((int) (r * r + 0.5))
+		RunningStats stats = new RunningStats(nBins, 2 * (distMax + 1) * vW);
+		for (int k = 0; k < d; k++) {
+			// calibrate the pixel values to pixel width
+			new FloatProcessor(w, h, sNew[k], null).multiply(vW);
+			stats.add(sNew[k]);
+			sNew[k] = null;
+		}
+		sNew = null;
+		return stats;
+	}
+
+	/**
+	 * @return bytes of heap that can still be allocated
+	 */
+	private static long getFreeMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.maxMemory() - runtime.totalMemory()
+				+ runtime.freeMemory();
+	}
+
+	/**
+	 * Calculate a local thickness map in blocks, adding each finished slice
+	 * either to newStack or to statistics
+	 * 
+	 * @param newStack
+	 *            stack to add slices to, or null to keep only statistics
+	 * @param nBins
+	 *            histogram bins for the statistics if newStack is null
+	 * @return statistics, or null if newStack is not null
+	 */
+	private RunningStats localThicknessInBlocks(ImagePlus imp, boolean inv,
+			int slicesPerBlock, ImageStack newStack, int nBins) {
+		if (!(new ImageCheck()).isVoxelIsotropic(imp, 1E-3)) {
+			IJ.log("Warning: voxels are anisotropic. Local thickness results will be inaccurate");
+		}
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int d = imp.getStackSize();
+		final int wh = w * h;
+		long blockVoxels;
+		if (slicesPerBlock > 0)
+			blockVoxels = (long) slicesPerBlock * wh;
+		else {
+			// distance map, ridge and cleaned up map of a block are all on
+			// the heap at once
+			blockVoxels = getFreeMemory() / 2 / 12;
+		}
+		MappedFloatStack map = new MappedFloatStack(w, h, d);
+		try {
+			final float distMax = geometryToDistanceMap(imp, inv, map,
+					blockVoxels);
+			final int halo = (int) Math.ceil(distMax) + 3;
+			int core = slicesPerBlock;
+			if (core <= 0)
+				core = (int) Math.max(1, blockVoxels / wh - 2 * halo);
+			final double vW = imp.getCalibration().pixelWidth;
+			RunningStats stats = null;
+			if (newStack == null)
+				// a thickness is at most 2 * sqrt((int) (r * r + 0.5))
+				stats = new RunningStats(nBins, 2 * (distMax + 1) * vW);
+			for (int z0 = 0; z0 < d; z0 += core) {
+				final int z1 = Math.min(d, z0 + core);
+				final int b0 = Math.max(0, z0 - halo);
+				final int b1 = Math.min(d, z1 + halo);
+				IJ.showStatus("Local Thickness: block " + (z0 + 1) + "-" + z1
+						+ "/" + d);
+				float[][] s = new float[b1 - b0][];
+				for (int k = b0; k < b1; k++)
+					s[k - b0] = map.getSlice(k, null);
+				s = distanceMaptoDistanceRidge(w, h, s);
+				distanceRidgetoLocalThickness(w, h, s);
+				cleanUpLocalThickness(w, h, s);
+				s = null;
+				for (int k = z0; k < z1; k++) {
+					FloatProcessor ipk = new FloatProcessor(w, h, sNew[k - b0],
+							null);
+					// calibrate the pixel values to pixel width
+					ipk.multiply(vW);
+					if (newStack != null)
+						newStack.addSlice(null, ipk);
+					else {
+						stats.add(sNew[k - b0]);
+						sNew[k - b0] = null;
+					}
+				}
+				sNew = null;
+			}
+			return stats;
+		} finally {
+			map.dispose();
+		}
+	}
+
+	/**
+	 * Calculate the distance map as geometryToDistanceMap(imp, inv) does, into
+	 * a memory-mapped stack
+	 * 
+	 * @param imp
+	 *            8-bit (binary) ImagePlus
+	 * @param inv
+	 *            true to measure the background
+	 * @param map
+	 *            stack to hold the distance map
+	 * @param blockVoxels
+	 *            number of voxels of distance map to hold on the heap at once
+	 * @return largest distance
+	 */
+	private float geometryToDistanceMap(ImagePlus imp, boolean inv,
+			MappedFloatStack map, long blockVoxels) {
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int d = imp.getStackSize();
+		final int wh = w * h;
+		final int noResult = getNoResult(w, h, d);
+		int nThreads = Runtime.getRuntime().availableProcessors();
+		ImageStack stack = imp.getStack();
+
+		// Transformations 1 and 2 work within slices
+		final int slab = (int) Math.max(1, Math.min(d, blockVoxels / wh));
+		for (int z0 = 0; z0 < d; z0 += slab) {
+			final int z1 = Math.min(d, z0 + slab);
+			IJ.showStatus("EDT transformations 1 and 2: slices " + (z0 + 1)
+					+ "-" + z1 + "/" + d);
+			byte[][] data = new byte[z1 - z0][];
+			int[][] sq = new int[z1 - z0][wh];
+			for (int k = z0; k < z1; k++)
+				data[k - z0] = (byte[]) stack.getPixels(k + 1);
+			AtomicInteger next = new AtomicInteger(0);
+			Step1Thread[] s1t = new Step1Thread[nThreads];
+			for (int thread = 0; thread < nThreads; thread++) {
+				s1t[thread] = new Step1Thread(next, getChunk(z1 - z0, nThreads),
+						w, h, z1 - z0, inv, sq, data, noResult);
+				s1t[thread].start();
+			}
+			try {
+				for (int thread = 0; thread < nThreads; thread++) {
+					s1t[thread].join();
+				}
+			} catch (InterruptedException ie) {
+				IJ.error("A thread was interrupted in step 1 .");
+			}
+			next.set(0);
+			Step2Thread[] s2t = new Step2Thread[nThreads];
+			for (int thread = 0; thread < nThreads; thread++) {
+				s2t[thread] = new Step2Thread(next, getChunk(z1 - z0, nThreads),
+						w, h, z1 - z0, sq, noResult);
+				s2t[thread].start();
+			}
+			try {
+				for (int thread = 0; thread < nThreads; thread++) {
+					s2t[thread].join();
+				}
+			} catch (InterruptedException ie) {
+				IJ.error("A thread was interrupted in step 2 .");
+			}
+			for (int k = z0; k < z1; k++)
+				map.setSlice(k, sq[k - z0]);
+		}
+
+		// Transformation 3 works along z, so take whole columns of a band of
+		// rows
+		final int rows = (int) Math.max(1, Math.min(h, blockVoxels / w / d));
+		float distMax = 0;
+		for (int y0 = 0; y0 < h; y0 += rows) {
+			final int nRows = Math.min(h, y0 + rows) - y0;
+			final int bandSize = w * nRows;
+			IJ.showStatus("EDT transformation 3: rows " + (y0 + 1) + "-"
+					+ (y0 + nRows) + "/" + h);
+			byte[][] data = new byte[d][bandSize];
+			int[][] sq = new int[d][];
+			for (int k = 0; k < d; k++) {
+				System.arraycopy((byte[]) stack.getPixels(k + 1), w * y0,
+						data[k], 0, bandSize);
+				sq[k] = map.getRows(k, y0, nRows, (int[]) null);
+			}
+			AtomicInteger next = new AtomicInteger(0);
+			Step3Thread[] s3t = new Step3Thread[nThreads];
+			for (int thread = 0; thread < nThreads; thread++) {
+				s3t[thread] = new Step3Thread(next, getChunk(nRows, nThreads),
+						w, nRows, d, inv, sq, data, noResult);
+				s3t[thread].start();
+			}
+			try {
+				for (int thread = 0; thread < nThreads; thread++) {
+					s3t[thread].join();
+				}
+			} catch (InterruptedException ie) {
+				IJ.error("A thread was interrupted in step 3 .");
+			}
+			// Take square roots, fill in the background values and find the
+			// largest distance
+			final float[] sk = new float[bandSize];
+			for (int k = 0; k < d; k++) {
+				final int[] sqk = sq[k];
+				final byte[] dk = data[k];
+				for (int ind = 0; ind < bandSize; ind++) {
+					if (((dk[ind] & 255) < 128) ^ inv) {
+						sk[ind] = 0;
+					} else {
+						final float dist = (float) Math.sqrt(sqk[ind]);
+						sk[ind] = dist;
+						distMax = (dist > distMax) ? dist : distMax;
+					}
+				}
+				map.setRows(k, y0, nRows, sk);
+			}
+		}
+		IJ.showProgress(1.0);
+		return distMax;
+	}
+
+	/**
+	 * @return squared distance larger than any in a w * h * d stack, used
+	 *         where no background is found
+	 */
+	private static int getNoResult(int w, int h, int d) {
+		int n = w;
+		if (h > n)
+			n = h;
+		if (d > n)
+			n = d;
+		return 3 * (n + 1) * (n + 1);
 	}
 }
\ No newline at end of file
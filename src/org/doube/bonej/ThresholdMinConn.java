@@ -21,6 +21,8 @@ package org.doube.bonej;
 import java.awt.AWTEvent;
 import java.awt.Checkbox;
 import java.awt.TextField;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Vector;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -37,6 +39,7 @@ import ij.gui.GenericDialog;
 import ij.gui.Plot;
 import ij.gui.Roi;
 import ij.macro.Interpreter;
+import ij.measure.Calibration;
 import ij.measure.CurveFitter;
 import ij.plugin.PlugIn;
 import ij.process.ByteProcessor;
@@ -66,6 +69,12 @@ public class ThresholdMinConn implements PlugIn, DialogListener {
 	/** Number of cycles of dilation to apply */
 	private int nDilates = 0;
 
+	/**
+	 * Find all the test connectivities in one sweep of incremental Euler
+	 * updates, without Purify. Only used when there is no erosion or dilation.
+	 */
+	private boolean doSweep = false;
+
 	public void run(String arg) {
 		if (!ImageCheck.checkEnvironment())
 			return;
@@ -254,17 +263,20 @@ public class ThresholdMinConn implements PlugIn, DialogListener {
 
 	/**
 	 * Calculate connectivity after threshold-purify-erode-purify-dilate for
-	 * several threshold values.
+	 * several threshold values. The tests run at the same time on a bounded
+	 * number of threads, each working on its own binary copy of the subvolume
+	 * without displaying it, and no more copies are made at once than fit in
+	 * half of the free memory.
 	 * 
 	 * @param imp2
 	 * @param testThreshold
 	 *            array of test threshold values (from getTestThreshold)
 	 * @return array containing connectivity resulting from each test threshold
 	 */
-	private double[] getConns(ImagePlus imp2, double[] testThreshold,
+	private double[] getConns(ImagePlus imp2, final double[] testThreshold,
 			int subVolume) {
-		int nTests = testThreshold.length;
-		double[] conns = new double[nTests];
+		final int nTests = testThreshold.length;
+		final double[] conns = new double[nTests];
 
 		// make a stack out of imp2 that is no greater than
 		// subvolume pixels in any dimension
@@ -274,7 +286,7 @@ public class ThresholdMinConn implements PlugIn, DialogListener {
 		final int height = (int) Math.min(imp2.getHeight(), subVolume);
 		final int depth = (int) Math.min(imp2.getStackSize(), subVolume);
 
-		ImageStack stack2 = new ImageStack(width, height);
+		final ImageStack stack2 = new ImageStack(width, height);
 		for (int z = 1; z <= depth; z++) {
 			ImageProcessor ip = stack.getProcessor(z);
 			ImageProcessor ip2 = ip.createProcessor(width, height);
@@ -286,70 +298,190 @@ public class ThresholdMinConn implements PlugIn, DialogListener {
 			stack2.addSlice(stack.getSliceLabel(z), ip2);
 		}
 
-		ImagePlus imp3 = new ImagePlus();
-		for (int i = 0; i < nTests; i++) {
-			// apply threshold
-			final double thresh = testThreshold[i];
-			ImageStack stack3 = new ImageStack(width, height);
-			for (int z = 1; z <= depth; z++) {
-				ImageProcessor ip2 = stack2.getProcessor(z);
-				ByteProcessor bp = new ByteProcessor(width, height);
-				for (int y = 0; y < height; y++) {
-					for (int x = 0; x < width; x++) {
-						if ((double) ip2.get(x, y) > thresh) {
-							bp.set(x, y, 255);
-						} else {
-							bp.set(x, y, 0);
-						}
+		if (doSweep && nErodes == 0 && nDilates == 0)
+			return getConnsBySweep(stack2, testThreshold);
+
+		final Calibration cal = imp2.getCalibration();
+		final int nThreads = getTestThreads(nTests, (long) width * height
+				* depth);
+		// each test's purify, erode, dilate and connectivity stages share
+		// the processors, so that tests x stages <= processors
+		final int innerThreads = Math.max(1, Multithreader.getNThreads()
+				/ nThreads);
+		final AtomicInteger ai = new AtomicInteger(0);
+		final AtomicInteger done = new AtomicInteger(0);
+		Thread[] threads = Multithreader.newThreads(nThreads);
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(new Runnable() {
+				public void run() {
+					Multithreader.setThreadLimit(innerThreads);
+					for (int i = ai.getAndIncrement(); i < nTests; i = ai
+							.getAndIncrement()) {
+						conns[i] = getConnectivity(stack2, testThreshold[i],
+								cal);
+						IJ.showProgress(done.incrementAndGet(), nTests);
 					}
 				}
-				if (z > stack3.getSize())
-					stack3.addSlice(stack2.getSliceLabel(z), bp);
-				else
-					stack3.setPixels(bp, z);
-			}
-			// purify
-			imp3.setStack("Threshold " + (i + 1) + "/" + nTests, stack3);
-			imp3.setCalibration(imp2.getCalibration());
-			imp3.show();
-			if (!imp3.isInvertedLut())
-				IJ.run("Invert LUT");
-			Purify p = new Purify();
-			Erode e = new Erode();
-			Dilate d = new Dilate();
-			int labelMethod = ParticleCounter.MULTI;
-			replaceImage(imp3, p.purify(imp3, 4, labelMethod));
-			for (int j = 0; j < nErodes; j++)
-				replaceImage(imp3, e.erode(imp3, 255));
-			if (nErodes > 0)
-				replaceImage(imp3, p.purify(imp3, 4, labelMethod));
-			for (int j = 0; j < nDilates; j++)
-				replaceImage(imp3, d.dilate(imp3, 255));
-
-			// get the connectivity
-			Connectivity con = new Connectivity();
-			double sumEuler = con.getSumEuler(imp3);
-			double deltaChi = con.getDeltaChi(imp3, sumEuler);
-			double connectivity = con.getConnectivity(deltaChi);
-			// add connectivity to the array
-			conns[i] = connectivity;
+			});
 		}
-		imp3.close();
+		Multithreader.startAndJoin(threads);
 		return conns;
 	}
 
 	/**
-	 * Replace the image in imp with imp2
+	 * Get the number of test thresholds to evaluate at once: no more than the
+	 * number of processors or tests, and no more binary copies of the
+	 * subvolume and their labelling arrays than fit in half of the free
+	 * memory, but always at least 1. Purify's provisional labels are 32-bit,
+	 * and room is left for the foreground and background labels to be on the
+	 * heap together.
 	 * 
-	 * @param imp
-	 * @param imp2
+	 * @param nTests
+	 *            number of test thresholds
+	 * @param nVoxels
+	 *            number of voxels in the subvolume
+	 * @return number of threads
+	 */
+	private int getTestThreads(int nTests, long nVoxels) {
+		// binary stack, purify's work array, foreground and background
+		// labels, erode/dilate output
+		final long bytesPerTest = nVoxels * (1 + 1 + 2 * 4 + 1);
+		final long freeMemory = IJ.maxMemory() - IJ.currentMemory();
+		final long fit = freeMemory / 2 / Math.max(bytesPerTest, 1);
+		int nThreads = Multithreader.getNThreads();
+		nThreads = (int) Math.min(nThreads, Math.min(nTests, fit));
+		return Math.max(nThreads, 1);
+	}
+
+	/**
+	 * Threshold, purify, erode, purify and dilate a stack without displaying
+	 * it, and measure its connectivity
+	 * 
+	 * @param stack
+	 *            grey-level stack
+	 * @param thresh
+	 *            voxels brighter than thresh are foreground
+	 * @param cal
+	 *            calibration of the stack
+	 * @return connectivity
 	 */
-	private void replaceImage(ImagePlus imp, ImagePlus imp2) {
-		ImageStack stack2 = imp2.getStack();
-		imp.setStack(null, stack2);
-		imp.show();
-		if (!imp.isInvertedLut())
-			IJ.run("Invert LUT");
+	private double getConnectivity(ImageStack stack, double thresh,
+			Calibration cal) {
+		final int width = stack.getWidth();
+		final int height = stack.getHeight();
+		final int depth = stack.getSize();
+		final int wh = width * height;
+		ImageStack stack3 = new ImageStack(width, height);
+		for (int z = 1; z <= depth; z++) {
+			ImageProcessor ip2 = stack.getProcessor(z);
+			byte[] binary = new byte[wh];
+			for (int i = 0; i < wh; i++)
+				if ((double) ip2.get(i) > thresh)
+					binary[i] = (byte) 255;
+			stack3.addSlice(stack.getSliceLabel(z), binary);
+		}
+		ImagePlus imp3 = new ImagePlus("Threshold " + thresh, stack3);
+		imp3.setCalibration(cal);
+
+		// purify
+		Purify p = new Purify();
+		int labelMethod = ParticleCounter.MULTI;
+		imp3 = p.purify(imp3, 4, labelMethod);
+		for (int j = 0; j < nErodes; j++)
+			imp3 = new Erode().erode(imp3, 255);
+		if (nErodes > 0)
+			imp3 = p.purify(imp3, 4, labelMethod);
+		for (int j = 0; j < nDilates; j++)
+			imp3 = new Dilate().dilate(imp3, 255);
+
+		// get the connectivity
+		Connectivity con = new Connectivity();
+		double deltaChi = con.getDeltaChi(imp3);
+		return con.getConnectivity(deltaChi);
+	}
+
+	/**
+	 * <p>
+	 * Calculate connectivity of the thresholded stack for several threshold
+	 * values in one sweep. Voxels are sorted by grey value once and made
+	 * foreground from the brightest down; each addition updates the Euler
+	 * sums from the 8 octants the voxel touches, and the connectivity is
+	 * read off as the sweep passes each test threshold.
+	 * </p>
+	 * <p>
+	 * The stack is not purified, so connectivity counts every particle and
+	 * cavity.
+	 * </p>
+	 * 
+	 * @param stack
+	 *            grey-level stack
+	 * @param testThreshold
+	 *            array of test threshold values (from getTestThreshold)
+	 * @return array containing connectivity resulting from each test threshold
+	 */
+	private double[] getConnsBySweep(ImageStack stack,
+			final double[] testThreshold) {
+		final int w = stack.getWidth();
+		final int h = stack.getHeight();
+		final int d = stack.getSize();
+		final int wh = w * h;
+
+		// counting sort of voxel indices by grey value
+		int max = 0;
+		for (int z = 1; z <= d; z++) {
+			ImageProcessor ip = stack.getProcessor(z);
+			for (int i = 0; i < wh; i++)
+				max = Math.max(max, ip.get(i));
+		}
+		int[] start = new int[max + 2];
+		for (int z = 1; z <= d; z++) {
+			ImageProcessor ip = stack.getProcessor(z);
+			for (int i = 0; i < wh; i++)
+				start[ip.get(i) + 1]++;
+		}
+		for (int v = 1; v <= max + 1; v++)
+			start[v] += start[v - 1];
+		int[] sorted = new int[wh * d];
+		int[] next = start.clone();
+		for (int z = 1; z <= d; z++) {
+			ImageProcessor ip = stack.getProcessor(z);
+			for (int i = 0; i < wh; i++)
+				sorted[next[ip.get(i)]++] = (z - 1) * wh + i;
+		}
+
+		// visit the test thresholds from highest to lowest
+		final int nTests = testThreshold.length;
+		Integer[] order = new Integer[nTests];
+		for (int i = 0; i < nTests; i++)
+			order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(testThreshold[b], testThreshold[a]);
+			}
+		});
+
+		double[] conns = new double[nTests];
+		Connectivity con = new Connectivity();
+		Connectivity.GrowingEuler euler = new Connectivity.GrowingEuler(w, h,
+				d);
+		int value = max;
+		for (int t = 0; t < nTests; t++) {
+			IJ.showProgress(t, nTests);
+			final double thresh = testThreshold[order[t]];
+			// foreground is grey value > threshold
+			for (; value >= 0 && value > thresh; value--) {
+				for (int n = start[value]; n < start[value + 1]; n++) {
+					final int index = sorted[n];
+					final int z = index / wh;
+					final int i = index - z * wh;
+					euler.add(i % w, i / w, z);
+				}
+			}
+			conns[order[t]] = con.getConnectivity(euler.getResult()
+					.getDeltaChi());
+		}
+		IJ.showProgress(1.0);
+		return conns;
 	}
 
 	/**
@@ -406,6 +538,7 @@ public class ThresholdMinConn implements PlugIn, DialogListener {
 		gd.addNumericField("Subvolume Size", subVolume, 0);
 		gd.addNumericField("Erosion Cycles", nErodes, 0);
 		gd.addNumericField("Dilation Cycles", nDilates, 0);
+		gd.addCheckbox("Fast sweep (no purify, erosion or dilation)", doSweep);
 		gd.addHelp("http://bonej.org/threshold");
 		gd.addDialogListener(this);
 		gd.showDialog();
@@ -426,6 +559,7 @@ public class ThresholdMinConn implements PlugIn, DialogListener {
 			subVolume = (int) Math.floor(gd.getNextNumber());
 			nErodes = (int) Math.floor(gd.getNextNumber());
 			nDilates = (int) Math.floor(gd.getNextNumber());
+			doSweep = gd.getNextBoolean();
 			return true;
 		}
 	}
@@ -442,6 +576,8 @@ public class ThresholdMinConn implements PlugIn, DialogListener {
 			t.setState(false);
 			t.setEnabled(false);
 			doPlot = false;
+			Checkbox s = (Checkbox) checkboxes.get(3);
+			s.setEnabled(false);
 			// grey out fields
 			Vector<?> numbers = gd.getNumericFields();
 			for (int i = 0; i < numbers.size(); i++) {
@@ -459,6 +595,8 @@ public class ThresholdMinConn implements PlugIn, DialogListener {
 			// enable show plot
 			Checkbox t = (Checkbox) checkboxes.get(2);
 			t.setEnabled(true);
+			Checkbox s = (Checkbox) checkboxes.get(3);
+			s.setEnabled(true);
 		}
 		DialogModifier.registerMacroValues(gd, gd.getComponents());
 		return true;
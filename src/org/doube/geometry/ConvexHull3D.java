@@ -0,0 +1,733 @@
+package org.doube.geometry;
+
+/**
+ * ConvexHull3D class for ImageJ
+ * Copyright 2026 agent
+ *
+ *This program is free software: you can redistribute it and/or modify
+ *it under the terms of the GNU General Public License as published by
+ *the Free Software Foundation, either version 3 of the License, or
+ *(at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * <p>
+ * 3D convex hull of a point cloud by the quickhull algorithm, with triangular
+ * faces. Points closer to a face's plane than a tolerance scaled to the
+ * coordinates' magnitude are treated as lying on it, so coplanar points
+ * (which are common in marching cubes surfaces) do not produce degenerate
+ * faces.
+ * </p>
+ * <p>
+ * If all the points are collinear or coplanar there is no hull; in that case,
+ * or if rounding error makes the hull inconsistent, every point is reported
+ * as a vertex and there are no faces.
+ * </p>
+ *
+ * @author agent
+ * @see <p>
+ *      Barber CB, Dobkin DP, Huhdanpaa H (1996) The quickhull algorithm for
+ *      convex hulls. ACM Trans Math Softw 22: 469-483. <a
+ *      href="http://dx.doi.org/10.1145/235815.235821"
+ *      >doi:10.1145/235815.235821</a>
+ *      </p>
+ */
+public class ConvexHull3D {
+
+	private final double[][] points;
+
+	/** distance below which a point is considered to lie on a plane */
+	private final double tolerance;
+
+	/** faces of the finished hull */
+	private final ArrayList<Face> hull = new ArrayList<Face>();
+
+	private int[] vertices;
+
+	/** minimum width and its direction, once found */
+	private double[] minWidth;
+
+	/** end points of the diameter, once found */
+	private int[] diameter;
+
+	private double diameterSq = 0;
+
+	/** stamp marking the vertices found by the latest getLevel() */
+	private int levelStamp = 0;
+
+	/**
+	 * Triangular face with outward unit normal, vertices a, b, c counter
+	 * clockwise seen from outside and neighbours across edges ab, bc and ca
+	 */
+	private static class Face {
+		final int[] v = new int[3];
+		final Face[] neighbours = new Face[3];
+		double nx, ny, nz, offset;
+		int[] outside = new int[4];
+		int nOutside = 0;
+		boolean visible = false;
+		boolean deleted = false;
+		/** a vertex furthest behind the face's plane */
+		int antipode;
+
+		void addOutside(int p) {
+			if (nOutside == outside.length)
+				outside = Arrays.copyOf(outside, nOutside * 2);
+			outside[nOutside++] = p;
+		}
+
+		/** index of the edge running from vertex a to vertex b, or -1 */
+		int edge(int a, int b) {
+			for (int e = 0; e < 3; e++)
+				if (v[e] == a && v[(e + 1) % 3] == b)
+					return e;
+			return -1;
+		}
+	}
+
+	/**
+	 * Build the convex hull of a set of points
+	 *
+	 * @param points
+	 *            double[n][3] containing n (x, y, z) coordinates
+	 * @throws IllegalArgumentException
+	 *             if n < 1
+	 */
+	public ConvexHull3D(double[][] points) {
+		final int nPoints = points.length;
+		if (nPoints < 1)
+			throw new IllegalArgumentException("No points to build hull from");
+		this.points = points;
+		double maxX = 0, maxY = 0, maxZ = 0;
+		for (int i = 0; i < nPoints; i++) {
+			maxX = Math.max(maxX, Math.abs(points[i][0]));
+			maxY = Math.max(maxY, Math.abs(points[i][1]));
+			maxZ = Math.max(maxZ, Math.abs(points[i][2]));
+		}
+		tolerance = 3 * 2.220446049250313E-16 * (maxX + maxY + maxZ);
+		try {
+			build();
+		} catch (IllegalStateException e) {
+			// rounding broke the hull's topology; fall back to the safe
+			// answer rather than a wrong one
+			hull.clear();
+			setAllVertices();
+		}
+	}
+
+	private void setAllVertices() {
+		final int nPoints = points.length;
+		vertices = new int[nPoints];
+		for (int i = 0; i < nPoints; i++)
+			vertices[i] = i;
+	}
+
+	/**
+	 * Get the indices of the points that are vertices of the hull
+	 *
+	 * @return vertex indices, in ascending order
+	 */
+	public int[] getVertices() {
+		return vertices.clone();
+	}
+
+	/**
+	 * Get the hull's triangular faces
+	 *
+	 * @return int[nFaces][3] of point indices, counter clockwise seen from
+	 *         outside the hull
+	 */
+	public int[][] getFaces() {
+		final int nFaces = hull.size();
+		int[][] faces = new int[nFaces][];
+		for (int f = 0; f < nFaces; f++)
+			faces[f] = hull.get(f).v.clone();
+		return faces;
+	}
+
+	/**
+	 * Get the minimum caliper width of the hull: the smallest distance between
+	 * two parallel planes that enclose all the points. One of the planes
+	 * contains a face of the hull and the other its antipodal vertex, or each
+	 * plane contains one of a pair of antipodal edges [Houle and Toussaint
+	 * 1988]; both kinds of pair are visited by {@link #findAntipodalPairs()}.
+	 *
+	 * @return double[4] containing the width and the unit direction (x, y, z)
+	 *         in which it is measured. The width is 0 if the points are
+	 *         coplanar.
+	 * @see <p>
+	 *      Houle ME, Toussaint GT (1988) Computing the width of a set. IEEE
+	 *      Trans Pattern Anal Mach Intell 10: 761-765. <a
+	 *      href="http://dx.doi.org/10.1109/34.6790"
+	 *      >doi:10.1109/34.6790</a>
+	 *      </p>
+	 */
+	public double[] getMinWidth() {
+		if (minWidth == null)
+			findAntipodalPairs();
+		return minWidth.clone();
+	}
+
+	/**
+	 * Get the diameter of the hull, which is the distance between its most
+	 * distant pair of points. The most distant pair of points are always an
+	 * antipodal pair of hull vertices, so only those pairs are measured.
+	 *
+	 * @return double[7] containing the diameter and the (x, y, z) coordinates
+	 *         of its two end points
+	 */
+	public double[] getDiameter() {
+		if (diameter == null)
+			findAntipodalPairs();
+		final double[] a = points[diameter[0]];
+		final double[] b = points[diameter[1]];
+		final double dx = a[0] - b[0];
+		final double dy = a[1] - b[1];
+		final double dz = a[2] - b[2];
+		final double[] result = { Math.sqrt(dx * dx + dy * dy + dz * dz),
+				a[0], a[1], a[2], b[0], b[1], b[2] };
+		return result;
+	}
+
+	/**
+	 * Find the minimum width and the diameter by visiting the hull's
+	 * antipodal pairs, i.e. the pairs of vertices, edges or faces that lie on
+	 * two parallel planes enclosing the hull.
+	 * <p>
+	 * Faces are visited in adjacency order and the vertex antipodal to each
+	 * face is found by descending the hull's vertex graph from the previous
+	 * face's antipodal vertex, which is exact because a linear function has
+	 * no local minima on a convex polytope. Then for each edge, the plane's
+	 * normal is turned from one of the edge's faces to the other, following
+	 * the antipodal vertex from neighbour to neighbour; each step crosses an
+	 * edge that is antipodal to the turning edge. Vertices level with an
+	 * antipodal vertex are included, so that parallel faces and edges do not
+	 * hide any pairs.
+	 * </p>
+	 */
+	private void findAntipodalPairs() {
+		diameter = new int[2];
+		final int nFaces = hull.size();
+		if (nFaces == 0) {
+			minWidth = new double[] { 0, Double.NaN, Double.NaN, Double.NaN };
+			for (int i = 0; i < vertices.length; i++)
+				for (int j = i + 1; j < vertices.length; j++)
+					checkDiameter(vertices[i], vertices[j]);
+			return;
+		}
+		minWidth = new double[] { Double.POSITIVE_INFINITY, 0, 0, 0 };
+		final int[][] graph = getVertexGraph();
+		final int[] level = new int[vertices.length];
+		final int[] mark = new int[points.length];
+
+		// breadth-first order of faces, so that consecutive normals are close
+		ArrayList<Face> order = new ArrayList<Face>(nFaces);
+		for (Face face : hull)
+			face.visible = false;
+		Face first = hull.get(0);
+		first.visible = true;
+		order.add(first);
+		for (int i = 0; i < order.size(); i++) {
+			for (Face n : order.get(i).neighbours) {
+				if (!n.visible) {
+					n.visible = true;
+					order.add(n);
+				}
+			}
+		}
+
+		int antipode = first.v[0];
+		for (Face face : order) {
+			face.visible = false;
+			antipode = descend(graph, face.nx, face.ny, face.nz, antipode,
+					level, mark);
+			final double min = dot(face.nx, face.ny, face.nz, antipode);
+			face.antipode = antipode;
+			checkWidth(face.offset - min, face.nx, face.ny, face.nz);
+			final int nLevel = getLevel(graph, face.nx, face.ny, face.nz,
+					antipode, level, mark);
+			for (int e = 0; e < 3; e++)
+				for (int i = 0; i < nLevel; i++)
+					checkDiameter(face.v[e], level[i]);
+		}
+
+		// each edge once, from the face in which it runs from lower index
+		for (Face f : hull) {
+			for (int e = 0; e < 3; e++) {
+				final int a = f.v[e];
+				final int b = f.v[(e + 1) % 3];
+				if (a < b)
+					turnEdge(f, f.neighbours[e], a, b, graph, level, mark);
+			}
+		}
+	}
+
+	/**
+	 * Descend the vertex graph to a vertex furthest back in a direction.
+	 * Coplanar points can be hull vertices inside a flat part of the surface,
+	 * where all their neighbours are level with them, so where there is no
+	 * lower neighbour the level region is searched for a way down.
+	 *
+	 * @return a vertex with the smallest dot product with (nx, ny, nz)
+	 */
+	private int descend(int[][] graph, double nx, double ny, double nz,
+			int v, int[] level, int[] mark) {
+		double min = dot(nx, ny, nz, v);
+		while (true) {
+			int lower = -1;
+			for (int n : graph[v]) {
+				final double dot = dot(nx, ny, nz, n);
+				if (dot < min) {
+					min = dot;
+					lower = n;
+				}
+			}
+			if (lower < 0) {
+				final int nLevel = getLevel(graph, nx, ny, nz, v, level, mark);
+				final double floor = min - 16 * tolerance;
+				for (int i = 0; i < nLevel; i++) {
+					for (int n : graph[level[i]]) {
+						final double dot = dot(nx, ny, nz, n);
+						if (dot < floor && (lower < 0 || dot < min)) {
+							min = dot;
+							lower = n;
+						}
+					}
+				}
+				if (lower < 0)
+					return v;
+			}
+			v = lower;
+		}
+	}
+
+	/**
+	 * Turn a supporting plane about edge a-b from face f to face g, following
+	 * the antipodal vertex, and check the width across each antipodal edge it
+	 * passes and the distances between the edge's ends and the antipodal
+	 * vertices
+	 */
+	private void turnEdge(Face f, Face g, int a, int b, int[][] graph,
+			int[] level, int[] mark) {
+		// normal n(t) = f + t (g - f), 0 <= t <= 1, not normalised
+		final double mx = g.nx - f.nx;
+		final double my = g.ny - f.ny;
+		final double mz = g.nz - f.nz;
+		int v = f.antipode;
+		double t = 0;
+		for (int step = 0; step < vertices.length; step++) {
+			final double[] pv = points[v];
+			int next = -1;
+			double nextT = Double.POSITIVE_INFINITY;
+			double nextSlope = 0;
+			for (int x : graph[v]) {
+				final double[] px = points[x];
+				final double dx = px[0] - pv[0];
+				final double dy = px[1] - pv[1];
+				final double dz = px[2] - pv[2];
+				final double slope = dx * mx + dy * my + dz * mz;
+				if (slope >= 0)
+					continue;
+				// x drops below v when the normal reaches n(tx)
+				final double height = dx * f.nx + dy * f.ny + dz * f.nz + t
+						* slope;
+				final double tx = t + Math.max(height, 0) / -slope;
+				if (tx < nextT || (tx == nextT && slope < nextSlope)) {
+					next = x;
+					nextT = tx;
+					nextSlope = slope;
+				}
+			}
+			if (next < 0 || nextT > 1)
+				return;
+			t = nextT;
+			double nx = f.nx + t * mx;
+			double ny = f.ny + t * my;
+			double nz = f.nz + t * mz;
+			final double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+			nx /= length;
+			ny /= length;
+			nz /= length;
+			// n(t) is normal to both edges, so the planes through them are
+			// parallel
+			checkWidth(dot(nx, ny, nz, a) - dot(nx, ny, nz, v), nx, ny, nz);
+			v = next;
+			final int nLevel = getLevel(graph, nx, ny, nz, v, level, mark);
+			for (int i = 0; i < nLevel; i++) {
+				checkDiameter(a, level[i]);
+				checkDiameter(b, level[i]);
+			}
+		}
+	}
+
+	/**
+	 * Find the vertices level with a vertex in a direction, i.e. within
+	 * rounding error of the same distance along it
+	 *
+	 * @param graph
+	 *            vertex adjacency graph
+	 * @param nx
+	 *            x component of the unit direction
+	 * @param ny
+	 *            y component
+	 * @param nz
+	 *            z component
+	 * @param seed
+	 *            vertex to start from
+	 * @param level
+	 *            filled with the level vertices, starting with seed
+	 * @param mark
+	 *            work array, one entry per point
+	 * @return number of level vertices
+	 */
+	private int getLevel(int[][] graph, double nx, double ny, double nz,
+			int seed, int[] level, int[] mark) {
+		final int stamp = ++levelStamp;
+		final double height = dot(nx, ny, nz, seed);
+		int nLevel = 0;
+		level[nLevel++] = seed;
+		mark[seed] = stamp;
+		for (int i = 0; i < nLevel; i++) {
+			for (int n : graph[level[i]]) {
+				if (mark[n] != stamp
+						&& Math.abs(dot(nx, ny, nz, n) - height) <= 16 * tolerance) {
+					mark[n] = stamp;
+					level[nLevel++] = n;
+				}
+			}
+		}
+		return nLevel;
+	}
+
+	private void checkWidth(double width, double nx, double ny, double nz) {
+		if (width < minWidth[0]) {
+			minWidth[0] = width;
+			minWidth[1] = nx;
+			minWidth[2] = ny;
+			minWidth[3] = nz;
+		}
+	}
+
+	private void checkDiameter(int a, int b) {
+		final double d = distanceSq(a, b);
+		if (d > diameterSq) {
+			diameterSq = d;
+			diameter[0] = a;
+			diameter[1] = b;
+		}
+	}
+
+	/**
+	 * @return the hull vertices adjacent to each point, indexed by point;
+	 *         null for points that are not vertices
+	 */
+	private int[][] getVertexGraph() {
+		final int nPoints = points.length;
+		int[] degree = new int[nPoints];
+		for (Face face : hull)
+			for (int e = 0; e < 3; e++)
+				degree[face.v[e]]++;
+		int[][] graph = new int[nPoints][];
+		for (int p = 0; p < nPoints; p++)
+			if (degree[p] > 0)
+				graph[p] = new int[degree[p]];
+		Arrays.fill(degree, 0);
+		for (Face face : hull) {
+			for (int e = 0; e < 3; e++) {
+				// each directed edge appears in exactly one face
+				final int a = face.v[e];
+				graph[a][degree[a]++] = face.v[(e + 1) % 3];
+			}
+		}
+		return graph;
+	}
+
+	private double dot(double nx, double ny, double nz, int p) {
+		final double[] point = points[p];
+		return nx * point[0] + ny * point[1] + nz * point[2];
+	}
+
+	private double dot(Face face, int p) {
+		return dot(face.nx, face.ny, face.nz, p);
+	}
+
+	private double distance(Face face, int p) {
+		return dot(face, p) - face.offset;
+	}
+
+	private void build() {
+		final int nPoints = points.length;
+		int[] simplex = initialSimplex();
+		if (simplex == null) {
+			// degenerate: collinear or coplanar points have no volume
+			setAllVertices();
+			return;
+		}
+		final int p0 = simplex[0], p1 = simplex[1], p2 = simplex[2], p3 = simplex[3];
+		Face[] faces = new Face[4];
+		faces[0] = newFace(p0, p1, p2);
+		if (distance(faces[0], p3) > 0) {
+			faces[0] = newFace(p0, p2, p1);
+			faces[1] = newFace(p0, p1, p3);
+			faces[2] = newFace(p1, p2, p3);
+			faces[3] = newFace(p2, p0, p3);
+		} else {
+			faces[1] = newFace(p0, p3, p1);
+			faces[2] = newFace(p1, p3, p2);
+			faces[3] = newFace(p2, p3, p0);
+		}
+		for (Face f : faces)
+			for (Face g : faces)
+				if (f != g)
+					link(f, g);
+
+		// assign each point to the first face it is outside of
+		for (int p = 0; p < nPoints; p++) {
+			if (p == p0 || p == p1 || p == p2 || p == p3)
+				continue;
+			for (Face f : faces) {
+				if (distance(f, p) > tolerance) {
+					f.addOutside(p);
+					break;
+				}
+			}
+		}
+
+		ArrayList<Face> pending = new ArrayList<Face>(Arrays.asList(faces));
+		ArrayList<Face> visible = new ArrayList<Face>();
+		ArrayList<Face> newFaces = new ArrayList<Face>();
+		HashMap<Integer, Face> byStart = new HashMap<Integer, Face>();
+		while (!pending.isEmpty()) {
+			Face face = pending.remove(pending.size() - 1);
+			if (face.deleted)
+				continue;
+			if (face.nOutside == 0) {
+				hull.add(face);
+				continue;
+			}
+			// the eye point is the outside point furthest from the face
+			int eye = face.outside[0];
+			double maxDistance = distance(face, eye);
+			for (int i = 1; i < face.nOutside; i++) {
+				final double dist = distance(face, face.outside[i]);
+				if (dist > maxDistance) {
+					maxDistance = dist;
+					eye = face.outside[i];
+				}
+			}
+
+			// find the faces that the eye can see
+			visible.clear();
+			face.visible = true;
+			visible.add(face);
+			for (int i = 0; i < visible.size(); i++) {
+				for (Face n : visible.get(i).neighbours) {
+					if (!n.visible && distance(n, eye) > tolerance) {
+						n.visible = true;
+						visible.add(n);
+					}
+				}
+			}
+
+			// a cone of new faces from the horizon to the eye
+			newFaces.clear();
+			byStart.clear();
+			for (Face v : visible) {
+				for (int e = 0; e < 3; e++) {
+					final Face n = v.neighbours[e];
+					if (n.visible)
+						continue;
+					final int a = v.v[e];
+					final int b = v.v[(e + 1) % 3];
+					Face f = newFace(a, b, eye);
+					f.neighbours[0] = n;
+					n.neighbours[n.edge(b, a)] = f;
+					newFaces.add(f);
+					if (byStart.put(a, f) != null)
+						throw new IllegalStateException("Horizon is not a loop");
+				}
+			}
+			for (Face f : newFaces) {
+				// edge b-eye is shared with the new face starting at b
+				Face g = byStart.get(f.v[1]);
+				if (g == null)
+					throw new IllegalStateException("Horizon is not a loop");
+				f.neighbours[1] = g;
+				g.neighbours[2] = f;
+			}
+
+			// hand the visible faces' outside points to the new faces
+			for (Face v : visible) {
+				v.deleted = true;
+				for (int i = 0; i < v.nOutside; i++) {
+					final int p = v.outside[i];
+					if (p == eye)
+						continue;
+					for (Face f : newFaces) {
+						if (distance(f, p) > tolerance) {
+							f.addOutside(p);
+							break;
+						}
+					}
+				}
+				v.outside = null;
+			}
+			pending.addAll(newFaces);
+		}
+
+		// faces without outside points may still be seen by a later eye point
+		ArrayList<Face> kept = new ArrayList<Face>(hull.size());
+		for (Face f : hull)
+			if (!f.deleted)
+				kept.add(f);
+		hull.clear();
+		hull.addAll(kept);
+
+		// collect the vertices
+		boolean[] isVertex = new boolean[nPoints];
+		int nVertices = 0;
+		for (Face f : hull) {
+			for (int e = 0; e < 3; e++) {
+				if (!isVertex[f.v[e]]) {
+					isVertex[f.v[e]] = true;
+					nVertices++;
+				}
+			}
+		}
+		vertices = new int[nVertices];
+		for (int p = 0, i = 0; p < nPoints; p++)
+			if (isVertex[p])
+				vertices[i++] = p;
+	}
+
+	/**
+	 * Find 4 points that make a tetrahedron of non-zero volume, starting with
+	 * the most distant pair of axial extreme points
+	 *
+	 * @return 4 point indices or null if the points are collinear or coplanar
+	 */
+	private int[] initialSimplex() {
+		final int nPoints = points.length;
+		int[] extremes = new int[6];
+		for (int p = 1; p < nPoints; p++) {
+			for (int d = 0; d < 3; d++) {
+				if (points[p][d] < points[extremes[2 * d]][d])
+					extremes[2 * d] = p;
+				if (points[p][d] > points[extremes[2 * d + 1]][d])
+					extremes[2 * d + 1] = p;
+			}
+		}
+		int p0 = 0, p1 = 0;
+		double max = 0;
+		for (int i = 0; i < 6; i++) {
+			for (int j = i + 1; j < 6; j++) {
+				final double d = distanceSq(extremes[i], extremes[j]);
+				if (d > max) {
+					max = d;
+					p0 = extremes[i];
+					p1 = extremes[j];
+				}
+			}
+		}
+		if (Math.sqrt(max) <= tolerance)
+			return null;
+
+		// furthest point from the line p0-p1
+		final double[] u = difference(p1, p0);
+		final double uLength = Math.sqrt(u[0] * u[0] + u[1] * u[1] + u[2]
+				* u[2]);
+		int p2 = 0;
+		max = 0;
+		for (int p = 0; p < nPoints; p++) {
+			final double[] c = cross(u, difference(p, p0));
+			final double d = Math.sqrt(c[0] * c[0] + c[1] * c[1] + c[2]
+					* c[2])
+					/ uLength;
+			if (d > max) {
+				max = d;
+				p2 = p;
+			}
+		}
+		if (max <= tolerance)
+			return null;
+
+		// furthest point from the plane p0-p1-p2
+		double[] n = cross(u, difference(p2, p0));
+		final double nLength = Math.sqrt(n[0] * n[0] + n[1] * n[1] + n[2]
+				* n[2]);
+		int p3 = 0;
+		max = 0;
+		for (int p = 0; p < nPoints; p++) {
+			final double[] v = difference(p, p0);
+			final double d = Math.abs(n[0] * v[0] + n[1] * v[1] + n[2] * v[2])
+					/ nLength;
+			if (d > max) {
+				max = d;
+				p3 = p;
+			}
+		}
+		if (max <= tolerance)
+			return null;
+		final int[] simplex = { p0, p1, p2, p3 };
+		return simplex;
+	}
+
+	private Face newFace(int a, int b, int c) {
+		Face f = new Face();
+		f.v[0] = a;
+		f.v[1] = b;
+		f.v[2] = c;
+		final double[] n = cross(difference(b, a), difference(c, a));
+		final double length = Math.sqrt(n[0] * n[0] + n[1] * n[1] + n[2]
+				* n[2]);
+		f.nx = n[0] / length;
+		f.ny = n[1] / length;
+		f.nz = n[2] / length;
+		// offset from the centroid of the face is more accurate than from a
+		// single vertex
+		final double[] pa = points[a], pb = points[b], pc = points[c];
+		f.offset = (f.nx * (pa[0] + pb[0] + pc[0]) + f.ny
+				* (pa[1] + pb[1] + pc[1]) + f.nz * (pa[2] + pb[2] + pc[2])) / 3;
+		return f;
+	}
+
+	/** make f and g neighbours if they share an edge */
+	private void link(Face f, Face g) {
+		for (int e = 0; e < 3; e++) {
+			final int h = g.edge(f.v[(e + 1) % 3], f.v[e]);
+			if (h >= 0) {
+				f.neighbours[e] = g;
+				g.neighbours[h] = f;
+			}
+		}
+	}
+
+	private double distanceSq(int a, int b) {
+		final double[] d = difference(a, b);
+		return d[0] * d[0] + d[1] * d[1] + d[2] * d[2];
+	}
+
+	private double[] difference(int a, int b) {
+		final double[] d = { points[a][0] - points[b][0],
+				points[a][1] - points[b][1], points[a][2] - points[b][2] };
+		return d;
+	}
+
+	private static double[] cross(double[] a, double[] b) {
+		final double[] c = { a[1] * b[2] - a[2] * b[1],
+				a[2] * b[0] - a[0] * b[2], a[0] * b[1] - a[1] * b[0] };
+		return c;
+	}
+}
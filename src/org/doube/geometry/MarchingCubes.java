@@ -0,0 +1,343 @@
+package org.doube.geometry;
+
+/**
+ * MarchingCubes class for ImageJ
+ * Copyright 2026 agent
+ *
+ *This program is free software: you can redistribute it and/or modify
+ *it under the terms of the GNU General Public License as published by
+ *the Free Software Foundation, either version 3 of the License, or
+ *(at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Isosurface extraction by marching cubes, producing an indexed {@link Mesh}
+ * whose vertices are shared between neighbouring cubes.
+ * </p>
+ * <p>
+ * The triangles of each of the 256 cube configurations are generated when the
+ * class is loaded. On each cube face the isosurface crosses 0, 2 or 4 edges;
+ * the crossings are joined in pairs, and where a face has two diagonally
+ * opposite inside corners the crossings are joined so that the inside
+ * corners are connected, as suits 26-connected foreground. The face segments
+ * link up into closed polygons around the cube, which are split into a fan
+ * of triangles. A polygon that passes through a face with diagonal inside
+ * corners is fanned around an extra vertex at its centre instead, so that no
+ * triangle edge lies in the face and is shared with the neighbouring cube's
+ * triangles. Because both cubes sharing a face join its crossings the same
+ * way, the mesh of a volume padded with outside values is a closed manifold
+ * with no cracks.
+ * </p>
+ *
+ * @author agent
+ * @see <p>
+ *      Lorensen WE, Cline HE (1987) Marching cubes: a high resolution 3D
+ *      surface construction algorithm. SIGGRAPH Comput Graph 21: 163-169. <a
+ *      href="http://dx.doi.org/10.1145/37402.37422"
+ *      >doi:10.1145/37402.37422</a>
+ *      </p>
+ */
+public class MarchingCubes {
+
+	/**
+	 * Corner c of a cube is at (c & 1, (c >> 1) & 1, (c >> 2) & 1). Edge e
+	 * joins corners EDGE_START[e] and EDGE_START[e] + (1 << EDGE_AXIS[e]).
+	 */
+	private static final int[] EDGE_START = { 0, 2, 4, 6, 0, 1, 4, 5, 0, 1,
+			2, 3 };
+
+	/** axis (0 = x, 1 = y, 2 = z) along which each edge runs */
+	private static final int[] EDGE_AXIS = { 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2,
+			2 };
+
+	/**
+	 * vertices of the triangles of each configuration, 3 per triangle: edges
+	 * 0 to 11, or 12 + k for the centre of the configuration's kth polygon in
+	 * CENTRES
+	 */
+	private static final int[][] TRIANGLES = new int[256][];
+
+	/** edges round each polygon that is fanned round its centre */
+	private static final int[][][] CENTRES = new int[256][][];
+
+	static {
+		makeTriangles();
+	}
+
+	private MarchingCubes() {
+	}
+
+	/**
+	 * Extract the isosurface of an 8-bit volume
+	 *
+	 * @param slices
+	 *            unsigned 8-bit values, one byte[w * h] per slice. Voxels on
+	 *            the volume's faces should be outside for the mesh to be
+	 *            closed.
+	 * @param w
+	 *            width of the slices
+	 * @param h
+	 *            height of the slices
+	 * @param threshold
+	 *            values >= threshold are inside
+	 * @param origin
+	 *            position of voxel (0, 0, 0)
+	 * @param spacing
+	 *            distance between voxel centres in x, y and z
+	 * @return mesh with outward-facing triangles; vertices are placed on cube
+	 *         edges by linear interpolation of voxel values
+	 */
+	public static Mesh getMesh(final byte[][] slices, final int w,
+			final int h, final int threshold, final double[] origin,
+			final double[] spacing) {
+		final int d = slices.length;
+		final int wh = w * h;
+		float[] vertices = new float[3 * 1024];
+		int nVertices = 0;
+		int[] faces = new int[3 * 1024];
+		int nFaceIndices = 0;
+
+		// vertex index on each edge starting at each voxel: x and y edges of
+		// the cube's bottom (0) and top (1) slices, and z edges between them
+		int[][] xEdges = new int[2][wh];
+		int[][] yEdges = new int[2][wh];
+		int[] zEdges = new int[wh];
+		Arrays.fill(xEdges[1], -1);
+		Arrays.fill(yEdges[1], -1);
+
+		final int[] values = new int[8];
+		final int[] cubeVertices = new int[16];
+		for (int z = 0; z < d - 1; z++) {
+			// the last cube layer's top is this layer's bottom
+			int[] swap = xEdges[0];
+			xEdges[0] = xEdges[1];
+			xEdges[1] = swap;
+			swap = yEdges[0];
+			yEdges[0] = yEdges[1];
+			yEdges[1] = swap;
+			Arrays.fill(xEdges[1], -1);
+			Arrays.fill(yEdges[1], -1);
+			Arrays.fill(zEdges, -1);
+			final byte[] bottom = slices[z];
+			final byte[] top = slices[z + 1];
+			for (int y = 0; y < h - 1; y++) {
+				for (int x = 0; x < w - 1; x++) {
+					final int i = y * w + x;
+					values[0] = bottom[i] & 0xFF;
+					values[1] = bottom[i + 1] & 0xFF;
+					values[2] = bottom[i + w] & 0xFF;
+					values[3] = bottom[i + w + 1] & 0xFF;
+					values[4] = top[i] & 0xFF;
+					values[5] = top[i + 1] & 0xFF;
+					values[6] = top[i + w] & 0xFF;
+					values[7] = top[i + w + 1] & 0xFF;
+					int config = 0;
+					for (int c = 0; c < 8; c++) {
+						if (values[c] >= threshold)
+							config |= 1 << c;
+					}
+					if (config == 0 || config == 255)
+						continue;
+
+					// find or make the vertex on each crossed edge
+					final int[] triangles = TRIANGLES[config];
+					final int nIndices = triangles.length;
+					Arrays.fill(cubeVertices, -1);
+					for (int t = 0; t < nIndices; t++) {
+						final int e = triangles[t];
+						if (e >= 12 || cubeVertices[e] >= 0)
+							continue;
+						final int start = EDGE_START[e];
+						final int axis = EDGE_AXIS[e];
+						final int sx = x + (start & 1);
+						final int sy = y + ((start >> 1) & 1);
+						final int sz = (start >> 2) & 1;
+						final int si = sy * w + sx;
+						int[] edges;
+						if (axis == 0)
+							edges = xEdges[sz];
+						else if (axis == 1)
+							edges = yEdges[sz];
+						else
+							edges = zEdges;
+						int v = edges[si];
+						if (v < 0) {
+							final int a = values[start];
+							final int b = values[start + (1 << axis)];
+							final double f = (double) (threshold - a)
+									/ (double) (b - a);
+							final double px = sx + (axis == 0 ? f : 0);
+							final double py = sy + (axis == 1 ? f : 0);
+							final double pz = z + sz + (axis == 2 ? f : 0);
+							if (3 * nVertices + 3 > vertices.length)
+								vertices = Arrays.copyOf(vertices,
+										vertices.length * 2);
+							vertices[3 * nVertices] = (float) (origin[0] + px
+									* spacing[0]);
+							vertices[3 * nVertices + 1] = (float) (origin[1] + py
+									* spacing[1]);
+							vertices[3 * nVertices + 2] = (float) (origin[2] + pz
+									* spacing[2]);
+							v = nVertices;
+							nVertices++;
+							edges[si] = v;
+						}
+						cubeVertices[e] = v;
+					}
+
+					// centre vertices, which belong to this cube only
+					final int[][] centres = CENTRES[config];
+					for (int k = 0; k < centres.length; k++) {
+						final int[] polygon = centres[k];
+						if (3 * nVertices + 3 > vertices.length)
+							vertices = Arrays.copyOf(vertices,
+									vertices.length * 2);
+						for (int j = 0; j < 3; j++) {
+							double sum = 0;
+							for (int e : polygon)
+								sum += vertices[3 * cubeVertices[e] + j];
+							vertices[3 * nVertices + j] = (float) (sum / polygon.length);
+						}
+						cubeVertices[12 + k] = nVertices;
+						nVertices++;
+					}
+
+					if (nFaceIndices + nIndices > faces.length)
+						faces = Arrays.copyOf(faces,
+								Math.max(faces.length * 2, nFaceIndices
+										+ nIndices));
+					for (int t = 0; t < nIndices; t++)
+						faces[nFaceIndices++] = cubeVertices[triangles[t]];
+				}
+			}
+		}
+		return new Mesh(Arrays.copyOf(vertices, 3 * nVertices),
+				Arrays.copyOf(faces, nFaceIndices));
+	}
+
+	/**
+	 * Generate the triangles of each cube configuration (bit c set if corner c
+	 * is inside) into TRIANGLES and CENTRES, wound counter-clockwise when seen
+	 * from outside
+	 */
+	private static void makeTriangles() {
+		// edge joining each pair of corners
+		int[][] edgeOf = new int[8][8];
+		for (int e = 0; e < 12; e++) {
+			final int a = EDGE_START[e];
+			final int b = a + (1 << EDGE_AXIS[e]);
+			edgeOf[a][b] = e;
+			edgeOf[b][a] = e;
+		}
+
+		// corners of each face, counter-clockwise seen from outside
+		int[][] faceCorners = new int[6][4];
+		for (int axis = 0; axis < 3; axis++) {
+			final int u = (axis + 1) % 3;
+			final int v = (axis + 2) % 3;
+			for (int side = 0; side < 2; side++) {
+				final int base = side << axis;
+				// (u, v, axis) is right-handed, so u, then v, is
+				// counter-clockwise seen from +axis
+				int[] corners = { base, base | 1 << u, base | 1 << u | 1 << v,
+						base | 1 << v };
+				if (side == 0) {
+					corners = new int[] { corners[0], corners[3], corners[2],
+							corners[1] };
+				}
+				faceCorners[2 * axis + side] = corners;
+			}
+		}
+
+		int[] next = new int[12];
+		boolean[] onDiagonal = new boolean[12];
+		int[] polygon = new int[12];
+		boolean[] in = new boolean[4];
+		for (int config = 0; config < 256; config++) {
+			// walking round each face, the surface enters the inside at one
+			// crossing and leaves it at another; join each entry to its exit
+			Arrays.fill(next, -1);
+			Arrays.fill(onDiagonal, false);
+			for (int f = 0; f < 6; f++) {
+				final int[] c = faceCorners[f];
+				int nInside = 0;
+				for (int k = 0; k < 4; k++) {
+					in[k] = (config >> c[k] & 1) == 1;
+					if (in[k])
+						nInside++;
+				}
+				final boolean diagonal = nInside == 2 && in[0] == in[2];
+				int entry = -1, exit = -1;
+				for (int k = 0; k < 4; k++) {
+					final int after = (k + 1) % 4;
+					if (in[k] == in[after])
+						continue;
+					final int edge = edgeOf[c[k]][c[after]];
+					if (in[after]) {
+						entry = edge;
+					} else {
+						exit = edge;
+						if (diagonal) {
+							// cut off the outside corner c[after], so that
+							// the inside corners stay joined
+							next[edgeOf[c[after]][c[(k + 2) % 4]]] = edge;
+							onDiagonal[edge] = true;
+						}
+					}
+				}
+				if (!diagonal && entry >= 0)
+					next[entry] = exit;
+			}
+
+			// follow the segments round each polygon and split it into
+			// triangles
+			int[] triangles = new int[0];
+			int[][] centres = new int[0][];
+			for (int e = 0; e < 12; e++) {
+				if (next[e] < 0)
+					continue;
+				int n = 0;
+				boolean fanFromCentre = false;
+				for (int edge = e; next[edge] >= 0;) {
+					polygon[n++] = edge;
+					fanFromCentre |= onDiagonal[edge];
+					final int following = next[edge];
+					next[edge] = -1;
+					edge = following;
+				}
+				final int offset = triangles.length;
+				if (fanFromCentre && n > 3) {
+					final int centre = 12 + centres.length;
+					centres = Arrays.copyOf(centres, centres.length + 1);
+					centres[centres.length - 1] = Arrays.copyOf(polygon, n);
+					triangles = Arrays.copyOf(triangles, offset + 3 * n);
+					for (int t = 0; t < n; t++) {
+						triangles[offset + 3 * t] = centre;
+						triangles[offset + 3 * t + 1] = polygon[t];
+						triangles[offset + 3 * t + 2] = polygon[(t + 1) % n];
+					}
+				} else {
+					triangles = Arrays.copyOf(triangles, offset + 3 * (n - 2));
+					for (int t = 0; t < n - 2; t++) {
+						triangles[offset + 3 * t] = polygon[0];
+						triangles[offset + 3 * t + 1] = polygon[t + 1];
+						triangles[offset + 3 * t + 2] = polygon[t + 2];
+					}
+				}
+			}
+			TRIANGLES[config] = triangles;
+			CENTRES[config] = centres;
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package org.doube.geometry;
+
+/**
+ * Mesh class for ImageJ
+ * Copyright 2026 agent
+ *
+ *This program is free software: you can redistribute it and/or modify
+ *it under the terms of the GNU General Public License as published by
+ *the Free Software Foundation, either version 3 of the License, or
+ *(at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * <p>
+ * Indexed triangle mesh held in two primitive arrays: vertex coordinates
+ * (x, y, z for each vertex) and faces (3 vertex indices for each triangle).
+ * Each vertex is stored once however many triangles share it, unlike a
+ * triangle list in which every triangle carries its own copies of its
+ * corners.
+ * </p>
+ * <p>
+ * Faces are wound counter-clockwise when seen from outside, so normals point
+ * outwards and the volume of a closed mesh is positive.
+ * </p>
+ *
+ * @author agent
+ */
+public class Mesh {
+
+	/** x, y and z of each vertex */
+	private final float[] vertices;
+
+	/** indices of the 3 vertices of each triangle */
+	private final int[] faces;
+
+	/**
+	 * @param vertices
+	 *            x, y and z of each vertex
+	 * @param faces
+	 *            indices of the 3 vertices of each triangle
+	 */
+	public Mesh(float[] vertices, int[] faces) {
+		this.vertices = vertices;
+		this.faces = faces;
+	}
+
+	/**
+	 * @return x, y and z of each vertex; not a copy
+	 */
+	public float[] getVertices() {
+		return vertices;
+	}
+
+	/**
+	 * @return indices of the 3 vertices of each triangle; not a copy
+	 */
+	public int[] getFaces() {
+		return faces;
+	}
+
+	public int getNVertices() {
+		return vertices.length / 3;
+	}
+
+	public int getNTriangles() {
+		return faces.length / 3;
+	}
+
+	/**
+	 * @return double[nVertices][3] containing vertex coordinates
+	 */
+	public double[][] getVertexCoordinates() {
+		final int nVertices = getNVertices();
+		double[][] coordinates = new double[nVertices][3];
+		for (int v = 0; v < nVertices; v++) {
+			coordinates[v][0] = vertices[3 * v];
+			coordinates[v][1] = vertices[3 * v + 1];
+			coordinates[v][2] = vertices[3 * v + 2];
+		}
+		return coordinates;
+	}
+
+	/**
+	 * @return sum of the areas of the triangles
+	 */
+	public double getSurfaceArea() {
+		double sumArea = 0;
+		final int nFaces = faces.length;
+		for (int f = 0; f < nFaces; f += 3) {
+			final int a = 3 * faces[f];
+			final int b = 3 * faces[f + 1];
+			final int c = 3 * faces[f + 2];
+			final double x1 = vertices[b] - vertices[a];
+			final double y1 = vertices[b + 1] - vertices[a + 1];
+			final double z1 = vertices[b + 2] - vertices[a + 2];
+			final double x2 = vertices[c] - vertices[a];
+			final double y2 = vertices[c + 1] - vertices[a + 1];
+			final double z2 = vertices[c + 2] - vertices[a + 2];
+			final double cx = y1 * z2 - z1 * y2;
+			final double cy = z1 * x2 - x1 * z2;
+			final double cz = x1 * y2 - y1 * x2;
+			sumArea += 0.5 * Math.sqrt(cx * cx + cy * cy + cz * cz);
+		}
+		return sumArea;
+	}
+
+	/**
+	 * Get the signed volume enclosed by the mesh, as the sum of the signed
+	 * volumes of the tetrahedra formed by each triangle and the origin. The
+	 * result is only meaningful for closed meshes.
+	 *
+	 * @return enclosed volume, positive if faces are wound counter-clockwise
+	 *         seen from outside
+	 */
+	public double getVolume() {
+		double sumVolume = 0;
+		final int nFaces = faces.length;
+		for (int f = 0; f < nFaces; f += 3) {
+			final int a = 3 * faces[f];
+			final int b = 3 * faces[f + 1];
+			final int c = 3 * faces[f + 2];
+			// a . (b x c)
+			final double cx = vertices[b + 1] * vertices[c + 2]
+					- vertices[b + 2] * vertices[c + 1];
+			final double cy = vertices[b + 2] * vertices[c] - vertices[b]
+					* vertices[c + 2];
+			final double cz = vertices[b] * vertices[c + 1] - vertices[b + 1]
+					* vertices[c];
+			sumVolume += vertices[a] * cx + vertices[a + 1] * cy
+					+ vertices[a + 2] * cz;
+		}
+		return sumVolume / 6;
+	}
+}
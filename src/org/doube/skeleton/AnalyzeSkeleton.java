@@ -2,11 +2,15 @@ package org.doube.skeleton;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.ListIterator;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.doube.util.ImageCheck;
+import org.doube.util.Multithreader;
 import org.doube.util.UsageReporter;
 
 import ij.IJ;
@@ -209,6 +213,12 @@ public class AnalyzeSkeleton implements PlugInFilter
 	/** debugging flag */
 	private static final boolean debug = false;
 	
+	/** fewest vertices in a graph for which shortest paths are found in parallel */
+	private static final int MIN_PARALLEL_VERTICES = 64;
+	
+	/** relative difference below which path lengths count as equal */
+	private static final double LENGTH_TOLERANCE = 1e-12;
+	
 	/* -----------------------------------------------------------------------*/
 	/**
 	 * This method is called once when the filter is loaded.
@@ -408,12 +418,12 @@ public class AnalyzeSkeleton implements PlugInFilter
 			
 			shortestPathList = new ArrayList < Double >();
 			// Visit skeleton and measure distances.
-			// and apply warshall algorithm
+			// and find the longest shortest path
 			spStartPosition = new double[this.numOfTrees][3];
 			for(int i = 0; i < this.numOfTrees; i++)
 			{							
-				// Warshall algorithm including tag positions
-				this.shortestPath = warshallAlgorithm(this.graph[i]);
+				// longest shortest path including tag positions
+				this.shortestPath = longestShortestPath(this.graph[i]);
 				shortestPathList.add(this.shortestPath);
 				spStartPosition[i][0] = spx * this.imRef.getCalibration().pixelWidth;
 				spStartPosition[i][1] = spy * this.imRef.getCalibration().pixelHeight;
@@ -2732,183 +2742,388 @@ public class AnalyzeSkeleton implements PlugInFilter
 	
 
 	/**
-	 * Determine the longest shortest path using the APSP (all pairs shortest path) 
-	 * warshall algorithm
+	 * Determine the longest shortest path of a graph from its sparse
+	 * adjacency lists. Trees are measured exactly by sweeps from the ends of
+	 * the diameter; other graphs by Dijkstra's algorithm from each vertex,
+	 * run in parallel.
+	 * 
+	 * This gives the same result as the all pairs shortest path Floyd-Warshall
+	 * algorithm that it replaces, which uses the last of several edges between
+	 * two vertices, counts a vertex whose last edge is a loop as a path to
+	 * itself, and takes the first longest path in vertex order.
 	 * 
 	 * @param graph the graph of a tree
 	 * @return longest shortest path length
 	 * @author Huub Hovens
 	 */
-	private double warshallAlgorithm(Graph graph)
+	private double longestShortestPath(Graph graph)
 	{
-		// local fields
-		/** vertex 1 of an edge */
-		Vertex v1 = null;
-		/** vertex 2 of an edge */
-		Vertex v2 = null;
-		/** the equivalent of row in a matrix */
-		int row = 0;
-		/** the equivalent of column in a matrix */
-		int column = 0;
-		/** the value of the longest shortest path */
-		double maxPath = 0;
-		/** row that contains the longest shortest path value */
-		int a = 0;
-		/** column that contains the longest shortest path value */
-		int b = 0;
-
 		ArrayList< Edge > edgeList = graph.getEdges();
 		ArrayList< Vertex > vertexList = graph.getVertices();
-
-		//create empty adjacency and predecessor matrix
-
-		/** the matrix that contains the length of the shortest path from vertex a to vertex b */
-		double[][] adjacencyMatrix = new double[vertexList.size()][vertexList.size()];
-		/** the matrix that contains the predecessor vertex of vertex b in the shortest path from vertex a to b */
-		int[][] predecessorMatrix = new int[vertexList.size()][vertexList.size()];
-
-		// initial conditions for both matrices
-		/*
-		 * create 2D-adjacency array with the distance between the nodes.
-		 * distance i --> i = 0
-		 * distance i -/> j = infinite (edge does not exist)
-		 * distance i --> j = length of branch
-		 */
-
-		/*
-		 * create 2D-predecessor array using interconnected vertices.
-		 * the predecessor matrix contains the predecessor of j in a path from node i to j.
-		 * distance i --> i = NIL (there is no edge between a single vertex)
-		 * distance i -/> j = NIL (there is no edge between the vertices)
-		 * distance i --> j = i (the initial matrix only contains paths with a single edge)
-		 * 
-		 * I'm using -1 as NIL since it cannot refer to an index (and thus a vertex)
-		 */
-
-		// applying initial conditions
-		for(int i = 0 ; i < vertexList.size(); i++)
-		{
-			for(int j = 0 ; j < vertexList.size(); j++)
-			{
-				adjacencyMatrix[i][j]= Double.POSITIVE_INFINITY;
-				predecessorMatrix[i][j]= -1;
-			}
-		}
-
-
+		final int nVertices = vertexList.size();
+		
+		HashMap< Vertex, Integer > vertexIndex = new HashMap< Vertex, Integer >();
+		for (int i = 0; i < nVertices; i++)
+			if (!vertexIndex.containsKey(vertexList.get(i)))
+				vertexIndex.put(vertexList.get(i), i);
+
+		// vertices and length of each edge, and the length of the path from
+		// each vertex to itself: infinite without edges, 0 or the length of
+		// the loop if a loop is its last edge
+		final int[] v1 = new int[edgeList.size()];
+		final int[] v2 = new int[edgeList.size()];
+		final double[] lengths = new double[edgeList.size()];
+		final double[] loops = new double[nVertices];
+		Arrays.fill(loops, Double.POSITIVE_INFINITY);
+		int nEdges = 0;
 		for (Edge edge : edgeList)
 		{
-			v1 = edge.getV1();
-			v2 = edge.getV2();
-			// use the index of the vertices as the index in the matrix
-			row = vertexList.indexOf(v1);
-			if(row == -1)
+			Integer row = vertexIndex.get(edge.getV1());
+			if(row == null)
 			{
-				IJ.log("Vertex " + v1.getPoints().get(0) + " not found in the list of vertices!");
+				IJ.log("Vertex " + edge.getV1().getPoints().get(0) + " not found in the list of vertices!");
 				continue;
 			}
-			
-			column = vertexList.indexOf(v2);
-			if(column == -1)
+			Integer column = vertexIndex.get(edge.getV2());
+			if(column == null)
 			{
-				IJ.log("Vertex " + v2.getPoints().get(0) + " not found in the list of vertices!");
+				IJ.log("Vertex " + edge.getV2().getPoints().get(0) + " not found in the list of vertices!");
+				continue;
+			}
+			loops[row] = 0;
+			loops[column] = 0;
+			if (row.intValue() == column.intValue())
+				loops[row] = edge.getLength();
+			v1[nEdges] = row;
+			v2[nEdges] = column;
+			lengths[nEdges] = edge.getLength();
+			nEdges++;
+		}
+		
+		// adjacency lists, keeping only the last edge between two vertices
+		final int[] degree = new int[nVertices];
+		for (int e = 0; e < nEdges; e++)
+		{
+			if (v1[e] == v2[e])
 				continue;
+			degree[v1[e]]++;
+			degree[v2[e]]++;
+		}
+		final int[] start = new int[nVertices + 1];
+		for (int i = 0; i < nVertices; i++)
+			start[i + 1] = start[i] + degree[i];
+		final int[] neighbors = new int[start[nVertices]];
+		final double[] weights = new double[start[nVertices]];
+		final int[] end = Arrays.copyOf(start, nVertices);
+		for (int e = nEdges - 1; e >= 0; e--)
+		{
+			if (v1[e] == v2[e])
+				continue;
+			neighbors[end[v1[e]]] = v2[e];
+			weights[end[v1[e]]++] = lengths[e];
+			neighbors[end[v2[e]]] = v1[e];
+			weights[end[v2[e]]++] = lengths[e];
+		}
+		// later edges come first; drop the earlier edges to the same neighbor,
+		// marking neighbors already kept with i
+		final int[] kept = new int[nVertices];
+		Arrays.fill(kept, -1);
+		for (int i = 0; i < nVertices; i++)
+		{
+			int k = start[i];
+			for (int e = start[i]; e < end[i]; e++)
+			{
+				final int n = neighbors[e];
+				if (kept[n] == i)
+					continue;
+				kept[n] = i;
+				neighbors[k] = n;
+				weights[k] = weights[e];
+				k++;
 			}
+			end[i] = k;
+		}
+		int nPairs = 0;
+		boolean hasLoops = false;
+		for (int i = 0; i < nVertices; i++)
+		{
+			nPairs += end[i] - start[i];
+			hasLoops |= loops[i] > 0 && loops[i] != Double.POSITIVE_INFINITY;
+		}
+		nPairs /= 2;
+		
+		final SparseGraph sparse = new SparseGraph(start, end, neighbors, weights);
+		double[] distances = new double[nVertices];
+		int[] predecessors = new int[nVertices];
 
-			/* 
-			 * the diagonal is 0. 
-			 * 
-			 * Because not every vertex is a 'v1 vertex' 
-			 * the [column][column] statement is needed as well.
-			 *
-			 * in an undirected graph the adjacencyMatrix is symmetric 
-			 * thus A = Transpose(A)
-			 */
-			adjacencyMatrix[row][row] = 0;
-			adjacencyMatrix[column][column] = 0;
-			adjacencyMatrix[row][column] = edge.getLength();
-			adjacencyMatrix[column][row] = edge.getLength();
-
-			/* 
-			 * the diagonal remains -1.
-			 * for the rest I use the index of the vertex so I can later refer to the vertexList
-			 * for the correct information
-			 * 
-			 * Determining what belongs where requires careful consideration of the definition
-			 * 
-			 * the array contains the predecessor of "column" in a path from "row" to "column"
-			 * therefore in the other statement it is the other way around.   
-			 */
-			predecessorMatrix[row][row] = -1;
-			predecessorMatrix[column][column] = -1;
-			predecessorMatrix[row][column] = row;
-			predecessorMatrix[column][row] = column;
+		/** the value of the longest shortest path */
+		double maxPath = 0;
+		/** vertex that starts the longest shortest path */
+		int a = 0;
+		/** vertex that ends the longest shortest path */
+		int b = 0;
+		
+		boolean isTree = false;
+		if (nVertices > 0 && nPairs == nVertices - 1 && !hasLoops)
+		{
+			// a connected graph with one edge fewer than vertices
+			sparse.sweep(0, distances, predecessors);
+			isTree = true;
+			for (int i = 0; i < nVertices; i++)
+				isTree &= distances[i] != Double.POSITIVE_INFINITY;
+		}
+		if (isTree)
+		{
+			// the farthest vertex from any vertex ends a diameter, and the
+			// eccentricity of every vertex is its distance to one of the ends
+			final int u = Math.max(0, longest(distances));
+			final double[] fromU = new double[nVertices];
+			sparse.sweep(u, fromU, predecessors);
+			final int v = Math.max(0, longest(fromU));
+			sparse.sweep(v, distances, predecessors);
+			final double[] eccentricities = new double[nVertices];
+			for (int i = 0; i < nVertices; i++)
+				eccentricities[i] = Math.max(fromU[i], distances[i]);
+			a = Math.max(0, longest(eccentricities));
+			sparse.sweep(a, distances, predecessors);
+		}
+		else
+		{
+			// the longest shortest path from each vertex
+			final double[] rowMax = new double[nVertices];
+			final AtomicInteger ai = new AtomicInteger(0);
+			Runnable rows = new Runnable() {
+				public void run() {
+					double[] dist = new double[nVertices];
+					int[] pred = new int[nVertices];
+					for (int i = ai.getAndIncrement(); i < nVertices; i = ai.getAndIncrement())
+					{
+						sparse.dijkstra(i, dist, pred);
+						addLoop(i, loops[i], dist);
+						final int end = longest(dist);
+						rowMax[i] = end >= 0 ? dist[end] : 0;
+					}
+				}
+			};
+			if (nVertices < MIN_PARALLEL_VERTICES)
+				rows.run();
+			else
+				Multithreader.startTask(rows, Math.min(nVertices, Runtime
+						.getRuntime().availableProcessors()));
+			a = Math.max(0, longest(rowMax));
+			sparse.dijkstra(a, distances, predecessors);
+			if (nVertices > 0)
+				addLoop(a, loops[a], distances);
 		}
-		// matrices now have their initial conditions
+		b = longest(distances);
+		if (b >= 0)
+			maxPath = distances[b];
+		else
+			b = 0;
 
+		// trace back the longest shortest path
+		reconstructPath(predecessors, a, b, edgeList, vertexList);
 
-		// the warshall algorithm with k as candidate vertex and i and j walk through the adjacencyMatrix
-		// the predecessor matrix is updated at the same time. 
+		// !important return maxPath;
+		return maxPath;
 
-		for(int k = 0 ; k < vertexList.size(); k++)
-		{				
-			for(int i = 0 ; i < vertexList.size(); i++)
-			{								
-				for(int j = 0 ; j < vertexList.size(); j++)
+	}
+	// end method longestShortestPath
+	
+	/**
+	 * Find the first of the longest paths in a list of path lengths, ignoring
+	 * unreachable vertices and paths of 0 length. Lengths that differ from
+	 * the longest only by rounding count as equally long, because path
+	 * lengths summed in a different order may differ in the last bits.
+	 * 
+	 * @param lengths path lengths
+	 * @return index of the first longest path, or -1 if there is none
+	 */
+	private static int longest(double[] lengths)
+	{
+		double max = 0;
+		for (int i = 0; i < lengths.length; i++)
+			if (lengths[i] > max && lengths[i] != Double.POSITIVE_INFINITY)
+				max = lengths[i];
+		if (max == 0)
+			return -1;
+		final double min = max - max * LENGTH_TOLERANCE;
+		for (int i = 0; i < lengths.length; i++)
+			if (lengths[i] >= min && lengths[i] != Double.POSITIVE_INFINITY)
+				return i;
+		return -1;
+	}
+	
+	/**
+	 * Count a vertex's loop as a path from the vertex to itself, unless going
+	 * to the nearest vertex and back is shorter
+	 * 
+	 * @param i index of the vertex
+	 * @param loop length of the loop, 0 if the vertex's last edge is not a
+	 *        loop
+	 * @param distances shortest path lengths from the vertex
+	 */
+	private static void addLoop(int i, double loop, double[] distances)
+	{
+		if (loop <= 0 || loop == Double.POSITIVE_INFINITY)
+			return;
+		double nearest = Double.POSITIVE_INFINITY;
+		for (int j = 0; j < distances.length; j++)
+			if (j != i)
+				nearest = Math.min(nearest, distances[j]);
+		distances[i] = Math.min(loop, 2 * nearest);
+	}
+	
+	/**
+	 * Undirected weighted graph stored as adjacency lists, for single source
+	 * shortest paths
+	 */
+	private static class SparseGraph
+	{
+		/** first entry of each vertex's neighbors in neighbors and weights */
+		private final int[] start;
+		/** 1 + last entry of each vertex's neighbors */
+		private final int[] end;
+		private final int[] neighbors;
+		private final double[] weights;
+		
+		SparseGraph(int[] start, int[] end, int[] neighbors, double[] weights)
+		{
+			this.start = start;
+			this.end = end;
+			this.neighbors = neighbors;
+			this.weights = weights;
+		}
+		
+		/**
+		 * Path lengths from a source in a tree, in which there is only one
+		 * path to each vertex
+		 * 
+		 * @param source index of the source vertex
+		 * @param distances filled with the path length to each vertex
+		 * @param predecessors filled with the vertex before each vertex on
+		 *        its path from the source, -1 for the source and
+		 *        unreachable vertices
+		 */
+		void sweep(int source, double[] distances, int[] predecessors)
+		{
+			Arrays.fill(distances, Double.POSITIVE_INFINITY);
+			Arrays.fill(predecessors, -1);
+			int[] stack = new int[distances.length];
+			int size = 0;
+			distances[source] = 0;
+			stack[size++] = source;
+			while (size > 0)
+			{
+				final int u = stack[--size];
+				for (int e = start[u]; e < end[u]; e++)
 				{
-					if(adjacencyMatrix[i][k] + adjacencyMatrix[k][j] < adjacencyMatrix[i][j])
-					{
-						adjacencyMatrix[i][j] = adjacencyMatrix[i][k] + adjacencyMatrix[k][j];
-						predecessorMatrix[i][j] = predecessorMatrix[k][j];
-
-					}					
+					final int v = neighbors[e];
+					if (distances[v] != Double.POSITIVE_INFINITY)
+						continue;
+					distances[v] = distances[u] + weights[e];
+					predecessors[v] = u;
+					stack[size++] = v;
 				}
 			}
 		}
-
-		// find the maximum of all shortest paths
-		for(int i = 0; i < vertexList.size(); i++)
+		
+		/**
+		 * Shortest path lengths from a source, by Dijkstra's algorithm with a
+		 * binary heap
+		 * 
+		 * @param source index of the source vertex
+		 * @param distances filled with the shortest path length to each vertex
+		 * @param predecessors filled with the vertex before each vertex on
+		 *        its shortest path from the source, -1 for the source and
+		 *        unreachable vertices
+		 */
+		void dijkstra(int source, double[] distances, int[] predecessors)
 		{
-			for(int j = 0; j < vertexList.size(); j++)
+			Arrays.fill(distances, Double.POSITIVE_INFINITY);
+			Arrays.fill(predecessors, -1);
+			// heap of (path length, vertex), with stale entries skipped when
+			// they are taken
+			double[] keys = new double[16];
+			int[] values = new int[16];
+			int size = 0;
+			distances[source] = 0;
+			keys[0] = 0;
+			values[0] = source;
+			size = 1;
+			while (size > 0)
 			{
-				// sometimes infinities still remain				
-				if (adjacencyMatrix[i][j] > maxPath && adjacencyMatrix[i][j] != Double.POSITIVE_INFINITY)
+				final double du = keys[0];
+				final int u = values[0];
+				// move the last entry to the root and sift it down
+				size--;
+				final double key = keys[size];
+				final int value = values[size];
+				int i = 0;
+				while (true)
 				{
-					maxPath = adjacencyMatrix[i][j];
-					a = i;
-					b = j;
-
+					int child = 2 * i + 1;
+					if (child >= size)
+						break;
+					if (child + 1 < size && keys[child + 1] < keys[child])
+						child++;
+					if (keys[child] >= key)
+						break;
+					keys[i] = keys[child];
+					values[i] = values[child];
+					i = child;
+				}
+				keys[i] = key;
+				values[i] = value;
+				
+				if (du > distances[u])
+					continue;
+				for (int e = start[u]; e < end[u]; e++)
+				{
+					final int v = neighbors[e];
+					final double dv = du + weights[e];
+					if (dv >= distances[v])
+						continue;
+					distances[v] = dv;
+					predecessors[v] = u;
+					// add to the end and sift up
+					if (size == keys.length)
+					{
+						keys = Arrays.copyOf(keys, size * 2);
+						values = Arrays.copyOf(values, size * 2);
+					}
+					int j = size++;
+					while (j > 0 && keys[(j - 1) / 2] > dv)
+					{
+						keys[j] = keys[(j - 1) / 2];
+						values[j] = values[(j - 1) / 2];
+						j = (j - 1) / 2;
+					}
+					keys[j] = dv;
+					values[j] = v;
 				}
 			}
 		}
-
-		// trace back the longest shortest path
-		reconstructPath(predecessorMatrix, a, b, edgeList, vertexList);
-
-		// !important return maxPath;
-		return maxPath;
-
 	}
-	// end method warshallAlgorithm
 	
 	/**
-	 * Reconstruction and visualisation of the longest shortest path found by the APSP warshall algorithm
+	 * Reconstruction and visualisation of the longest shortest path
 	 *  
-	 * @param predecessorMatrix the Matrix which contains the predecessor of vertex b in the shortest path from a to b
-	 * @param startIndex the index of the row which contains the longest shortest path
-	 * @param endIndex the index of the column which contains the longest shortest path
+	 * @param predecessors the predecessor of each vertex in the shortest path from the start vertex to it
+	 * @param startIndex the index of the vertex that starts the longest shortest path
+	 * @param endIndex the index of the vertex that ends the longest shortest path
 	 * @param edgeList the list of edges
 	 * @param vertexList the list of vertices
 	 * 
 	 * @author Huub Hovens
 	 */
-	private void reconstructPath(int[][] predecessorMatrix, int startIndex, int endIndex, ArrayList<Edge> edgeList, ArrayList<Vertex> vertexList)
+	private void reconstructPath(int[] predecessors, int startIndex, int endIndex, ArrayList<Edge> edgeList, ArrayList<Vertex> vertexList)
 	{
 		/** contains points of the longest shortest path for each graph*/
 		this.shortestPathPoints = new ArrayList< Point >();
 
 		// We know the first and last vertex of the longest shortest path, namely a and b
-		// using the predecessor matrix we can now determine the path that is taken from a to b
+		// using the predecessors we can now determine the path that is taken from a to b
 		// remember a and b are indices and not the actual vertices.
 
 		int b = endIndex;
@@ -2916,7 +3131,7 @@ public class AnalyzeSkeleton implements PlugInFilter
 
 		while (b != a)
 		{
-			Vertex predecessor = vertexList.get(predecessorMatrix[a][b]);
+			Vertex predecessor = vertexList.get(predecessors[b]);
 			Vertex endvertex = vertexList.get(b);
 			ArrayList< Edge > sp_edgeslist = new ArrayList< Edge >();
 			Double lengthtest = Double.POSITIVE_INFINITY;
@@ -2954,7 +3169,7 @@ public class AnalyzeSkeleton implements PlugInFilter
 
 			// now make the index of the endvertex the index of the predecessor so that the path now goes from
 			// a to predecessor and repeat cycle
-			b = predecessorMatrix[a][b];
+			b = predecessors[b];
 		}
 		if (shortestPathPoints.size() != 0)
 		{
@@ -20,8 +20,12 @@ package org.doube.skeleton;
  */
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.doube.util.ImageCheck;
+import org.doube.util.Multithreader;
 import org.doube.util.UsageReporter;
 
 import ij.IJ;
@@ -63,6 +67,71 @@ import ij.plugin.PlugIn;
  */
 public class Skeletonize3D implements PlugIn {
 
+	/**
+	 * Mask bit of the 6-neighbor checked for each border type: N, S, E, W, U,
+	 * B (see getMask())
+	 */
+	private static final int[] BORDER_BIT = { 1 << 10, 1 << 15, 1 << 13,
+			1 << 12, 1 << 21, 1 << 4 };
+
+	/**
+	 * Mask bits of each octant's neighbors, in the order of isEulerInvariant()
+	 * from the 128 bit of the octant index down to the 2 bit
+	 */
+	private static final int[][] OCTANT_BITS = {
+			{ 23, 24, 14, 15, 20, 21, 12 }, // SWU
+			{ 25, 22, 16, 13, 24, 21, 15 }, // SEU
+			{ 17, 20, 9, 12, 18, 21, 10 }, // NWU
+			{ 19, 22, 18, 21, 11, 13, 10 }, // NEU
+			{ 6, 14, 7, 15, 3, 12, 4 }, // SWB
+			{ 8, 7, 16, 15, 5, 4, 13 }, // SEB
+			{ 0, 9, 3, 12, 1, 10, 4 }, // NWB
+			{ 2, 1, 11, 10, 5, 4, 13 } // NEB
+	};
+
+	/**
+	 * Simple point results already found, by neighborhood mask
+	 */
+	private final ConcurrentHashMap<Integer, Boolean> simplePoints = new ConcurrentHashMap<Integer, Boolean>();
+
+	/**
+	 * Fewest voxels checked by each thread in a subiteration
+	 */
+	private static final int MIN_CHUNK = 4096;
+
+	/** Receives statistics of each thinning subiteration, or null */
+	private ThinningListener listener;
+
+	/**
+	 * Receives statistics of the subiterations of
+	 * computeThinImageFromBorders(), e.g. for progress reports or profiling
+	 */
+	public interface ThinningListener {
+		/**
+		 * Called after each subiteration, on the thinning thread
+		 * 
+		 * @param iteration iteration number, from 1
+		 * @param border border type, 1-6 for N, S, E, W, U, B
+		 * @param nChecked number of voxels checked
+		 * @param nCandidates number of simple border points found
+		 * @param nDeleted number of simple border points deleted after
+		 *        sequential re-checking
+		 * @param nanoTime time taken by the subiteration in nanoseconds
+		 */
+		public void subiterationDone(int iteration, int border, int nChecked,
+				int nCandidates, int nDeleted, long nanoTime);
+	}
+
+	/**
+	 * Set the listener that receives statistics of each subiteration of
+	 * computeThinImageFromBorders()
+	 * 
+	 * @param listener listener, or null for none
+	 */
+	public void setThinningListener(ThinningListener listener) {
+		this.listener = listener;
+	}
+
 	public void run(String run) {
 		if (!ImageCheck.checkEnvironment())
 			return;
@@ -101,7 +170,7 @@ public class Skeletonize3D implements PlugIn {
 		ImageStack outputImage = prepareData(inputImage);
 
 		// Compute Thinning
-		ImagePlus imp2 = computeThinImage(outputImage);
+		ImagePlus imp2 = computeThinImageFromBorders(outputImage);
 
 		ImageStack stack2 = imp2.getImageStack();
 
@@ -303,6 +372,348 @@ public class Skeletonize3D implements PlugIn {
 		return impOut;
 	} /* end computeThinImage */	
 	
+	/* -----------------------------------------------------------------------*/
+	/**
+	 * Thin the image as computeThinImage() does, but without rescanning the
+	 * whole stack in each subiteration. A voxel's deletability in a border
+	 * direction depends only on its 3x3x3 neighborhood, so it can only
+	 * change if a voxel in that neighborhood was deleted since the direction
+	 * was last checked. Each subiteration therefore checks only the voxels
+	 * around those deleted in the previous 6 subiterations, plus the initial
+	 * border voxels the first time each direction is checked. Candidates are
+	 * re-checked in raster order, so the skeleton is identical to
+	 * computeThinImage()'s.
+	 * 
+	 * Neighborhoods are read as 26-bit masks (see getMask()) from a copy of
+	 * the stack padded with one background voxel on every side, so that no
+	 * bounds checks are needed.
+	 * 
+	 * @param outputImage output image stack
+	 */
+	public ImagePlus computeThinImageFromBorders(ImageStack outputImage) 
+	{
+		IJ.showStatus("Computing thin image ...");
+		final int w = outputImage.getWidth();
+		final int h = outputImage.getHeight();
+		final int d = outputImage.getSize();
+		// padded dimensions
+		final int pw = w + 2;
+		final long pwh = (long) pw * (h + 2);
+		
+		final byte[][] pixels = new byte[d + 2][(int) pwh];
+		for (int z = 0; z < d; z++)
+		{
+			final byte[] slice = (byte[]) outputImage.getPixels(z + 1);
+			for (int y = 0; y < h; y++)
+				System.arraycopy(slice, y * w, pixels[z + 1], (y + 1) * pw + 1, w);
+		}
+		
+		// marks voxels already in the list to check
+		final byte[][] queued = new byte[d + 2][(int) pwh];
+
+		// Prepare Euler LUT [Lee94]
+		final int eulerLUT[] = new int[256]; 
+		fillEulerLUT( eulerLUT );
+		
+		final int nThreads = Runtime.getRuntime().availableProcessors();
+		
+		// voxels deleted in each of the last 6 subiterations, one per border
+		VoxelList[] deleted = new VoxelList[6];
+		for (int i = 0; i < 6; i++)
+			deleted[i] = new VoxelList();
+		
+		// foreground voxels with a background 6-neighbor
+		VoxelList initialBorder = new VoxelList();
+		for (int z = 1; z <= d; z++)
+			for (int y = 1; y <= h; y++)
+				for (int x = 1; x <= w; x++)
+				{
+					final int xy = x + y * pw;
+					if (pixels[z][xy] != 1)
+						continue;
+					final int mask = getMask(pixels, z, xy, pw);
+					for (int b = 0; b < 6; b++)
+						if ((mask & BORDER_BIT[b]) == 0)
+						{
+							initialBorder.add(z * pwh + xy);
+							break;
+						}
+				}
+		
+		boolean[] checkedBefore = new boolean[6];
+		final VoxelList toCheck = new VoxelList();
+		VoxelList simpleBorderPoints = new VoxelList();
+		
+		int iter = 1;
+		
+		// Loop through the image several times until there is no change.
+		int unchangedBorders = 0;
+		while( unchangedBorders < 6 )  // loop until no change for all the six border types
+		{						
+			unchangedBorders = 0;
+			for( int currentBorder = 1; currentBorder <= 6; currentBorder++)
+			{
+				IJ.showStatus("Thinning iteration " + iter + " (" + currentBorder +"/6 borders) ...");
+				final long start = System.nanoTime();
+				final int b = currentBorder - 1;
+				
+				// gather the foreground voxels whose neighborhood has changed
+				// since this border was last checked
+				toCheck.clear();
+				if (!checkedBefore[b])
+				{
+					for (int i = 0; i < initialBorder.size(); i++)
+					{
+						final long index = initialBorder.get(i);
+						queue((int) (index / pwh), (int) (index % pwh), pixels,
+								queued, toCheck, pwh);
+					}
+					checkedBefore[b] = true;
+				}
+				for (int s = 0; s < 6; s++)
+				{
+					VoxelList list = deleted[s];
+					for (int i = 0; i < list.size(); i++)
+					{
+						final long index = list.get(i);
+						final int z = (int) (index / pwh);
+						final int xy = (int) (index % pwh);
+						for (int k = z - 1; k <= z + 1; k++)
+							for (int j = xy - pw; j <= xy + pw; j += pw)
+								for (int m = j - 1; m <= j + 1; m++)
+									queue(k, m, pixels, queued, toCheck, pwh);
+					}
+				}
+				deleted[b].clear();
+				// visit in the same order as a raster scan
+				toCheck.sort();
+				
+				// find the simple border points in chunks of the list, in
+				// parallel, and join the chunks in order so that they are
+				// re-checked in raster order
+				final int nChecked = toCheck.size();
+				final int chunk = Math.max(MIN_CHUNK, nChecked / (8 * nThreads));
+				final int nChunks = (nChecked + chunk - 1) / chunk;
+				if (nChunks <= 1)
+					findSimpleBorderPoints(toCheck, 0, nChecked, pixels, queued,
+							pw, pwh, b, eulerLUT, simpleBorderPoints);
+				else
+				{
+					final VoxelList[] found = new VoxelList[nChunks];
+					final AtomicInteger ai = new AtomicInteger(0);
+					final int border = b;
+					Thread[] threads = Multithreader.newThreads(Math.min(
+							nThreads, nChunks));
+					for (int thread = 0; thread < threads.length; thread++)
+					{
+						threads[thread] = new Thread(new Runnable() {
+							public void run() {
+								for (int c = ai.getAndIncrement(); c < nChunks; c = ai
+										.getAndIncrement())
+								{
+									found[c] = new VoxelList();
+									findSimpleBorderPoints(toCheck, c * chunk,
+											Math.min(nChecked, (c + 1) * chunk),
+											pixels, queued, pw, pwh, border,
+											eulerLUT, found[c]);
+								}
+							}
+						});
+					}
+					Multithreader.startAndJoin(threads);
+					for (int c = 0; c < nChunks; c++)
+						simpleBorderPoints.addAll(found[c]);
+				}
+				final int nCandidates = simpleBorderPoints.size();
+				
+				// sequential re-checking to preserve connectivity when
+				// deleting in a parallel way
+				boolean noChange = true;
+				for (int i = 0; i < simpleBorderPoints.size(); i++)
+				{
+					final long index = simpleBorderPoints.get(i);
+					final int z = (int) (index / pwh);
+					final int xy = (int) (index % pwh);
+					// 1. Set simple border point to 0
+					pixels[z][xy] = 0;
+					
+					// 2. Check if neighborhood is still connected
+					if( !isSimplePoint( getMask(pixels, z, xy, pw) ) )
+					{
+						// we cannot delete current point, so reset
+						pixels[z][xy] = 1;
+					}
+					else
+					{
+						noChange = false;
+						deleted[b].add(index);
+					}
+				}
+				if( noChange )
+					unchangedBorders++;
+				if (listener != null)
+					listener.subiterationDone(iter, currentBorder, nChecked,
+							nCandidates, deleted[b].size(), System.nanoTime()
+									- start);
+				simpleBorderPoints.clear();
+			} // end currentBorder for loop
+			
+			// Progress bar iterations
+			iter++;
+		}
+		
+		for (int z = 0; z < d; z++)
+		{
+			final byte[] slice = (byte[]) outputImage.getPixels(z + 1);
+			for (int y = 0; y < h; y++)
+				System.arraycopy(pixels[z + 1], (y + 1) * pw + 1, slice, y * w, w);
+		}
+		
+		IJ.showStatus("Computed thin image.");
+		ImagePlus impOut = new ImagePlus();
+		impOut.setStack(outputImage);
+		return impOut;
+	} /* end computeThinImageFromBorders */
+	
+	/**
+	 * Find the simple border points among part of a list of voxels to check.
+	 * Only reads the image, so it can be run on several parts at once.
+	 * 
+	 * @param toCheck voxels to check, sorted in raster order
+	 * @param from first index in toCheck
+	 * @param to 1 + last index in toCheck
+	 * @param pixels padded image
+	 * @param queued marks of queued voxels, cleared for the checked voxels
+	 * @param pw padded width
+	 * @param pwh padded slice size
+	 * @param border border type, 0-5 for N, S, E, W, U, B
+	 * @param eulerLUT Euler LUT
+	 * @param found list to add the simple border points to, in raster order
+	 */
+	private void findSimpleBorderPoints(VoxelList toCheck, int from, int to,
+			byte[][] pixels, byte[][] queued, int pw, long pwh, int border,
+			int[] eulerLUT, VoxelList found)
+	{
+		for (int i = from; i < to; i++)
+		{
+			final long index = toCheck.get(i);
+			final int z = (int) (index / pwh);
+			final int xy = (int) (index % pwh);
+			queued[z][xy] = 0;
+			
+			final int mask = getMask(pixels, z, xy, pw);
+			// check 6-neighbors if point is a border point of type currentBorder
+			if ((mask & BORDER_BIT[border]) != 0)
+				continue;         // current point is not deletable
+			
+			// check if point is the end of an arc
+			if( Integer.bitCount( mask ) == 1 )
+				continue;         // current point is not deletable
+			
+			// Check if point is Euler invariant
+			if( !isEulerInvariant( mask, eulerLUT ) )
+				continue;         // current point is not deletable
+			
+			// Check if point is simple (deletion does not change connectivity in the 3x3x3 neighborhood)
+			if( !isSimplePoint( mask ) )
+				continue;         // current point is not deletable
+			
+			// add all simple border points to a list for sequential re-checking
+			found.add(index);
+		}
+	}
+	
+	/**
+	 * Add a voxel to the list of voxels to check, if it is foreground and not
+	 * in the list already
+	 */
+	private static void queue(int z, int xy, byte[][] pixels, byte[][] queued,
+			VoxelList toCheck, long wh)
+	{
+		if (pixels[z][xy] == 1 && queued[z][xy] == 0)
+		{
+			queued[z][xy] = 1;
+			toCheck.add(z * wh + xy);
+		}
+	}
+	
+	/**
+	 * Growable list of voxel indices, z * w * h + y * w + x
+	 */
+	private static class VoxelList
+	{
+		private long[] data = new long[1024];
+		private int size = 0;
+		
+		void add(long index)
+		{
+			if (size == data.length)
+				data = Arrays.copyOf(data, size * 2);
+			data[size++] = index;
+		}
+		
+		long get(int i)
+		{
+			return data[i];
+		}
+		
+		int size()
+		{
+			return size;
+		}
+		
+		void clear()
+		{
+			size = 0;
+		}
+		
+		void sort()
+		{
+			Arrays.sort(data, 0, size);
+		}
+		
+		void addAll(VoxelList list)
+		{
+			if (size + list.size > data.length)
+				data = Arrays.copyOf(data, Math.max(size * 2, size + list.size));
+			System.arraycopy(list.data, 0, data, size, list.size);
+			size += list.size;
+		}
+	}
+	
+	/* -----------------------------------------------------------------------*/
+	/**
+	 * Get the neighborhood of a voxel as a bit mask. Bit i is set if voxel i
+	 * of the 26-neighborhood is foreground, numbering the neighbors as in
+	 * getNeighborhood() but skipping the center, i.e. in the order of the
+	 * cube in isSimplePoint().
+	 * 
+	 * @param pixels 3D image padded with one voxel of background on each side
+	 * @param z padded z- coordinate
+	 * @param xy padded index in the slice, x + y * pw
+	 * @param pw padded width
+	 * @return 26-bit neighborhood mask
+	 */
+	private static int getMask(byte[][] pixels, int z, int xy, int pw)
+	{
+		int mask = 0;
+		int bit = 1;
+		for (int k = z - 1; k <= z + 1; k++)
+		{
+			final byte[] slice = pixels[k];
+			for (int j = xy - pw; j <= xy + pw; j += pw)
+				for (int i = j - 1; i <= j + 1; i++)
+				{
+					if (i == xy && k == z)
+						continue;
+					if (slice[i] == 1)
+						mask |= bit;
+					bit <<= 1;
+				}
+		}
+		return mask;
+	} /* end getMask */
+	
 	/* -----------------------------------------------------------------------*/
 	/**
 	 * Get neighborhood of a pixel in a 3D image (0 border conditions) 
@@ -775,6 +1186,28 @@ public class Skeletonize3D implements PlugIn {
 			return false;
 		}
 	
+	/**
+	 * Check if a point is Euler invariant, given its neighborhood mask (see
+	 * getMask())
+	 * 
+	 * @param mask 26-bit neighborhood mask of the point
+	 * @param LUT Euler LUT
+	 * @return true or false if the point is Euler invariant or not
+	 */
+	private static boolean isEulerInvariant(int mask, int[] LUT)
+	{
+		int eulerChar = 0;
+		for (int octant = 0; octant < 8; octant++)
+		{
+			final int[] bits = OCTANT_BITS[octant];
+			int n = 1;
+			for (int i = 0; i < 7; i++)
+				n |= ((mask >> bits[i]) & 1) << (7 - i);
+			eulerChar += LUT[n];
+		}
+		return eulerChar == 0;
+	}
+	
 	/* -----------------------------------------------------------------------*/
 	/**
 	 * Check if current point is a Simple Point.
@@ -795,6 +1228,43 @@ public class Skeletonize3D implements PlugIn {
 		// i != 13 : ignore center pixel when counting (see [Lee94])
 		for( i = 14; i < 27; i++ ) // i = 14..26 -> cube[13..25]
 			cube[i-1] = neighbors[i];
+		return isSimpleCube(cube);
+	}
+	
+	/**
+	 * Check if a point is simple, given its neighborhood mask (see getMask()).
+	 * Results are cached by mask, so each neighborhood configuration is
+	 * labelled only once.
+	 * 
+	 * @param mask 26-bit neighborhood mask of the point
+	 * @return true or false if the point is simple or not
+	 */
+	private boolean isSimplePoint(int mask)
+	{
+		final Integer key = Integer.valueOf(mask);
+		Boolean simple = simplePoints.get(key);
+		if (simple == null)
+		{
+			int cube[] = new int[26];
+			for (int i = 0; i < 26; i++)
+				cube[i] = (mask >> i) & 1;
+			simple = Boolean.valueOf(isSimpleCube(cube));
+			simplePoints.put(key, simple);
+		}
+		return simple.booleanValue();
+	}
+	
+	/**
+	 * Label the neighborhood of a point with its center removed, as
+	 * [Lee94]'s N(v)_labeling
+	 * 
+	 * @param cube 26 neighbors of the point, 1 for foreground; overwritten
+	 *        with labels
+	 * @return true if the neighbors form one connected object
+	 */
+	private boolean isSimpleCube(int[] cube)
+	{
+		int i;
 		// set initial label
 		int label = 2;
 		// for all points in the neighborhood
@@ -0,0 +1,568 @@
+package org.doube.util;
+
+/**
+ * LabelVolume Copyright 2026 agent
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import ij.IJ;
+
+/**
+ * <p>
+ * A stack of particle labels, stored in the narrowest form that holds the
+ * largest label: unsigned 16-bit labels when there are at most 65535
+ * particles, otherwise 32-bit labels, on the heap when they fit and in a
+ * memory-mapped temporary file when they do not. Provisional labels, whose
+ * largest value is not known until labelling has finished, are kept slice by
+ * slice in 16 or 32 bits, so each slice narrows as soon as it is relabelled.
+ * </p>
+ * <p>
+ * Labels are read and written a slice at a time through an int[] buffer.
+ * For 32-bit labels on the heap the buffer is the storage itself, so
+ * existing int[][] label arrays can be wrapped without a copy:
+ * </p>
+ *
+ * <pre>
+ * int[] slice = new int[w * h];
+ * for (int z = 0; z &lt; d; z++) {
+ * 	slice = labels.getSlice(z, slice);
+ * 	// read or modify slice
+ * 	labels.setSlice(z, slice);
+ * }
+ * </pre>
+ * <p>
+ * Different slices may be read and written by different threads at once.
+ * </p>
+ *
+ * @author agent
+ */
+public abstract class LabelVolume {
+
+	/** largest label that fits in 16 bits */
+	public static final int MAX_SHORT_LABEL = 65535;
+
+	/** stack dimensions */
+	protected final int w, h, d;
+
+	private LabelVolume(int w, int h, int d) {
+		this.w = w;
+		this.h = h;
+		this.d = d;
+	}
+
+	/**
+	 * Create an empty (all 0) label volume
+	 *
+	 * @param w
+	 *            stack width
+	 * @param h
+	 *            stack height
+	 * @param d
+	 *            stack depth
+	 * @param nLabels
+	 *            1 + the largest label to be stored
+	 * @return label volume using 16-bit labels if nLabels - 1 &lt;= 65535, and
+	 *         a memory-mapped file if the labels need more than half of the
+	 *         free heap
+	 */
+	public static LabelVolume create(int w, int h, int d, int nLabels) {
+		final boolean isShort = nLabels - 1 <= MAX_SHORT_LABEL;
+		final long bytes = (long) w * h * d * (isShort ? 2 : 4);
+		Runtime runtime = Runtime.getRuntime();
+		final long free = runtime.maxMemory() - runtime.totalMemory()
+				+ runtime.freeMemory();
+		if (bytes > free / 2)
+			return createMapped(w, h, d, nLabels);
+		if (isShort)
+			return new ShortLabels(w, h, d);
+		return new IntLabels(new int[d][w * h], w, h);
+	}
+
+	/**
+	 * Create an empty (all 0) label volume in a memory-mapped temporary file,
+	 * which is deleted by dispose() or when the JVM exits
+	 *
+	 * @param w
+	 *            stack width
+	 * @param h
+	 *            stack height
+	 * @param d
+	 *            stack depth
+	 * @param nLabels
+	 *            1 + the largest label to be stored
+	 * @return off-heap label volume
+	 */
+	public static LabelVolume createMapped(int w, int h, int d, int nLabels) {
+		return new MappedLabels(w, h, d, nLabels - 1 <= MAX_SHORT_LABEL);
+	}
+
+	/**
+	 * Create an empty (all 0) label volume for provisional labels. On the heap,
+	 * each slice is allocated when a label is first written to it, and held in
+	 * 16 bits until a label larger than 65535 is written, then in 32 bits
+	 * until it is replaced by a slice whose labels all fit in 16 bits again.
+	 * 
+	 * @param w
+	 *            stack width
+	 * @param h
+	 *            stack height
+	 * @param d
+	 *            stack depth
+	 * @param nLabels
+	 *            1 + the largest label expected to be held across the whole
+	 *            volume at once, used only to estimate whether the volume fits
+	 *            on the heap
+	 * @return label volume on the heap, or a 32-bit memory-mapped file if
+	 *         the labels are estimated to need more than half of the free heap
+	 */
+	public static LabelVolume createNarrowing(int w, int h, int d,
+			int nLabels) {
+		final boolean isShort = nLabels - 1 <= MAX_SHORT_LABEL;
+		final long bytes = (long) w * h * d * (isShort ? 2 : 4);
+		Runtime runtime = Runtime.getRuntime();
+		final long free = runtime.maxMemory() - runtime.totalMemory()
+				+ runtime.freeMemory();
+		if (bytes > free / 2)
+			return createMapped(w, h, d, Integer.MAX_VALUE);
+		return new NarrowingLabels(w, h, d);
+	}
+
+	/**
+	 * Wrap an existing label array without copying it
+	 *
+	 * @param labels
+	 *            one int[] per slice
+	 * @param w
+	 *            stack width
+	 * @return label volume backed by labels
+	 */
+	public static LabelVolume wrap(int[][] labels, int w) {
+		return new IntLabels(labels, w, labels[0].length / w);
+	}
+
+	/**
+	 * Move labels into the narrowest suitable storage. Each slice of labels is
+	 * released (set to null) as soon as it has been copied, so peak memory is
+	 * the new volume plus one int[] slice more than the old array.
+	 *
+	 * @param labels
+	 *            one int[] per slice; emptied by this method unless it is
+	 *            returned wrapped
+	 * @param w
+	 *            stack width
+	 * @param nLabels
+	 *            1 + the largest label in labels
+	 * @return packed label volume
+	 */
+	public static LabelVolume pack(int[][] labels, int w, int nLabels) {
+		final int d = labels.length;
+		final int h = labels[0].length / w;
+		LabelVolume volume = create(w, h, d, nLabels);
+		if (volume instanceof IntLabels) {
+			return wrap(labels, w);
+		}
+		for (int z = 0; z < d; z++) {
+			volume.setSlice(z, labels[z]);
+			labels[z] = null;
+		}
+		return volume;
+	}
+
+	/**
+	 * Get a slice of labels
+	 *
+	 * @param z
+	 *            slice number, 0 to d - 1
+	 * @param buffer
+	 *            int[w * h] to copy labels into, or null
+	 * @return the slice's labels, which may be buffer, a new array, or the
+	 *         backing array itself
+	 */
+	public abstract int[] getSlice(int z, int[] buffer);
+
+	/**
+	 * Store a slice of labels
+	 *
+	 * @param z
+	 *            slice number, 0 to d - 1
+	 * @param slice
+	 *            int[w * h] of labels
+	 */
+	public abstract void setSlice(int z, int[] slice);
+
+	/**
+	 * @param z
+	 *            slice number
+	 * @param i
+	 *            index in slice (y * w + x)
+	 * @return label
+	 */
+	public abstract int get(int z, int i);
+
+	/**
+	 * @param z
+	 *            slice number
+	 * @param i
+	 *            index in slice (y * w + x)
+	 * @param label
+	 */
+	public abstract void set(int z, int i, int label);
+
+	/**
+	 * @return largest label that can be stored
+	 */
+	public abstract int getMaxLabel();
+
+	/**
+	 * Replace every occurrence of a label in a slice
+	 * 
+	 * @param z
+	 *            slice number
+	 * @param label
+	 *            label to be replaced
+	 * @param newLabel
+	 *            replacement label
+	 */
+	public void replace(int z, int label, int newLabel) {
+		final int[] slice = getSlice(z, null);
+		final int wh = slice.length;
+		boolean replaced = false;
+		for (int i = 0; i < wh; i++) {
+			if (slice[i] == label) {
+				slice[i] = newLabel;
+				replaced = true;
+			}
+		}
+		if (replaced)
+			setSlice(z, slice);
+	}
+
+	/**
+	 * Release any off-heap storage. The volume must not be used afterwards.
+	 */
+	public void dispose() {
+	}
+
+	public int getWidth() {
+		return w;
+	}
+
+	public int getHeight() {
+		return h;
+	}
+
+	public int getDepth() {
+		return d;
+	}
+
+	/** 32-bit labels in int[][], one int[] per slice */
+	private static class IntLabels extends LabelVolume {
+		private final int[][] labels;
+
+		IntLabels(int[][] labels, int w, int h) {
+			super(w, h, labels.length);
+			this.labels = labels;
+		}
+
+		public int[] getSlice(int z, int[] buffer) {
+			return labels[z];
+		}
+
+		public void setSlice(int z, int[] slice) {
+			if (slice != labels[z])
+				System.arraycopy(slice, 0, labels[z], 0, slice.length);
+		}
+
+		public int get(int z, int i) {
+			return labels[z][i];
+		}
+
+		public void set(int z, int i, int label) {
+			labels[z][i] = label;
+		}
+
+		public void replace(int z, int label, int newLabel) {
+			final int[] slice = labels[z];
+			final int wh = slice.length;
+			for (int i = 0; i < wh; i++)
+				if (slice[i] == label)
+					slice[i] = newLabel;
+		}
+
+		public int getMaxLabel() {
+			return Integer.MAX_VALUE;
+		}
+	}
+
+	/** unsigned 16-bit labels in short[][] */
+	private static class ShortLabels extends LabelVolume {
+		private final short[][] labels;
+
+		ShortLabels(int w, int h, int d) {
+			super(w, h, d);
+			labels = new short[d][w * h];
+		}
+
+		public int[] getSlice(int z, int[] buffer) {
+			final short[] slice = labels[z];
+			final int wh = slice.length;
+			if (buffer == null)
+				buffer = new int[wh];
+			for (int i = 0; i < wh; i++)
+				buffer[i] = slice[i] & 0xFFFF;
+			return buffer;
+		}
+
+		public void setSlice(int z, int[] slice) {
+			final short[] s = labels[z];
+			final int wh = s.length;
+			for (int i = 0; i < wh; i++)
+				s[i] = (short) slice[i];
+		}
+
+		public int get(int z, int i) {
+			return labels[z][i] & 0xFFFF;
+		}
+
+		public void set(int z, int i, int label) {
+			labels[z][i] = (short) label;
+		}
+
+		public int getMaxLabel() {
+			return MAX_SHORT_LABEL;
+		}
+	}
+
+	/**
+	 * Labels held per slice in short[] or int[], whichever is the narrowest
+	 * that holds the slice's labels; null slices are all 0
+	 */
+	private static class NarrowingLabels extends LabelVolume {
+		private final short[][] shortSlices;
+		private final int[][] intSlices;
+
+		NarrowingLabels(int w, int h, int d) {
+			super(w, h, d);
+			shortSlices = new short[d][];
+			intSlices = new int[d][];
+		}
+
+		public int[] getSlice(int z, int[] buffer) {
+			final int wh = w * h;
+			if (buffer == null)
+				buffer = new int[wh];
+			final int[] wide = intSlices[z];
+			final short[] narrow = shortSlices[z];
+			if (wide != null) {
+				System.arraycopy(wide, 0, buffer, 0, wh);
+			} else if (narrow != null) {
+				for (int i = 0; i < wh; i++)
+					buffer[i] = narrow[i] & 0xFFFF;
+			} else {
+				Arrays.fill(buffer, 0, wh, 0);
+			}
+			return buffer;
+		}
+
+		public void setSlice(int z, int[] slice) {
+			final int wh = w * h;
+			int max = 0;
+			for (int i = 0; i < wh; i++)
+				max = Math.max(max, slice[i]);
+			if (max > MAX_SHORT_LABEL) {
+				int[] wide = intSlices[z];
+				if (wide == null)
+					wide = new int[wh];
+				System.arraycopy(slice, 0, wide, 0, wh);
+				intSlices[z] = wide;
+				shortSlices[z] = null;
+				return;
+			}
+			intSlices[z] = null;
+			if (max == 0) {
+				shortSlices[z] = null;
+				return;
+			}
+			short[] narrow = shortSlices[z];
+			if (narrow == null)
+				narrow = new short[wh];
+			for (int i = 0; i < wh; i++)
+				narrow[i] = (short) slice[i];
+			shortSlices[z] = narrow;
+		}
+
+		public int get(int z, int i) {
+			final int[] wide = intSlices[z];
+			if (wide != null)
+				return wide[i];
+			final short[] narrow = shortSlices[z];
+			if (narrow != null)
+				return narrow[i] & 0xFFFF;
+			return 0;
+		}
+
+		public void set(int z, int i, int label) {
+			final int[] wide = intSlices[z];
+			if (wide != null) {
+				wide[i] = label;
+				return;
+			}
+			short[] narrow = shortSlices[z];
+			if (label > MAX_SHORT_LABEL) {
+				// widen the slice
+				final int wh = w * h;
+				final int[] slice = new int[wh];
+				if (narrow != null)
+					for (int j = 0; j < wh; j++)
+						slice[j] = narrow[j] & 0xFFFF;
+				slice[i] = label;
+				intSlices[z] = slice;
+				shortSlices[z] = null;
+				return;
+			}
+			if (narrow == null) {
+				if (label == 0)
+					return;
+				narrow = new short[w * h];
+				shortSlices[z] = narrow;
+			}
+			narrow[i] = (short) label;
+		}
+
+		public void replace(int z, int label, int newLabel) {
+			final int[] wide = intSlices[z];
+			if (wide != null) {
+				final int wh = wide.length;
+				for (int i = 0; i < wh; i++)
+					if (wide[i] == label)
+						wide[i] = newLabel;
+				return;
+			}
+			final short[] narrow = shortSlices[z];
+			if (label > MAX_SHORT_LABEL || (narrow == null && label != 0))
+				return;
+			if (narrow == null || newLabel > MAX_SHORT_LABEL) {
+				super.replace(z, label, newLabel);
+				return;
+			}
+			final short s = (short) label;
+			final short n = (short) newLabel;
+			final int wh = narrow.length;
+			for (int i = 0; i < wh; i++)
+				if (narrow[i] == s)
+					narrow[i] = n;
+		}
+
+		public int getMaxLabel() {
+			return Integer.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * 16- or 32-bit labels in a temporary file, mapped one slice at a time so
+	 * that no single mapping exceeds the 2 GB limit of a MappedByteBuffer
+	 */
+	private static class MappedLabels extends LabelVolume {
+		private final boolean isShort;
+		private final File file;
+		private RandomAccessFile raf;
+		private final MappedByteBuffer[] slices;
+
+		MappedLabels(int w, int h, int d, boolean isShort) {
+			super(w, h, d);
+			this.isShort = isShort;
+			final long sliceBytes = (long) w * h * (isShort ? 2 : 4);
+			slices = new MappedByteBuffer[d];
+			try {
+				file = File.createTempFile("labels", ".tmp");
+				file.deleteOnExit();
+				raf = new RandomAccessFile(file, "rw");
+				raf.setLength(sliceBytes * d);
+				FileChannel channel = raf.getChannel();
+				for (int z = 0; z < d; z++) {
+					slices[z] = channel.map(FileChannel.MapMode.READ_WRITE,
+							sliceBytes * z, sliceBytes);
+					slices[z].order(ByteOrder.nativeOrder());
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(
+						"Could not map particle labels to a temporary file", e);
+			}
+		}
+
+		public int[] getSlice(int z, int[] buffer) {
+			final int wh = w * h;
+			if (buffer == null)
+				buffer = new int[wh];
+			final MappedByteBuffer slice = slices[z];
+			if (isShort) {
+				for (int i = 0; i < wh; i++)
+					buffer[i] = slice.getShort(2 * i) & 0xFFFF;
+			} else {
+				for (int i = 0; i < wh; i++)
+					buffer[i] = slice.getInt(4 * i);
+			}
+			return buffer;
+		}
+
+		public void setSlice(int z, int[] buffer) {
+			final int wh = w * h;
+			final MappedByteBuffer slice = slices[z];
+			if (isShort) {
+				for (int i = 0; i < wh; i++)
+					slice.putShort(2 * i, (short) buffer[i]);
+			} else {
+				for (int i = 0; i < wh; i++)
+					slice.putInt(4 * i, buffer[i]);
+			}
+		}
+
+		public int get(int z, int i) {
+			if (isShort)
+				return slices[z].getShort(2 * i) & 0xFFFF;
+			return slices[z].getInt(4 * i);
+		}
+
+		public void set(int z, int i, int label) {
+			if (isShort)
+				slices[z].putShort(2 * i, (short) label);
+			else
+				slices[z].putInt(4 * i, label);
+		}
+
+		public int getMaxLabel() {
+			return isShort ? MAX_SHORT_LABEL : Integer.MAX_VALUE;
+		}
+
+		public void dispose() {
+			try {
+				if (raf != null)
+					raf.close();
+			} catch (IOException e) {
+				IJ.log("Could not close temporary label file " + file);
+			}
+			raf = null;
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,241 @@
+package org.doube.util;
+
+/**
+ * MappedFloatStack Copyright 2026 agent
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+import ij.IJ;
+
+/**
+ * <p>
+ * A stack of float slices held in a memory-mapped temporary file, for
+ * intermediate results too large to keep on the heap. Slices, or bands of
+ * rows within a slice, are copied in and out through float[] buffers.
+ * </p>
+ * <p>
+ * The same storage may also be read and written as int[], e.g. for
+ * intermediate integer results that are later replaced by floats. No
+ * conversion is made between the two views.
+ * </p>
+ * <p>
+ * Different slices may be read and written by different threads at once.
+ * </p>
+ *
+ * @author agent
+ */
+public class MappedFloatStack {
+
+	/** stack dimensions */
+	private final int w, h, d;
+
+	private final File file;
+	private RandomAccessFile raf;
+
+	/** one mapping per slice, so no mapping exceeds 2 GB */
+	private final FloatBuffer[] slices;
+
+	/** int views of the same mappings */
+	private final IntBuffer[] intSlices;
+
+	/**
+	 * Create an empty (all 0) stack in a temporary file, which is deleted by
+	 * dispose() or when the JVM exits
+	 *
+	 * @param w
+	 *            stack width
+	 * @param h
+	 *            stack height
+	 * @param d
+	 *            stack depth
+	 */
+	public MappedFloatStack(int w, int h, int d) {
+		this.w = w;
+		this.h = h;
+		this.d = d;
+		final long sliceBytes = (long) w * h * 4;
+		slices = new FloatBuffer[d];
+		intSlices = new IntBuffer[d];
+		try {
+			file = File.createTempFile("floats", ".tmp");
+			file.deleteOnExit();
+			raf = new RandomAccessFile(file, "rw");
+			raf.setLength(sliceBytes * d);
+			FileChannel channel = raf.getChannel();
+			for (int z = 0; z < d; z++) {
+				ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_WRITE,
+						sliceBytes * z, sliceBytes).order(
+						ByteOrder.nativeOrder());
+				slices[z] = bytes.asFloatBuffer();
+				intSlices[z] = bytes.asIntBuffer();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(
+					"Could not map scratch data to a temporary file", e);
+		}
+	}
+
+	/**
+	 * Get a slice
+	 *
+	 * @param z
+	 *            slice number, 0 to d - 1
+	 * @param buffer
+	 *            float[w * h] to copy into, or null
+	 * @return buffer, or a new array if buffer was null
+	 */
+	public float[] getSlice(int z, float[] buffer) {
+		return getRows(z, 0, h, buffer);
+	}
+
+	/**
+	 * Store a slice
+	 *
+	 * @param z
+	 *            slice number, 0 to d - 1
+	 * @param slice
+	 *            float[w * h]
+	 */
+	public void setSlice(int z, float[] slice) {
+		setRows(z, 0, h, slice);
+	}
+
+	/**
+	 * Get a band of whole rows from a slice
+	 *
+	 * @param z
+	 *            slice number, 0 to d - 1
+	 * @param y
+	 *            first row
+	 * @param rows
+	 *            number of rows
+	 * @param buffer
+	 *            float[w * rows] to copy into, or null
+	 * @return buffer, or a new array if buffer was null
+	 */
+	public float[] getRows(int z, int y, int rows, float[] buffer) {
+		if (buffer == null)
+			buffer = new float[w * rows];
+		FloatBuffer slice = slices[z].duplicate();
+		slice.position(w * y);
+		slice.get(buffer, 0, w * rows);
+		return buffer;
+	}
+
+	/**
+	 * Store a band of whole rows in a slice
+	 *
+	 * @param z
+	 *            slice number, 0 to d - 1
+	 * @param y
+	 *            first row
+	 * @param rows
+	 *            number of rows
+	 * @param band
+	 *            float[w * rows]
+	 */
+	public void setRows(int z, int y, int rows, float[] band) {
+		FloatBuffer slice = slices[z].duplicate();
+		slice.position(w * y);
+		slice.put(band, 0, w * rows);
+	}
+
+	/**
+	 * Store a slice of ints
+	 *
+	 * @param z
+	 *            slice number, 0 to d - 1
+	 * @param slice
+	 *            int[w * h]
+	 */
+	public void setSlice(int z, int[] slice) {
+		setRows(z, 0, h, slice);
+	}
+
+	/**
+	 * Get a band of whole rows from a slice as ints
+	 *
+	 * @param z
+	 *            slice number, 0 to d - 1
+	 * @param y
+	 *            first row
+	 * @param rows
+	 *            number of rows
+	 * @param buffer
+	 *            int[w * rows] to copy into, or null
+	 * @return buffer, or a new array if buffer was null
+	 */
+	public int[] getRows(int z, int y, int rows, int[] buffer) {
+		if (buffer == null)
+			buffer = new int[w * rows];
+		IntBuffer slice = intSlices[z].duplicate();
+		slice.position(w * y);
+		slice.get(buffer, 0, w * rows);
+		return buffer;
+	}
+
+	/**
+	 * Store a band of whole rows of ints in a slice
+	 *
+	 * @param z
+	 *            slice number, 0 to d - 1
+	 * @param y
+	 *            first row
+	 * @param rows
+	 *            number of rows
+	 * @param band
+	 *            int[w * rows]
+	 */
+	public void setRows(int z, int y, int rows, int[] band) {
+		IntBuffer slice = intSlices[z].duplicate();
+		slice.position(w * y);
+		slice.put(band, 0, w * rows);
+	}
+
+	/**
+	 * Release the temporary file. The stack must not be used afterwards.
+	 */
+	public void dispose() {
+		try {
+			if (raf != null)
+				raf.close();
+		} catch (IOException e) {
+			IJ.log("Could not close temporary scratch file " + file);
+		}
+		raf = null;
+		file.delete();
+	}
+
+	public int getWidth() {
+		return w;
+	}
+
+	public int getHeight() {
+		return h;
+	}
+
+	public int getDepth() {
+		return d;
+	}
+}
@@ -46,9 +46,38 @@ public class Multithreader {
 		startAndJoin(threads);
 	}
 
-	public static Thread[] newThreads() {
+	/** per-thread cap on the number of threads from newThreads() */
+	private static final ThreadLocal<Integer> threadLimit = new ThreadLocal<Integer>();
+
+	/**
+	 * Limit the number of threads that the calling thread gets from
+	 * newThreads() and getNThreads(), e.g. when it is one of several workers
+	 * that together should use no more threads than there are processors.
+	 * 
+	 * @param numThreads
+	 *            maximum number of threads, or 0 to remove the limit
+	 */
+	public static void setThreadLimit(int numThreads) {
+		if (numThreads > 0)
+			threadLimit.set(numThreads);
+		else
+			threadLimit.remove();
+	}
+
+	/**
+	 * @return number of available processors, capped by the calling thread's
+	 *         limit if it has one
+	 */
+	public static int getNThreads() {
 		int nthread = Runtime.getRuntime().availableProcessors();
-		return new Thread[nthread];
+		Integer limit = threadLimit.get();
+		if (limit != null)
+			nthread = Math.min(nthread, limit);
+		return nthread;
+	}
+
+	public static Thread[] newThreads() {
+		return new Thread[getNThreads()];
 	}
 
 	public static Thread[] newThreads(int numThreads) {
@@ -56,6 +85,11 @@ public class Multithreader {
 	}
 
 	public static void startAndJoin(Thread[] threads) {
+		// a single thread's work runs in the calling thread
+		if (threads.length == 1) {
+			threads[0].run();
+			return;
+		}
 		for (int ithread = 0; ithread < threads.length; ++ithread) {
 			threads[ithread].setPriority(Thread.NORM_PRIORITY);
 			threads[ithread].start();
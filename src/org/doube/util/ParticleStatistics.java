@@ -0,0 +1,414 @@
+package org.doube.util;
+
+/**
+ * ParticleStatistics Copyright 2026 agent
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * Per-particle voxel statistics gathered in a single multithreaded sweep of a
+ * label array: voxel count, bounding box, first and second raw moments of
+ * voxel position and the mean, variance and maximum of an optional value
+ * image (e.g. local thickness).
+ * </p>
+ * <p>
+ * Statistics are held as one primitive array per quantity. Each thread sweeps
+ * a slab of slices into its own partial statistics and the partials are
+ * merged in slab order, so results do not depend on thread scheduling. Counts
+ * and first moments are exact (long); value statistics use Welford's update
+ * and Chan et al.'s pairwise merge. All positions are in pixel units.
+ * </p>
+ * <p>
+ * Statistics can also be gathered a slice at a time with
+ * {@link #add(int[], float[], double, int, int)}, merging provisional labels
+ * with {@link #merge(int, int)} as they are found to belong to the same
+ * particle and compacting them with {@link #relabel(int[], int)} at the end,
+ * so that particles can be measured without holding a whole label volume.
+ * </p>
+ *
+ * @author agent
+ */
+public class ParticleStatistics {
+
+	/** bytes of partial statistics per particle per thread */
+	private static final int BYTES_PER_PARTICLE = 136;
+
+	/** number of particle labels, including background (0) */
+	private int nParticles;
+
+	/** voxels in each particle */
+	private long[] counts;
+
+	/** x min, x max, y min, y max, z min, z max, 6 per particle */
+	private int[] limits;
+
+	/** sums of x, y and z, 3 per particle */
+	private long[] sums;
+
+	/** sums of xx, yy, zz, xy, xz and yz, 6 per particle */
+	private double[] products;
+
+	/** number of values above the threshold in each particle */
+	private long[] nValues;
+
+	/** running mean, sum of squared residuals and maximum of values */
+	private double[] means, m2s, maxima;
+
+	/**
+	 * Sweep a label array and, optionally, a value image
+	 *
+	 * @param particleLabels
+	 *            particle labels
+	 * @param nParticles
+	 *            1 + the largest label
+	 * @param values
+	 *            pixel values, one float[] per slice, or null
+	 * @param threshold
+	 *            only values > threshold contribute to the value statistics
+	 */
+	public ParticleStatistics(final LabelVolume particleLabels,
+			final int nParticles, final float[][] values,
+			final double threshold) {
+		this(nParticles);
+		final int d = particleLabels.getDepth();
+
+		// limit the number of partials to what fits in half of free memory
+		Runtime runtime = Runtime.getRuntime();
+		final long free = runtime.maxMemory() - runtime.totalMemory()
+				+ runtime.freeMemory();
+		final long perThread = (long) nParticles * BYTES_PER_PARTICLE;
+		final int nThreads = (int) Math.max(1, Math.min(
+				Math.min(runtime.availableProcessors(), d), free / 2
+						/ Math.max(perThread, 1)));
+
+		final ParticleStatistics[] partials = new ParticleStatistics[nThreads];
+		partials[0] = this;
+		final AtomicInteger ai = new AtomicInteger(0);
+		Thread[] threads = Multithreader.newThreads(nThreads);
+		for (int thread = 0; thread < nThreads; thread++) {
+			threads[thread] = new Thread(new Runnable() {
+				public void run() {
+					final int t = ai.getAndIncrement();
+					if (t > 0)
+						partials[t] = new ParticleStatistics(nParticles);
+					final int startZ = (int) ((long) d * t / nThreads);
+					final int endZ = (int) ((long) d * (t + 1) / nThreads);
+					partials[t].add(particleLabels, values, threshold,
+							startZ, endZ);
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+		for (int t = 1; t < nThreads; t++)
+			merge(partials[t]);
+	}
+
+	/**
+	 * Empty statistics, to be filled slice by slice
+	 * 
+	 * @param nParticles
+	 *            1 + the largest label
+	 */
+	public ParticleStatistics(final int nParticles) {
+		this.nParticles = 0;
+		counts = new long[0];
+		limits = new int[0];
+		sums = new long[0];
+		products = new double[0];
+		nValues = new long[0];
+		means = new double[0];
+		m2s = new double[0];
+		maxima = new double[0];
+		ensureCapacity(nParticles);
+	}
+
+	/**
+	 * Make room for more labels. New labels start empty.
+	 * 
+	 * @param nParticles
+	 *            1 + the largest label
+	 */
+	public void ensureCapacity(final int nParticles) {
+		final int n = this.nParticles;
+		if (nParticles <= n)
+			return;
+		if (nParticles > counts.length) {
+			final int length = Math.max(nParticles, counts.length * 3 / 2);
+			counts = Arrays.copyOf(counts, length);
+			limits = Arrays.copyOf(limits, length * 6);
+			sums = Arrays.copyOf(sums, length * 3);
+			products = Arrays.copyOf(products, length * 6);
+			nValues = Arrays.copyOf(nValues, length);
+			means = Arrays.copyOf(means, length);
+			m2s = Arrays.copyOf(m2s, length);
+			maxima = Arrays.copyOf(maxima, length);
+		}
+		for (int p = n; p < nParticles; p++)
+			clear(p);
+		this.nParticles = nParticles;
+	}
+
+	/** reset particle p to empty */
+	private void clear(final int p) {
+		counts[p] = 0;
+		Arrays.fill(limits, 6 * p, 6 * p + 6, 0);
+		limits[6 * p] = Integer.MAX_VALUE;
+		limits[6 * p + 2] = Integer.MAX_VALUE;
+		limits[6 * p + 4] = Integer.MAX_VALUE;
+		Arrays.fill(sums, 3 * p, 3 * p + 3, 0);
+		Arrays.fill(products, 6 * p, 6 * p + 6, 0);
+		nValues[p] = 0;
+		means[p] = 0;
+		m2s[p] = 0;
+		maxima[p] = 0;
+	}
+
+	/**
+	 * Add the voxels in slices startZ to endZ - 1 to these statistics
+	 */
+	private void add(final LabelVolume particleLabels, final float[][] values,
+			final double threshold, final int startZ, final int endZ) {
+		final int w = particleLabels.getWidth();
+		final int h = particleLabels.getHeight();
+		int[] buffer = new int[w * h];
+		for (int z = startZ; z < endZ; z++) {
+			final int[] labelSlice = particleLabels.getSlice(z, buffer);
+			add(labelSlice, values == null ? null : values[z], threshold, w, z);
+		}
+	}
+
+	/**
+	 * Add one slice of voxels to these statistics
+	 * 
+	 * @param labelSlice
+	 *            particle labels, all less than getNParticles()
+	 * @param valueSlice
+	 *            pixel values, or null
+	 * @param threshold
+	 *            only values > threshold contribute to the value statistics
+	 * @param w
+	 *            slice width
+	 * @param z
+	 *            slice number
+	 */
+	public void add(final int[] labelSlice, final float[] valueSlice,
+			final double threshold, final int w, final int z) {
+		final int h = labelSlice.length / w;
+		for (int y = 0; y < h; y++) {
+			final int index = y * w;
+			for (int x = 0; x < w; x++) {
+				final int p = labelSlice[index + x];
+				counts[p]++;
+				final int l = 6 * p;
+				if (x < limits[l])
+					limits[l] = x;
+				if (x > limits[l + 1])
+					limits[l + 1] = x;
+				if (y < limits[l + 2])
+					limits[l + 2] = y;
+				if (y > limits[l + 3])
+					limits[l + 3] = y;
+				if (z < limits[l + 4])
+					limits[l + 4] = z;
+				if (z > limits[l + 5])
+					limits[l + 5] = z;
+				final int s = 3 * p;
+				sums[s] += x;
+				sums[s + 1] += y;
+				sums[s + 2] += z;
+				final double xd = x, yd = y, zd = z;
+				products[l] += xd * xd;
+				products[l + 1] += yd * yd;
+				products[l + 2] += zd * zd;
+				products[l + 3] += xd * yd;
+				products[l + 4] += xd * zd;
+				products[l + 5] += yd * zd;
+				if (valueSlice != null) {
+					final double value = valueSlice[index + x];
+					if (value > threshold) {
+						final long n = ++nValues[p];
+						final double delta = value - means[p];
+						means[p] += delta / n;
+						m2s[p] += delta * (value - means[p]);
+						if (value > maxima[p])
+							maxima[p] = value;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add another set of partial statistics to these
+	 */
+	private void merge(final ParticleStatistics other) {
+		for (int p = 0; p < nParticles; p++)
+			merge(p, other, p);
+	}
+
+	/**
+	 * Add particle q of other to particle p of these statistics
+	 */
+	private void merge(final int p, final ParticleStatistics other, final int q) {
+		if (other.counts[q] == 0)
+			return;
+		counts[p] += other.counts[q];
+		for (int i = 0; i < 6; i += 2) {
+			limits[6 * p + i] = Math.min(limits[6 * p + i], other.limits[6 * q
+					+ i]);
+			limits[6 * p + i + 1] = Math.max(limits[6 * p + i + 1],
+					other.limits[6 * q + i + 1]);
+		}
+		for (int i = 0; i < 3; i++)
+			sums[3 * p + i] += other.sums[3 * q + i];
+		for (int i = 0; i < 6; i++)
+			products[6 * p + i] += other.products[6 * q + i];
+		final long nB = other.nValues[q];
+		if (nB == 0)
+			return;
+		final long nA = nValues[p];
+		final long n = nA + nB;
+		final double delta = other.means[q] - means[p];
+		means[p] += delta * nB / n;
+		m2s[p] += other.m2s[q] + delta * delta * nA * nB / n;
+		maxima[p] = Math.max(maxima[p], other.maxima[q]);
+		nValues[p] = n;
+	}
+
+	/**
+	 * Move the statistics of label q into label p, leaving q empty, e.g. when
+	 * two provisional labels turn out to be the same particle
+	 * 
+	 * @param p
+	 *            label to keep
+	 * @param q
+	 *            label to empty
+	 */
+	public void merge(final int p, final int q) {
+		if (p == q)
+			return;
+		merge(p, this, q);
+		clear(q);
+	}
+
+	/**
+	 * Renumber the particles
+	 * 
+	 * @param newLabel
+	 *            new label of each current label; labels mapped to 0 are
+	 *            merged into the background
+	 * @param nNewParticles
+	 *            1 + the largest new label
+	 * @return new statistics, in which particle newLabel[p] holds the merged
+	 *         statistics of every particle p
+	 */
+	public ParticleStatistics relabel(final int[] newLabel,
+			final int nNewParticles) {
+		ParticleStatistics relabelled = new ParticleStatistics(nNewParticles);
+		for (int p = 0; p < nParticles; p++)
+			relabelled.merge(newLabel[p], this, p);
+		return relabelled;
+	}
+
+	/**
+	 * @return number of particle labels, including background
+	 */
+	public int getNParticles() {
+		return nParticles;
+	}
+
+	/**
+	 * @return number of voxels in each particle
+	 */
+	public long[] getCounts() {
+		return counts.clone();
+	}
+
+	/**
+	 * @return int[nParticles][6] containing x, y and z minima and maxima
+	 */
+	public int[][] getLimits() {
+		int[][] l = new int[nParticles][6];
+		for (int p = 0; p < nParticles; p++)
+			System.arraycopy(limits, 6 * p, l[p], 0, 6);
+		return l;
+	}
+
+	/**
+	 * Get the centroids, scaled by voxel dimensions
+	 *
+	 * @param vW
+	 *            voxel width
+	 * @param vH
+	 *            voxel height
+	 * @param vD
+	 *            voxel depth
+	 * @return double[nParticles][3] containing x, y and z centroids
+	 */
+	public double[][] getCentroids(final double vW, final double vH,
+			final double vD) {
+		double[][] centroids = new double[nParticles][3];
+		for (int p = 0; p < nParticles; p++) {
+			centroids[p][0] = vW * sums[3 * p] / counts[p];
+			centroids[p][1] = vH * sums[3 * p + 1] / counts[p];
+			centroids[p][2] = vD * sums[3 * p + 2] / counts[p];
+		}
+		return centroids;
+	}
+
+	/**
+	 * Get the second moments of voxel position about a particle's centroid,
+	 * in pixel units
+	 *
+	 * @param p
+	 *            particle label
+	 * @return double[6] containing sums of (x - x̄)², (y - ȳ)², (z - z̄)²,
+	 *         (x - x̄)(y - ȳ), (x - x̄)(z - z̄) and (y - ȳ)(z - z̄)
+	 */
+	public double[] getCentralMoments(final int p) {
+		final double n = counts[p];
+		final double sX = sums[3 * p];
+		final double sY = sums[3 * p + 1];
+		final double sZ = sums[3 * p + 2];
+		final int l = 6 * p;
+		double[] moments = { products[l] - sX * sX / n,
+				products[l + 1] - sY * sY / n, products[l + 2] - sZ * sZ / n,
+				products[l + 3] - sX * sY / n, products[l + 4] - sX * sZ / n,
+				products[l + 5] - sY * sZ / n };
+		return moments;
+	}
+
+	/**
+	 * Get the mean, standard deviation and maximum of the values above the
+	 * threshold in each particle
+	 *
+	 * @return double[nParticles][3]; all 0 if no value image was swept
+	 */
+	public double[][] getMeanStdDev() {
+		double[][] meanStdDev = new double[nParticles][3];
+		for (int p = 0; p < nParticles; p++) {
+			if (nValues[p] == 0)
+				continue;
+			meanStdDev[p][0] = means[p];
+			meanStdDev[p][1] = Math.sqrt(m2s[p] / nValues[p]);
+			meanStdDev[p][2] = maxima[p];
+		}
+		return meanStdDev;
+	}
+}
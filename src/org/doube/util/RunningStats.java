@@ -0,0 +1,140 @@
+package org.doube.util;
+
+/**
+ * RunningStats Copyright 2026 agent
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * <p>
+ * Mean, standard deviation, maximum and a fixed-bin histogram of the
+ * positive pixels of a stack, accumulated a slice at a time so that slices
+ * can be discarded as soon as they have been added. Pixels &lt;= 0 are
+ * ignored, as in {@link StackStats#meanStdDev(ij.ImagePlus)}.
+ * </p>
+ * <p>
+ * Each slice's mean and sum of squared residuals are found in two passes and
+ * combined with the running totals by Chan et al.'s pairwise merge.
+ * </p>
+ *
+ * @author agent
+ */
+public class RunningStats {
+
+	private long count = 0;
+	private double mean = 0;
+	/** sum of squared residuals from the mean */
+	private double m2 = 0;
+	private double max = 0;
+
+	private final long[] histogram;
+	private final double binWidth;
+
+	/**
+	 * @param nBins
+	 *            number of histogram bins
+	 * @param histogramMax
+	 *            upper limit of the last bin; larger values are counted in
+	 *            the last bin
+	 */
+	public RunningStats(int nBins, double histogramMax) {
+		histogram = new long[nBins];
+		binWidth = histogramMax / nBins;
+	}
+
+	/**
+	 * Add the positive pixels of a slice
+	 *
+	 * @param pixels
+	 */
+	public void add(float[] pixels) {
+		final int n = pixels.length;
+		final int lastBin = histogram.length - 1;
+		long sliceCount = 0;
+		double sum = 0;
+		for (int i = 0; i < n; i++) {
+			final double value = pixels[i];
+			if (value > 0) {
+				sum += value;
+				if (value > max)
+					max = value;
+				int bin = (int) (value / binWidth);
+				if (bin > lastBin)
+					bin = lastBin;
+				histogram[bin]++;
+				sliceCount++;
+			}
+		}
+		if (sliceCount == 0)
+			return;
+		final double sliceMean = sum / sliceCount;
+		double sliceM2 = 0;
+		for (int i = 0; i < n; i++) {
+			final double value = pixels[i];
+			if (value > 0) {
+				final double residual = value - sliceMean;
+				sliceM2 += residual * residual;
+			}
+		}
+		final long total = count + sliceCount;
+		final double delta = sliceMean - mean;
+		mean += delta * sliceCount / total;
+		m2 += sliceM2 + delta * delta * count * sliceCount / total;
+		count = total;
+	}
+
+	/**
+	 * @return number of positive pixels added
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	public double getMean() {
+		return count > 0 ? mean : Double.NaN;
+	}
+
+	/**
+	 * @return population standard deviation
+	 */
+	public double getStdDev() {
+		return count > 0 ? Math.sqrt(m2 / count) : Double.NaN;
+	}
+
+	public double getMax() {
+		return max;
+	}
+
+	/**
+	 * @return mean, standard deviation and maximum, in the order returned by
+	 *         {@link StackStats#meanStdDev(ij.ImagePlus)}
+	 */
+	public double[] getStats() {
+		double[] stats = { getMean(), getStdDev(), getMax() };
+		return stats;
+	}
+
+	/**
+	 * @return pixel count in each bin; bin i holds values from i * binWidth
+	 *         up to (i + 1) * binWidth
+	 */
+	public long[] getHistogram() {
+		return histogram.clone();
+	}
+
+	public double getBinWidth() {
+		return binWidth;
+	}
+}
@@ -0,0 +1,264 @@
+package org.doube.util;
+
+/**
+ * VoxelLists Copyright 2026 agent
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * <p>
+ * Packed lists of voxel positions, one list per particle label. All voxels are
+ * stored in a single long[] as linear stack indices (z * w * h + y * w + x),
+ * grouped by label, so a voxel costs 8 bytes rather than the ~40 bytes of a
+ * short[3] in an ArrayList, and stack dimensions are not limited to 32767.
+ * </p>
+ * <p>
+ * The lists are built from a label array in two counting passes. Each label's
+ * voxels initially form a single contiguous segment. join() concatenates two
+ * lists in constant time by chaining segments, so a list is iterated segment
+ * by segment:
+ * </p>
+ *
+ * <pre>
+ * for (int s = lists.getFirstSegment(p); s != -1; s = lists.getNextSegment(s))
+ * 	for (int k = lists.getSegmentStart(s); k &lt; lists.getSegmentEnd(s); k++)
+ * 		voxel = lists.get(k);
+ * </pre>
+ * <p>
+ * Segments joined onto a list while it is being iterated are visited by the
+ * same loop.
+ * </p>
+ *
+ * @author agent
+ */
+public class VoxelLists {
+
+	/** stack width */
+	private final int w;
+
+	/** number of pixels in a slice */
+	private final int wh;
+
+	/** linear voxel indices, grouped by label */
+	private final long[] voxels;
+
+	/** segment s occupies voxels[offsets[s]] to voxels[offsets[s + 1] - 1] */
+	private final int[] offsets;
+
+	/** first and last segment of each list, -1 if the list is empty */
+	private final int[] head, tail;
+
+	/** segment following each segment in its list, -1 at the end */
+	private final int[] next;
+
+	/** number of voxels in each list */
+	private final long[] sizes;
+
+	/**
+	 * Build voxel lists for all labels > 0 in a label array
+	 *
+	 * @param labels
+	 *            label volume
+	 * @param nLabels
+	 *            1 + the largest label in labels
+	 * @throws IllegalArgumentException
+	 *             if there are more than Integer.MAX_VALUE - 8 labelled
+	 *             voxels
+	 */
+	public VoxelLists(final LabelVolume labels, final int nLabels) {
+		this.w = labels.getWidth();
+		this.wh = w * labels.getHeight();
+		final int d = labels.getDepth();
+		int[] buffer = new int[wh];
+
+		// first pass: count voxels in each label
+		long[] counts = new long[nLabels];
+		for (int z = 0; z < d; z++) {
+			final int[] slice = labels.getSlice(z, buffer);
+			for (int i = 0; i < wh; i++) {
+				counts[slice[i]]++;
+			}
+		}
+		counts[0] = 0;
+		offsets = new int[nLabels + 1];
+		long total = 0;
+		for (int p = 0; p < nLabels; p++) {
+			offsets[p] = (int) total;
+			total += counts[p];
+			if (total > Integer.MAX_VALUE - 8)
+				throw new IllegalArgumentException("Too many voxels ("
+						+ total + ") to pack into voxel lists");
+		}
+		offsets[nLabels] = (int) total;
+		voxels = new long[(int) total];
+
+		// second pass: fill each label's segment in raster order
+		final int[] cursors = new int[nLabels];
+		System.arraycopy(offsets, 0, cursors, 0, nLabels);
+		for (int z = 0; z < d; z++) {
+			final int[] slice = labels.getSlice(z, buffer);
+			final long sliceOffset = (long) z * wh;
+			for (int i = 0; i < wh; i++) {
+				final int p = slice[i];
+				if (p > 0) {
+					voxels[cursors[p]] = sliceOffset + i;
+					cursors[p]++;
+				}
+			}
+		}
+
+		head = new int[nLabels];
+		tail = new int[nLabels];
+		next = new int[nLabels];
+		sizes = counts;
+		for (int p = 0; p < nLabels; p++) {
+			if (counts[p] > 0) {
+				head[p] = p;
+				tail[p] = p;
+			} else {
+				head[p] = -1;
+				tail[p] = -1;
+			}
+			next[p] = -1;
+		}
+	}
+
+	/**
+	 * Append list p to the end of list b, leaving list p empty
+	 *
+	 * @param b
+	 *            label of the list to join to
+	 * @param p
+	 *            label of the list to be joined
+	 */
+	public void join(final int b, final int p) {
+		if (b == p || head[p] == -1)
+			return;
+		if (head[b] == -1) {
+			head[b] = head[p];
+		} else {
+			next[tail[b]] = head[p];
+		}
+		tail[b] = tail[p];
+		sizes[b] += sizes[p];
+		head[p] = -1;
+		tail[p] = -1;
+		sizes[p] = 0;
+	}
+
+	/**
+	 * @return number of lists, which is 1 + the largest label
+	 */
+	public int getNLists() {
+		return head.length;
+	}
+
+	/**
+	 * @param p
+	 *            label
+	 * @return number of voxels in list p
+	 */
+	public long size(final int p) {
+		return sizes[p];
+	}
+
+	/**
+	 * @return number of voxels in each list
+	 */
+	public long[] getSizes() {
+		return sizes.clone();
+	}
+
+	/**
+	 * @param p
+	 *            label
+	 * @return first segment of list p, or -1 if the list is empty
+	 */
+	public int getFirstSegment(final int p) {
+		return head[p];
+	}
+
+	/**
+	 * @param s
+	 *            segment
+	 * @return segment following s in its list, or -1 if s is the last
+	 */
+	public int getNextSegment(final int s) {
+		return next[s];
+	}
+
+	/**
+	 * @param s
+	 *            segment
+	 * @return index of the first voxel of segment s
+	 */
+	public int getSegmentStart(final int s) {
+		return offsets[s];
+	}
+
+	/**
+	 * @param s
+	 *            segment
+	 * @return index after the last voxel of segment s
+	 */
+	public int getSegmentEnd(final int s) {
+		return offsets[s + 1];
+	}
+
+	/**
+	 * @param k
+	 *            voxel index, between a segment's start and end
+	 * @return linear stack index of the voxel
+	 */
+	public long get(final int k) {
+		return voxels[k];
+	}
+
+	/**
+	 * @param voxel
+	 *            linear stack index
+	 * @return x coordinate
+	 */
+	public int getX(final long voxel) {
+		return getIndex(voxel) % w;
+	}
+
+	/**
+	 * @param voxel
+	 *            linear stack index
+	 * @return y coordinate
+	 */
+	public int getY(final long voxel) {
+		return getIndex(voxel) / w;
+	}
+
+	/**
+	 * @param voxel
+	 *            linear stack index
+	 * @return z coordinate (0-based slice number)
+	 */
+	public int getZ(final long voxel) {
+		return (int) (voxel / wh);
+	}
+
+	/**
+	 * @param voxel
+	 *            linear stack index
+	 * @return index of the voxel within its slice (y * w + x)
+	 */
+	public int getIndex(final long voxel) {
+		return (int) (voxel % wh);
+	}
+}
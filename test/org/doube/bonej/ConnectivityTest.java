@@ -2,9 +2,14 @@ package org.doube.bonej;
 
 import static org.junit.Assert.*;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+
+import java.util.Random;
 
 import org.doube.geometry.TestDataMaker;
+import org.doube.util.LabelVolume;
 import org.junit.Test;
 
 public class ConnectivityTest {
@@ -45,4 +50,120 @@ public class ConnectivityTest {
 			assertEquals(-4, sumEuler, 1e-12);
 		}
 	}
+
+	@Test
+	public void testGetDeltaChi() {
+		Random random = new Random(3);
+		int[][] dims = { { 24, 19, 13 }, { 7, 5, 2 }, { 9, 11, 1 } };
+		for (int[] dim : dims) {
+			ImageStack stack = new ImageStack(dim[0], dim[1]);
+			for (int z = 0; z < dim[2]; z++) {
+				ByteProcessor bp = new ByteProcessor(dim[0], dim[1]);
+				for (int i = 0; i < dim[0] * dim[1]; i++)
+					if (random.nextDouble() < 0.4)
+						bp.set(i, 255);
+				stack.addSlice("" + z, bp);
+			}
+			ImagePlus imp = new ImagePlus("random", stack);
+			double sumEuler = conn.getSumEuler(imp);
+			assertEquals(conn.getDeltaChi(imp, sumEuler),
+					conn.getDeltaChi(imp), 0);
+		}
+		// a frame clear of the stack edges needs no correction
+		ImagePlus imp = TestDataMaker.boxFrame(32, 64, 128);
+		assertEquals(-4, conn.getDeltaChi(imp), 1e-12);
+	}
+
+	@Test
+	public void testGetSumEulerSlabs() {
+		Random random = new Random(7);
+		final int w = 21, h = 17, d = 15;
+		ImageStack stack = new ImageStack(w, h);
+		for (int z = 0; z < d; z++) {
+			ByteProcessor bp = new ByteProcessor(w, h);
+			for (int i = 0; i < w * h; i++)
+				if (random.nextDouble() < 0.4)
+					bp.set(i, 255);
+			stack.addSlice("" + z, bp);
+		}
+		ImagePlus imp = new ImagePlus("random", stack);
+		final double sumEuler = conn.getSumEuler(imp);
+		final double deltaChi = conn.getDeltaChi(imp);
+		for (int planesPerSlab = 1; planesPerSlab <= d + 1; planesPerSlab += 4) {
+			SlabEuler.Worker[] workers = { new SlabEuler.InProcessWorker(imp),
+					new SlabEuler.InProcessWorker(imp) };
+			Connectivity.PartialEuler result = SlabEuler.getSumEuler(workers,
+					d, planesPerSlab);
+			assertEquals(sumEuler, result.getSumEuler(), 0);
+			assertEquals(deltaChi, result.getDeltaChi(), 0);
+			assertEquals(result.toString(),
+					Connectivity.PartialEuler.parse(result.toString())
+							.toString());
+		}
+	}
+
+	@Test
+	public void testGrowingEuler() {
+		Random random = new Random(5);
+		int[][] dims = { { 13, 11, 9 }, { 8, 6, 1 } };
+		for (int[] dim : dims) {
+			final int w = dim[0], h = dim[1], d = dim[2];
+			int[][] grey = new int[d][w * h];
+			for (int z = 0; z < d; z++)
+				for (int i = 0; i < w * h; i++)
+					grey[z][i] = random.nextInt(256);
+			Connectivity.GrowingEuler euler = new Connectivity.GrowingEuler(
+					w, h, d);
+			for (int threshold = 255; threshold >= 0; threshold -= 15) {
+				ImageStack stack = new ImageStack(w, h);
+				for (int z = 0; z < d; z++) {
+					ByteProcessor bp = new ByteProcessor(w, h);
+					for (int i = 0; i < w * h; i++) {
+						if (grey[z][i] >= threshold) {
+							bp.set(i, 255);
+							euler.add(i % w, i / w, z);
+						}
+					}
+					stack.addSlice("" + z, bp);
+				}
+				ImagePlus imp = new ImagePlus("" + threshold, stack);
+				Connectivity.PartialEuler result = euler.getResult();
+				assertEquals(conn.getSumEuler(imp), result.getSumEuler(), 0);
+				assertEquals(conn.getDeltaChi(imp), result.getDeltaChi(), 0);
+			}
+		}
+	}
+
+	@Test
+	public void testGetSumEulerLabels() {
+		final int w = 24, h = 19, d = 13;
+		Random random = new Random(11);
+		ImageStack stack = new ImageStack(w, h);
+		for (int z = 0; z < d; z++) {
+			ByteProcessor bp = new ByteProcessor(w, h);
+			for (int i = 0; i < w * h; i++)
+				if (random.nextDouble() < 0.3)
+					bp.set(i, 255);
+			stack.addSlice("" + z, bp);
+		}
+		ImagePlus imp = new ImagePlus("random", stack);
+		ParticleCounter pc = new ParticleCounter();
+		Object[] result = pc.getParticles(imp, 4, ParticleCounter.FORE);
+		LabelVolume labels = (LabelVolume) result[1];
+		final int nParticles = ((long[]) result[2]).length;
+		double[] eulers = conn.getSumEuler(labels, nParticles);
+		for (int p = 1; p < nParticles; p++) {
+			ImageStack particleStack = new ImageStack(w, h);
+			for (int z = 0; z < d; z++) {
+				ByteProcessor bp = new ByteProcessor(w, h);
+				for (int i = 0; i < w * h; i++)
+					if (labels.get(z, i) == p)
+						bp.set(i, 255);
+				particleStack.addSlice("" + z, bp);
+			}
+			double expected = conn.getSumEuler(new ImagePlus("" + p,
+					particleStack));
+			assertEquals(expected, eulers[p], 0);
+		}
+	}
 }
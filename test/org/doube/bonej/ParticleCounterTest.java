@@ -0,0 +1,188 @@
+package org.doube.bonej;
+
+import static org.junit.Assert.*;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+
+import java.util.Random;
+
+import org.doube.geometry.TestDataMaker;
+import org.doube.util.LabelVolume;
+import org.doube.util.ParticleStatistics;
+import org.junit.Test;
+
+public class ParticleCounterTest {
+
+	@Test
+	public void testGetParticlesMappedRandom() {
+		for (int i = 0; i < 8; i++) {
+			ImagePlus imp = randomStack(37, 23, 29, 0.2 + 0.1 * i, i);
+			assertSameLabels(imp, ParticleCounter.FORE);
+			assertSameLabels(imp, ParticleCounter.BACK);
+		}
+	}
+
+	@Test
+	public void testGetParticlesMappedShapes() {
+		ImagePlus[] images = { TestDataMaker.boxFrame(16, 32, 24),
+				TestDataMaker.sphere(12), TestDataMaker.brick(20, 16, 9),
+				TestDataMaker.crossedCircle(64) };
+		for (ImagePlus imp : images) {
+			assertSameLabels(imp, ParticleCounter.FORE);
+			assertSameLabels(imp, ParticleCounter.BACK);
+		}
+	}
+
+	@Test
+	public void testGetParticlesFiltered() {
+		ImagePlus imp = randomStack(41, 31, 17, 0.25, 42);
+		ParticleCounter pc = new ParticleCounter();
+		for (int phase : new int[] { ParticleCounter.FORE,
+				ParticleCounter.BACK }) {
+			pc.setLabelMethod(ParticleCounter.MULTI);
+			Object[] multi = pc.getParticles(imp, 2, 3, 50, phase);
+			pc.setLabelMethod(ParticleCounter.LINEAR);
+			Object[] linear = pc.getParticles(imp, 2, 3, 50, phase);
+			LabelVolume multiLabels = (LabelVolume) multi[1];
+			LabelVolume linearLabels = (LabelVolume) linear[1];
+			byte[][] multiWork = (byte[][]) multi[0];
+			byte[][] linearWork = (byte[][]) linear[0];
+			for (int z = 0; z < multiLabels.getDepth(); z++) {
+				assertArrayEquals(multiLabels.getSlice(z, null),
+						linearLabels.getSlice(z, null));
+				assertArrayEquals(multiWork[z], linearWork[z]);
+			}
+			long[] sizes = (long[]) linear[2];
+			for (int p = 1; p < sizes.length; p++) {
+				assertTrue(sizes[p] >= 3 && sizes[p] <= 50);
+			}
+		}
+	}
+
+	@Test
+	public void testGetParticlesExcludeOnEdges() {
+		final int w = 29, h = 19, d = 13;
+		ImagePlus imp = randomStack(w, h, d, 0.4, 3);
+		ParticleCounter pc = new ParticleCounter();
+		for (int phase : new int[] { ParticleCounter.FORE,
+				ParticleCounter.BACK }) {
+			Object[] result = pc.getParticles(imp, 2, 0,
+					Double.POSITIVE_INFINITY, phase, true);
+			byte[][] workArray = (byte[][]) result[0];
+			LabelVolume labels = (LabelVolume) result[1];
+			long[] sizes = (long[]) result[2];
+			long[] counts = new long[sizes.length];
+			for (int z = 0; z < d; z++) {
+				byte[] pixels = (byte[]) imp.getStack().getPixels(z + 1);
+				for (int y = 0; y < h; y++) {
+					for (int x = 0; x < w; x++) {
+						final int i = y * w + x;
+						final int p = labels.get(z, i);
+						counts[p]++;
+						if (p > 0) {
+							assertTrue(x > 0 && x < w - 1 && y > 0
+									&& y < h - 1 && z > 0 && z < d - 1);
+							assertEquals(phase, workArray[z][i]);
+						}
+						// the other phase is left alone
+						if (pixels[i] != phase)
+							assertEquals(pixels[i], workArray[z][i]);
+					}
+				}
+			}
+			assertArrayEquals(counts, sizes);
+		}
+	}
+
+	@Test
+	public void testGetStreamedStatistics() {
+		ImagePlus imp = randomStack(33, 27, 23, 0.3, 5);
+		ParticleCounter pc = new ParticleCounter();
+		for (int phase : new int[] { ParticleCounter.FORE,
+				ParticleCounter.BACK }) {
+			for (boolean doExclude : new boolean[] { false, true }) {
+				Object[] result = pc.getParticles(imp, 2, 2, 100, phase,
+						doExclude);
+				final int nParticles = ((long[]) result[2]).length;
+				ParticleStatistics expected = new ParticleStatistics(
+						(LabelVolume) result[1], nParticles, null, 0);
+				for (int slicesPerSlab : new int[] { 1, 3, 7, 23, 50 }) {
+					ParticleStatistics stats = pc.getStreamedStatistics(imp,
+							slicesPerSlab, 2, 100, phase, doExclude);
+					assertEquals(nParticles, stats.getNParticles());
+					assertArrayEquals(expected.getCounts(), stats.getCounts());
+					int[][] limits = stats.getLimits();
+					int[][] expectedLimits = expected.getLimits();
+					double[][] centroids = stats.getCentroids(1, 1, 1);
+					double[][] expectedCentroids = expected.getCentroids(1, 1,
+							1);
+					for (int p = 0; p < nParticles; p++) {
+						assertArrayEquals(expectedLimits[p], limits[p]);
+						assertArrayEquals(expectedCentroids[p], centroids[p],
+								1e-12);
+						assertArrayEquals(expected.getCentralMoments(p),
+								stats.getCentralMoments(p), 1e-6);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testGetStreamedStatisticsCompacted() {
+		// enough particles per slice that the union-find is compacted
+		ImagePlus imp = randomStack(96, 80, 30, 0.2, 8);
+		ParticleCounter pc = new ParticleCounter();
+		for (int phase : new int[] { ParticleCounter.FORE,
+				ParticleCounter.BACK }) {
+			Object[] result = pc.getParticles(imp, 2, 2, 20, phase, true);
+			final int nParticles = ((long[]) result[2]).length;
+			ParticleStatistics expected = new ParticleStatistics(
+					(LabelVolume) result[1], nParticles, null, 0);
+			for (int slicesPerSlab : new int[] { 1, 4 }) {
+				ParticleStatistics stats = pc.getStreamedStatistics(imp,
+						slicesPerSlab, 2, 20, phase, true);
+				assertEquals(nParticles, stats.getNParticles());
+				assertArrayEquals(expected.getCounts(), stats.getCounts());
+				int[][] limits = stats.getLimits();
+				int[][] expectedLimits = expected.getLimits();
+				for (int p = 0; p < nParticles; p++)
+					assertArrayEquals(expectedLimits[p], limits[p]);
+			}
+		}
+	}
+
+	/**
+	 * Check that MULTI, LINEAR and MAPPED labelling give identical labels
+	 */
+	private void assertSameLabels(ImagePlus imp, int phase) {
+		ParticleCounter pc = new ParticleCounter();
+		pc.setLabelMethod(ParticleCounter.MULTI);
+		LabelVolume multi = (LabelVolume) pc.getParticles(imp, 2, phase)[1];
+		pc.setLabelMethod(ParticleCounter.LINEAR);
+		LabelVolume linear = (LabelVolume) pc.getParticles(imp, 2, phase)[1];
+		pc.setLabelMethod(ParticleCounter.MAPPED);
+		LabelVolume mapped = (LabelVolume) pc.getParticles(imp, 2, phase)[1];
+		for (int z = 0; z < multi.getDepth(); z++) {
+			final int[] mappedSlice = mapped.getSlice(z, null);
+			assertArrayEquals(multi.getSlice(z, null), mappedSlice);
+			assertArrayEquals(linear.getSlice(z, null), mappedSlice);
+		}
+	}
+
+	private ImagePlus randomStack(int w, int h, int d, double fraction,
+			long seed) {
+		Random random = new Random(seed);
+		ImageStack stack = new ImageStack(w, h);
+		for (int z = 0; z < d; z++) {
+			ByteProcessor bp = new ByteProcessor(w, h);
+			for (int i = 0; i < w * h; i++) {
+				if (random.nextDouble() < fraction)
+					bp.set(i, 255);
+			}
+			stack.addSlice("" + z, bp);
+		}
+		return new ImagePlus("random", stack);
+	}
+}
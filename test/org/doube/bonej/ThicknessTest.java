@@ -4,6 +4,7 @@ import static org.junit.Assert.*;
 import ij.ImagePlus;
 
 import org.doube.geometry.TestDataMaker;
+import org.doube.util.RunningStats;
 import org.doube.util.StackStats;
 import org.junit.Test;
 
@@ -48,4 +49,76 @@ public class ThicknessTest {
 		}
 	}
 
+	@Test
+	public void testGetLocalThicknessInBlocks() {
+		Thickness th = new Thickness();
+		ImagePlus[] images = { TestDataMaker.sphere(12),
+				TestDataMaker.brick(32, 24, 9), TestDataMaker.rod(40, 7) };
+		for (ImagePlus image : images) {
+			for (int inv = 0; inv < 2; inv++) {
+				ImagePlus expected = th.getLocalThickness(image, inv == 1);
+				for (int slices = 0; slices < 8; slices += 3) {
+					ImagePlus actual = th.getLocalThicknessInBlocks(image,
+							inv == 1, slices);
+					assertEquals(expected.getStackSize(),
+							actual.getStackSize());
+					for (int z = 1; z <= expected.getStackSize(); z++) {
+						float[] e = (float[]) expected.getStack().getPixels(z);
+						float[] a = (float[]) actual.getStack().getPixels(z);
+						assertArrayEquals(e, a, 0);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testGetLocalThicknessStats() {
+		Thickness th = new Thickness();
+		ImagePlus[] images = { TestDataMaker.sphere(12),
+				TestDataMaker.brick(32, 24, 9), TestDataMaker.rod(40, 7) };
+		for (ImagePlus image : images) {
+			for (int inv = 0; inv < 2; inv++) {
+				ImagePlus map = th.getLocalThickness(image, inv == 1);
+				double[] expected = StackStats.meanStdDev(map);
+				// in one piece (0 slices) and in blocks
+				long[] histogram = null;
+				for (int slices = 0; slices < 8; slices += 3) {
+					RunningStats stats = th.getLocalThicknessStats(image,
+							inv == 1, slices, 64);
+					if (histogram == null)
+						histogram = stats.getHistogram();
+					assertArrayEquals(histogram, stats.getHistogram());
+					double[] actual = stats.getStats();
+					assertEquals(expected[0], actual[0], 1e-9 * expected[0]);
+					assertEquals(expected[1], actual[1], 1e-9 * expected[0]);
+					assertEquals(expected[2], actual[2], 0);
+					long count = 0;
+					for (long c : stats.getHistogram())
+						count += c;
+					assertEquals(stats.getCount(), count);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testGetLocalThicknessMaps() {
+		Thickness th = new Thickness();
+		ImagePlus[] images = { TestDataMaker.sphere(12),
+				TestDataMaker.brick(32, 24, 9), TestDataMaker.rod(40, 7) };
+		for (ImagePlus image : images) {
+			ImagePlus[] maps = th.getLocalThicknessMaps(image);
+			for (int inv = 0; inv < 2; inv++) {
+				ImagePlus expected = th.getLocalThickness(image, inv == 1);
+				assertEquals(expected.getStackSize(), maps[inv].getStackSize());
+				for (int z = 1; z <= expected.getStackSize(); z++) {
+					float[] e = (float[]) expected.getStack().getPixels(z);
+					float[] a = (float[]) maps[inv].getStack().getPixels(z);
+					assertArrayEquals(e, a, 0);
+				}
+			}
+		}
+	}
+
 }
@@ -0,0 +1,176 @@
+package org.doube.geometry;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ConvexHull3DTest {
+
+	@Test
+	public void testGetVertices() {
+		Random random = new Random(1);
+		for (int n = 4; n < 2000; n *= 2) {
+			double[][] points = new double[n][3];
+			for (int i = 0; i < n; i++) {
+				points[i][0] = random.nextDouble() * 10 - 5;
+				points[i][1] = random.nextDouble() * 7 - 2;
+				points[i][2] = random.nextDouble() * 3;
+			}
+			ConvexHull3D hull = new ConvexHull3D(points);
+			int[] vertices = hull.getVertices();
+			assertEquals(bruteForceDiameter(points, null),
+					bruteForceDiameter(points, vertices), 0);
+			// every point lies inside or on every face
+			for (int[] face : hull.getFaces()) {
+				double[] a = points[face[0]];
+				double[] normal = Vectors.crossProduct(a, points[face[1]],
+						points[face[2]]);
+				for (double[] p : points) {
+					double dot = normal[0] * (p[0] - a[0]) + normal[1]
+							* (p[1] - a[1]) + normal[2] * (p[2] - a[2]);
+					assertTrue(dot <= 1e-9);
+				}
+			}
+			assertEquals(bruteForceMinWidth(points, hull),
+					hull.getMinWidth()[0], 1e-9);
+			assertEquals(bruteForceDiameter(points, null),
+					hull.getDiameter()[0], 1e-12);
+		}
+	}
+
+	@Test
+	public void testGetVerticesSphere() {
+		final double[][] points = FitEllipsoid.testEllipsoid(3, 3, 3, 0, 1, 2,
+				3, 0, 500, true);
+		ConvexHull3D hull = new ConvexHull3D(points);
+		assertEquals(bruteForceDiameter(points, null),
+				bruteForceDiameter(points, hull.getVertices()), 0);
+	}
+
+	@Test
+	public void testGetMinWidth() {
+		// a brick 4 x 2 x 1 with some interior points
+		double[][] points = new double[8 + 20][3];
+		int i = 0;
+		for (int x = 0; x <= 4; x += 4)
+			for (int y = 0; y <= 2; y += 2)
+				for (int z = 0; z <= 1; z++)
+					points[i++] = new double[] { x, y, z };
+		Random random = new Random(2);
+		for (; i < points.length; i++)
+			points[i] = new double[] { random.nextDouble() * 4,
+					random.nextDouble() * 2, random.nextDouble() };
+		ConvexHull3D hull = new ConvexHull3D(points);
+		assertEquals(8, hull.getVertices().length);
+		double[] width = hull.getMinWidth();
+		assertEquals(1, width[0], 1e-12);
+		assertEquals(1, Math.abs(width[3]), 1e-12);
+		assertEquals(Math.sqrt(21), hull.getDiameter()[0], 1e-12);
+	}
+
+	@Test
+	public void testGetMinWidthTetrahedron() {
+		// the narrowest planes are parallel to two opposite edges, 2 apart
+		double[][] points = { { 1, 1, 1 }, { 1, -1, -1 }, { -1, 1, -1 },
+				{ -1, -1, 1 } };
+		ConvexHull3D hull = new ConvexHull3D(points);
+		double[] width = hull.getMinWidth();
+		assertEquals(2, width[0], 1e-12);
+		assertEquals(1, Math.abs(width[1]) + Math.abs(width[2])
+				+ Math.abs(width[3]), 1e-12);
+		assertEquals(Math.sqrt(8), hull.getDiameter()[0], 1e-12);
+	}
+
+	@Test
+	public void testGetDiameterLattice() {
+		// many parallel faces and edges, and tied distances
+		Random random = new Random(4);
+		for (int n = 8; n < 500; n *= 2) {
+			double[][] points = new double[n][3];
+			for (int i = 0; i < n; i++)
+				points[i] = new double[] { random.nextInt(5),
+						random.nextInt(4), random.nextInt(3) };
+			ConvexHull3D hull = new ConvexHull3D(points);
+			double[] diameter = hull.getDiameter();
+			assertEquals(bruteForceDiameter(points, null), diameter[0], 1e-12);
+			double dx = diameter[1] - diameter[4];
+			double dy = diameter[2] - diameter[5];
+			double dz = diameter[3] - diameter[6];
+			assertEquals(diameter[0], Math.sqrt(dx * dx + dy * dy + dz * dz),
+					1e-12);
+			if (hull.getFaces().length > 0)
+				assertEquals(bruteForceMinWidth(points, hull),
+						hull.getMinWidth()[0], 1e-9);
+		}
+	}
+
+	@Test
+	public void testDegenerate() {
+		// coplanar points have no hull faces, so all points are returned
+		double[][] points = new double[50][3];
+		Random random = new Random(3);
+		for (int i = 0; i < points.length; i++)
+			points[i] = new double[] { random.nextDouble(),
+					random.nextDouble(), 1 };
+		ConvexHull3D hull = new ConvexHull3D(points);
+		assertEquals(points.length, hull.getVertices().length);
+		assertEquals(0, hull.getMinWidth()[0], 0);
+	}
+
+	/**
+	 * The minimum width is the width in the direction of a face normal or of
+	 * the common normal of two edges; the width in any direction is no less
+	 */
+	private double bruteForceMinWidth(double[][] points, ConvexHull3D hull) {
+		int[][] faces = hull.getFaces();
+		double[][] directions = new double[faces.length * 3][];
+		for (int f = 0; f < faces.length; f++)
+			for (int e = 0; e < 3; e++) {
+				double[] a = points[faces[f][e]];
+				double[] b = points[faces[f][(e + 1) % 3]];
+				directions[3 * f + e] = new double[] { b[0] - a[0],
+						b[1] - a[1], b[2] - a[2] };
+			}
+		double min = Double.POSITIVE_INFINITY;
+		for (int[] face : faces)
+			min = Math.min(min, width(points, Vectors.crossProduct(
+					points[face[0]], points[face[1]], points[face[2]])));
+		for (int i = 0; i < directions.length; i++)
+			for (int j = i + 1; j < directions.length; j++)
+				min = Math.min(min, width(points, Vectors.crossProduct(
+						directions[i], directions[j])));
+		return min;
+	}
+
+	private double width(double[][] points, double[] n) {
+		double length = Math.sqrt(n[0] * n[0] + n[1] * n[1] + n[2] * n[2]);
+		if (length < 1e-9)
+			return Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		double min = Double.POSITIVE_INFINITY;
+		for (double[] p : points) {
+			double dot = (n[0] * p[0] + n[1] * p[1] + n[2] * p[2]) / length;
+			max = Math.max(max, dot);
+			min = Math.min(min, dot);
+		}
+		return max - min;
+	}
+
+	private double bruteForceDiameter(double[][] points, int[] subset) {
+		int n = subset == null ? points.length : subset.length;
+		double max = 0;
+		for (int i = 0; i < n; i++) {
+			double[] a = points[subset == null ? i : subset[i]];
+			for (int j = i + 1; j < n; j++) {
+				double[] b = points[subset == null ? j : subset[j]];
+				double dx = a[0] - b[0];
+				double dy = a[1] - b[1];
+				double dz = a[2] - b[2];
+				max = Math.max(max, dx * dx + dy * dy + dz * dz);
+			}
+		}
+		return Math.sqrt(max);
+	}
+}
@@ -0,0 +1,104 @@
+package org.doube.geometry;
+
+import static org.junit.Assert.*;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class MarchingCubesTest {
+
+	private static final double[] ORIGIN = { 0, 0, 0 };
+
+	private static final double[] UNIT = { 1, 1, 1 };
+
+	@Test
+	public void testGetMeshClosed() {
+		// every triangle edge is matched by one edge running the other way
+		Random random = new Random(1);
+		for (int trial = 0; trial < 500; trial++) {
+			final int w = 3 + random.nextInt(8);
+			final int h = 3 + random.nextInt(8);
+			final int d = 3 + random.nextInt(8);
+			final double fraction = random.nextDouble();
+			byte[][] slices = new byte[d][w * h];
+			for (int z = 1; z < d - 1; z++)
+				for (int y = 1; y < h - 1; y++)
+					for (int x = 1; x < w - 1; x++)
+						if (random.nextDouble() < fraction)
+							slices[z][y * w + x] = (byte) 255;
+			Mesh mesh = MarchingCubes.getMesh(slices, w, h, 128, ORIGIN, UNIT);
+			int[] faces = mesh.getFaces();
+			HashMap<Long, Integer> edges = new HashMap<Long, Integer>();
+			for (int f = 0; f < faces.length; f += 3) {
+				for (int k = 0; k < 3; k++) {
+					final long a = faces[f + k];
+					final long b = faces[f + (k + 1) % 3];
+					assertTrue(a != b);
+					final Long key = a << 32 | b;
+					assertNull(edges.put(key, f));
+				}
+			}
+			for (Long key : edges.keySet()) {
+				final long reverse = (key & 0xFFFFFFFFL) << 32 | key >>> 32;
+				assertTrue(edges.containsKey(reverse));
+			}
+			assertTrue(mesh.getVolume() >= 0);
+		}
+	}
+
+	@Test
+	public void testGetMeshSingleVoxel() {
+		byte[][] slices = new byte[3][9];
+		slices[1][4] = (byte) 255;
+		Mesh mesh = MarchingCubes.getMesh(slices, 3, 3, 128, ORIGIN, UNIT);
+		// an octahedron with its vertices about half a voxel from the centre
+		assertEquals(6, mesh.getNVertices());
+		assertEquals(8, mesh.getNTriangles());
+		final double r = 127.0 / 255.0;
+		assertEquals(4 * r * r * r / 3, mesh.getVolume(), 1e-6);
+		assertEquals(4 * Math.sqrt(3) * r * r, mesh.getSurfaceArea(), 1e-6);
+	}
+
+	@Test
+	public void testGetMeshSphere() {
+		final int r = 24;
+		ImagePlus imp = TestDataMaker.sphere(r);
+		Mesh mesh = MarchingCubes.getMesh(getSlices(imp), imp.getWidth(),
+				imp.getHeight(), 128, ORIGIN, UNIT);
+		// unsmoothed binary surfaces are ridged, so overestimate area
+		assertEquals(4 * Math.PI * r * r, mesh.getSurfaceArea(),
+				4 * Math.PI * r * r * 0.12);
+		assertEquals(4 * Math.PI * r * r * r / 3, mesh.getVolume(),
+				4 * Math.PI * r * r * r / 3 * 0.05);
+	}
+
+	@Test
+	public void testGetMeshSpacing() {
+		ImagePlus imp = TestDataMaker.brick(20, 16, 9);
+		byte[][] slices = getSlices(imp);
+		Mesh unit = MarchingCubes.getMesh(slices, imp.getWidth(),
+				imp.getHeight(), 128, ORIGIN, UNIT);
+		double[] origin = { 5, -3, 2 };
+		double[] spacing = { 0.5, 2, 3 };
+		Mesh scaled = MarchingCubes.getMesh(slices, imp.getWidth(),
+				imp.getHeight(), 128, origin, spacing);
+		assertEquals(20 * 16 * 9, unit.getVolume(), 20 * 16 * 9 * 0.03);
+		assertEquals(unit.getVolume() * 3, scaled.getVolume(), 1e-3);
+		float[] u = unit.getVertices();
+		float[] s = scaled.getVertices();
+		for (int i = 0; i < u.length; i++)
+			assertEquals(origin[i % 3] + u[i] * spacing[i % 3], s[i], 1e-4);
+	}
+
+	private byte[][] getSlices(ImagePlus imp) {
+		ImageStack stack = imp.getStack();
+		byte[][] slices = new byte[stack.getSize()][];
+		for (int z = 0; z < slices.length; z++)
+			slices[z] = (byte[]) stack.getPixels(z + 1);
+		return slices;
+	}
+}
@@ -0,0 +1,53 @@
+package org.doube.skeleton;
+
+import static org.junit.Assert.*;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+
+import org.doube.geometry.TestDataMaker;
+import org.junit.Test;
+
+public class AnalyzeSkeletonTest {
+
+	@Test
+	public void testLongestShortestPathCycles() {
+		ImagePlus imp = TestDataMaker.boxFrame(32, 64, 128);
+		SkeletonResult result = analyze(imp);
+		assertEquals(1, result.getNumOfTrees());
+		assertEquals(219.82842712474618, result.getShortestPathList().get(0),
+				1e-9);
+		assertArrayEquals(new double[] { 63, 95, 33 },
+				result.getSpStartPosition()[0], 0);
+	}
+
+	@Test
+	public void testLongestShortestPathTree() {
+		// arms of 10, 20 and 30 pixels along x, y and z from the centre of a
+		// cross, on one side only
+		final int size = 64;
+		ImageStack stack = new ImageStack(size, size);
+		for (int z = 0; z < size; z++) {
+			byte[] pixels = new byte[size * size];
+			stack.addSlice("", new ByteProcessor(size, size, pixels, null));
+		}
+		final int c = 16;
+		for (int i = 0; i <= 10; i++)
+			((byte[]) stack.getPixels(c + 1))[c * size + c + i] = (byte) 255;
+		for (int i = 0; i <= 20; i++)
+			((byte[]) stack.getPixels(c + 1))[(c + i) * size + c] = (byte) 255;
+		for (int i = 0; i <= 30; i++)
+			((byte[]) stack.getPixels(c + 1 + i))[c * size + c] = (byte) 255;
+		SkeletonResult result = analyze(new ImagePlus("cross", stack));
+		assertEquals(1, result.getNumOfTrees());
+		// the z arm to the y arm
+		assertEquals(50, result.getShortestPathList().get(0), 1e-9);
+	}
+
+	private SkeletonResult analyze(ImagePlus imp) {
+		AnalyzeSkeleton analyzeSkeleton = new AnalyzeSkeleton();
+		analyzeSkeleton.setup("", imp);
+		return analyzeSkeleton.run(AnalyzeSkeleton.NONE, false, true, imp,
+				true, false);
+	}
+}
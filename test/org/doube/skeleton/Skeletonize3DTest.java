@@ -0,0 +1,118 @@
+package org.doube.skeleton;
+
+import static org.junit.Assert.*;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class Skeletonize3DTest {
+
+	@Test
+	public void testComputeThinImageFromBorders() {
+		Random random = new Random(42);
+		for (int i = 0; i < 20; i++) {
+			final int w = 4 + random.nextInt(24);
+			final int h = 4 + random.nextInt(24);
+			final int d = 1 + random.nextInt(16);
+			final double p = 0.3 + 0.5 * random.nextDouble();
+			ImageStack stack = new ImageStack(w, h);
+			ImageStack copy = new ImageStack(w, h);
+			for (int z = 0; z < d; z++) {
+				byte[] pixels = new byte[w * h];
+				for (int j = 0; j < pixels.length; j++)
+					if (random.nextDouble() < p)
+						pixels[j] = 1;
+				stack.addSlice("", new ByteProcessor(w, h, pixels, null));
+				copy.addSlice("", new ByteProcessor(w, h, pixels.clone(), null));
+			}
+			new Skeletonize3D().computeThinImage(stack);
+			new Skeletonize3D().computeThinImageFromBorders(copy);
+			for (int z = 1; z <= d; z++)
+				assertArrayEquals((byte[]) stack.getPixels(z),
+						(byte[]) copy.getPixels(z));
+		}
+	}
+
+	@Test
+	public void testComputeThinImageFromBordersChunked() {
+		// a rough 64^3 sphere has enough border voxels to check that the
+		// candidates are found in several chunks (of at least 4096 voxels)
+		final int size = 64;
+		Random random = new Random(7);
+		ImageStack stack = new ImageStack(size, size);
+		ImageStack copy = new ImageStack(size, size);
+		for (int z = 0; z < size; z++) {
+			byte[] pixels = new byte[size * size];
+			for (int y = 0; y < size; y++)
+				for (int x = 0; x < size; x++) {
+					final int dx = x - size / 2;
+					final int dy = y - size / 2;
+					final int dz = z - size / 2;
+					final double r = 28 + 2 * random.nextGaussian();
+					if (dx * dx + dy * dy + dz * dz < r * r)
+						pixels[y * size + x] = 1;
+				}
+			stack.addSlice("", new ByteProcessor(size, size, pixels, null));
+			copy.addSlice("", new ByteProcessor(size, size, pixels.clone(),
+					null));
+		}
+		final int[] maxChecked = new int[1];
+		Skeletonize3D skeletonize = new Skeletonize3D();
+		skeletonize.setThinningListener(new Skeletonize3D.ThinningListener() {
+			public void subiterationDone(int iteration, int border,
+					int nChecked, int nCandidates, int nDeleted, long nanoTime) {
+				maxChecked[0] = Math.max(maxChecked[0], nChecked);
+			}
+		});
+		new Skeletonize3D().computeThinImage(stack);
+		skeletonize.computeThinImageFromBorders(copy);
+		assertTrue(maxChecked[0] > 3 * 4096);
+		for (int z = 1; z <= size; z++)
+			assertArrayEquals((byte[]) stack.getPixels(z),
+					(byte[]) copy.getPixels(z));
+	}
+
+	@Test
+	public void testThinningListener() {
+		final int size = 64;
+		ImageStack stack = new ImageStack(size, size);
+		int foreground = 0;
+		for (int z = 0; z < size; z++) {
+			byte[] pixels = new byte[size * size];
+			for (int y = 0; y < size; y++)
+				for (int x = 0; x < size; x++) {
+					final int dx = x - size / 2;
+					final int dy = y - size / 2;
+					final int dz = z - size / 2;
+					if (dx * dx + dy * dy + dz * dz < 24 * 24) {
+						pixels[y * size + x] = 1;
+						foreground++;
+					}
+				}
+			stack.addSlice("", new ByteProcessor(size, size, pixels, null));
+		}
+		final int[] totals = new int[2];
+		Skeletonize3D skeletonize = new Skeletonize3D();
+		skeletonize.setThinningListener(new Skeletonize3D.ThinningListener() {
+			public void subiterationDone(int iteration, int border,
+					int nChecked, int nCandidates, int nDeleted, long nanoTime) {
+				assertTrue(nCandidates <= nChecked);
+				assertTrue(nDeleted <= nCandidates);
+				totals[0] += nDeleted;
+				totals[1]++;
+			}
+		});
+		skeletonize.computeThinImageFromBorders(stack);
+		int remaining = 0;
+		for (int z = 1; z <= size; z++)
+			for (byte b : (byte[]) stack.getPixels(z))
+				remaining += b;
+		assertEquals(foreground - remaining, totals[0]);
+		assertEquals(0, totals[1] % 6);
+		// thinning never deletes a whole object
+		assertTrue(remaining > 0);
+	}
+}
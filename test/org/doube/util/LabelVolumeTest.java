@@ -0,0 +1,117 @@
+package org.doube.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LabelVolumeTest {
+
+	@Test
+	public void testPack() {
+		for (int nLabels : new int[] { 100, LabelVolume.MAX_SHORT_LABEL + 1,
+				LabelVolume.MAX_SHORT_LABEL + 2, 1000000 }) {
+			int[][] labels = randomLabels(13, 11, 7, nLabels);
+			int[][] copy = new int[labels.length][];
+			for (int z = 0; z < labels.length; z++)
+				copy[z] = labels[z].clone();
+			LabelVolume volume = LabelVolume.pack(labels, 13, nLabels);
+			assertTrue(volume.getMaxLabel() >= nLabels - 1);
+			assertSameLabels(copy, volume);
+		}
+	}
+
+	@Test
+	public void testCreateMapped() {
+		for (int nLabels : new int[] { 100, 1000000 }) {
+			int[][] labels = randomLabels(17, 5, 9, nLabels);
+			LabelVolume volume = LabelVolume.createMapped(17, 5, 9, nLabels);
+			for (int z = 0; z < labels.length; z++)
+				volume.setSlice(z, labels[z]);
+			assertSameLabels(labels, volume);
+			volume.set(3, 4, nLabels - 1);
+			assertEquals(nLabels - 1, volume.get(3, 4));
+			volume.dispose();
+		}
+	}
+
+	@Test
+	public void testCreateNarrowing() {
+		final int w = 19, h = 7, d = 5;
+		LabelVolume volume = LabelVolume.createNarrowing(w, h, d,
+				Integer.MAX_VALUE);
+		int[][] expected = new int[d][w * h];
+		// unwritten slices are 0
+		assertSameLabels(expected, volume);
+		// writing a large label widens its slice only
+		volume.set(1, 3, 7);
+		volume.set(1, 4, 1000000);
+		volume.set(2, 5, 9);
+		expected[1][3] = 7;
+		expected[1][4] = 1000000;
+		expected[2][5] = 9;
+		assertSameLabels(expected, volume);
+		// replacing a slice narrows or widens it as its labels need
+		for (int nLabels : new int[] { 100, 1000000, 100 }) {
+			int[][] labels = randomLabels(w, h, d, nLabels);
+			for (int z = 0; z < d; z++)
+				volume.setSlice(z, labels[z]);
+			assertSameLabels(labels, volume);
+		}
+		assertEquals(Integer.MAX_VALUE, volume.getMaxLabel());
+	}
+
+	@Test
+	public void testReplace() {
+		final int w = 13, h = 11, d = 4;
+		for (int nLabels : new int[] { 50, 1000000 }) {
+			int[][] labels = randomLabels(w, h, d, nLabels);
+			LabelVolume[] volumes = {
+					LabelVolume.createNarrowing(w, h, d, nLabels),
+					LabelVolume.create(w, h, d, nLabels),
+					LabelVolume.createMapped(w, h, d, nLabels) };
+			for (LabelVolume volume : volumes) {
+				int[][] expected = new int[d][];
+				for (int z = 0; z < d; z++) {
+					volume.setSlice(z, labels[z]);
+					expected[z] = labels[z].clone();
+				}
+				// replace with a small, a large and the zero label
+				final int large = Math.min(70000, volume.getMaxLabel());
+				final int[][] pairs = { { labels[0][7], 3 },
+						{ labels[1][2], large }, { labels[2][5], 0 },
+						{ 0, labels[3][1] } };
+				for (int z = 0; z < d; z++) {
+					final int m = pairs[z][0], n = pairs[z][1];
+					volume.replace(z, m, n);
+					for (int i = 0; i < w * h; i++)
+						if (expected[z][i] == m)
+							expected[z][i] = n;
+				}
+				assertSameLabels(expected, volume);
+				volume.dispose();
+			}
+		}
+	}
+
+	private void assertSameLabels(int[][] labels, LabelVolume volume) {
+		assertEquals(labels.length, volume.getDepth());
+		int[] buffer = new int[labels[0].length];
+		for (int z = 0; z < labels.length; z++) {
+			assertArrayEquals(labels[z], volume.getSlice(z, buffer));
+			for (int i = 0; i < labels[z].length; i++)
+				assertEquals(labels[z][i], volume.get(z, i));
+		}
+	}
+
+	private int[][] randomLabels(int w, int h, int d, int nLabels) {
+		Random random = new Random(nLabels);
+		int[][] labels = new int[d][w * h];
+		for (int z = 0; z < d; z++)
+			for (int i = 0; i < w * h; i++)
+				labels[z][i] = random.nextInt(nLabels);
+		labels[d - 1][w * h - 1] = nLabels - 1;
+		return labels;
+	}
+}
@@ -0,0 +1,96 @@
+package org.doube.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ParticleStatisticsTest {
+
+	@Test
+	public void testParticleStatistics() {
+		final int w = 23, h = 17, d = 31, nParticles = 9;
+		Random random = new Random(7);
+		int[][] labels = new int[d][w * h];
+		float[][] values = new float[d][w * h];
+		for (int z = 0; z < d; z++) {
+			for (int i = 0; i < w * h; i++) {
+				labels[z][i] = random.nextInt(nParticles);
+				values[z][i] = random.nextFloat() * 10 - 1;
+			}
+		}
+		ParticleStatistics stats = new ParticleStatistics(LabelVolume.pack(
+				labels.clone(), w, nParticles), nParticles, values, 0);
+		long[] counts = stats.getCounts();
+		int[][] limits = stats.getLimits();
+		double[][] centroids = stats.getCentroids(1, 2, 3);
+		double[][] meanStdDev = stats.getMeanStdDev();
+		for (int p = 0; p < nParticles; p++) {
+			long count = 0;
+			double[] sums = new double[3];
+			int[] expectedLimits = { w, 0, h, 0, d, 0 };
+			double sumValues = 0, max = 0;
+			long nValues = 0;
+			for (int z = 0; z < d; z++) {
+				for (int y = 0; y < h; y++) {
+					for (int x = 0; x < w; x++) {
+						if (labels[z][y * w + x] != p)
+							continue;
+						count++;
+						sums[0] += x;
+						sums[1] += y;
+						sums[2] += z;
+						expectedLimits[0] = Math.min(expectedLimits[0], x);
+						expectedLimits[1] = Math.max(expectedLimits[1], x);
+						expectedLimits[2] = Math.min(expectedLimits[2], y);
+						expectedLimits[3] = Math.max(expectedLimits[3], y);
+						expectedLimits[4] = Math.min(expectedLimits[4], z);
+						expectedLimits[5] = Math.max(expectedLimits[5], z);
+						final double value = values[z][y * w + x];
+						if (value > 0) {
+							sumValues += value;
+							max = Math.max(max, value);
+							nValues++;
+						}
+					}
+				}
+			}
+			assertEquals(count, counts[p]);
+			assertArrayEquals(expectedLimits, limits[p]);
+			final double[] c = { sums[0] / count, sums[1] / count,
+					sums[2] / count };
+			assertEquals(c[0], centroids[p][0], 1e-12);
+			assertEquals(c[1] * 2, centroids[p][1], 1e-12);
+			assertEquals(c[2] * 3, centroids[p][2], 1e-12);
+
+			final double mean = sumValues / nValues;
+			double[] moments = new double[6];
+			double sumSquares = 0;
+			for (int z = 0; z < d; z++) {
+				for (int y = 0; y < h; y++) {
+					for (int x = 0; x < w; x++) {
+						if (labels[z][y * w + x] != p)
+							continue;
+						final double dx = x - c[0], dy = y - c[1], dz = z
+								- c[2];
+						moments[0] += dx * dx;
+						moments[1] += dy * dy;
+						moments[2] += dz * dz;
+						moments[3] += dx * dy;
+						moments[4] += dx * dz;
+						moments[5] += dy * dz;
+						final double value = values[z][y * w + x];
+						if (value > 0)
+							sumSquares += (value - mean) * (value - mean);
+					}
+				}
+			}
+			assertArrayEquals(moments, stats.getCentralMoments(p), 1e-6);
+			assertEquals(mean, meanStdDev[p][0], 1e-9);
+			assertEquals(Math.sqrt(sumSquares / nValues), meanStdDev[p][1],
+					1e-9);
+			assertEquals(max, meanStdDev[p][2], 0);
+		}
+	}
+}